@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.base;
+
+/**
+ * A time source; returns a time value representing the number of nanoseconds
+ * elapsed since some fixed but arbitrary point in time. Only the differences
+ * between values are meaningful.
+ *
+ * <p>The {@linkplain #systemTicker system ticker} reads {@link
+ * System#nanoTime}. Other implementations let code that measures time, such
+ * as a map built with {@code MapMaker.ticker}, be driven by a fake clock in
+ * tests, so that timed behavior can be exercised at any speed without
+ * sleeping.
+ */
+public abstract class Ticker {
+
+  /** Constructor for use by subclasses. */
+  protected Ticker() {}
+
+  /**
+   * Returns the number of nanoseconds elapsed since this ticker's fixed
+   * point of reference.
+   */
+  public abstract long read();
+
+  /**
+   * Returns a ticker that reads the current time using {@link
+   * System#nanoTime}.
+   */
+  public static Ticker systemTicker() {
+    return SYSTEM_TICKER;
+  }
+
+  private static final Ticker SYSTEM_TICKER = new Ticker() {
+    @Override public long read() {
+      return System.nanoTime();
+    }
+  };
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+import com.google.common.base.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * An immutable snapshot of the statistics recorded by a map built with
+ * {@link MapMaker#recordStats}. Obtain one with {@link MapMaker#stats}.
+ *
+ * <p>Each call to {@link java.util.Map#get} on such a map is counted as
+ * either a hit or a miss. In a {@linkplain MapMaker#makeComputingMap
+ * computing map}, a miss is any call that didn't find a computed value,
+ * whether the calling thread computed the value itself or waited for
+ * another thread to compute it. Entries the map removed on its own are
+ * counted by cause: garbage collection of a key or value, expiration, or
+ * eviction to honor a maximum size.
+ *
+ * <p>The counts are gathered without locking, so a snapshot of a map that
+ * is in use may not reflect a single instant. Counts never decrease; to
+ * measure an interval, take the difference of two snapshots.
+ */
+@GwtCompatible
+public final class CacheStats {
+  private final long hitCount;
+  private final long missCount;
+  private final long computeSuccessCount;
+  private final long computeExceptionCount;
+  private final long totalComputeTime;
+  private final long waitCount;
+  private final long collectedCount;
+  private final long expiredCount;
+  private final long evictedCount;
+
+  CacheStats(long hitCount, long missCount, long computeSuccessCount,
+      long computeExceptionCount, long totalComputeTime, long waitCount,
+      long collectedCount, long expiredCount, long evictedCount) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.computeSuccessCount = computeSuccessCount;
+    this.computeExceptionCount = computeExceptionCount;
+    this.totalComputeTime = totalComputeTime;
+    this.waitCount = waitCount;
+    this.collectedCount = collectedCount;
+    this.expiredCount = expiredCount;
+    this.evictedCount = evictedCount;
+  }
+
+  /** Returns the number of times {@code get} was called. */
+  public long requestCount() {
+    return hitCount + missCount;
+  }
+
+  /** Returns the number of times {@code get} found a value. */
+  public long hitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the ratio of hits to requests, or {@code 1.0} if there were no
+   * requests.
+   */
+  public double hitRate() {
+    long requestCount = requestCount();
+    return (requestCount == 0) ? 1.0 : (double) hitCount / requestCount;
+  }
+
+  /**
+   * Returns the number of times {@code get} didn't find a value, including
+   * calls that waited for another thread's computation.
+   */
+  public long missCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the ratio of misses to requests, or {@code 0.0} if there were no
+   * requests.
+   */
+  public double missRate() {
+    long requestCount = requestCount();
+    return (requestCount == 0) ? 0.0 : (double) missCount / requestCount;
+  }
+
+  /**
+   * Returns the number of times the computing function was invoked, whether
+   * it returned a value or failed.
+   */
+  public long computeCount() {
+    return computeSuccessCount + computeExceptionCount;
+  }
+
+  /** Returns the number of times the computing function returned a value. */
+  public long computeSuccessCount() {
+    return computeSuccessCount;
+  }
+
+  /**
+   * Returns the number of times the computing function threw an exception
+   * or returned null.
+   */
+  public long computeExceptionCount() {
+    return computeExceptionCount;
+  }
+
+  /**
+   * Returns the total number of nanoseconds spent in the computing function,
+   * including invocations that failed.
+   */
+  public long totalComputeTime() {
+    return totalComputeTime;
+  }
+
+  /**
+   * Returns the average number of nanoseconds an invocation of the computing
+   * function took, or {@code 0.0} if it was never invoked.
+   */
+  public double averageComputePenalty() {
+    long computeCount = computeCount();
+    return (computeCount == 0)
+        ? 0.0 : (double) totalComputeTime / computeCount;
+  }
+
+  /**
+   * Returns the number of times a call to {@code get} blocked while another
+   * thread computed the requested value.
+   */
+  public long waitCount() {
+    return waitCount;
+  }
+
+  /**
+   * Returns the number of entries removed because their key or value was
+   * garbage collected.
+   */
+  public long collectedCount() {
+    return collectedCount;
+  }
+
+  /** Returns the number of entries removed because they expired. */
+  public long expiredCount() {
+    return expiredCount;
+  }
+
+  /**
+   * Returns the number of entries evicted to keep the map within its maximum
+   * size.
+   */
+  public long evictedCount() {
+    return evictedCount;
+  }
+
+  @Override public boolean equals(@Nullable Object object) {
+    if (object instanceof CacheStats) {
+      CacheStats that = (CacheStats) object;
+      return hitCount == that.hitCount
+          && missCount == that.missCount
+          && computeSuccessCount == that.computeSuccessCount
+          && computeExceptionCount == that.computeExceptionCount
+          && totalComputeTime == that.totalComputeTime
+          && waitCount == that.waitCount
+          && collectedCount == that.collectedCount
+          && expiredCount == that.expiredCount
+          && evictedCount == that.evictedCount;
+    }
+    return false;
+  }
+
+  @Override public int hashCode() {
+    return Objects.hashCode(hitCount, missCount, computeSuccessCount,
+        computeExceptionCount, totalComputeTime, waitCount, collectedCount,
+        expiredCount, evictedCount);
+  }
+
+  @Override public String toString() {
+    return "CacheStats{hitCount=" + hitCount
+        + ", missCount=" + missCount
+        + ", computeSuccessCount=" + computeSuccessCount
+        + ", computeExceptionCount=" + computeExceptionCount
+        + ", totalComputeTime=" + totalComputeTime
+        + ", waitCount=" + waitCount
+        + ", collectedCount=" + collectedCount
+        + ", expiredCount=" + expiredCount
+        + ", evictedCount=" + evictedCount + "}";
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implementation of {@link ImmutableMap} indexed by a {@link PerfectHash}
+ * of its keys' hash codes, made by {@link ImmutableMap#compactCopyOf}. Its
+ * table has exactly one slot for each distinct hash code, and a lookup reads
+ * one slot. Keys that share a hash code with another key are kept in a
+ * separate map, and their slot holds a marker instead of a key.
+ */
+@GwtCompatible
+@SuppressWarnings("serial") // uses writeReplace(), not default serialization
+final class CompactImmutableMap<K, V> extends ImmutableMap<K, V> {
+
+  /** Marks the slot of a hash code shared by the keys in {@code overflow}. */
+  private static final Object SHARED = new Object();
+
+  private final transient PerfectHash hash;
+  // alternating keys and values, in the slots chosen by the hash
+  private final transient Object[] table;
+  // the slot of each entry, in iteration order, or -1 for an overflow entry
+  private final transient int[] order;
+  // the entries whose keys share hash codes, in iteration order
+  private final transient ImmutableMap<K, V> overflow;
+  private final transient int keySetHashCode;
+
+  private CompactImmutableMap(PerfectHash hash, Object[] table, int[] order,
+      ImmutableMap<K, V> overflow, int keySetHashCode) {
+    this.hash = hash;
+    this.table = table;
+    this.order = order;
+    this.overflow = overflow;
+    this.keySetHashCode = keySetHashCode;
+  }
+
+  /**
+   * Returns a map of the given two or more entries, in order.
+   *
+   * @throws IllegalArgumentException if two keys are equal
+   */
+  static <K, V> ImmutableMap<K, V> create(
+      Entry<? extends K, ? extends V>[] entries) {
+    int size = entries.length;
+    Object[] keys = new Object[size];
+    Object[] values = new Object[size];
+
+    // Sort the entries by hash code, so that entries with the same hash code
+    // are adjacent. Each element holds a hash code and an entry index.
+    long[] sortedHashes = new long[size];
+    int keySetHashCode = 0;
+    for (int i = 0; i < size; i++) {
+      keys[i] = checkNotNull(entries[i].getKey());
+      values[i] = checkNotNull(entries[i].getValue());
+      int keyHashCode = keys[i].hashCode();
+      sortedHashes[i] = ((long) keyHashCode << 32) | i;
+      keySetHashCode += keyHashCode;
+    }
+    Arrays.sort(sortedHashes);
+
+    int[] distinctHashes = new int[size];
+    int distinct = 0;
+    for (int start = 0; start < size; ) {
+      int end = endOfRun(sortedHashes, start);
+      for (int i = start + 1; i < end; i++) {
+        Object key = keys[(int) sortedHashes[i]];
+        for (int j = start; j < i; j++) {
+          if (keys[(int) sortedHashes[j]].equals(key)) {
+            throw new IllegalArgumentException("duplicate key: " + key);
+          }
+        }
+      }
+      distinctHashes[distinct++] = (int) (sortedHashes[start] >> 32);
+      start = end;
+    }
+    int[] trimmed = new int[distinct];
+    System.arraycopy(distinctHashes, 0, trimmed, 0, distinct);
+    distinctHashes = null; // no longer needed
+
+    PerfectHash hash = PerfectHash.build(trimmed);
+    if (hash == null) {
+      Entry<?, ?>[] immutableEntries = new Entry<?, ?>[size];
+      for (int i = 0; i < size; i++) {
+        immutableEntries[i] = entryOf(keys[i], values[i]);
+      }
+      return new RegularImmutableMap<K, V>(immutableEntries);
+    }
+
+    Object[] table = new Object[distinct * 2];
+    int[] order = new int[size];
+    for (int start = 0; start < size; ) {
+      int end = endOfRun(sortedHashes, start);
+      int slot = hash.slot((int) (sortedHashes[start] >> 32));
+      if (end - start == 1) {
+        int index = (int) sortedHashes[start];
+        table[slot * 2] = keys[index];
+        table[slot * 2 + 1] = values[index];
+        order[index] = slot;
+      } else {
+        table[slot * 2] = SHARED;
+        for (int i = start; i < end; i++) {
+          order[(int) sortedHashes[i]] = -1;
+        }
+      }
+      start = end;
+    }
+
+    ImmutableMap.Builder<K, V> overflow = ImmutableMap.builder();
+    for (int i = 0; i < size; i++) {
+      if (order[i] == -1) {
+        // we're careful to put only K's and V's at these indices
+        @SuppressWarnings("unchecked")
+        K key = (K) keys[i];
+        @SuppressWarnings("unchecked")
+        V value = (V) values[i];
+        overflow.put(key, value);
+      }
+    }
+    return new CompactImmutableMap<K, V>(
+        hash, table, order, overflow.build(), keySetHashCode);
+  }
+
+  /**
+   * Returns the end of the run of elements with the same hash code that
+   * starts at {@code start}.
+   */
+  private static int endOfRun(long[] sortedHashes, int start) {
+    int hashCode = (int) (sortedHashes[start] >> 32);
+    int end = start + 1;
+    while (end < sortedHashes.length
+        && (int) (sortedHashes[end] >> 32) == hashCode) {
+      end++;
+    }
+    return end;
+  }
+
+  @Override public V get(@Nullable Object key) {
+    if (key == null) {
+      return null;
+    }
+    int index = hash.slot(key.hashCode()) * 2;
+    Object candidate = table[index];
+    if (candidate == SHARED) {
+      return overflow.get(key);
+    }
+    if (candidate.equals(key)) {
+      // we're careful to store only V's at odd indices
+      @SuppressWarnings("unchecked")
+      V value = (V) table[index + 1];
+      return value;
+    }
+    return null;
+  }
+
+  public int size() {
+    return order.length;
+  }
+
+  @Override public boolean isEmpty() {
+    return false;
+  }
+
+  @Override public boolean containsValue(@Nullable Object value) {
+    if (value == null) {
+      return false;
+    }
+    for (int i = 1; i < table.length; i += 2) {
+      if (value.equals(table[i])) {
+        return true;
+      }
+    }
+    return overflow.containsValue(value);
+  }
+
+  /**
+   * Iterates over the entries in order, producing something from each
+   * entry's key and value.
+   */
+  private abstract class Itr<T> extends AbstractIterator<T> {
+    final Iterator<Entry<K, V>> overflowEntries
+        = overflow.entrySet().iterator();
+    int index = 0;
+
+    abstract T output(K key, V value);
+
+    // we're careful to store only K's and V's at these indices
+    @SuppressWarnings("unchecked")
+    @Override protected T computeNext() {
+      if (index == order.length) {
+        return endOfData();
+      }
+      int slot = order[index++];
+      if (slot == -1) {
+        Entry<K, V> entry = overflowEntries.next();
+        return output(entry.getKey(), entry.getValue());
+      }
+      return output((K) table[slot * 2], (V) table[slot * 2 + 1]);
+    }
+  }
+
+  private transient ImmutableSet<Entry<K, V>> entrySet;
+
+  @Override public ImmutableSet<Entry<K, V>> entrySet() {
+    ImmutableSet<Entry<K, V>> es = entrySet;
+    return (es == null) ? (entrySet = new EntrySet()) : es;
+  }
+
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private class EntrySet extends ImmutableSet<Entry<K, V>> {
+    public int size() {
+      return order.length;
+    }
+
+    @Override public boolean isEmpty() {
+      return false;
+    }
+
+    @Override public UnmodifiableIterator<Entry<K, V>> iterator() {
+      return new Itr<Entry<K, V>>() {
+        @Override Entry<K, V> output(K key, V value) {
+          return Maps.immutableEntry(key, value);
+        }
+      };
+    }
+
+    @Override public boolean contains(@Nullable Object target) {
+      if (target instanceof Entry) {
+        Entry<?, ?> entry = (Entry<?, ?>) target;
+        V mappedValue = get(entry.getKey());
+        return mappedValue != null && mappedValue.equals(entry.getValue());
+      }
+      return false;
+    }
+  }
+
+  private transient ImmutableSet<K> keySet;
+
+  @Override public ImmutableSet<K> keySet() {
+    ImmutableSet<K> ks = keySet;
+    return (ks == null) ? (keySet = new KeySet()) : ks;
+  }
+
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private class KeySet extends ImmutableSet<K> {
+    public int size() {
+      return order.length;
+    }
+
+    @Override public boolean isEmpty() {
+      return false;
+    }
+
+    @Override public UnmodifiableIterator<K> iterator() {
+      return new Itr<K>() {
+        @Override K output(K key, V value) {
+          return key;
+        }
+      };
+    }
+
+    @Override public boolean contains(@Nullable Object target) {
+      return containsKey(target);
+    }
+
+    @Override public int hashCode() {
+      return keySetHashCode;
+    }
+
+    @Override boolean isHashCodeFast() {
+      return true;
+    }
+  }
+
+  private transient ImmutableCollection<V> values;
+
+  @Override public ImmutableCollection<V> values() {
+    ImmutableCollection<V> v = values;
+    return (v == null) ? (values = new Values()) : v;
+  }
+
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private class Values extends ImmutableCollection<V> {
+    public int size() {
+      return order.length;
+    }
+
+    @Override public UnmodifiableIterator<V> iterator() {
+      return new Itr<V>() {
+        @Override V output(K key, V value) {
+          return value;
+        }
+      };
+    }
+
+    @Override public boolean contains(@Nullable Object target) {
+      return containsValue(target);
+    }
+  }
+
+  /** Deserializes the map with {@link ImmutableMap#compactCopyOf}. */
+  private static class SerializedForm extends ImmutableMap.SerializedForm {
+    SerializedForm(ImmutableMap<?, ?> map) {
+      super(map);
+    }
+
+    @Override Object readResolve() {
+      return compactCopyOf((Map<?, ?>) super.readResolve());
+    }
+
+    private static final long serialVersionUID = 0;
+  }
+
+  @Override Object writeReplace() {
+    return new SerializedForm(this);
+  }
+}
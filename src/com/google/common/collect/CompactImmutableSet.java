@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implementation of {@link ImmutableSet} indexed by a {@link PerfectHash}
+ * of its elements' hash codes, made by {@link ImmutableSet#compactCopyOf}.
+ * Its table has exactly one slot for each distinct hash code, and a lookup
+ * reads one slot. Elements that share a hash code with another element are
+ * kept in a separate set, and their slot holds a marker instead of an
+ * element.
+ */
+@GwtCompatible
+@SuppressWarnings("serial") // uses writeReplace(), not default serialization
+final class CompactImmutableSet<E> extends ImmutableSet<E> {
+
+  /** Marks the slot of a hash code shared by the elements in overflow. */
+  private static final Object SHARED = new Object();
+
+  private final transient PerfectHash hash;
+  // the elements, in the slots chosen by the hash
+  private final transient Object[] table;
+  // the slot of each element, in iteration order, or -1 for an overflow one
+  private final transient int[] order;
+  // the elements that share hash codes, in iteration order
+  private final transient ImmutableSet<E> overflow;
+  private final transient int hashCode;
+
+  private CompactImmutableSet(PerfectHash hash, Object[] table, int[] order,
+      ImmutableSet<E> overflow, int hashCode) {
+    this.hash = hash;
+    this.table = table;
+    this.order = order;
+    this.overflow = overflow;
+    this.hashCode = hashCode;
+  }
+
+  /**
+   * Returns a set of the given elements, in order, ignoring repeated
+   * occurrences of an element after the first.
+   */
+  static <E> ImmutableSet<E> create(Object[] elements) {
+    int length = elements.length;
+
+    // Sort the elements by hash code, so that elements with the same hash
+    // code are adjacent. Each element holds a hash code and an array index;
+    // within a run of equal hash codes, the indices are in ascending order.
+    long[] sortedHashes = new long[length];
+    for (int i = 0; i < length; i++) {
+      int elementHashCode = checkNotNull(elements[i]).hashCode();
+      sortedHashes[i] = ((long) elementHashCode << 32) | i;
+    }
+    Arrays.sort(sortedHashes);
+
+    // Find the distinct hash codes, and the repeated elements.
+    boolean[] repeated = new boolean[length];
+    int[] distinctHashes = new int[length];
+    int distinct = 0;
+    int size = length;
+    int hashCode = 0;
+    for (int start = 0; start < length; ) {
+      int end = endOfRun(sortedHashes, start);
+      int elementHashCode = (int) (sortedHashes[start] >> 32);
+      for (int i = start; i < end; i++) {
+        int index = (int) sortedHashes[i];
+        for (int j = start; j < i; j++) {
+          int earlier = (int) sortedHashes[j];
+          if (!repeated[earlier] && elements[earlier].equals(elements[index])) {
+            repeated[index] = true;
+            size--;
+            break;
+          }
+        }
+        if (!repeated[index]) {
+          hashCode += elementHashCode;
+        }
+      }
+      distinctHashes[distinct++] = elementHashCode;
+      start = end;
+    }
+
+    if (size < 2) {
+      return copyOfElements(elements);
+    }
+
+    int[] trimmed = new int[distinct];
+    System.arraycopy(distinctHashes, 0, trimmed, 0, distinct);
+    distinctHashes = null; // no longer needed
+
+    PerfectHash hash = PerfectHash.build(trimmed);
+    if (hash == null) {
+      return copyOfElements(elements);
+    }
+
+    // Place the elements, and record the slot of each array index: -1 for
+    // the elements sharing a hash code, and -2 for repeated ones.
+    Object[] table = new Object[distinct];
+    int[] slots = new int[length];
+    for (int start = 0; start < length; ) {
+      int end = endOfRun(sortedHashes, start);
+      int slot = hash.slot((int) (sortedHashes[start] >> 32));
+      int kept = 0;
+      for (int i = start; i < end; i++) {
+        int index = (int) sortedHashes[i];
+        if (repeated[index]) {
+          slots[index] = -2;
+        } else {
+          slots[index] = -1;
+          kept++;
+        }
+      }
+      if (kept == 1) {
+        // the first of a run is never repeated
+        int index = (int) sortedHashes[start];
+        table[slot] = elements[index];
+        slots[index] = slot;
+      } else {
+        table[slot] = SHARED;
+      }
+      start = end;
+    }
+
+    int[] order = new int[size];
+    ImmutableSet.Builder<E> overflow = ImmutableSet.builder();
+    int next = 0;
+    for (int i = 0; i < length; i++) {
+      if (slots[i] != -2) {
+        order[next++] = slots[i];
+        if (slots[i] == -1) {
+          @SuppressWarnings("unchecked") // we only put E's in the array
+          E element = (E) elements[i];
+          overflow.add(element);
+        }
+      }
+    }
+    return new CompactImmutableSet<E>(
+        hash, table, order, overflow.build(), hashCode);
+  }
+
+  private static <E> ImmutableSet<E> copyOfElements(Object[] elements) {
+    @SuppressWarnings("unchecked") // we only put E's in the array
+    ImmutableSet<E> set = (ImmutableSet<E>) copyOf(Arrays.asList(elements));
+    return set;
+  }
+
+  /**
+   * Returns the end of the run of elements with the same hash code that
+   * starts at {@code start}.
+   */
+  private static int endOfRun(long[] sortedHashes, int start) {
+    int hashCode = (int) (sortedHashes[start] >> 32);
+    int end = start + 1;
+    while (end < sortedHashes.length
+        && (int) (sortedHashes[end] >> 32) == hashCode) {
+      end++;
+    }
+    return end;
+  }
+
+  @Override public boolean contains(@Nullable Object target) {
+    if (target == null) {
+      return false;
+    }
+    Object candidate = table[hash.slot(target.hashCode())];
+    return (candidate == SHARED)
+        ? overflow.contains(target)
+        : candidate.equals(target);
+  }
+
+  public int size() {
+    return order.length;
+  }
+
+  @Override public boolean isEmpty() {
+    return false;
+  }
+
+  @Override public UnmodifiableIterator<E> iterator() {
+    return new AbstractIterator<E>() {
+      final Iterator<E> overflowElements = overflow.iterator();
+      int index = 0;
+
+      @Override protected E computeNext() {
+        if (index == order.length) {
+          return endOfData();
+        }
+        int slot = order[index++];
+        if (slot == -1) {
+          return overflowElements.next();
+        }
+        // we're careful to put only E's in the table, apart from SHARED
+        @SuppressWarnings("unchecked")
+        E element = (E) table[slot];
+        return element;
+      }
+    };
+  }
+
+  @Override public int hashCode() {
+    return hashCode;
+  }
+
+  @Override boolean isHashCodeFast() {
+    return true;
+  }
+
+  /** Deserializes the set with {@link ImmutableSet#compactCopyOf}. */
+  private static class SerializedForm implements Serializable {
+    final Object[] elements;
+    SerializedForm(Object[] elements) {
+      this.elements = elements;
+    }
+    Object readResolve() {
+      return compactCopyOf(Arrays.asList(elements));
+    }
+    private static final long serialVersionUID = 0;
+  }
+
+  @Override Object writeReplace() {
+    return new SerializedForm(toArray());
+  }
+}
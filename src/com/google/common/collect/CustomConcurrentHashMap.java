@@ -17,6 +17,8 @@
 package com.google.common.collect;
 
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -25,15 +27,33 @@ import java.lang.reflect.Field;
 import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
@@ -132,6 +152,9 @@ final class CustomConcurrentHashMap {
   /** Prevents instantiation. */
   private CustomConcurrentHashMap() {}
 
+  private static final Logger logger
+      = Logger.getLogger(CustomConcurrentHashMap.class.getName());
+
   /**
    * Builds a custom concurrent hash map.
    */
@@ -141,9 +164,28 @@ final class CustomConcurrentHashMap {
     
     private static final int UNSET_INITIAL_CAPACITY = -1;
     private static final int UNSET_CONCURRENCY_LEVEL = -1;
-    
+    private static final long UNSET_EXPIRATION_NANOS = 0;
+    private static final int UNSET_MAXIMUM_SIZE = -1;
+    private static final long UNSET_MAXIMUM_WEIGHT = -1;
+    private static final long UNSET_REFRESH_NANOS = 0;
+    private static final long UNSET_FAILURE_EXPIRATION_NANOS = 0;
+
     int initialCapacity = UNSET_INITIAL_CAPACITY;
     int concurrencyLevel = UNSET_CONCURRENCY_LEVEL;
+    long expirationNanos = UNSET_EXPIRATION_NANOS;
+    boolean expireAfterAccess;
+    int maximumSize = UNSET_MAXIMUM_SIZE;
+    long maximumWeight = UNSET_MAXIMUM_WEIGHT;
+    Weigher<?, ?> weigher;
+    boolean recordStats;
+    RemovalListener<?, ?> removalListener;
+    Executor removalExecutor;
+    long refreshNanos = UNSET_REFRESH_NANOS;
+    Executor refreshExecutor;
+    boolean inlineCleanup;
+    Ticker ticker;
+    boolean recordSegmentStats;
+    long failureExpirationNanos = UNSET_FAILURE_EXPIRATION_NANOS;
 
     /**
      * Sets a custom initial capacity (defaults to 16). Resizing this or any
@@ -193,6 +235,293 @@ final class CustomConcurrentHashMap {
       return this;
     }
 
+    /**
+     * Specifies that each entry should be automatically removed from the map
+     * once a fixed duration has passed since the entry's value was last set.
+     * Maps with expiration must be built with an {@link ExpirableStrategy}.
+     *
+     * @throws IllegalArgumentException if duration is not positive
+     * @throws IllegalStateException if the expiration time was already set
+     */
+    public Builder expiration(long duration, TimeUnit unit) {
+      setExpiration(duration, unit);
+      return this;
+    }
+
+    /**
+     * Specifies that each entry should be automatically removed from the map
+     * once a fixed duration has passed since the entry was last read or
+     * written. Maps with expiration must be built with an {@link
+     * ExpirableStrategy}.
+     *
+     * @throws IllegalArgumentException if duration is not positive
+     * @throws IllegalStateException if the expiration time was already set
+     */
+    public Builder expireAfterAccess(long duration, TimeUnit unit) {
+      if (refreshNanos != UNSET_REFRESH_NANOS) {
+        throw new IllegalStateException(
+            "expireAfterAccess can't be combined with refreshAfterWrite");
+      }
+      setExpiration(duration, unit);
+      this.expireAfterAccess = true;
+      return this;
+    }
+
+    /**
+     * Specifies that once a fixed duration has passed since an entry's value
+     * was last set, the next read of the entry should recompute the value
+     * asynchronously, using the given executor. Reads keep returning the old
+     * value until the new one is installed, and the old value is kept if the
+     * recomputation fails. Only computing maps can be refreshed. Maps with
+     * refresh must be built with an {@link ExpirableStrategy}, which records
+     * the time of the last write.
+     *
+     * @throws IllegalArgumentException if duration is not positive
+     * @throws NullPointerException if executor is null
+     * @throws IllegalStateException if the refresh time was already set, or
+     *     if the map expires entries after access
+     */
+    public Builder refreshAfterWrite(
+        long duration, TimeUnit unit, Executor executor) {
+      if (this.refreshNanos != UNSET_REFRESH_NANOS) {
+        throw new IllegalStateException("refresh time of "
+            + this.refreshNanos + " ns was already set");
+      }
+      if (expireAfterAccess) {
+        throw new IllegalStateException(
+            "refreshAfterWrite can't be combined with expireAfterAccess");
+      }
+      if (duration <= 0) {
+        throw new IllegalArgumentException("invalid duration: " + duration);
+      }
+      if (executor == null) {
+        throw new NullPointerException("executor");
+      }
+      this.refreshNanos = unit.toNanos(duration);
+      this.refreshExecutor = executor;
+      return this;
+    }
+
+    /**
+     * Specifies that when the computation of an entry's value fails, the
+     * entry should keep the failure for the given duration. Until then,
+     * requests for the entry's key rethrow the failure instead of computing
+     * the value again; the first request afterwards removes the entry and
+     * computes the value. Entries holding failures are otherwise invisible:
+     * they don't count toward the map's size or maximum size, and writes
+     * remove them some time after their failures expire. Only computing maps
+     * with an {@link ExpirableStrategy} can keep failures. By default, the
+     * entry is removed as soon as the computation fails, so the next request
+     * computes the value again.
+     *
+     * @throws IllegalArgumentException if duration is not positive
+     * @throws IllegalStateException if the failure expiration time was
+     *     already set
+     */
+    public Builder expireFailuresAfter(long duration, TimeUnit unit) {
+      if (this.failureExpirationNanos != UNSET_FAILURE_EXPIRATION_NANOS) {
+        throw new IllegalStateException("failure expiration time of "
+            + this.failureExpirationNanos + " ns was already set");
+      }
+      if (duration <= 0) {
+        throw new IllegalArgumentException("invalid duration: " + duration);
+      }
+      this.failureExpirationNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /**
+     * Specifies the time source for expiration, refresh, and the compute
+     * times recorded in {@linkplain #recordStats stats}. Defaults to the
+     * {@linkplain Ticker#systemTicker system ticker}.
+     *
+     * @throws NullPointerException if ticker is null
+     * @throws IllegalStateException if a ticker was already set
+     */
+    public Builder ticker(Ticker ticker) {
+      if (this.ticker != null) {
+        throw new IllegalStateException(
+            "ticker was already set to " + this.ticker);
+      }
+      if (ticker == null) {
+        throw new NullPointerException("ticker");
+      }
+      this.ticker = ticker;
+      return this;
+    }
+
+    private void setExpiration(long duration, TimeUnit unit) {
+      if (this.expirationNanos != UNSET_EXPIRATION_NANOS) {
+        throw new IllegalStateException("expiration time of "
+            + this.expirationNanos + " ns was already set");
+      }
+      if (duration <= 0) {
+        throw new IllegalArgumentException("invalid duration: " + duration);
+      }
+      this.expirationNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Specifies the maximum number of entries the map may contain. The limit
+     * is divided evenly among the segments, and each segment evicts its
+     * approximately least-recently-used entries when it exceeds its share.
+     * Maps with a maximum size must be built with an {@link
+     * EvictableStrategy}.
+     *
+     * @throws IllegalArgumentException if maximumSize < 0
+     * @throws IllegalStateException if the maximum size or maximum weight
+     *  was already set
+     */
+    public Builder maximumSize(int maximumSize) {
+      if (this.maximumSize != UNSET_MAXIMUM_SIZE) {
+        throw new IllegalStateException(
+            "maximum size was already set to " + this.maximumSize);
+      }
+      if (this.maximumWeight != UNSET_MAXIMUM_WEIGHT) {
+        throw new IllegalStateException(
+            "maximum weight was already set to " + this.maximumWeight);
+      }
+      if (maximumSize < 0) {
+        throw new IllegalArgumentException("invalid maximum size: "
+            + maximumSize);
+      }
+      this.maximumSize = maximumSize;
+      return this;
+    }
+
+    /**
+     * Specifies the maximum total weight of the entries in the map, as
+     * determined by the {@linkplain #weigher weigher}. Like the maximum
+     * size, the limit is divided evenly among the segments, and each segment
+     * evicts its approximately least-recently-used entries when their
+     * total weight exceeds its share. Entries whose values are still being
+     * computed don't count toward the limit. Maps with a maximum weight must
+     * be built with an {@link EvictableStrategy}.
+     *
+     * @throws IllegalArgumentException if maximumWeight < 0
+     * @throws IllegalStateException if the maximum weight or maximum size
+     *  was already set
+     */
+    public Builder maximumWeight(long maximumWeight) {
+      if (this.maximumWeight != UNSET_MAXIMUM_WEIGHT) {
+        throw new IllegalStateException(
+            "maximum weight was already set to " + this.maximumWeight);
+      }
+      if (this.maximumSize != UNSET_MAXIMUM_SIZE) {
+        throw new IllegalStateException(
+            "maximum size was already set to " + this.maximumSize);
+      }
+      if (maximumWeight < 0) {
+        throw new IllegalArgumentException("invalid maximum weight: "
+            + maximumWeight);
+      }
+      this.maximumWeight = maximumWeight;
+      return this;
+    }
+
+    /**
+     * Specifies the weigher that determines the weight of each entry, for
+     * use with {@link #maximumWeight}. The weigher must accept the key and
+     * value types of the maps built by this builder; this is not checked.
+     *
+     * @throws NullPointerException if weigher is null
+     * @throws IllegalStateException if a weigher was already set
+     */
+    public Builder weigher(Weigher<?, ?> weigher) {
+      if (this.weigher != null) {
+        throw new IllegalStateException(
+            "weigher was already set to " + this.weigher);
+      }
+      if (weigher == null) {
+        throw new NullPointerException("weigher");
+      }
+      this.weigher = weigher;
+      return this;
+    }
+
+    /**
+     * Enables the accumulation of {@link CacheStats} while the map is in
+     * use. Recording adds a small amount of work to every {@link Map#get},
+     * spread across threads so that it adds no contended writes.
+     *
+     * @throws IllegalStateException if stats recording was already enabled
+     */
+    public Builder recordStats() {
+      if (recordStats) {
+        throw new IllegalStateException(
+            "stats recording was already enabled");
+      }
+      this.recordStats = true;
+      return this;
+    }
+
+    /**
+     * Enables the accumulation of {@link SegmentStats}: how often each
+     * segment's lock is acquired, how often it's contended, and for how
+     * long it's held. Recording times every acquisition of a segment lock
+     * using {@link System#nanoTime}, as hold times are measured in real time
+     * regardless of the ticker, and checks whether the lock is free before
+     * acquiring it. Reads that don't lock are unaffected.
+     *
+     * @throws IllegalStateException if segment stats recording was already
+     *     enabled
+     */
+    public Builder recordSegmentStats() {
+      if (recordSegmentStats) {
+        throw new IllegalStateException(
+            "segment stats recording was already enabled");
+      }
+      this.recordSegmentStats = true;
+      return this;
+    }
+
+    /**
+     * Specifies a listener to notify whenever an entry is removed from the
+     * map, or its value replaced. Notifications are queued while the
+     * segment lock is held and delivered after it's released, on the
+     * thread that removed the entry or, if an executor is given, by the
+     * executor.
+     *
+     * <p>The listener must accept the key and value types of the maps built
+     * by this builder; this is not checked.
+     *
+     * @param executor delivers notifications, or null to deliver them on
+     *     the thread that removed the entry
+     * @throws NullPointerException if listener is null
+     * @throws IllegalStateException if a removal listener was already set
+     */
+    public Builder removalListener(
+        RemovalListener<?, ?> listener, @Nullable Executor executor) {
+      if (this.removalListener != null) {
+        throw new IllegalStateException(
+            "removal listener was already set to " + this.removalListener);
+      }
+      if (listener == null) {
+        throw new NullPointerException("listener");
+      }
+      this.removalListener = listener;
+      this.removalExecutor = executor;
+      return this;
+    }
+
+    /**
+     * Specifies that entries reclaimed by the garbage collector should be
+     * removed by the segments that hold them rather than by the thread that
+     * delivers the reclaimed references. That thread merely queues each
+     * entry with its segment, without locking, and the segment removes
+     * queued entries in batches during writes and, occasionally, reads.
+     *
+     * @throws IllegalStateException if inline cleanup was already enabled
+     * @see Internals#reclaimEntry
+     */
+    public Builder inlineCleanup() {
+      if (inlineCleanup) {
+        throw new IllegalStateException("inline cleanup was already enabled");
+      }
+      this.inlineCleanup = true;
+      return this;
+    }
+
     /**
      * Creates a new concurrent hash map backed by the given strategy.
      *
@@ -203,11 +532,25 @@ final class CustomConcurrentHashMap {
      * @param <E> the type of internal entry to be stored in the returned map
      *
      * @throws NullPointerException if strategy is null
+     * @throws IllegalArgumentException if expiration was requested and
+     *  strategy is not an {@link ExpirableStrategy}, or if a maximum size
+     *  was requested and strategy is not an {@link EvictableStrategy}
+     * @throws IllegalStateException if refresh or failure expiration was
+     *  requested, or if only one of a maximum weight and a weigher was
+     *  specified
      */
     public <K, V, E> ConcurrentMap<K, V> buildMap(Strategy<K, V, E> strategy) {
       if (strategy == null) {
         throw new NullPointerException("strategy");
       }
+      if (refreshNanos != UNSET_REFRESH_NANOS) {
+        throw new IllegalStateException("refresh requires a computing map");
+      }
+      if (failureExpirationNanos != UNSET_FAILURE_EXPIRATION_NANOS) {
+        throw new IllegalStateException(
+            "failure expiration requires a computing map");
+      }
+      checkStrategy(strategy);
       return new Impl<K, V, E>(strategy, this);
     }
 
@@ -247,6 +590,12 @@ final class CustomConcurrentHashMap {
      * @param <E> the type of internal entry to be stored in the returned map
      *
      * @throws NullPointerException if strategy or computer is null
+     * @throws IllegalArgumentException if expiration or refresh was
+     *  requested and strategy is not an {@link ExpirableStrategy}, or if a
+     *  maximum size was requested and strategy is not an {@link
+     *  EvictableStrategy}
+     * @throws IllegalStateException if only one of a maximum weight and a
+     *  weigher was specified
      */
     public <K, V, E> ConcurrentMap<K, V> buildComputingMap(
         ComputingStrategy<K, V, E> strategy,
@@ -257,10 +606,44 @@ final class CustomConcurrentHashMap {
       if (computer == null) {
         throw new NullPointerException("computer");
       }
+      checkStrategy(strategy);
 
       return new ComputingImpl<K, V, E>(strategy, this, computer);
     }
-    
+
+    private void checkStrategy(Strategy<?, ?, ?> strategy) {
+      if (expirationNanos != UNSET_EXPIRATION_NANOS
+          && !(strategy instanceof ExpirableStrategy)) {
+        throw new IllegalArgumentException(
+            "expiration requires an ExpirableStrategy");
+      }
+      if (refreshNanos != UNSET_REFRESH_NANOS
+          && !(strategy instanceof ExpirableStrategy)) {
+        throw new IllegalArgumentException(
+            "refresh requires an ExpirableStrategy");
+      }
+      if (failureExpirationNanos != UNSET_FAILURE_EXPIRATION_NANOS
+          && !(strategy instanceof ExpirableStrategy)) {
+        throw new IllegalArgumentException(
+            "failure expiration requires an ExpirableStrategy");
+      }
+      if (maximumSize != UNSET_MAXIMUM_SIZE
+          && !(strategy instanceof EvictableStrategy)) {
+        throw new IllegalArgumentException(
+            "maximum size requires an EvictableStrategy");
+      }
+      if (maximumWeight != UNSET_MAXIMUM_WEIGHT
+          && !(strategy instanceof EvictableStrategy)) {
+        throw new IllegalArgumentException(
+            "maximum weight requires an EvictableStrategy");
+      }
+      if ((maximumWeight == UNSET_MAXIMUM_WEIGHT) != (weigher == null)) {
+        throw new IllegalStateException((weigher == null)
+            ? "maximum weight requires a weigher"
+            : "weigher requires a maximum weight");
+      }
+    }
+
     int getInitialCapacity() {
       return (initialCapacity == UNSET_INITIAL_CAPACITY)
           ? DEFAULT_INITIAL_CAPACITY : initialCapacity;
@@ -270,6 +653,64 @@ final class CustomConcurrentHashMap {
       return (concurrencyLevel == UNSET_CONCURRENCY_LEVEL)
           ? DEFAULT_CONCURRENCY_LEVEL : concurrencyLevel;
     }
+
+    long getExpirationNanos() {
+      return expirationNanos;
+    }
+
+    boolean getExpireAfterAccess() {
+      return expireAfterAccess;
+    }
+
+    /** Returns the maximum size, or -1 if the map is unbounded. */
+    int getMaximumSize() {
+      return maximumSize;
+    }
+
+    /** Returns the maximum weight, or -1 if the map isn't weighed. */
+    long getMaximumWeight() {
+      return maximumWeight;
+    }
+
+    Weigher<?, ?> getWeigher() {
+      return weigher;
+    }
+
+    boolean getRecordStats() {
+      return recordStats;
+    }
+
+    boolean getRecordSegmentStats() {
+      return recordSegmentStats;
+    }
+
+    long getFailureExpirationNanos() {
+      return failureExpirationNanos;
+    }
+
+    RemovalListener<?, ?> getRemovalListener() {
+      return removalListener;
+    }
+
+    Executor getRemovalExecutor() {
+      return removalExecutor;
+    }
+
+    long getRefreshNanos() {
+      return refreshNanos;
+    }
+
+    Executor getRefreshExecutor() {
+      return refreshExecutor;
+    }
+
+    boolean getInlineCleanup() {
+      return inlineCleanup;
+    }
+
+    Ticker getTicker() {
+      return (ticker == null) ? Ticker.systemTicker() : ticker;
+    }
   }
 
   /**
@@ -447,7 +888,9 @@ final class CustomConcurrentHashMap {
 
     /**
      * Removes the given entry from the map if the value of the entry in the
-     * map matches the given value.
+     * map matches the given value. Intended for entries whose values were
+     * garbage collected; if the map has a removal listener, it's notified
+     * that the entry was {@linkplain RemovalCause#COLLECTED collected}.
      *
      * @param entry to remove
      * @param value entry must have for the removal to succeed
@@ -457,13 +900,31 @@ final class CustomConcurrentHashMap {
     boolean removeEntry(E entry, @Nullable V value);
 
     /**
-     * Removes the given entry from the map.
+     * Removes the given entry from the map. If the entry's key was garbage
+     * collected and the map has a removal listener, the listener is notified
+     * that the entry was {@linkplain RemovalCause#COLLECTED collected}.
      *
      * @param entry to remove
      *
      * @throws NullPointerException if entry is null
      */
     boolean removeEntry(E entry);
+
+    /**
+     * Removes the given entry, whose key or value was garbage collected,
+     * unless it has been given a new value since. If the map has a removal
+     * listener, it's notified that the entry was {@linkplain
+     * RemovalCause#COLLECTED collected}.
+     *
+     * <p>If the map was built with {@link Builder#inlineCleanup}, this
+     * method doesn't block; it queues the entry with its segment, which
+     * removes it during a later write or read.
+     *
+     * @param entry to remove
+     *
+     * @throws NullPointerException if entry is null
+     */
+    void reclaimEntry(E entry);
   }
 
   /**
@@ -486,7 +947,12 @@ final class CustomConcurrentHashMap {
      * Computes a value for the given key and stores it in the given entry.
      * Called as a result of {@link Map#get}. If this method throws an
      * exception, CustomConcurrentHashMap will remove the entry and retry
-     * the computation on subsequent requests.
+     * the computation on subsequent requests, unless the map {@linkplain
+     * Builder#expireFailuresAfter keeps failures}; then it keeps the entry,
+     * whose {@link #waitForValue} must rethrow the failure, until {@link
+     * #isFailureExpired} reports that the failure expired. Copies of the
+     * entry, including ones made during the computation, must keep the
+     * failure until the same time.
      *
      * @param entry that was created
      * @param computer passed to {@link Builder#buildMap}
@@ -510,6 +976,140 @@ final class CustomConcurrentHashMap {
      *  waiting
      */
     V waitForValue(E entry) throws InterruptedException;
+
+    /**
+     * Like {@link #waitForValue(Object)}, but waits at most the given time
+     * for the value to be set.
+     *
+     * @param entry to return value from
+     * @param timeout the maximum time to wait
+     * @param unit the unit of {@code timeout}
+     * @return stored value or null if the value isn't available
+     *
+     * @throws InterruptedException if the thread was interrupted while
+     *  waiting
+     * @throws TimeoutException if the value wasn't set in time
+     */
+    V waitForValue(E entry, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException;
+
+    /**
+     * Returns true if the given entry holds a failure kept by {@link
+     * #compute} that had expired at the given time, as read from the map's
+     * {@linkplain Builder#ticker ticker}. Only called if the map keeps
+     * failures.
+     *
+     * @param entry to check
+     * @param now the current time
+     */
+    boolean isFailureExpired(E entry, long now);
+
+    /**
+     * Returns true if the given entry holds a failure kept by {@link
+     * #compute}, either itself or as a copy of an entry whose computation
+     * failed. Only called if the map keeps failures.
+     *
+     * @param entry to check
+     */
+    boolean hasFailure(E entry);
+  }
+
+  /**
+   * Extends {@link Strategy} to support timed expiration of entries. Each
+   * segment keeps its entries in a doubly-linked queue ordered by write time,
+   * so expired entries collect at the head of the queue and can be removed
+   * during ordinary reads and writes, without a separate timer thread. The
+   * links are stored in the entries themselves; the map only reads and writes
+   * them while holding the segment lock.
+   *
+   * <p>Times are read from the map's {@linkplain Builder#ticker ticker}, so
+   * they are only meaningful relative to each other.
+   *
+   * @see Builder#expiration
+   */
+  public interface ExpirableStrategy<K, V, E> extends Strategy<K, V, E> {
+
+    /**
+     * Gets the time at which the given entry expires using volatile
+     * semantics.
+     */
+    long getExpirationTime(E entry);
+
+    /**
+     * Sets the time at which the given entry expires using volatile
+     * semantics.
+     */
+    void setExpirationTime(E entry, long time);
+
+    /**
+     * Gets the entry written after the given entry, or null if the entry is
+     * the most recently written entry or isn't in an expiration queue.
+     */
+    E getNextExpirable(E entry);
+
+    /**
+     * Sets the entry written after the given entry.
+     */
+    void setNextExpirable(E entry, @Nullable E next);
+
+    /**
+     * Gets the entry written before the given entry, or null if the entry is
+     * the least recently written entry or isn't in an expiration queue.
+     */
+    E getPreviousExpirable(E entry);
+
+    /**
+     * Sets the entry written before the given entry.
+     */
+    void setPreviousExpirable(E entry, @Nullable E previous);
+  }
+
+  /**
+   * Extends {@link Strategy} to support bounding the size of the map. Each
+   * segment keeps its entries in a doubly-linked queue in approximate
+   * access order, and evicts from the head of the queue when it grows beyond
+   * its share of the maximum size. Reads don't reorder the queue directly;
+   * they are buffered and applied in batches while the segment lock is held
+   * for some other reason. The links are stored in the entries themselves;
+   * the map only reads and writes them while holding the segment lock.
+   *
+   * @see Builder#maximumSize
+   * @see Builder#maximumWeight
+   */
+  public interface EvictableStrategy<K, V, E> extends Strategy<K, V, E> {
+
+    /**
+     * Gets the entry accessed after the given entry, or null if the entry is
+     * the most recently accessed entry or isn't in an eviction queue.
+     */
+    E getNextEvictable(E entry);
+
+    /**
+     * Sets the entry accessed after the given entry.
+     */
+    void setNextEvictable(E entry, @Nullable E next);
+
+    /**
+     * Gets the entry accessed before the given entry, or null if the entry is
+     * the least recently accessed entry or isn't in an eviction queue.
+     */
+    E getPreviousEvictable(E entry);
+
+    /**
+     * Sets the entry accessed before the given entry.
+     */
+    void setPreviousEvictable(E entry, @Nullable E previous);
+
+    /**
+     * Gets the weight recorded for the given entry. Only used by maps with
+     * a {@linkplain Builder#weigher weigher}.
+     */
+    int getWeight(E entry);
+
+    /**
+     * Records the weight of the given entry.
+     */
+    void setWeight(E entry, int weight);
   }
 
   /**
@@ -532,6 +1132,28 @@ final class CustomConcurrentHashMap {
     return h ^ (h >>> 16);
   }
 
+  /**
+   * Performs one piece of a bulk operation over a map's mappings. Each
+   * piece gets its own task, which is run by a single thread, though the
+   * tasks of different pieces may run concurrently.
+   *
+   * @see Impl#bulkVisit
+   */
+  abstract static class BulkTask<K, V> {
+
+    /**
+     * Visits a mapping. Returns false to end the whole operation early;
+     * pieces that are still running stop at their next table slot.
+     */
+    abstract boolean visit(Map.Entry<K, V> entry);
+
+    /**
+     * Called after the piece's last mapping was visited, unless a visit
+     * threw an exception. Does nothing by default.
+     */
+    void finish() {}
+  }
+
   /** The concurrent hash map implementation. */
   static class Impl<K, V, E> extends AbstractMap<K, V>
       implements ConcurrentMap<K, V>, Serializable {
@@ -557,13 +1179,58 @@ final class CustomConcurrentHashMap {
     static final int MAX_SEGMENTS = 1 << 16; // slightly conservative
 
     /**
-     * Number of unsynchronized retries in size and containsValue methods before
+     * Number of unsynchronized retries in the containsValue method before
      * resorting to locking. This is used to avoid unbounded retries if tables
      * undergo continuous modification which would make it impossible to obtain
      * an accurate result.
      */
     static final int RETRIES_BEFORE_LOCK = 2;
 
+    /**
+     * Number of unsynchronized attempts the size method makes to sum the
+     * segment counts without any segment changing in between. If every
+     * attempt is disturbed by a write, the last sum is returned instead of
+     * locking the segments, which would stall writers.
+     */
+    static final int SIZE_RETRIES = 2;
+
+    /**
+     * Mask applied to each segment's read count to decide when a read should
+     * also attempt to clean up the segment. Cleaning up on every 64th read
+     * keeps maps that are rarely written from holding on to expired entries
+     * or an ever-growing buffer of recent reads, without making each read
+     * contend for the segment lock.
+     */
+    static final int DRAIN_THRESHOLD = 0x3F;
+
+    /**
+     * Maximum number of reclaimed entries a segment removes per cleanup when
+     * cleaning up inline. Bounding the batch keeps a write that follows a
+     * large collection from holding the segment lock for long; the rest of
+     * the backlog is left to later writes and reads.
+     */
+    static final int DRAIN_MAX = 16;
+
+    /**
+     * Number of old table slots a segment moves to its new table per write
+     * while the segment is being resized. Moving the slots a few at a time
+     * keeps any one write from holding the segment lock for a full rehash,
+     * at the cost of slightly slower writes while a resize is in progress.
+     * A resize starts when the old table is three-quarters full, and the new
+     * table reaches that load only after another three inserts for every
+     * four old slots, so moving two slots per write would already finish
+     * each resize before the next one is due.
+     */
+    static final int TRANSFER_STEP = 4;
+
+    /**
+     * Maximum number of table slots in each piece of a bulk operation.
+     * Segments with larger tables are split into several pieces, so that
+     * the work spreads across threads even when a map has fewer segments
+     * than there are threads to run them.
+     */
+    static final int BULK_PIECE_SIZE = 1 << 10;
+
     /* ---------------- Fields -------------- */
 
     /**
@@ -589,11 +1256,112 @@ final class CustomConcurrentHashMap {
     final Segment[] segments;
 
     /**
-     * Creates a new, empty map with the specified strategy, initial capacity,
-     * load factor and concurrency level.
+     * How long after the last write (or access, if {@link
+     * #expireAfterAccess}) to an entry the entry expires, or 0 if entries
+     * never expire. Nonzero only if the strategy is an {@link
+     * ExpirableStrategy}.
      */
-    Impl(Strategy<K, V, E> strategy, Builder builder) {
-      int concurrencyLevel = builder.getConcurrencyLevel();
+    final long expirationNanos;
+
+    /**
+     * Whether reads as well as writes postpone expiration. If so, the
+     * expiration queue is kept in access order rather than write order.
+     */
+    final boolean expireAfterAccess;
+
+    /**
+     * The maximum number of entries in the map, or -1 if the map is
+     * unbounded. Not -1 only if the strategy is an {@link EvictableStrategy}.
+     */
+    final int maximumSize;
+
+    /**
+     * The maximum total weight of the entries in the map, or -1 if the map
+     * isn't weighed. Not -1 only if the strategy is an {@link
+     * EvictableStrategy}.
+     */
+    final long maximumWeight;
+
+    /** Weighs entries, or null if the map isn't weighed. */
+    final Weigher<K, V> weigher;
+
+    /**
+     * How long after the last write to an entry a read triggers an
+     * asynchronous recomputation of its value, or 0 if entries are never
+     * refreshed. Nonzero only for computing maps with an {@link
+     * ExpirableStrategy}.
+     */
+    final long refreshNanos;
+
+    /** Runs refreshes, or null if entries are never refreshed. */
+    final Executor refreshExecutor;
+
+    /**
+     * Entries whose values are being refreshed, or null if entries are never
+     * refreshed.
+     */
+    final ConcurrentMap<E, Boolean> refreshing;
+
+    /** Accumulates statistics, or null if the map doesn't record them. */
+    final StatsCounter statsCounter;
+
+    /** Notified of removed entries, or null if there is no listener. */
+    final RemovalListener<K, V> removalListener;
+
+    /**
+     * Delivers removal notifications, or null to deliver them on the thread
+     * that removed the entries.
+     */
+    final Executor removalExecutor;
+
+    /**
+     * Removal notifications that have yet to be delivered, or null if there
+     * is no listener. Filled while holding a segment lock, and drained after
+     * releasing it.
+     */
+    final Queue<RemovalNotification> removalNotificationQueue;
+
+    /**
+     * Whether segments remove reclaimed entries themselves. If not, entries
+     * are removed by the thread that delivers the reclaimed references.
+     */
+    final boolean inlineCleanup;
+
+    /** Measures time for expiration, refresh, and stats. */
+    final Ticker ticker;
+
+    /** Whether segments record their lock acquisitions and hold times. */
+    final boolean recordSegmentStats;
+
+    /**
+     * How long entries whose computations failed keep their failures, or 0
+     * if they're removed immediately.
+     */
+    final long failureExpirationNanos;
+
+    /**
+     * Creates a new, empty map with the specified strategy, initial capacity,
+     * load factor and concurrency level.
+     */
+    Impl(Strategy<K, V, E> strategy, Builder builder) {
+      this.expirationNanos = builder.getExpirationNanos();
+      this.expireAfterAccess = builder.getExpireAfterAccess();
+      this.refreshNanos = builder.getRefreshNanos();
+      this.refreshExecutor = builder.getRefreshExecutor();
+      this.refreshing = refreshes() ? new ConcurrentHashMap<E, Boolean>() : null;
+      this.maximumSize = builder.getMaximumSize();
+      this.maximumWeight = builder.getMaximumWeight();
+      this.weigher = uncheckedCast(builder.getWeigher());
+      this.statsCounter = builder.getRecordStats() ? new StatsCounter() : null;
+      this.removalListener = uncheckedCast(builder.getRemovalListener());
+      this.removalExecutor = builder.getRemovalExecutor();
+      this.removalNotificationQueue = (removalListener == null)
+          ? null : new ConcurrentLinkedQueue<RemovalNotification>();
+      this.inlineCleanup = builder.getInlineCleanup();
+      this.ticker = builder.getTicker();
+      this.recordSegmentStats = builder.getRecordSegmentStats();
+      this.failureExpirationNanos = builder.getFailureExpirationNanos();
+      int concurrencyLevel = builder.getConcurrencyLevel();
       int initialCapacity = builder.getInitialCapacity();
 
       if (concurrencyLevel > MAX_SEGMENTS) {
@@ -603,7 +1371,8 @@ final class CustomConcurrentHashMap {
       // Find power-of-two sizes best matching arguments
       int segmentShift = 0;
       int segmentCount = 1;
-      while (segmentCount < concurrencyLevel) {
+      while (segmentCount < concurrencyLevel
+          && (!evictsBySize() || segmentCount * 2 <= maximumCapacity())) {
         ++segmentShift;
         segmentCount <<= 1;
       }
@@ -625,7 +1394,9 @@ final class CustomConcurrentHashMap {
           segmentSize <<= 1;
       }
       for (int i = 0; i < this.segments.length; ++i) {
-        this.segments[i] = new Segment(segmentSize);
+        this.segments[i] = new Segment(segmentSize,
+            (int) segmentShare(maximumSize, i),
+            segmentShare(maximumWeight, i));
       }
 
       this.strategy = strategy;
@@ -638,6 +1409,239 @@ final class CustomConcurrentHashMap {
       return rehash(h);
     }
 
+    boolean expires() {
+      return expirationNanos > 0;
+    }
+
+    boolean refreshes() {
+      return refreshNanos > 0;
+    }
+
+    boolean keepsFailures() {
+      return failureExpirationNanos > 0;
+    }
+
+    /**
+     * Returns true if segments keep an expiration queue: of all entries if
+     * the map expires them, and of the entries holding kept failures if the
+     * map keeps failures.
+     */
+    boolean usesExpirationQueue() {
+      return expires() || keepsFailures();
+    }
+
+    /**
+     * Returns true if the given entry holds a failure that the map keeps.
+     */
+    @SuppressWarnings("unchecked") // only maps that compute keep failures
+    boolean isFailure(E entry) {
+      return keepsFailures()
+          && ((ComputingStrategy<K, V, E>) strategy).hasFailure(entry);
+    }
+
+    /**
+     * Returns how long an entry holding a failure stays in the expiration
+     * queue before it's checked again: the expiration time if the map
+     * expires entries, which keeps the queue in order, and otherwise the
+     * failure expiration time.
+     */
+    long failureQueueNanos() {
+      return expires() ? expirationNanos : failureExpirationNanos;
+    }
+
+    /**
+     * Returns true if entries record the time of their last write, as
+     * their expiration time. Without expiration, that's simply the time of
+     * the last write.
+     */
+    boolean recordsWriteTime() {
+      return expires() || refreshes();
+    }
+
+    /**
+     * Returns true if entries are evicted to keep the map within a maximum
+     * size or maximum weight.
+     */
+    boolean evictsBySize() {
+      return maximumSize != -1 || maximumWeight != -1;
+    }
+
+    boolean weighs() {
+      return weigher != null;
+    }
+
+    /**
+     * Returns the maximum weight of a weighed map, otherwise the maximum
+     * size, which is -1 if the map is unbounded.
+     */
+    long maximumCapacity() {
+      return weighs() ? maximumWeight : maximumSize;
+    }
+
+    /**
+     * Returns the weight of an entry with the given key and value, or 1 if
+     * the map isn't weighed.
+     *
+     * @throws IllegalStateException if the weigher returned a negative
+     *     weight
+     */
+    int weigh(K key, V value) {
+      if (!weighs()) {
+        return 1;
+      }
+      int weight = weigher.weigh(key, value);
+      if (weight < 0) {
+        throw new IllegalStateException(
+            weigher + " returned negative weight " + weight);
+      }
+      return weight;
+    }
+
+    /**
+     * Returns true if reads must be recorded, either to postpone expiration
+     * or to maintain the eviction order.
+     */
+    boolean recordsReads() {
+      return expireAfterAccess || evictsBySize();
+    }
+
+    @SuppressWarnings("unchecked") // only called if evictsBySize()
+    EvictableStrategy<K, V, E> evictableStrategy() {
+      return (EvictableStrategy<K, V, E>) strategy;
+    }
+
+    /**
+     * Returns the share of the given maximum size or weight that the segment
+     * with the given index may hold, or -1 if the maximum is -1. The shares
+     * add up to the maximum.
+     */
+    long segmentShare(long maximum, int segmentIndex) {
+      if (maximum == -1) {
+        return -1;
+      }
+      int segmentCount = segments.length;
+      long share = maximum / segmentCount;
+      return (segmentIndex < maximum % segmentCount) ? share + 1 : share;
+    }
+
+    @SuppressWarnings("unchecked") // only called if entries are expirable
+    ExpirableStrategy<K, V, E> expirableStrategy() {
+      return (ExpirableStrategy<K, V, E>) strategy;
+    }
+
+    /**
+     * Returns the current time for an operation on the map, which reads it
+     * once and uses it for all of its timing decisions. Returns 0 without
+     * reading the ticker if entries don't record times and failures aren't
+     * kept.
+     */
+    long now() {
+      return (recordsWriteTime() || keepsFailures()) ? ticker.read() : 0;
+    }
+
+    /**
+     * Returns true if the given entry had expired at the given time, as
+     * returned by {@link #now}. Always false for maps without expiration.
+     */
+    boolean isExpired(E entry, long now) {
+      // Subtraction handles wraparound of the ticker correctly.
+      return expires()
+          && now - expirableStrategy().getExpirationTime(entry) > 0;
+    }
+
+    @SuppressWarnings("unchecked") // see Builder.removalListener()
+    static <K, V> RemovalListener<K, V> uncheckedCast(
+        RemovalListener<?, ?> listener) {
+      return (RemovalListener<K, V>) listener;
+    }
+
+    @SuppressWarnings("unchecked") // see Builder.weigher()
+    static <K, V> Weigher<K, V> uncheckedCast(Weigher<?, ?> weigher) {
+      return (Weigher<K, V>) weigher;
+    }
+
+    /**
+     * Queues a notification that the given entry was removed, if the map has
+     * a removal listener. Call only while holding the lock of the entry's
+     * segment.
+     */
+    void enqueueNotification(E entry, RemovalCause cause) {
+      if (removalListener != null) {
+        removalNotificationQueue.offer(new RemovalNotification(
+            strategy.getKey(entry), strategy.getValue(entry), cause));
+      }
+    }
+
+    /**
+     * Delivers the queued removal notifications. Call only while not holding
+     * a segment lock, so that slow listeners can't stall writers.
+     */
+    void processPendingNotifications() {
+      RemovalNotification notification;
+      while ((notification = removalNotificationQueue.poll()) != null) {
+        if (removalExecutor == null) {
+          notification.run();
+        } else {
+          try {
+            removalExecutor.execute(notification);
+          } catch (RuntimeException e) {
+            logger.log(Level.WARNING,
+                "Executor rejected removal notification.", e);
+          }
+        }
+      }
+    }
+
+    /** A pending call to the removal listener. */
+    final class RemovalNotification implements Runnable {
+      final K key;
+      final V value;
+      final RemovalCause cause;
+
+      RemovalNotification(K key, V value, RemovalCause cause) {
+        this.key = key;
+        this.value = value;
+        this.cause = cause;
+      }
+
+      public void run() {
+        try {
+          removalListener.onRemoval(key, value, cause);
+        } catch (Throwable t) {
+          logger.log(Level.WARNING,
+              "Exception thrown by removal listener.", t);
+        }
+      }
+    }
+
+    /**
+     * Returns a snapshot of the map's statistics, or null if the map doesn't
+     * record them.
+     */
+    CacheStats stats() {
+      return (statsCounter == null) ? null : statsCounter.snapshot();
+    }
+
+    /**
+     * Returns a snapshot of each segment's statistics, or null if the map
+     * doesn't record them.
+     */
+    ImmutableList<SegmentStats> segmentStats() {
+      if (!recordSegmentStats) {
+        return null;
+      }
+      ImmutableList.Builder<SegmentStats> builder = ImmutableList.builder();
+      for (Segment segment : segments) {
+        builder.add(segment.stats());
+      }
+      return builder.build();
+    }
+
+    /**
+     * Removes entries through {@link Internals}. Besides cleaning up after
+     * failed computations, clients use these methods to remove entries whose
+     * keys or values were garbage collected.
+     */
     class InternalsImpl implements Internals<K, V, E>, Serializable {
 
       static final long serialVersionUID = 0;
@@ -655,7 +1659,8 @@ final class CustomConcurrentHashMap {
           throw new NullPointerException("entry");
         }
         int hash = strategy.getHash(entry);
-        return segmentFor(hash).removeEntry(entry, hash, value);
+        return recordCollected(segmentFor(hash).removeEntry(
+            entry, hash, value, RemovalCause.COLLECTED));
       }
 
       public boolean removeEntry(E entry) {
@@ -663,7 +1668,37 @@ final class CustomConcurrentHashMap {
           throw new NullPointerException("entry");
         }
         int hash = strategy.getHash(entry);
-        return segmentFor(hash).removeEntry(entry, hash);
+        if (strategy.getKey(entry) != null) {
+          // The key is still reachable, so this is cleanup after a failed
+          // computation rather than a collection.
+          return segmentFor(hash).removeEntry(entry, hash, null);
+        }
+        return recordCollected(segmentFor(hash).removeEntry(
+            entry, hash, RemovalCause.COLLECTED));
+      }
+
+      public void reclaimEntry(E entry) {
+        if (entry == null) {
+          throw new NullPointerException("entry");
+        }
+        int hash = strategy.getHash(entry);
+        Segment segment = segmentFor(hash);
+        if (inlineCleanup) {
+          segment.reclaimedQueue.offer(entry);
+        } else if (strategy.getKey(entry) == null) {
+          recordCollected(
+              segment.removeEntry(entry, hash, RemovalCause.COLLECTED));
+        } else {
+          recordCollected(segment.removeEntry(
+              entry, hash, null, RemovalCause.COLLECTED));
+        }
+      }
+
+      boolean recordCollected(boolean removed) {
+        if (removed && statsCounter != null) {
+          statsCounter.collectedCount.increment();
+        }
+        return removed;
       }
     }
 
@@ -691,6 +1726,54 @@ final class CustomConcurrentHashMap {
 
     /* ---------------- Inner Classes -------------- */
 
+    /**
+     * An incremental resize of a segment's table. The entries of each slot
+     * of the old table move to the two corresponding slots of the new table,
+     * in order of slot index, a few slots per write. Until a slot has moved,
+     * reads and writes of its entries use the old table; afterwards, they
+     * use the new table, and the old slot is never written again.
+     */
+    final class Migration {
+      final AtomicReferenceArray<E> oldTable;
+      final AtomicReferenceArray<E> newTable;
+
+      /**
+       * The number of old table slots, starting from 0, whose entries have
+       * moved to the new table. Written only while holding the segment lock.
+       */
+      volatile int transferIndex;
+
+      Migration(AtomicReferenceArray<E> oldTable,
+          AtomicReferenceArray<E> newTable) {
+        this.oldTable = oldTable;
+        this.newTable = newTable;
+      }
+
+      /**
+       * Returns the table that currently holds the entries for the given
+       * hash.
+       */
+      AtomicReferenceArray<E> tableFor(int hash) {
+        int oldIndex = hash & (oldTable.length() - 1);
+        return (oldIndex < transferIndex) ? newTable : oldTable;
+      }
+
+      /**
+       * Returns the first entry of the given slot of the new table, as of a
+       * time when {@code transferred} old slots had moved. Slots whose
+       * entries hadn't moved are read from the old table instead, so a
+       * traversal of every slot, using the same {@code transferred} count
+       * throughout, visits each entry once.
+       */
+      E getFirst(int index, int transferred) {
+        int oldLength = oldTable.length();
+        if ((index & (oldLength - 1)) < transferred) {
+          return newTable.get(index);
+        }
+        return (index < oldLength) ? oldTable.get(index) : null;
+      }
+    }
+
     /**
      * Segments are specialized versions of hash tables.  This subclasses from
      * ReentrantLock opportunistically, just to simplify some locking and avoid
@@ -734,6 +1817,34 @@ final class CustomConcurrentHashMap {
        *
        * As a guide, all critical volatile reads and writes to the
        * count field are marked in code comments.
+       *
+       * When the map expires entries, each segment also threads its
+       * entries onto a doubly-linked queue in write order. Because every
+       * entry in a map has the same time to live, the entries at the head
+       * of the queue are always the first to expire, so cleanup only needs
+       * to look at the head. The queue is only read and written while
+       * holding the lock. Entries whose values are still being computed
+       * don't join the queue until their computation completes.
+       *
+       * When the map has a maximum size, each segment similarly threads
+       * its entries onto an eviction queue in approximate access order,
+       * and evicts from the head. Writes move entries to the tail directly,
+       * since they hold the lock anyway. Reads only append the entry to a
+       * lock-free recency queue; the recorded reads are applied to the
+       * eviction queue in a batch the next time the lock is held, so a
+       * cache hit never needs to lock.
+       *
+       * Expanding the table doesn't rehash it all at once, which would
+       * hold the lock for a long time in a large segment. Instead, expand()
+       * publishes the new, empty table along with a Migration, and each
+       * subsequent write moves a few slots of the old table into it. To
+       * find a hash's slot, an unlocked reader reads "table" and then
+       * "migration", and, if a migration is in progress, asks it which
+       * table holds the slot. Reading in that order ensures that a reader
+       * never sees the new table without its migration, which would make
+       * entries that haven't moved yet look absent. Full traversals take a
+       * snapshot of the migration's progress so that they visit every slot
+       * of one consistent layout.
        */
 
       /**
@@ -741,6 +1852,13 @@ final class CustomConcurrentHashMap {
        */
       volatile int count;
 
+      /**
+       * The number of entries in {@link #count} that hold kept failures,
+       * which are in the expiration queue but aren't mappings. Written only
+       * while holding the lock.
+       */
+      volatile int failureCount;
+
       /**
        * Number of updates that alter the size of the table. This is used
        * during bulk-read methods to make sure they see a consistent snapshot:
@@ -761,7 +1879,94 @@ final class CustomConcurrentHashMap {
        */
       volatile AtomicReferenceArray<E> table;
 
-      Segment(int initialCapacity) {
+      /**
+       * The resize of the table in progress, or null.
+       */
+      volatile Migration migration;
+
+      /**
+       * The least recently written entry in the expiration queue, or null.
+       * Guarded by the segment lock.
+       */
+      E expirationHead;
+
+      /**
+       * The most recently written entry in the expiration queue, or null.
+       * Guarded by the segment lock.
+       */
+      E expirationTail;
+
+      /**
+       * The least recently accessed entry in the eviction queue, or null.
+       * Guarded by the segment lock.
+       */
+      E evictionHead;
+
+      /**
+       * The most recently accessed entry in the eviction queue, or null.
+       * Guarded by the segment lock.
+       */
+      E evictionTail;
+
+      /**
+       * Entries read since the eviction queue was last reordered. Only used
+       * when the map has a maximum size.
+       */
+      final Queue<E> recencyQueue = new ConcurrentLinkedQueue<E>();
+
+      /**
+       * The number of reads since the last cleanup. Only maintained when
+       * the map expires or evicts entries, or cleans up inline.
+       */
+      final AtomicInteger readCount = new AtomicInteger();
+
+      /**
+       * Entries whose keys or values were garbage collected, awaiting
+       * removal. Only used when the map cleans up inline.
+       */
+      final Queue<E> reclaimedQueue = new ConcurrentLinkedQueue<E>();
+
+      /**
+       * The maximum number of entries in this segment, or -1 if the segment
+       * is unbounded by size.
+       */
+      final int maxSegmentSize;
+
+      /**
+       * The maximum total weight of the entries in this segment, or -1 if
+       * the segment is unbounded by weight.
+       */
+      final long maxSegmentWeight;
+
+      /**
+       * The total weight of the entries in the eviction queue of a weighed
+       * map. Accessed only while holding the lock.
+       */
+      long totalWeight;
+
+      /*
+       * Lock statistics, only maintained when the map records segment
+       * stats. They're written only while holding the lock, and volatile so
+       * that snapshots can read them without locking.
+       */
+
+      /** The number of times the lock was acquired. */
+      volatile long lockCount;
+
+      /** The number of acquisitions that had to wait for another thread. */
+      volatile long contendedLockCount;
+
+      /** The total time the lock was held, in nanoseconds. */
+      volatile long totalLockHoldTime;
+
+      /** When the lock was last acquired. Guarded by the segment lock. */
+      long lockAcquiredTime;
+
+
+      Segment(int initialCapacity, int maxSegmentSize,
+          long maxSegmentWeight) {
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegmentWeight = maxSegmentWeight;
         setTable(newEntryArray(initialCapacity));
       }
 
@@ -769,6 +1974,80 @@ final class CustomConcurrentHashMap {
         return new AtomicReferenceArray<E>(size);
       }
 
+      /*
+       * When the map records segment stats, the lock methods first try to
+       * acquire the lock without waiting, so that contention can be
+       * counted, and time how long the outermost acquisition is held.
+       */
+
+      @Override public void lock() {
+        if (!recordSegmentStats) {
+          super.lock();
+          return;
+        }
+        if (!super.tryLock()) {
+          super.lock();
+          contendedLockCount++;
+        }
+        lockAcquired();
+      }
+
+      @Override public boolean tryLock() {
+        if (!super.tryLock()) {
+          return false;
+        }
+        if (recordSegmentStats) {
+          lockAcquired();
+        }
+        return true;
+      }
+
+      @Override public void unlock() {
+        if (recordSegmentStats && getHoldCount() == 1) {
+          totalLockHoldTime += System.nanoTime() - lockAcquiredTime;
+        }
+        super.unlock();
+      }
+
+      /** Records an acquisition of the lock. Call only while holding lock. */
+      void lockAcquired() {
+        if (getHoldCount() == 1) {
+          lockCount++;
+          lockAcquiredTime = System.nanoTime();
+        }
+      }
+
+      /**
+       * Returns a snapshot of this segment's statistics. The chain lengths
+       * are counted by traversing the table without locking.
+       */
+      SegmentStats stats() {
+        Strategy<K, V, E> s = Impl.this.strategy;
+        Migration table = traversal();
+        int transferred = table.transferIndex;
+        int[] chainLengthCounts = new int[1];
+        for (int i = 0; i < table.newTable.length(); i++) {
+          int length = 0;
+          for (E e = table.getFirst(i, transferred); e != null;
+              e = s.getNext(e)) {
+            length++;
+          }
+          if (length >= chainLengthCounts.length) {
+            int[] larger = new int[length + 1];
+            System.arraycopy(chainLengthCounts, 0, larger, 0,
+                chainLengthCounts.length);
+            chainLengthCounts = larger;
+          }
+          chainLengthCounts[length]++;
+        }
+        ImmutableList.Builder<Integer> counts = ImmutableList.builder();
+        for (int count : chainLengthCounts) {
+          counts.add(count);
+        }
+        return new SegmentStats(lockCount, contendedLockCount,
+            totalLockHoldTime, count, counts.build());
+      }
+
       /**
        * Sets table to new HashEntry array. Call only while holding lock or in
        * constructor.
@@ -778,11 +2057,36 @@ final class CustomConcurrentHashMap {
         this.table = newTable;
       }
 
+      /**
+       * Returns the table that holds the entries for the given hash.
+       */
+      AtomicReferenceArray<E> tableFor(int hash) {
+        AtomicReferenceArray<E> table = this.table; // read-volatile
+        Migration migration = this.migration; // read-volatile
+        return (migration == null) ? table : migration.tableFor(hash);
+      }
+
+      /**
+       * Returns the table layout to use for a traversal of every entry: the
+       * migration in progress, or else a migration that has already moved
+       * every slot into the current table. Read its {@code transferIndex}
+       * once, before the traversal.
+       */
+      Migration traversal() {
+        AtomicReferenceArray<E> table = this.table; // read-volatile
+        Migration migration = this.migration; // read-volatile
+        if (migration == null) {
+          migration = new Migration(table, table);
+          migration.transferIndex = table.length();
+        }
+        return migration;
+      }
+
       /**
        * Returns properly casted first entry of bin for given hash.
        */
       E getFirst(int hash) {
-        AtomicReferenceArray<E> table = this.table;
+        AtomicReferenceArray<E> table = tableFor(hash);
         return table.get(hash & (table.length() - 1));
       }
 
@@ -811,12 +2115,25 @@ final class CustomConcurrentHashMap {
       }
 
       V get(Object key, int hash) {
-        E entry = getEntry(key, hash);
-        if (entry == null) {
-          return null;
-        }
+        long now = now();
+        try {
+          E entry = getEntry(key, hash);
+          if (entry == null) {
+            return null;
+          }
 
-        return strategy.getValue(entry);
+          V value = strategy.getValue(entry);
+          if (value != null) {
+            if (isExpired(entry, now)) {
+              tryCleanup(now);
+              return null;
+            }
+            recordRead(entry, now);
+          }
+          return value;
+        } finally {
+          postReadCleanup(now);
+        }
       }
 
       boolean containsKey(Object key, int hash) {
@@ -833,8 +2150,16 @@ final class CustomConcurrentHashMap {
             }
 
             if (s.equalKeys(entryKey, key)) {
-              // Return true only if this entry has a value.
-              return s.getValue(e) != null;
+              // Return true only if this entry has a live value.
+              if (s.getValue(e) == null) {
+                return false;
+              }
+              long now = now();
+              if (isExpired(e, now)) {
+                tryCleanup(now);
+                return false;
+              }
+              return true;
             }
           }
         }
@@ -845,15 +2170,18 @@ final class CustomConcurrentHashMap {
       boolean containsValue(Object value) {
         Strategy<K, V, E> s = Impl.this.strategy;
         if (count != 0) { // read-volatile
-          AtomicReferenceArray<E> table = this.table;
-          int length = table.length();
+          long now = now();
+          Migration table = traversal();
+          int transferred = table.transferIndex;
+          int length = table.newTable.length();
           for (int i = 0; i < length; i++) {
-            for (E e = table.get(i); e != null; e = s.getNext(e)) {
+            for (E e = table.getFirst(i, transferred); e != null;
+                e = s.getNext(e)) {
               V entryValue = s.getValue(e);
 
               // If the value disappeared, this entry is partially collected,
               // and we should skip it.
-              if (entryValue == null) {
+              if (entryValue == null || isExpired(e, now)) {
                 continue;
               }
 
@@ -871,6 +2199,8 @@ final class CustomConcurrentHashMap {
         Strategy<K, V, E> s = Impl.this.strategy;
         lock();
         try {
+          long now = now();
+          preWriteCleanup(now);
           for (E e = getFirst(hash); e != null; e = s.getNext(e)) {
             K entryKey = s.getKey(e);
             if (s.getHash(e) == hash && entryKey != null
@@ -883,7 +2213,11 @@ final class CustomConcurrentHashMap {
               }
 
               if (s.equalValues(entryValue, oldValue)) {
+                int weight = weigh(key, newValue);
+                enqueueNotification(e, RemovalCause.REPLACED);
                 s.setValue(e, newValue);
+                recordWrite(e, weight, now);
+                evictEntries();
                 return true;
               }
             }
@@ -892,6 +2226,7 @@ final class CustomConcurrentHashMap {
           return false;
         } finally {
           unlock();
+          postWriteCleanup();
         }
       }
 
@@ -899,6 +2234,8 @@ final class CustomConcurrentHashMap {
         Strategy<K, V, E> s = Impl.this.strategy;
         lock();
         try {
+          long now = now();
+          preWriteCleanup(now);
           for (E e = getFirst(hash); e != null; e = s.getNext(e)) {
             K entryKey = s.getKey(e);
             if (s.getHash(e) == hash && entryKey != null
@@ -910,7 +2247,11 @@ final class CustomConcurrentHashMap {
                 return null;
               }
 
+              int weight = weigh(key, newValue);
+              enqueueNotification(e, RemovalCause.REPLACED);
               s.setValue(e, newValue);
+              recordWrite(e, weight, now);
+              evictEntries();
               return entryValue;
             }
           }
@@ -918,64 +2259,155 @@ final class CustomConcurrentHashMap {
           return null;
         } finally {
           unlock();
+          postWriteCleanup();
         }
       }
 
       V put(K key, int hash, V value, boolean onlyIfAbsent) {
-        Strategy<K, V, E> s = Impl.this.strategy;
         lock();
         try {
-          int count = this.count;
-          if (count++ > this.threshold) { // ensure capacity
-            expand();
-          }
+          long now = now();
+          preWriteCleanup(now);
+          return putLocked(key, hash, value, onlyIfAbsent, now);
+        } finally {
+          unlock();
+          postWriteCleanup();
+        }
+      }
 
-          AtomicReferenceArray<E> table = this.table;
-          int index = hash & (table.length() - 1);
+      /**
+       * Puts the entries at the given positions of {@code order} while
+       * holding the lock once, rather than once per entry. The keys and
+       * values are indexed by the elements of {@code order}, and must all
+       * belong to this segment.
+       *
+       * @return the number of entries added
+       */
+      int putAllIfAbsent(List<? extends K> keys, List<? extends V> values,
+          int[] hashes, int[] order, int start, int end) {
+        int added = 0;
+        lock();
+        try {
+          long now = now();
+          preWriteCleanup(now);
+          for (int i = start; i < end; i++) {
+            int j = order[i];
+            if (putLocked(keys.get(j), hashes[j], values.get(j), true, now)
+                == null) {
+              added++;
+            }
+          }
+          return added;
+        } finally {
+          unlock();
+          postWriteCleanup();
+        }
+      }
 
-          E first = table.get(index);
+      /** Implements {@link #put}. Call only while holding lock. */
+      V putLocked(K key, int hash, V value, boolean onlyIfAbsent, long now) {
+        Strategy<K, V, E> s = Impl.this.strategy;
+        int count = this.count;
+        if (count++ > this.threshold) { // ensure capacity
+          expand();
+        }
 
-          // Look for an existing entry.
-          for (E e = first; e != null; e = s.getNext(e)) {
-            K entryKey = s.getKey(e);
-            if (s.getHash(e) == hash && entryKey != null
-                && s.equalKeys(key, entryKey)) {
-              // We found an existing entry.
+        AtomicReferenceArray<E> table = tableFor(hash);
+        int index = hash & (table.length() - 1);
 
-              // If the value disappeared, this entry is partially collected,
-              // and we should pretend like it doesn't exist.
-              V entryValue = s.getValue(e);
-              if (onlyIfAbsent && entryValue != null) {
-                return entryValue;
-              }
+        E first = table.get(index);
 
-              s.setValue(e, value);
+        // Look for an existing entry.
+        for (E e = first; e != null; e = s.getNext(e)) {
+          K entryKey = s.getKey(e);
+          if (s.getHash(e) == hash && entryKey != null
+              && s.equalKeys(key, entryKey)) {
+            // We found an existing entry.
+
+            // If the value disappeared, this entry is partially collected,
+            // and we should pretend like it doesn't exist.
+            V entryValue = s.getValue(e);
+            if (onlyIfAbsent && entryValue != null) {
               return entryValue;
             }
-          }
 
-          // Create a new entry.
-          ++modCount;
-          E newEntry = s.newEntry(key, hash, first);
-          s.setValue(newEntry, value);
-          table.set(index, newEntry);
-          this.count = count; // write-volatile
-          return null;
-        } finally {
-          unlock();
+            int weight = weigh(key, value);
+            if (entryValue != null) {
+              enqueueNotification(e, RemovalCause.REPLACED);
+            } else {
+              // A value written over a failure replaces it.
+              unlinkFailure(e);
+            }
+            s.setValue(e, value);
+            recordWrite(e, weight, now);
+            evictEntries();
+            return entryValue;
+          }
         }
+
+        // Create a new entry.
+        int weight = weigh(key, value);
+        ++modCount;
+        E newEntry = s.newEntry(key, hash, first);
+        s.setValue(newEntry, value);
+        recordWrite(newEntry, weight, now);
+        table.set(index, newEntry);
+        this.count = count; // write-volatile
+        evictEntries();
+        return null;
       }
 
       /**
-       * Expands the table if possible.
+       * Expands the table if possible. Finishes any resize in progress, then
+       * starts moving the entries to a table twice the size; the move
+       * continues a few slots at a time in {@link #transferSlots}. Call only
+       * while holding lock.
        */
       void expand() {
+        transferSlots(Integer.MAX_VALUE);
         AtomicReferenceArray<E> oldTable = table;
         int oldCapacity = oldTable.length();
         if (oldCapacity >= MAXIMUM_CAPACITY) {
           return;
         }
 
+        AtomicReferenceArray<E> newTable = newEntryArray(oldCapacity << 1);
+        threshold = newTable.length() * 3 / 4;
+        // Publish the migration first, so that readers who see the new
+        // table also see where the old entries still are.
+        migration = new Migration(oldTable, newTable);
+        table = newTable;
+      }
+
+      /**
+       * Moves up to the given number of old table slots into the new table,
+       * if a resize is in progress, and ends the resize once every slot has
+       * moved. Call only while holding lock.
+       */
+      void transferSlots(int maxSlots) {
+        Migration migration = this.migration;
+        if (migration == null) {
+          return;
+        }
+        int oldCapacity = migration.oldTable.length();
+        int start = migration.transferIndex;
+        int end = (maxSlots < oldCapacity - start)
+            ? start + maxSlots : oldCapacity;
+        for (int oldIndex = start; oldIndex < end; oldIndex++) {
+          transferSlot(migration.oldTable, migration.newTable, oldIndex);
+        }
+        migration.transferIndex = end; // write-volatile
+        if (end == oldCapacity) {
+          this.migration = null;
+        }
+      }
+
+      /**
+       * Moves the entries in one slot of the old table to the new table.
+       * Call only while holding lock.
+       */
+      void transferSlot(AtomicReferenceArray<E> oldTable,
+          AtomicReferenceArray<E> newTable, int oldIndex) {
         /*
          * Reclassify nodes in each list to new Map.  Because we are
          * using power-of-two expansion, the elements from each bin
@@ -991,60 +2423,57 @@ final class CustomConcurrentHashMap {
          */
 
         Strategy<K, V, E> s = Impl.this.strategy;
-        AtomicReferenceArray<E> newTable = newEntryArray(oldCapacity << 1);
-        threshold = newTable.length() * 3 / 4;
         int newMask = newTable.length() - 1;
-        for (int oldIndex = 0; oldIndex < oldCapacity; oldIndex++) {
-          // We need to guarantee that any existing reads of old Map can
-          //  proceed. So we cannot yet null out each bin.
-          E head = oldTable.get(oldIndex);
-
-          if (head != null) {
-            E next = s.getNext(head);
-            int headIndex = s.getHash(head) & newMask;
-
-            // Single node on list
-            if (next == null) {
-              newTable.set(headIndex, head);
-            } else {
-              // Reuse the consecutive sequence of nodes with the same target
-              // index from the end of the list. tail points to the first
-              // entry in the reusable list.
-              E tail = head;
-              int tailIndex = headIndex;
-              for (E last = next; last != null; last = s.getNext(last)) {
-                int newIndex = s.getHash(last) & newMask;
-                if (newIndex != tailIndex) {
-                  // The index changed. We'll need to copy the previous entry.
-                  tailIndex = newIndex;
-                  tail = last;
-                }
+        // We need to guarantee that any existing reads of the old table can
+        // proceed. So we cannot null out the old bin.
+        E head = oldTable.get(oldIndex);
+
+        if (head != null) {
+          E next = s.getNext(head);
+          int headIndex = s.getHash(head) & newMask;
+
+          // Single node on list
+          if (next == null) {
+            newTable.set(headIndex, head);
+          } else {
+            // Reuse the consecutive sequence of nodes with the same target
+            // index from the end of the list. tail points to the first
+            // entry in the reusable list.
+            E tail = head;
+            int tailIndex = headIndex;
+            for (E last = next; last != null; last = s.getNext(last)) {
+              int newIndex = s.getHash(last) & newMask;
+              if (newIndex != tailIndex) {
+                // The index changed. We'll need to copy the previous entry.
+                tailIndex = newIndex;
+                tail = last;
               }
-              newTable.set(tailIndex, tail);
-
-              // Clone nodes leading up to the tail.
-              for (E e = head; e != tail; e = s.getNext(e)) {
-                K key = s.getKey(e);
-                if (key != null) {
-                  int newIndex = s.getHash(e) & newMask;
-                  E newNext = newTable.get(newIndex);
-                  newTable.set(newIndex, s.copyEntry(key, e, newNext));
-                } else {
-                  // Key was reclaimed. Skip entry.
-                }
+            }
+            newTable.set(tailIndex, tail);
+
+            // Clone nodes leading up to the tail.
+            for (E e = head; e != tail; e = s.getNext(e)) {
+              K key = s.getKey(e);
+              if (key != null) {
+                int newIndex = s.getHash(e) & newMask;
+                E newNext = newTable.get(newIndex);
+                newTable.set(newIndex, copyEntry(key, e, newNext));
+              } else {
+                // Key was reclaimed. Skip entry.
+                unlink(e);
               }
             }
           }
         }
-        table = newTable;
       }
 
       V remove(Object key, int hash) {
         Strategy<K, V, E> s = Impl.this.strategy;
         lock();
         try {
+          preWriteCleanup(now());
           int count = this.count - 1;
-          AtomicReferenceArray<E> table = this.table;
+          AtomicReferenceArray<E> table = tableFor(hash);
           int index = hash & (table.length() - 1);
           E first = table.get(index);
 
@@ -1053,20 +2482,11 @@ final class CustomConcurrentHashMap {
             if (s.getHash(e) == hash && entryKey != null
                 && s.equalKeys(entryKey, key)) {
               V entryValue = strategy.getValue(e);
-              // All entries following removed node can stay
-              // in list, but all preceding ones need to be
-              // cloned.
-              ++modCount;
-              E newFirst = s.getNext(e);
-              for (E p = first; p != e; p = s.getNext(p)) {
-                K pKey = s.getKey(p);
-                if (pKey != null) {
-                  newFirst = s.copyEntry(pKey, p, newFirst);
-                } else {
-                  // Key was reclaimed. Skip entry.
-                }
+              if (entryValue != null) {
+                enqueueNotification(e, RemovalCause.EXPLICIT);
               }
-              table.set(index, newFirst);
+              ++modCount;
+              table.set(index, removeFromChain(first, e));
               this.count = count; // write-volatile
               return entryValue;
             }
@@ -1075,6 +2495,7 @@ final class CustomConcurrentHashMap {
           return null;
         } finally {
           unlock();
+          postWriteCleanup();
         }
       }
 
@@ -1082,8 +2503,9 @@ final class CustomConcurrentHashMap {
         Strategy<K, V, E> s = Impl.this.strategy;
         lock();
         try {
+          preWriteCleanup(now());
           int count = this.count - 1;
-          AtomicReferenceArray<E> table = this.table;
+          AtomicReferenceArray<E> table = tableFor(hash);
           int index = hash & (table.length() - 1);
           E first = table.get(index);
 
@@ -1094,20 +2516,11 @@ final class CustomConcurrentHashMap {
               V entryValue = strategy.getValue(e);
               if (value == entryValue || (value != null && entryValue != null
                   && s.equalValues(entryValue, value))) {
-                // All entries following removed node can stay
-                // in list, but all preceding ones need to be
-                // cloned.
-                ++modCount;
-                E newFirst = s.getNext(e);
-                for (E p = first; p != e; p = s.getNext(p)) {
-                  K pKey = s.getKey(p);
-                  if (pKey != null) {
-                    newFirst = s.copyEntry(pKey, p, newFirst);
-                  } else {
-                    // Key was reclaimed. Skip entry.
-                  }
+                if (entryValue != null) {
+                  enqueueNotification(e, RemovalCause.EXPLICIT);
                 }
-                table.set(index, newFirst);
+                ++modCount;
+                table.set(index, removeFromChain(first, e));
                 this.count = count; // write-volatile
                 return true;
               } else {
@@ -1119,15 +2532,22 @@ final class CustomConcurrentHashMap {
           return false;
         } finally {
           unlock();
+          postWriteCleanup();
         }
       }
 
-      public boolean removeEntry(E entry, int hash, V value) {
+      /**
+       * Removes the given entry if it has the given value. Notifies the
+       * removal listener of the given cause, unless it's null.
+       */
+      public boolean removeEntry(
+          E entry, int hash, V value, @Nullable RemovalCause cause) {
         Strategy<K, V, E> s = Impl.this.strategy;
         lock();
         try {
+          preWriteCleanup(now());
           int count = this.count - 1;
-          AtomicReferenceArray<E> table = this.table;
+          AtomicReferenceArray<E> table = tableFor(hash);
           int index = hash & (table.length() - 1);
           E first = table.get(index);
 
@@ -1136,20 +2556,11 @@ final class CustomConcurrentHashMap {
               V entryValue = s.getValue(e);
               if (entryValue == value || (value != null
                   && s.equalValues(entryValue, value))) {
-                // All entries following removed node can stay
-                // in list, but all preceding ones need to be
-                // cloned.
-                ++modCount;
-                E newFirst = s.getNext(e);
-                for (E p = first; p != e; p = s.getNext(p)) {
-                  K pKey = s.getKey(p);
-                  if (pKey != null) {
-                    newFirst = s.copyEntry(pKey, p, newFirst);
-                  } else {
-                    // Key was reclaimed. Skip entry.
-                  }
+                if (cause != null) {
+                  enqueueNotification(e, cause);
                 }
-                table.set(index, newFirst);
+                ++modCount;
+                table.set(index, removeFromChain(first, e));
                 this.count = count; // write-volatile
                 return true;
               } else {
@@ -1161,34 +2572,32 @@ final class CustomConcurrentHashMap {
           return false;
         } finally {
           unlock();
+          postWriteCleanup();
         }
       }
 
-      public boolean removeEntry(E entry, int hash) {
+      /**
+       * Removes the given entry. Notifies the removal listener of the given
+       * cause, unless it's null.
+       */
+      public boolean removeEntry(
+          E entry, int hash, @Nullable RemovalCause cause) {
         Strategy<K, V, E> s = Impl.this.strategy;
         lock();
         try {
+          // Skips preWriteCleanup(), which calls this method.
           int count = this.count - 1;
-          AtomicReferenceArray<E> table = this.table;
+          AtomicReferenceArray<E> table = tableFor(hash);
           int index = hash & (table.length() - 1);
           E first = table.get(index);
 
           for (E e = first; e != null; e = s.getNext(e)) {
             if (s.getHash(e) == hash && entry.equals(e)) {
-              // All entries following removed node can stay
-              // in list, but all preceding ones need to be
-              // cloned.
-              ++modCount;
-              E newFirst = s.getNext(e);
-              for (E p = first; p != e; p = s.getNext(p)) {
-                K pKey = s.getKey(p);
-                if (pKey != null) {
-                  newFirst = s.copyEntry(pKey, p, newFirst);
-                } else {
-                  // Key was reclaimed. Skip entry.
-                }
+              if (cause != null) {
+                enqueueNotification(e, cause);
               }
-              table.set(index, newFirst);
+              ++modCount;
+              table.set(index, removeFromChain(first, e));
               this.count = count; // write-volatile
               return true;
             }
@@ -1197,6 +2606,7 @@ final class CustomConcurrentHashMap {
           return false;
         } finally {
           unlock();
+          postWriteCleanup();
         }
       }
 
@@ -1204,17 +2614,513 @@ final class CustomConcurrentHashMap {
         if (count != 0) {
           lock();
           try {
-            AtomicReferenceArray<E> table = this.table;
-            for (int i = 0; i < table.length(); i++) {
-              table.set(i, null);
+            if (removalListener != null) {
+              Strategy<K, V, E> s = Impl.this.strategy;
+              Migration table = traversal();
+              int transferred = table.transferIndex;
+              for (int i = 0; i < table.newTable.length(); i++) {
+                for (E e = table.getFirst(i, transferred); e != null;
+                    e = s.getNext(e)) {
+                  // Skips partially collected and computing entries.
+                  if (s.getKey(e) != null && s.getValue(e) != null) {
+                    enqueueNotification(e, RemovalCause.EXPLICIT);
+                  }
+                }
+              }
+            }
+            Migration migration = this.migration;
+            if (migration != null) {
+              clearTable(migration.oldTable);
+              this.migration = null;
             }
+            clearTable(table);
+            expirationHead = null;
+            expirationTail = null;
+            failureCount = 0;
+            evictionHead = null;
+            evictionTail = null;
+            totalWeight = 0;
+            recencyQueue.clear();
+            reclaimedQueue.clear();
             ++modCount;
             count = 0; // write-volatile
           } finally {
             unlock();
+            postWriteCleanup();
+          }
+        }
+      }
+
+      void clearTable(AtomicReferenceArray<E> table) {
+        for (int i = 0; i < table.length(); i++) {
+          table.set(i, null);
+        }
+      }
+
+      /**
+       * Removes an entry from the chain starting at {@code first}. Entries
+       * following the removed entry can stay in the chain, but all preceding
+       * ones need to be cloned. Returns the new first entry of the chain.
+       * Call only while holding lock.
+       */
+      E removeFromChain(E first, E entry) {
+        Strategy<K, V, E> s = Impl.this.strategy;
+        E newFirst = s.getNext(entry);
+        for (E p = first; p != entry; p = s.getNext(p)) {
+          K pKey = s.getKey(p);
+          if (pKey != null) {
+            newFirst = copyEntry(pKey, p, newFirst);
+          } else {
+            // Key was reclaimed. Skip entry.
+            unlink(p);
+          }
+        }
+        unlink(entry);
+        return newFirst;
+      }
+
+      /**
+       * Copies an entry using the strategy, and replaces the original with
+       * the copy in the expiration and eviction queues. Call only while
+       * holding lock.
+       */
+      E copyEntry(K key, E original, E newNext) {
+        E newEntry = strategy.copyEntry(key, original, newNext);
+        if (recordsWriteTime() || keepsFailures()) {
+          ExpirableStrategy<K, V, E> s = expirableStrategy();
+          s.setExpirationTime(newEntry, s.getExpirationTime(original));
+        }
+        if (usesExpirationQueue()) {
+          ExpirableStrategy<K, V, E> s = expirableStrategy();
+          E previous = s.getPreviousExpirable(original);
+          if (previous != null || expirationHead == original) {
+            E next = s.getNextExpirable(original);
+            s.setPreviousExpirable(newEntry, previous);
+            s.setNextExpirable(newEntry, next);
+            if (previous == null) {
+              expirationHead = newEntry;
+            } else {
+              s.setNextExpirable(previous, newEntry);
+            }
+            if (next == null) {
+              expirationTail = newEntry;
+            } else {
+              s.setPreviousExpirable(next, newEntry);
+            }
+            s.setPreviousExpirable(original, null);
+            s.setNextExpirable(original, null);
+          }
+        }
+        if (evictsBySize()) {
+          EvictableStrategy<K, V, E> s = evictableStrategy();
+          E previous = s.getPreviousEvictable(original);
+          if (previous != null || evictionHead == original) {
+            E next = s.getNextEvictable(original);
+            s.setPreviousEvictable(newEntry, previous);
+            s.setNextEvictable(newEntry, next);
+            if (weighs()) {
+              s.setWeight(newEntry, s.getWeight(original));
+            }
+            if (previous == null) {
+              evictionHead = newEntry;
+            } else {
+              s.setNextEvictable(previous, newEntry);
+            }
+            if (next == null) {
+              evictionTail = newEntry;
+            } else {
+              s.setPreviousEvictable(next, newEntry);
+            }
+            s.setPreviousEvictable(original, null);
+            s.setNextEvictable(original, null);
+          }
+        }
+        return newEntry;
+      }
+
+      /**
+       * Removes the given entry from the expiration and eviction queues, and
+       * from the failure count if it held a kept failure. Call only while
+       * holding lock.
+       */
+      void unlink(E entry) {
+        unlinkFailure(entry);
+        unlinkExpirable(entry);
+        unlinkEvictable(entry);
+      }
+
+      /* Failure support */
+
+      /**
+       * Returns the number of mappings in this segment: its entries, less
+       * those holding kept failures.
+       */
+      int mappingCount() {
+        int count = this.count; // read-volatile
+        return count - failureCount;
+      }
+
+      /**
+       * Adds the given entry, which holds a failure the map keeps, to the
+       * tail of the expiration queue, where it's checked for removal after
+       * {@link #failureQueueNanos}. The failure then stops counting as a
+       * mapping. Call only while holding lock.
+       *
+       * @param now the time the failure was recorded
+       */
+      void queueFailure(E entry, long now) {
+        if (!unlinkExpirable(entry)) {
+          failureCount = failureCount + 1;
+        }
+        expirableStrategy().setExpirationTime(entry, now + failureQueueNanos());
+        linkExpirable(entry);
+      }
+
+      /**
+       * Removes the given entry from the expiration queue and the failure
+       * count if it holds a kept failure that was queued. Call only while
+       * holding lock.
+       */
+      void unlinkFailure(E entry) {
+        if (isFailure(entry) && unlinkExpirable(entry)) {
+          failureCount = failureCount - 1;
+        }
+      }
+
+      /**
+       * Removes an entry holding a kept failure from the head of the
+       * expiration queue if its failure expired, or otherwise moves it to
+       * the tail. Call only while holding lock.
+       */
+      @SuppressWarnings("unchecked") // only maps that compute keep failures
+      void expireFailure(E entry, long now) {
+        if (((ComputingStrategy<K, V, E>) strategy).isFailureExpired(
+            entry, now)) {
+          if (!removeEntry(entry, strategy.getHash(entry), null)) {
+            unlink(entry);
+          }
+        } else {
+          queueFailure(entry, now);
+        }
+      }
+
+      /* Expiration support */
+
+      /**
+       * Updates the given entry's expiration time and weight, and moves it to
+       * the tail of the expiration and eviction queues. Call only while
+       * holding lock.
+       *
+       * @param weight the weight of the entry's new value, as returned by
+       *     {@link #weigh}
+       * @param now the time of the write, as returned by {@link #now}
+       */
+      void recordWrite(E entry, int weight, long now) {
+        if (evictsBySize()) {
+          drainRecencyQueue();
+          unlinkEvictable(entry);
+          if (weighs()) {
+            evictableStrategy().setWeight(entry, weight);
+          }
+          linkEvictable(entry);
+        }
+        if (recordsWriteTime()) {
+          expirableStrategy().setExpirationTime(entry, now + expirationNanos);
+        }
+        if (expires()) {
+          unlinkExpirable(entry);
+          linkExpirable(entry);
+        }
+      }
+
+      /**
+       * Appends the given entry to the tail of the expiration queue. Call
+       * only while holding lock.
+       */
+      void linkExpirable(E entry) {
+        ExpirableStrategy<K, V, E> s = expirableStrategy();
+        E tail = expirationTail;
+        s.setPreviousExpirable(entry, tail);
+        if (tail == null) {
+          expirationHead = entry;
+        } else {
+          s.setNextExpirable(tail, entry);
+        }
+        expirationTail = entry;
+      }
+
+      /**
+       * Removes the given entry from the expiration queue if it's in it.
+       * Returns true if the entry was in the queue. Call only while holding
+       * lock.
+       */
+      boolean unlinkExpirable(E entry) {
+        if (!usesExpirationQueue()) {
+          return false;
+        }
+        ExpirableStrategy<K, V, E> s = expirableStrategy();
+        E previous = s.getPreviousExpirable(entry);
+        if (previous == null && expirationHead != entry) {
+          return false; // not in the queue
+        }
+        E next = s.getNextExpirable(entry);
+        if (previous == null) {
+          expirationHead = next;
+        } else {
+          s.setNextExpirable(previous, next);
+        }
+        if (next == null) {
+          expirationTail = previous;
+        } else {
+          s.setPreviousExpirable(next, previous);
+        }
+        s.setPreviousExpirable(entry, null);
+        s.setNextExpirable(entry, null);
+        return true;
+      }
+
+      /**
+       * Removes expired entries from the head of the expiration queue. Call
+       * only while holding lock.
+       */
+      void expireEntries(long now) {
+        if (expireAfterAccess) {
+          // Recently read entries may be at the head.
+          drainRecencyQueue();
+        }
+        Strategy<K, V, E> s = Impl.this.strategy;
+        E entry;
+        while ((entry = expirationHead) != null && now
+            - expirableStrategy().getExpirationTime(entry) > 0) {
+          if (isFailure(entry)) {
+            expireFailure(entry, now);
+          } else if (removeEntry(
+              entry, s.getHash(entry), RemovalCause.EXPIRED)) {
+            if (statsCounter != null) {
+              statsCounter.expiredCount.increment();
+            }
+          } else {
+            // The entry is no longer in the table.
+            unlinkExpirable(entry);
+          }
+        }
+      }
+
+      /* Read recording */
+
+      /**
+       * Records a read of the given entry. Postpones the entry's expiration
+       * immediately if the map expires after access; the reordering of the
+       * expiration and eviction queues is applied later, under the lock.
+       * Doesn't lock.
+       */
+      void recordRead(E entry, long now) {
+        if (expireAfterAccess) {
+          expirableStrategy().setExpirationTime(entry, now + expirationNanos);
+        }
+        if (recordsReads()) {
+          recencyQueue.add(entry);
+        }
+      }
+
+      /**
+       * Moves the entries in the recency queue to the tails of the eviction
+       * queue and, if the map expires after access, the expiration queue, in
+       * the order they were read. Entries that were removed in the meantime
+       * are no longer in the queues and are skipped. Call only while holding
+       * lock.
+       */
+      void drainRecencyQueue() {
+        E entry;
+        while ((entry = recencyQueue.poll()) != null) {
+          if (unlinkEvictable(entry)) {
+            linkEvictable(entry);
+          }
+          if (expireAfterAccess && unlinkExpirable(entry)) {
+            linkExpirable(entry);
+          }
+        }
+      }
+
+      /* Eviction support */
+
+      /**
+       * Appends the given entry to the tail of the eviction queue. Call only
+       * while holding lock.
+       */
+      void linkEvictable(E entry) {
+        EvictableStrategy<K, V, E> s = evictableStrategy();
+        if (weighs()) {
+          totalWeight += s.getWeight(entry);
+        }
+        E tail = evictionTail;
+        s.setPreviousEvictable(entry, tail);
+        if (tail == null) {
+          evictionHead = entry;
+        } else {
+          s.setNextEvictable(tail, entry);
+        }
+        evictionTail = entry;
+      }
+
+      /**
+       * Removes the given entry from the eviction queue if it's in it.
+       * Returns true if the entry was in the queue. Call only while holding
+       * lock.
+       */
+      boolean unlinkEvictable(E entry) {
+        if (!evictsBySize()) {
+          return false;
+        }
+        EvictableStrategy<K, V, E> s = evictableStrategy();
+        E previous = s.getPreviousEvictable(entry);
+        if (previous == null && evictionHead != entry) {
+          return false; // not in the queue
+        }
+        E next = s.getNextEvictable(entry);
+        if (previous == null) {
+          evictionHead = next;
+        } else {
+          s.setNextEvictable(previous, next);
+        }
+        if (next == null) {
+          evictionTail = previous;
+        } else {
+          s.setPreviousEvictable(next, previous);
+        }
+        s.setPreviousEvictable(entry, null);
+        s.setNextEvictable(entry, null);
+        if (weighs()) {
+          totalWeight -= s.getWeight(entry);
+        }
+        return true;
+      }
+
+      /**
+       * Evicts entries from the head of the eviction queue until the segment
+       * is no larger than its share of the maximum size or weight. Entries
+       * whose values are still being computed aren't in the queue, so they
+       * are never evicted. Call only while holding lock.
+       */
+      void evictEntries() {
+        if (!evictsBySize()) {
+          return;
+        }
+        drainRecencyQueue();
+        Strategy<K, V, E> s = Impl.this.strategy;
+        E entry;
+        while (exceedsShare() && (entry = evictionHead) != null) {
+          if (removeEntry(entry, s.getHash(entry), RemovalCause.SIZE)) {
+            if (statsCounter != null) {
+              statsCounter.evictedCount.increment();
+            }
+          } else {
+            // The entry is no longer in the table.
+            unlinkEvictable(entry);
+          }
+        }
+      }
+
+      /**
+       * Returns true if this segment holds more than its share of the
+       * maximum size or weight. Call only while holding lock.
+       */
+      boolean exceedsShare() {
+        return weighs()
+            ? totalWeight > maxSegmentWeight
+            : mappingCount() > maxSegmentSize;
+      }
+
+      /* Cleanup */
+
+      /**
+       * Removes expired entries and applies recorded reads if the lock is
+       * available. Called by reads, which shouldn't block.
+       */
+      void tryCleanup(long now) {
+        if (tryLock()) {
+          try {
+            preWriteCleanup(now);
+            readCount.set(0);
+          } finally {
+            unlock();
+            postWriteCleanup();
+          }
+        }
+      }
+
+      /**
+       * Removes up to {@link #DRAIN_MAX} entries from the reclaimed queue.
+       * An entry is removed only if it's still in the table and its key or
+       * value is still missing; otherwise it was already removed, or given
+       * a new value, since it was queued. Call only while holding lock.
+       */
+      void drainReclaimedQueue() {
+        Strategy<K, V, E> s = Impl.this.strategy;
+        E entry;
+        for (int i = 0; i < DRAIN_MAX
+            && (entry = reclaimedQueue.poll()) != null; i++) {
+          int hash = s.getHash(entry);
+          AtomicReferenceArray<E> table = tableFor(hash);
+          int index = hash & (table.length() - 1);
+          E first = table.get(index);
+          for (E e = first; e != null; e = s.getNext(e)) {
+            if (s.getHash(e) == hash && entry.equals(e)) {
+              if (s.getKey(e) == null || s.getValue(e) == null) {
+                enqueueNotification(e, RemovalCause.COLLECTED);
+                ++modCount;
+                table.set(index, removeFromChain(first, e));
+                count = count - 1; // write-volatile
+                if (statsCounter != null) {
+                  statsCounter.collectedCount.increment();
+                }
+              }
+              break;
+            }
           }
         }
       }
+
+      /**
+       * Performs routine cleanup prior to a write. Call only while holding
+       * lock.
+       */
+      void preWriteCleanup(long now) {
+        transferSlots(TRANSFER_STEP);
+        if (inlineCleanup) {
+          drainReclaimedQueue();
+        }
+        if (recordsReads()) {
+          drainRecencyQueue();
+        }
+        if (usesExpirationQueue()) {
+          expireEntries(now);
+        }
+      }
+
+      /**
+       * Performs routine cleanup following a write, after releasing the
+       * lock. Delivers the removal notifications queued by the write, unless
+       * the lock is still held by an enclosing operation.
+       */
+      void postWriteCleanup() {
+        if (removalListener != null && !isHeldByCurrentThread()) {
+          processPendingNotifications();
+        }
+      }
+
+      /**
+       * Performs routine cleanup following a read. Every {@code
+       * DRAIN_THRESHOLD + 1} reads, tries to remove expired and reclaimed
+       * entries and apply recorded reads, so that maps that are mostly read
+       * still release those entries and don't buffer reads indefinitely.
+       */
+      void postReadCleanup(long now) {
+        if ((usesExpirationQueue() || recordsReads() || inlineCleanup)
+            && (readCount.incrementAndGet() & DRAIN_THRESHOLD) == 0) {
+          tryCleanup(now);
+        }
+      }
     }
 
     /* ---------------- Public operations -------------- */
@@ -1238,7 +3144,7 @@ final class CustomConcurrentHashMap {
       int[] mc = new int[segments.length];
       int mcsum = 0;
       for (int i = 0; i < segments.length; ++i) {
-        if (segments[i].count != 0) {
+        if (segments[i].mappingCount() != 0) {
           return false;
         } else {
           mcsum += mc[i] = segments[i].modCount;
@@ -1249,7 +3155,7 @@ final class CustomConcurrentHashMap {
       // probably common enough to bother tracking.
       if (mcsum != 0) {
         for (int i = 0; i < segments.length; ++i) {
-          if (segments[i].count != 0 ||
+          if (segments[i].mappingCount() != 0 ||
               mc[i] != segments[i].modCount) {
             return false;
           }
@@ -1263,53 +3169,57 @@ final class CustomConcurrentHashMap {
      * contains more than {@code Integer.MAX_VALUE} elements, returns
      * {@code Integer.MAX_VALUE}.
      *
+     * <p>Never locks a segment. Each segment's count acts as one stripe of
+     * a counter that only that segment's writers update, so summing the
+     * stripes doesn't contend with writes. If writes keep changing the
+     * segments while they're summed, the result may not reflect any single
+     * instant.
+     *
      * @return the number of key-value mappings in this map
      */
     @Override public int size() {
       final Segment[] segments = this.segments;
       long sum = 0;
-      long check = 0;
       int[] mc = new int[segments.length];
-      // Try a few times to get accurate count. On failure due to
-      // continuous async changes in table, resort to locking.
-      for (int k = 0; k < RETRIES_BEFORE_LOCK; ++k) {
-        check = 0;
+      // Try a few times to get a count that held at some instant.
+      for (int k = 0; k < SIZE_RETRIES; ++k) {
         sum = 0;
         int mcsum = 0;
         for (int i = 0; i < segments.length; ++i) {
-          sum += segments[i].count;
+          sum += segments[i].mappingCount();
           mcsum += mc[i] = segments[i].modCount;
         }
+        boolean cleanSweep = true;
         if (mcsum != 0) {
+          long check = 0;
           for (int i = 0; i < segments.length; ++i) {
-            check += segments[i].count;
+            check += segments[i].mappingCount();
             if (mc[i] != segments[i].modCount) {
-              check = -1; // force retry
+              cleanSweep = false;
               break;
             }
           }
+          cleanSweep &= (check == sum);
         }
-        if (check == sum) {
+        if (cleanSweep) {
           break;
         }
       }
-      if (check != sum) { // Resort to locking all segments
-        sum = 0;
-        for (Segment segment : segments) {
-          segment.lock();
-        }
-        for (Segment segment : segments) {
-          sum += segment.count;
-        }
-        for (Segment segment : segments) {
-          segment.unlock();
-        }
-      }
-      if (sum > Integer.MAX_VALUE) {
-        return Integer.MAX_VALUE;
-      } else {
-        return (int) sum;
+      return (sum > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) sum;
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map, summing the
+     * segment counts once without checking for concurrent writes. This is
+     * cheaper than {@link #size} and suited to monitoring, where a count that
+     * is slightly off under concurrent writes is acceptable.
+     */
+    long approximateSize() {
+      long sum = 0;
+      for (Segment segment : segments) {
+        sum += segment.mappingCount();
       }
+      return sum;
     }
 
     /**
@@ -1328,7 +3238,15 @@ final class CustomConcurrentHashMap {
         throw new NullPointerException("key");
       }
       int hash = hash(key);
-      return segmentFor(hash).get(key, hash);
+      V value = segmentFor(hash).get(key, hash);
+      if (statsCounter != null) {
+        if (value == null) {
+          statsCounter.missCount.increment();
+        } else {
+          statsCounter.hitCount.increment();
+        }
+      }
+      return value;
     }
 
     /**
@@ -1469,6 +3387,52 @@ final class CustomConcurrentHashMap {
       }
     }
 
+    /**
+     * Puts each key with the value at the same index, unless the key is
+     * already present, locking each segment once for all of its keys rather
+     * than once per key. Used to load {@linkplain MapMaker#loadSnapshot
+     * snapshots}.
+     *
+     * @return the number of entries added
+     * @throws NullPointerException if any key or value is null
+     */
+    int putAllIfAbsent(List<? extends K> keys, List<? extends V> values) {
+      int size = keys.size();
+      int[] hashes = new int[size];
+      int[] segmentStarts = new int[segments.length + 1];
+      for (int i = 0; i < size; i++) {
+        K key = keys.get(i);
+        if (key == null) {
+          throw new NullPointerException("key");
+        }
+        if (values.get(i) == null) {
+          throw new NullPointerException("value");
+        }
+        int hash = hash(key);
+        hashes[i] = hash;
+        segmentStarts[((hash >>> segmentShift) & segmentMask) + 1]++;
+      }
+
+      // Group the indexes of the keys by segment with a counting sort.
+      for (int i = 0; i < segments.length; i++) {
+        segmentStarts[i + 1] += segmentStarts[i];
+      }
+      int[] next = segmentStarts.clone();
+      int[] order = new int[size];
+      for (int i = 0; i < size; i++) {
+        order[next[(hashes[i] >>> segmentShift) & segmentMask]++] = i;
+      }
+
+      int added = 0;
+      for (int i = 0; i < segments.length; i++) {
+        if (segmentStarts[i] < segmentStarts[i + 1]) {
+          added += segments[i].putAllIfAbsent(keys, values, hashes, order,
+              segmentStarts[i], segmentStarts[i + 1]);
+        }
+      }
+      return added;
+    }
+
     /**
      * Removes the key (and its corresponding value) from this map. This method
      * does nothing if the key is not in the map.
@@ -1617,11 +3581,15 @@ final class CustomConcurrentHashMap {
 
       int nextSegmentIndex;
       int nextTableIndex;
-      AtomicReferenceArray<E> currentTable;
+      Migration currentTable;
+      int currentTransferred;
       E nextEntry;
       WriteThroughEntry nextExternal;
       WriteThroughEntry lastReturned;
 
+      /** When the iteration started; entries expired by then are skipped. */
+      final long now = now();
+
       HashIterator() {
         nextSegmentIndex = segments.length - 1;
         nextTableIndex = -1;
@@ -1646,8 +3614,9 @@ final class CustomConcurrentHashMap {
         while (nextSegmentIndex >= 0) {
           Segment seg = segments[nextSegmentIndex--];
           if (seg.count != 0) {
-            currentTable = seg.table;
-            nextTableIndex = currentTable.length() - 1;
+            currentTable = seg.traversal();
+            currentTransferred = currentTable.transferIndex;
+            nextTableIndex = currentTable.newTable.length() - 1;
             if (nextInTable()) {
               return;
             }
@@ -1678,7 +3647,9 @@ final class CustomConcurrentHashMap {
        */
       boolean nextInTable() {
         while (nextTableIndex >= 0) {
-          if ((nextEntry = currentTable.get(nextTableIndex--)) != null) {
+          nextEntry = currentTable.getFirst(
+              nextTableIndex--, currentTransferred);
+          if (nextEntry != null) {
             if (advanceTo(nextEntry) || nextInChain()) {
               return true;
             }
@@ -1695,7 +3666,7 @@ final class CustomConcurrentHashMap {
         Strategy<K, V, E> s = Impl.this.strategy;
         K key = s.getKey(entry);
         V value = s.getValue(entry);
-        if (key != null && value != null) {
+        if (key != null && value != null && !isExpired(entry, now)) {
           nextExternal = new WriteThroughEntry(key, value);
           return true;
         } else {
@@ -1879,6 +3850,160 @@ final class CustomConcurrentHashMap {
       }
     }
 
+    /* ---------------- Bulk Operations -------------- */
+
+    /**
+     * Performs a bulk operation in pieces, each covering at most {@link
+     * #BULK_PIECE_SIZE} slots of one segment's table. About one worker per
+     * available processor is submitted to the given executor, and the
+     * workers and the calling thread take pieces from a shared list until
+     * none are left, so the operation completes even if the executor never
+     * runs a worker, for example when it's called from one of the
+     * executor's own threads. Waits for every piece to finish, then rethrows
+     * the first exception thrown by a task.
+     *
+     * <p>Each segment's table is read once, before any piece runs, so the
+     * operation is weakly consistent, like the iterators: it visits each
+     * mapping that is present throughout the operation exactly once, and may
+     * or may not visit mappings added or removed concurrently. Entries that
+     * are partially reclaimed or expired are skipped.
+     *
+     * @param tasks supplies a new task for each piece
+     */
+    void bulkVisit(Executor executor,
+        Supplier<? extends BulkTask<K, V>> tasks) {
+      long now = now();
+      AtomicBoolean stopped = new AtomicBoolean();
+      List<BulkPiece> pieces = new ArrayList<BulkPiece>();
+      for (Segment segment : segments) {
+        if (segment.count != 0) { // read-volatile
+          Migration table = segment.traversal();
+          int transferred = table.transferIndex;
+          int length = table.newTable.length();
+          for (int start = 0; start < length; start += BULK_PIECE_SIZE) {
+            int end = Math.min(start + BULK_PIECE_SIZE, length);
+            pieces.add(new BulkPiece(tasks.get(), table, transferred,
+                start, end, now, stopped));
+          }
+        }
+      }
+
+      CountDownLatch done = new CountDownLatch(pieces.size());
+      AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      for (BulkPiece piece : pieces) {
+        piece.done = done;
+        piece.failure = failure;
+      }
+      BulkWorker worker = new BulkWorker(pieces);
+      int workers = Math.min(Runtime.getRuntime().availableProcessors(),
+          pieces.size() - 1);
+      for (int i = 0; i < workers; i++) {
+        try {
+          executor.execute(worker);
+        } catch (RejectedExecutionException e) {
+          break;
+        }
+      }
+      worker.run();
+
+      // Only pieces that workers are running remain, so this doesn't wait
+      // for the executor to start anything.
+      boolean interrupted = false;
+      try {
+        while (true) {
+          try {
+            done.await();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      Throwable t = failure.get();
+      if (t instanceof RuntimeException) {
+        throw (RuntimeException) t;
+      } else if (t instanceof Error) {
+        throw (Error) t;
+      }
+    }
+
+    /**
+     * Runs the pieces of a bulk operation that no other thread has taken
+     * yet. Shared by every thread that works on the operation.
+     */
+    final class BulkWorker implements Runnable {
+      final List<BulkPiece> pieces;
+      final AtomicInteger next = new AtomicInteger();
+
+      BulkWorker(List<BulkPiece> pieces) {
+        this.pieces = pieces;
+      }
+
+      public void run() {
+        int i;
+        while ((i = next.getAndIncrement()) < pieces.size()) {
+          pieces.get(i).run();
+        }
+      }
+    }
+
+    /** One piece of a bulk operation: a range of a segment's table. */
+    final class BulkPiece implements Runnable {
+      final BulkTask<K, V> task;
+      final Migration table;
+      final int transferred;
+      final int start;
+      final int end;
+      final long now;
+      final AtomicBoolean stopped;
+      CountDownLatch done;
+      AtomicReference<Throwable> failure;
+
+      BulkPiece(BulkTask<K, V> task, Migration table, int transferred,
+          int start, int end, long now, AtomicBoolean stopped) {
+        this.task = task;
+        this.table = table;
+        this.transferred = transferred;
+        this.start = start;
+        this.end = end;
+        this.now = now;
+        this.stopped = stopped;
+      }
+
+      public void run() {
+        try {
+          visitAll();
+          task.finish();
+        } catch (Throwable t) {
+          failure.compareAndSet(null, t);
+          stopped.set(true);
+        } finally {
+          done.countDown();
+        }
+      }
+
+      void visitAll() {
+        Strategy<K, V, E> s = Impl.this.strategy;
+        for (int i = start; i < end && !stopped.get(); i++) {
+          for (E e = table.getFirst(i, transferred); e != null;
+              e = s.getNext(e)) {
+            K key = s.getKey(e);
+            V value = s.getValue(e);
+            if (key != null && value != null && !isExpired(e, now)
+                && !task.visit(new WriteThroughEntry(key, value))) {
+              stopped.set(true);
+              return;
+            }
+          }
+        }
+      }
+    }
+
     /* ---------------- Serialization Support -------------- */
 
     private static final long serialVersionUID = 1;
@@ -1887,6 +4012,21 @@ final class CustomConcurrentHashMap {
         throws IOException {
       out.writeInt(size());
       out.writeInt(segments.length); // concurrencyLevel
+      out.writeLong(expirationNanos);
+      out.writeBoolean(expireAfterAccess);
+      out.writeInt(maximumSize);
+      out.writeLong(maximumWeight);
+      out.writeObject(weigher);
+      out.writeBoolean(statsCounter != null);
+      out.writeObject(removalListener);
+      out.writeObject(removalExecutor);
+      out.writeLong(refreshNanos);
+      out.writeObject(refreshExecutor);
+      out.writeBoolean(inlineCleanup);
+      // The system ticker isn't serializable, and is restored by default.
+      out.writeObject((ticker == Ticker.systemTicker()) ? null : ticker);
+      out.writeBoolean(recordSegmentStats);
+      out.writeLong(failureExpirationNanos);
       out.writeObject(strategy);
       for (Entry<K, V> entry : entrySet()) {
         out.writeObject(entry.getKey());
@@ -1906,6 +4046,25 @@ final class CustomConcurrentHashMap {
       static final Field segmentMask = findField("segmentMask");
       static final Field segments = findField("segments");
       static final Field strategy = findField("strategy");
+      static final Field expirationNanos = findField("expirationNanos");
+      static final Field expireAfterAccess = findField("expireAfterAccess");
+      static final Field maximumSize = findField("maximumSize");
+      static final Field maximumWeight = findField("maximumWeight");
+      static final Field weigher = findField("weigher");
+      static final Field statsCounter = findField("statsCounter");
+      static final Field removalListener = findField("removalListener");
+      static final Field removalExecutor = findField("removalExecutor");
+      static final Field removalNotificationQueue
+          = findField("removalNotificationQueue");
+      static final Field refreshNanos = findField("refreshNanos");
+      static final Field refreshExecutor = findField("refreshExecutor");
+      static final Field refreshing = findField("refreshing");
+      static final Field inlineCleanup = findField("inlineCleanup");
+      static final Field ticker = findField("ticker");
+      static final Field recordSegmentStats
+          = findField("recordSegmentStats");
+      static final Field failureExpirationNanos
+          = findField("failureExpirationNanos");
 
       static Field findField(String name) {
         try {
@@ -1924,7 +4083,42 @@ final class CustomConcurrentHashMap {
       try {
         int initialCapacity = in.readInt();
         int concurrencyLevel = in.readInt();
+        long expirationNanos = in.readLong();
+        boolean expireAfterAccess = in.readBoolean();
+        int maximumSize = in.readInt();
+        long maximumWeight = in.readLong();
+        Weigher<K, V> weigher = (Weigher<K, V>) in.readObject();
+        boolean recordStats = in.readBoolean();
+        RemovalListener<K, V> removalListener
+            = (RemovalListener<K, V>) in.readObject();
+        Executor removalExecutor = (Executor) in.readObject();
+        long refreshNanos = in.readLong();
+        Executor refreshExecutor = (Executor) in.readObject();
+        boolean inlineCleanup = in.readBoolean();
+        Ticker ticker = (Ticker) in.readObject();
+        boolean recordSegmentStats = in.readBoolean();
+        long failureExpirationNanos = in.readLong();
         Strategy<K, V, E> strategy = (Strategy<K, V, E>) in.readObject();
+        Fields.expirationNanos.set(this, expirationNanos);
+        Fields.expireAfterAccess.set(this, expireAfterAccess);
+        Fields.maximumSize.set(this, maximumSize);
+        Fields.maximumWeight.set(this, maximumWeight);
+        Fields.weigher.set(this, weigher);
+        Fields.statsCounter.set(
+            this, recordStats ? new StatsCounter() : null);
+        Fields.removalListener.set(this, removalListener);
+        Fields.removalExecutor.set(this, removalExecutor);
+        Fields.refreshNanos.set(this, refreshNanos);
+        Fields.refreshExecutor.set(this, refreshExecutor);
+        Fields.inlineCleanup.set(this, inlineCleanup);
+        Fields.ticker.set(
+            this, (ticker == null) ? Ticker.systemTicker() : ticker);
+        Fields.recordSegmentStats.set(this, recordSegmentStats);
+        Fields.failureExpirationNanos.set(this, failureExpirationNanos);
+        Fields.refreshing.set(this, (refreshNanos > 0)
+            ? new ConcurrentHashMap<E, Boolean>() : null);
+        Fields.removalNotificationQueue.set(this, (removalListener == null)
+            ? null : new ConcurrentLinkedQueue<RemovalNotification>());
 
         if (concurrencyLevel > MAX_SEGMENTS) {
           concurrencyLevel = MAX_SEGMENTS;
@@ -1933,7 +4127,8 @@ final class CustomConcurrentHashMap {
         // Find power-of-two sizes best matching arguments
         int segmentShift = 0;
         int segmentCount = 1;
-        while (segmentCount < concurrencyLevel) {
+        while (segmentCount < concurrencyLevel
+            && (!evictsBySize() || segmentCount * 2 <= maximumCapacity())) {
           ++segmentShift;
           segmentCount <<= 1;
         }
@@ -1955,7 +4150,9 @@ final class CustomConcurrentHashMap {
             segmentSize <<= 1;
         }
         for (int i = 0; i < this.segments.length; ++i) {
-          this.segments[i] = new Segment(segmentSize);
+          this.segments[i] = new Segment(segmentSize,
+              (int) segmentShare(maximumSize, i),
+              segmentShare(maximumWeight, i));
         }
 
         Fields.strategy.set(this, strategy);
@@ -1974,6 +4171,30 @@ final class CustomConcurrentHashMap {
     }
   }
 
+  /**
+   * Accumulates the statistics of a map that records them. Counts are
+   * striped, so recording them doesn't make threads contend on a single
+   * memory location.
+   */
+  static final class StatsCounter {
+    final StripedCounter hitCount = new StripedCounter();
+    final StripedCounter missCount = new StripedCounter();
+    final StripedCounter computeSuccessCount = new StripedCounter();
+    final StripedCounter computeExceptionCount = new StripedCounter();
+    final StripedCounter totalComputeTime = new StripedCounter();
+    final StripedCounter waitCount = new StripedCounter();
+    final StripedCounter collectedCount = new StripedCounter();
+    final StripedCounter expiredCount = new StripedCounter();
+    final StripedCounter evictedCount = new StripedCounter();
+
+    CacheStats snapshot() {
+      return new CacheStats(hitCount.sum(), missCount.sum(),
+          computeSuccessCount.sum(), computeExceptionCount.sum(),
+          totalComputeTime.sum(), waitCount.sum(), collectedCount.sum(),
+          expiredCount.sum(), evictedCount.sum());
+    }
+  }
+
   static class ComputingImpl<K, V, E> extends Impl<K, V, E> {
 
     static final long serialVersionUID = 0;
@@ -2011,53 +4232,36 @@ final class CustomConcurrentHashMap {
 
       int hash = hash(key);
       Segment segment = segmentFor(hash);
+      long now = now();
       outer: while (true) {
         E entry = segment.getEntry(key, hash);
+        if (entry != null && computingStrategy.getValue(entry) != null
+            && isExpired(entry, now)) {
+          // Treat the expired entry as absent; it is removed below.
+          entry = null;
+        }
         if (entry == null) {
-          boolean created = false;
-          segment.lock();
-          try {
-            // Try again--an entry could have materialized in the interim.
-            entry = segment.getEntry(key, hash);
-            if (entry == null) {
-              // Create a new entry.
-              created = true;
-              int count = segment.count;
-              if (count++ > segment.threshold) { // ensure capacity
-                segment.expand();
-              }
-              AtomicReferenceArray<E> table = segment.table;
-              int index = hash & (table.length() - 1);
-              E first = table.get(index);
-              ++segment.modCount;
-              entry = computingStrategy.newEntry(key, hash, first);
-              table.set(index, entry);
-              segment.count = count; // write-volatile
-            }
-          } finally {
-            segment.unlock();
+          E created = tryCreateEntry(segment, key, hash, now);
+          if (created != null) {
+            // This thread solely created the entry.
+            return computeCreatedEntry(segment, key, hash, created);
           }
 
-          if (created) {
-            // This thread solely created the entry.
-            boolean success = false;
-            try {
-              V value = computingStrategy.compute(key, entry, computer);
-              if (value == null) {
-                throw new NullPointerException(
-                    "compute() returned null unexpectedly");
-              }
-              success = true;
-              return value;
-            } finally {
-              if (!success) {
-                segment.removeEntry(entry, hash);
-              }
-            }
+          // An entry materialized in the interim.
+          entry = segment.getEntry(key, hash);
+          if (entry == null) {
+            continue;
           }
         }
 
         // The entry already exists. Wait for the computation.
+        boolean waited = computingStrategy.getValue(entry) == null;
+        if (waited && keepsFailures()
+            && computingStrategy.isFailureExpired(entry, now)) {
+          // Remove the failure and compute the value again.
+          segment.removeEntry(entry, hash, null);
+          continue;
+        }
         boolean interrupted = false;
         try {
           while (true) {
@@ -2065,9 +4269,10 @@ final class CustomConcurrentHashMap {
               V value = computingStrategy.waitForValue(entry);
               if (value == null) {
                 // Purge entry and try again.
-                segment.removeEntry(entry, hash);
+                segment.removeEntry(entry, hash, null);
                 continue outer;
               }
+              recordFound(segment, entry, key, hash, value, waited, now);
               return value;
             } catch (InterruptedException e) {
               interrupted = true;
@@ -2080,6 +4285,452 @@ final class CustomConcurrentHashMap {
         }
       }
     }
+
+    /**
+     * Like {@link #get}, but waits at most the given time for another
+     * thread's computation of the value. If no other thread is computing the
+     * value, the calling thread computes it, and the timeout doesn't bound
+     * the computation.
+     *
+     * @throws InterruptedException if the thread was interrupted while
+     *     waiting
+     * @throws TimeoutException if another thread's computation didn't
+     *     complete in time
+     */
+    V get(K key, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+      if (key == null) {
+        throw new NullPointerException("key");
+      }
+      if (unit == null) {
+        throw new NullPointerException("unit");
+      }
+
+      // The timeout is measured in real time, as waiting is, not by the
+      // ticker.
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      int hash = hash(key);
+      Segment segment = segmentFor(hash);
+      long now = now();
+      while (true) {
+        E entry = segment.getEntry(key, hash);
+        if (entry != null && computingStrategy.getValue(entry) != null
+            && isExpired(entry, now)) {
+          entry = null;
+        }
+        if (entry == null) {
+          E created = tryCreateEntry(segment, key, hash, now);
+          if (created != null) {
+            return computeCreatedEntry(segment, key, hash, created);
+          }
+          entry = segment.getEntry(key, hash);
+          if (entry == null) {
+            continue;
+          }
+        }
+
+        boolean waited = computingStrategy.getValue(entry) == null;
+        if (waited && keepsFailures()
+            && computingStrategy.isFailureExpired(entry, now)) {
+          segment.removeEntry(entry, hash, null);
+          continue;
+        }
+        V value;
+        try {
+          value = computingStrategy.waitForValue(entry,
+              deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          if (statsCounter != null) {
+            statsCounter.missCount.increment();
+            statsCounter.waitCount.increment();
+          }
+          throw e;
+        }
+        if (value == null) {
+          // Purge entry and try again.
+          segment.removeEntry(entry, hash, null);
+          continue;
+        }
+        recordFound(segment, entry, key, hash, value, waited, now);
+        return value;
+      }
+    }
+
+    /**
+     * Computes the value of an entry the calling thread created with {@link
+     * #tryCreateEntry}, recording the computation's statistics.
+     */
+    V computeCreatedEntry(Segment segment, K key, int hash, E created) {
+      boolean success = false;
+      long start = (statsCounter == null) ? 0 : ticker.read();
+      try {
+        V value = computeEntry(segment, key, hash, created, computer);
+        success = true;
+        return value;
+      } finally {
+        if (statsCounter != null) {
+          statsCounter.missCount.increment();
+          statsCounter.totalComputeTime.add(ticker.read() - start);
+          (success ? statsCounter.computeSuccessCount
+              : statsCounter.computeExceptionCount).increment();
+        }
+      }
+    }
+
+    /**
+     * Records a read of an entry whose value was found, either immediately
+     * or after waiting for another thread's computation, by a lookup that
+     * started at the given time.
+     */
+    void recordFound(Segment segment, E entry, K key, int hash, V value,
+        boolean waited, long now) {
+      segment.recordRead(entry, now);
+      segment.postReadCleanup(now);
+      if (!waited && refreshes()) {
+        refreshIfStale(entry, key, hash, value, now);
+      }
+      if (statsCounter != null) {
+        if (waited) {
+          statsCounter.missCount.increment();
+          statsCounter.waitCount.increment();
+        } else {
+          statsCounter.hitCount.increment();
+        }
+      }
+    }
+
+    /**
+     * Starts an asynchronous refresh of the given entry if its value was
+     * written at least {@link #refreshNanos} ago and no refresh of the entry
+     * is in progress. The refreshed value replaces the given value only if
+     * the entry still has it; if the refresh fails, the value is kept.
+     */
+    void refreshIfStale(E entry, K key, int hash, V value, long now) {
+      long writeTime
+          = expirableStrategy().getExpirationTime(entry) - expirationNanos;
+      if (now - writeTime > refreshNanos
+          && refreshing.putIfAbsent(entry, Boolean.TRUE) == null) {
+        try {
+          refreshExecutor.execute(new Refresh(entry, key, hash, value));
+        } catch (RejectedExecutionException e) {
+          refreshing.remove(entry);
+          logger.log(Level.WARNING, "Executor rejected refresh.", e);
+        }
+      }
+    }
+
+    /** Recomputes the value of an entry. */
+    final class Refresh implements Runnable {
+      final E entry;
+      final K key;
+      final int hash;
+      final V oldValue;
+
+      Refresh(E entry, K key, int hash, V oldValue) {
+        this.entry = entry;
+        this.key = key;
+        this.hash = hash;
+        this.oldValue = oldValue;
+      }
+
+      public void run() {
+        long start = (statsCounter == null) ? 0 : ticker.read();
+        V newValue = null;
+        try {
+          newValue = computer.apply(key);
+        } catch (Throwable t) {
+          logger.log(Level.WARNING, "Exception thrown during refresh.", t);
+        } finally {
+          refreshing.remove(entry);
+          if (statsCounter != null) {
+            statsCounter.totalComputeTime.add(ticker.read() - start);
+            (newValue != null ? statsCounter.computeSuccessCount
+                : statsCounter.computeExceptionCount).increment();
+          }
+        }
+        if (newValue != null) {
+          segmentFor(hash).replace(key, hash, oldValue, newValue);
+        }
+      }
+    }
+
+    /**
+     * Adds a new entry for the given key, whose value the calling thread
+     * must then compute with {@link #computeEntry}. Returns null without
+     * changing the map if the key already has an entry.
+     *
+     * @param now the time of the lookup, as returned by {@link #now}
+     */
+    E tryCreateEntry(Segment segment, K key, int hash, long now) {
+      segment.lock();
+      try {
+        segment.preWriteCleanup(now);
+
+        // Try again--an entry could have materialized in the interim.
+        if (segment.getEntry(key, hash) != null) {
+          return null;
+        }
+        int count = segment.count;
+        if (count++ > segment.threshold) { // ensure capacity
+          segment.expand();
+        }
+        AtomicReferenceArray<E> table = segment.tableFor(hash);
+        int index = hash & (table.length() - 1);
+        E first = table.get(index);
+        ++segment.modCount;
+        E entry = computingStrategy.newEntry(key, hash, first);
+        if (recordsWriteTime()) {
+          // Keeps readers from treating the value as expired before
+          // the entry joins the expiration queue.
+          expirableStrategy().setExpirationTime(entry, now + expirationNanos);
+        }
+        table.set(index, entry);
+        segment.count = count; // write-volatile
+        segment.evictEntries();
+        return entry;
+      } finally {
+        segment.unlock();
+        segment.postWriteCleanup();
+      }
+    }
+
+    /**
+     * Computes the value of an entry created by {@link #tryCreateEntry}
+     * using the given function, which wakes up any threads waiting for the
+     * value. If the computation fails, removes the entry so that the next
+     * request computes it again, or, if the map keeps failures, keeps the
+     * entry until its failure expires.
+     */
+    V computeEntry(Segment segment, K key, int hash, E entry,
+        Function<? super K, ? extends V> function) {
+      boolean success = false;
+      try {
+        V value = computingStrategy.compute(key, entry, function);
+        if (value == null) {
+          throw new NullPointerException(
+              "compute() returned null unexpectedly");
+        }
+        if (recordsWriteTime() || evictsBySize()) {
+          recordComputation(segment, key, hash, value);
+        }
+        success = true;
+        return value;
+      } finally {
+        if (!success) {
+          if (keepsFailures()) {
+            recordFailure(segment, key, hash);
+          } else {
+            segment.removeEntry(entry, hash, null);
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the values associated with the given keys, computing the
+     * missing ones with a single call to the given bulk function. The
+     * missing keys' entries are created before the call, so other threads
+     * requesting those keys wait for the bulk computation instead of
+     * computing the values themselves. Keys that other threads are already
+     * computing aren't passed to the bulk function; their values are awaited
+     * as in {@link #get}.
+     *
+     * <p>All entries created for the bulk computation receive a value or a
+     * failure before this method returns or throws.
+     *
+     * @throws NullPointerException if a key is null, or the bulk function
+     *     omitted one of the keys it was passed
+     * @throws ComputationException if the bulk function threw an exception
+     *     or returned null
+     */
+    Map<K, V> getAll(Iterable<? extends K> keys,
+        Function<? super Set<K>, ? extends Map<? extends K, ? extends V>>
+            bulkComputer) {
+      Set<K> requested = new LinkedHashSet<K>();
+      for (K key : keys) {
+        if (key == null) {
+          throw new NullPointerException("key");
+        }
+        requested.add(key);
+      }
+
+      Map<K, V> found = new HashMap<K, V>();
+      Map<K, E> created = new LinkedHashMap<K, E>();
+      long now = now();
+      try {
+        for (K key : requested) {
+          int hash = hash(key);
+          Segment segment = segmentFor(hash);
+          E entry = segment.getEntry(key, hash);
+          V value = (entry == null) ? null : computingStrategy.getValue(entry);
+          if (value != null && !isExpired(entry, now)) {
+            found.put(key, value);
+            segment.recordRead(entry, now);
+            segment.postReadCleanup(now);
+            if (refreshes()) {
+              refreshIfStale(entry, key, hash, value, now);
+            }
+            if (statsCounter != null) {
+              statsCounter.hitCount.increment();
+            }
+          } else if (value != null || entry == null) {
+            entry = tryCreateEntry(segment, key, hash, now);
+            if (entry != null) {
+              created.put(key, entry);
+            }
+          }
+        }
+      } catch (RuntimeException e) {
+        failEntries(created, e);
+        throw e;
+      } catch (Error e) {
+        failEntries(created, e);
+        throw e;
+      }
+
+      if (!created.isEmpty()) {
+        found.putAll(computeEntries(created, bulkComputer));
+      }
+
+      Map<K, V> result = new LinkedHashMap<K, V>();
+      for (K key : requested) {
+        V value = found.get(key);
+        // Others are computing the remaining keys; wait for them.
+        result.put(key, (value == null) ? get(key) : value);
+      }
+      return result;
+    }
+
+    /**
+     * Gives each of the given newly created entries the given failure, which
+     * wakes up any threads waiting for their values. Used when {@link
+     * #getAll} fails before its bulk computation starts.
+     */
+    void failEntries(Map<K, E> created, final Throwable cause) {
+      Function<K, V> function = new Function<K, V>() {
+        public V apply(K key) {
+          throw new ComputationException(cause);
+        }
+      };
+      for (Map.Entry<K, E> mapping : created.entrySet()) {
+        E entry = mapping.getValue();
+        // Reads the hash from the entry; the key's hashCode() may throw.
+        int hash = computingStrategy.getHash(entry);
+        try {
+          computeEntry(
+              segmentFor(hash), mapping.getKey(), hash, entry, function);
+        } catch (ComputationException expected) {
+        }
+      }
+    }
+
+    /**
+     * Computes the values of the given newly created entries with a single
+     * call to the bulk function, then resolves every entry with its value,
+     * or with the failure if the call failed.
+     */
+    Map<K, V> computeEntries(Map<K, E> created,
+        final Function<? super Set<K>,
+            ? extends Map<? extends K, ? extends V>> bulkComputer) {
+      long start = (statsCounter == null) ? 0 : ticker.read();
+      Map<? extends K, ? extends V> computed = null;
+      RuntimeException failure = null;
+      try {
+        computed = bulkComputer.apply(
+            Collections.unmodifiableSet(created.keySet()));
+        if (computed == null) {
+          failure = new NullOutputException(
+              bulkComputer + " returned null for " + created.keySet() + ".");
+        }
+      } catch (RuntimeException e) {
+        failure = e;
+      } catch (Throwable t) {
+        // Like a failed single computation, resolves the entries and wraps.
+        failure = new ComputationException(t);
+      }
+      if (statsCounter != null) {
+        statsCounter.missCount.add(created.size());
+        statsCounter.totalComputeTime.add(ticker.read() - start);
+        (failure == null ? statsCounter.computeSuccessCount
+            : statsCounter.computeExceptionCount).increment();
+      }
+
+      // Hands each entry its share of the result, or the failure.
+      final Map<? extends K, ? extends V> values = computed;
+      final RuntimeException cause = failure;
+      Function<K, V> function = new Function<K, V>() {
+        public V apply(K key) {
+          if (cause != null) {
+            throw cause;
+          }
+          return values.get(key);
+        }
+        @Override public String toString() {
+          return bulkComputer.toString();
+        }
+      };
+
+      Map<K, V> result = new HashMap<K, V>();
+      RuntimeException firstFailure = null;
+      for (Map.Entry<K, E> mapping : created.entrySet()) {
+        K key = mapping.getKey();
+        int hash = hash(key);
+        try {
+          result.put(key, computeEntry(
+              segmentFor(hash), key, hash, mapping.getValue(), function));
+        } catch (RuntimeException e) {
+          if (firstFailure == null) {
+            firstFailure = e;
+          }
+        }
+      }
+      if (firstFailure != null) {
+        throw firstFailure;
+      }
+      return result;
+    }
+
+    /**
+     * Adds the entry for a failed computation to the expiration queue, so
+     * that it's removed once its failure expires even if its key isn't
+     * requested again. The entry may have been copied while the value was
+     * being computed, so it's looked up again.
+     */
+    void recordFailure(Segment segment, K key, int hash) {
+      segment.lock();
+      try {
+        E entry = segment.getEntry(key, hash);
+        if (entry != null && isFailure(entry)) {
+          // Measured after the computation, which may have taken a while.
+          segment.queueFailure(entry, now());
+        }
+      } finally {
+        segment.unlock();
+        segment.postWriteCleanup();
+      }
+    }
+
+    /**
+     * Adds the entry for a newly computed value to the expiration and
+     * eviction queues, evicting other entries if the segment is now too
+     * large. The entry may have been copied while the value was being
+     * computed, so it's looked up again.
+     */
+    void recordComputation(Segment segment, K key, int hash, V value) {
+      int weight = weigh(key, value);
+      segment.lock();
+      try {
+        E entry = segment.getEntry(key, hash);
+        if (entry != null) {
+          // Measured after the computation, which may have taken a while.
+          segment.recordWrite(entry, weight, now());
+          segment.evictEntries();
+        }
+      } finally {
+        segment.unlock();
+        segment.postWriteCleanup();
+      }
+    }
   }
 
   /**
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+
+/**
+ * Determines whether two objects are equivalent, and hashes objects
+ * consistently with that determination, as a map built with {@link
+ * MapMaker#keyEquivalence} does for its keys. {@link Equivalences} provides
+ * the common equivalences.
+ *
+ * <p>The equivalence must be reflexive, symmetric, and transitive, and
+ * equivalent objects must have equal hash codes. A map's equivalence is
+ * called while it holds internal locks, so it must be fast and thread-safe,
+ * and must not access the map.
+ *
+ * @param <T> the type of objects to compare
+ */
+@GwtCompatible
+public interface Equivalence<T> {
+
+  /**
+   * Returns true if the given non-null objects are equivalent.
+   */
+  boolean equivalent(T a, T b);
+
+  /**
+   * Returns a hash code for the given non-null object. Objects that are
+   * {@linkplain #equivalent equivalent} must have the same hash code.
+   */
+  int hash(T t);
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+
+/**
+ * Static methods pertaining to {@link Equivalence} instances.
+ *
+ * <p>The equivalences returned by these methods are serializable.
+ */
+@GwtCompatible
+public final class Equivalences {
+  private Equivalences() {}
+
+  /**
+   * Returns an equivalence that compares objects with {@link
+   * Object#equals} and hashes them with {@link Object#hashCode}.
+   */
+  public static Equivalence<Object> equals() {
+    return EqualsEquivalence.INSTANCE;
+  }
+
+  // enum singleton pattern
+  private enum EqualsEquivalence implements Equivalence<Object> {
+    INSTANCE;
+
+    public boolean equivalent(Object a, Object b) {
+      return a.equals(b);
+    }
+
+    public int hash(Object o) {
+      return o.hashCode();
+    }
+
+    @Override public String toString() {
+      return "Equivalences.equals()";
+    }
+  }
+
+  /**
+   * Returns an equivalence that compares objects with {@code ==} and
+   * hashes them with {@link System#identityHashCode}. It is faster than
+   * {@link #equals()} for objects whose {@code equals} method is costly, but
+   * is correct only when equal objects are always the same instance, for
+   * example because they are interned.
+   */
+  public static Equivalence<Object> identity() {
+    return IdentityEquivalence.INSTANCE;
+  }
+
+  // enum singleton pattern
+  private enum IdentityEquivalence implements Equivalence<Object> {
+    INSTANCE;
+
+    public boolean equivalent(Object a, Object b) {
+      return a == b;
+    }
+
+    public int hash(Object o) {
+      return System.identityHashCode(o);
+    }
+
+    @Override public String toString() {
+      return "Equivalences.identity()";
+    }
+  }
+}
@@ -202,6 +202,32 @@ public abstract class ImmutableBiMap<K, V> extends ImmutableMap<K, V>
     return new RegularImmutableBiMap<K, V>(immutableMap);
   }
 
+  /**
+   * Returns an immutable bimap containing the same entries as {@code map},
+   * with both the bimap and its inverse laid out as by {@link
+   * ImmutableMap#compactCopyOf}.
+   *
+   * @throws IllegalArgumentException if two keys have the same value
+   * @throws NullPointerException if any key or value in {@code map} is null
+   */
+  public static <K, V> ImmutableBiMap<K, V> compactCopyOf(
+      Map<? extends K, ? extends V> map) {
+    if (map.size() < 2) {
+      return copyOf(map);
+    }
+
+    ImmutableMap<K, V> forwardMap = ImmutableMap.compactCopyOf(map);
+    @SuppressWarnings("unchecked") // we only put Entry<V, K>'s in the array
+    Entry<V, K>[] inverseEntries = new Entry[forwardMap.size()];
+    int i = 0;
+    for (Entry<K, V> entry : forwardMap.entrySet()) {
+      inverseEntries[i++] = entryOf(entry.getValue(), entry.getKey());
+    }
+    ImmutableMap<V, K> backwardMap
+        = CompactImmutableMap.create(inverseEntries);
+    return new RegularImmutableBiMap<K, V>(forwardMap, backwardMap);
+  }
+
   ImmutableBiMap() {}
 
   abstract ImmutableMap<K, V> delegate();
@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+import com.google.common.base.Preconditions;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+
+/**
+ * An immutable list of {@code double} values, held in a {@code double[]}
+ * rather than as {@link Double} objects. Compared to an {@code
+ * ImmutableList<Double>}, which holds a reference to a separate object for
+ * each element, it uses a fraction of the memory and reads each element
+ * without following a reference.
+ *
+ * <p>This class isn't a {@link List}, whose methods would box each element
+ * they return. {@link #asList} returns a view of the list as an {@link
+ * ImmutableList}, for code that expects one. {@link #subList} returns a view
+ * of part of the list that shares its array, so it copies nothing.
+ *
+ * <p>Serializing a list writes only the elements in its range, not the
+ * whole array of a larger list it was taken from.
+ */
+@GwtCompatible
+public final class ImmutableDoubleList implements Serializable {
+  private static final ImmutableDoubleList EMPTY
+      = new ImmutableDoubleList(new double[0], 0, 0);
+
+  private final double[] array;
+  private final int offset;
+  private final int size;
+
+  private ImmutableDoubleList(double[] array, int offset, int size) {
+    this.array = array;
+    this.offset = offset;
+    this.size = size;
+  }
+
+  /** Returns the empty list. */
+  public static ImmutableDoubleList of() {
+    return EMPTY;
+  }
+
+  /** Returns a list containing the given values, in order. */
+  public static ImmutableDoubleList of(double... values) {
+    return copyOf(values);
+  }
+
+  /** Returns a list containing the values of the given array, in order. */
+  public static ImmutableDoubleList copyOf(double[] values) {
+    return (values.length == 0)
+        ? EMPTY
+        : new ImmutableDoubleList(copyOf(values, 0, values.length), 0,
+            values.length);
+  }
+
+  /**
+   * Returns a list containing the given values, in iteration order. If
+   * {@code values} is a view returned by {@link #asList}, the list it views
+   * is returned, without copying.
+   *
+   * @throws NullPointerException if any of {@code values} is null
+   */
+  public static ImmutableDoubleList copyOf(Collection<Double> values) {
+    if (values instanceof AsList) {
+      return ((AsList) values).parent;
+    }
+    Object[] boxed = values.toArray();
+    if (boxed.length == 0) {
+      return EMPTY;
+    }
+    double[] array = new double[boxed.length];
+    for (int i = 0; i < boxed.length; i++) {
+      array[i] = (Double) boxed[i];
+    }
+    return new ImmutableDoubleList(array, 0, array.length);
+  }
+
+  // Avoid using Arrays.copyOfRange(), which is not present until JDK6.
+  private static double[] copyOf(double[] source, int from, int length) {
+    double[] copy = new double[length];
+    System.arraycopy(source, from, copy, 0, length);
+    return copy;
+  }
+
+  /**
+   * Returns true if the values are equal as {@link Double#equals} defines
+   * it, so that {@code NaN} equals itself and {@code 0.0} doesn't equal
+   * {@code -0.0}.
+   */
+  private static boolean areEqual(double a, double b) {
+    return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+  }
+
+  /** Returns the number of values in the list. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns true if the list contains no values. */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the value at the given position in the list.
+   *
+   * @throws IndexOutOfBoundsException if {@code index} is negative or not
+   *     less than {@link #size}
+   */
+  public double get(int index) {
+    Preconditions.checkElementIndex(index, size);
+    return array[offset + index];
+  }
+
+  /**
+   * Returns the index of the first occurrence of {@code target} in the list,
+   * or -1 if it doesn't occur.
+   */
+  public int indexOf(double target) {
+    for (int i = offset; i < offset + size; i++) {
+      if (areEqual(array[i], target)) {
+        return i - offset;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index of the last occurrence of {@code target} in the list,
+   * or -1 if it doesn't occur.
+   */
+  public int lastIndexOf(double target) {
+    for (int i = offset + size - 1; i >= offset; i--) {
+      if (areEqual(array[i], target)) {
+        return i - offset;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns true if {@code target} occurs in the list. */
+  public boolean contains(double target) {
+    return indexOf(target) != -1;
+  }
+
+  /** Returns a new array containing the values of the list, in order. */
+  public double[] toArray() {
+    return copyOf(array, offset, size);
+  }
+
+  /**
+   * Returns a view of the values from {@code fromIndex}, inclusive, to
+   * {@code toIndex}, exclusive. The view shares this list's array.
+   *
+   * @throws IndexOutOfBoundsException if the indexes are out of range or
+   *     out of order
+   */
+  public ImmutableDoubleList subList(int fromIndex, int toIndex) {
+    Preconditions.checkPositionIndexes(fromIndex, toIndex, size);
+    return (fromIndex == toIndex)
+        ? EMPTY
+        : new ImmutableDoubleList(
+            array, offset + fromIndex, toIndex - fromIndex);
+  }
+
+  /**
+   * Returns a view of this list as an {@code ImmutableList<Double>}, which
+   * boxes each value as it's read. Passing the view to {@link
+   * #copyOf(Collection)} returns this list.
+   */
+  public ImmutableList<Double> asList() {
+    return new AsList(this);
+  }
+
+  /**
+   * Returns true if {@code object} is an {@code ImmutableDoubleList} holding
+   * the same values in the same order. A list is never equal to its {@link
+   * #asList} view.
+   */
+  @Override public boolean equals(@Nullable Object object) {
+    if (object == this) {
+      return true;
+    }
+    if (!(object instanceof ImmutableDoubleList)) {
+      return false;
+    }
+    ImmutableDoubleList that = (ImmutableDoubleList) object;
+    if (size != that.size) {
+      return false;
+    }
+    for (int i = 0; i < size; i++) {
+      if (!areEqual(array[offset + i], that.array[that.offset + i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the same hash code as {@link List#hashCode} of {@link #asList}. */
+  @Override public int hashCode() {
+    int hashCode = 1;
+    for (int i = offset; i < offset + size; i++) {
+      long bits = Double.doubleToLongBits(array[i]);
+      hashCode = 31 * hashCode + (int) (bits ^ (bits >>> 32));
+    }
+    return hashCode;
+  }
+
+  @Override public String toString() {
+    if (size == 0) {
+      return "[]";
+    }
+    StringBuilder sb = new StringBuilder(size * 10);
+    sb.append('[').append(array[offset]);
+    for (int i = offset + 1; i < offset + size; i++) {
+      sb.append(", ").append(array[i]);
+    }
+    return sb.append(']').toString();
+  }
+
+  /** Serializes a sublist as a list of its own, without the rest. */
+  Object writeReplace() {
+    return (offset == 0 && size == array.length) ? this : copyOf(toArray());
+  }
+
+  Object readResolve() {
+    return (size == 0) ? EMPTY : this;
+  }
+
+  private static final long serialVersionUID = 0;
+
+  /**
+   * Returns a new builder. The generated builder is equivalent to the builder
+   * created by the {@link Builder} constructor.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * A builder for creating {@code ImmutableDoubleList} instances, which grows
+   * a {@code double[]} as values are added.
+   *
+   * <p>Builder instances can be reused - it is safe to call {@link #build}
+   * multiple times to build multiple lists in series. Each new list
+   * contains the one created before it.
+   */
+  public static final class Builder {
+    private double[] array = new double[10];
+    private int count;
+
+    /**
+     * Creates a new builder. The returned builder is equivalent to the builder
+     * generated by {@link ImmutableDoubleList#builder}.
+     */
+    public Builder() {}
+
+    /**
+     * Adds {@code value} to the list.
+     *
+     * @return this {@code Builder} object
+     */
+    public Builder add(double value) {
+      ensureRoomFor(1);
+      array[count++] = value;
+      return this;
+    }
+
+    /**
+     * Adds each of {@code values} to the list.
+     *
+     * @return this {@code Builder} object
+     */
+    public Builder add(double... values) {
+      ensureRoomFor(values.length);
+      System.arraycopy(values, 0, array, count, values.length);
+      count += values.length;
+      return this;
+    }
+
+    /**
+     * Adds each value of {@code values} to the list.
+     *
+     * @return this {@code Builder} object
+     */
+    public Builder addAll(ImmutableDoubleList values) {
+      ensureRoomFor(values.size);
+      System.arraycopy(values.array, values.offset, array, count, values.size);
+      count += values.size;
+      return this;
+    }
+
+    /**
+     * Adds each value of {@code values} to the list.
+     *
+     * @return this {@code Builder} object
+     * @throws NullPointerException if any of {@code values} is null
+     */
+    public Builder addAll(Iterable<Double> values) {
+      if (values instanceof AsList) {
+        return addAll(((AsList) values).parent);
+      }
+      for (Double value : values) {
+        add(value);
+      }
+      return this;
+    }
+
+    private void ensureRoomFor(int additional) {
+      int needed = count + additional;
+      if (needed > array.length) {
+        int newLength = Math.max(needed, array.length + array.length / 2);
+        double[] newArray = new double[newLength];
+        System.arraycopy(array, 0, newArray, 0, count);
+        array = newArray;
+      }
+    }
+
+    /**
+     * Returns a newly-created {@code ImmutableDoubleList} based on the contents
+     * of the {@code Builder}.
+     */
+    public ImmutableDoubleList build() {
+      return (count == 0)
+          ? EMPTY
+          : new ImmutableDoubleList(copyOf(array, 0, count), 0, count);
+    }
+  }
+
+  /** The {@link #asList} view, which boxes values as they're read. */
+  @SuppressWarnings("serial") // uses writeReplace(), not default serialization
+  private static class AsList extends ImmutableList<Double> {
+    final ImmutableDoubleList parent;
+
+    AsList(ImmutableDoubleList parent) {
+      this.parent = parent;
+    }
+
+    public int size() {
+      return parent.size;
+    }
+
+    @Override public boolean isEmpty() {
+      return parent.size == 0;
+    }
+
+    public Double get(int index) {
+      return parent.get(index);
+    }
+
+    @Override public boolean contains(@Nullable Object target) {
+      return indexOf(target) != -1;
+    }
+
+    @Override public int indexOf(@Nullable Object target) {
+      return (target instanceof Double)
+          ? parent.indexOf((Double) target) : -1;
+    }
+
+    @Override public int lastIndexOf(@Nullable Object target) {
+      return (target instanceof Double)
+          ? parent.lastIndexOf((Double) target) : -1;
+    }
+
+    @Override public ImmutableList<Double> subList(
+        int fromIndex, int toIndex) {
+      return parent.subList(fromIndex, toIndex).asList();
+    }
+
+    @Override public UnmodifiableIterator<Double> iterator() {
+      return new UnmodifiableIterator<Double>() {
+        int index = parent.offset;
+
+        public boolean hasNext() {
+          return index < parent.offset + parent.size;
+        }
+
+        public Double next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return parent.array[index++];
+        }
+      };
+    }
+
+    public ListIterator<Double> listIterator() {
+      return listIterator(0);
+    }
+
+    public ListIterator<Double> listIterator(final int start) {
+      Preconditions.checkPositionIndex(start, parent.size);
+
+      return new ListIterator<Double>() {
+        int index = start;
+
+        public boolean hasNext() {
+          return index < parent.size;
+        }
+        public boolean hasPrevious() {
+          return index > 0;
+        }
+
+        public int nextIndex() {
+          return index;
+        }
+        public int previousIndex() {
+          return index - 1;
+        }
+
+        public Double next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return parent.array[parent.offset + index++];
+        }
+        public Double previous() {
+          if (!hasPrevious()) {
+            throw new NoSuchElementException();
+          }
+          return parent.array[parent.offset + --index];
+        }
+
+        public void set(Double o) {
+          throw new UnsupportedOperationException();
+        }
+        public void add(Double o) {
+          throw new UnsupportedOperationException();
+        }
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override public boolean equals(@Nullable Object object) {
+      if (object instanceof AsList) {
+        return parent.equals(((AsList) object).parent);
+      }
+      if (!(object instanceof List)) {
+        return false;
+      }
+      List<?> that = (List<?>) object;
+      if (parent.size != that.size()) {
+        return false;
+      }
+      int index = parent.offset;
+      for (Object element : that) {
+        if (!(element instanceof Double)
+            || !areEqual(parent.array[index++], (Double) element)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override public int hashCode() {
+      return parent.hashCode();
+    }
+
+    @Override public String toString() {
+      return parent.toString();
+    }
+
+    @Override Object writeReplace() {
+      return new SerializedForm(parent);
+    }
+  }
+
+  /** Serializes an {@link #asList} view as the list it views. */
+  private static class SerializedForm implements Serializable {
+    final ImmutableDoubleList parent;
+
+    SerializedForm(ImmutableDoubleList parent) {
+      this.parent = parent;
+    }
+
+    Object readResolve() {
+      return parent.asList();
+    }
+
+    private static final long serialVersionUID = 0;
+  }
+}
@@ -250,6 +250,46 @@ public abstract class ImmutableMap<K, V> implements Map<K, V>, Serializable {
     }
   }
 
+  /**
+   * Returns an immutable map containing the same entries as {@code map}, in
+   * the same order, laid out for very large maps. The returned map indexes its
+   * keys with a minimal perfect hash of their hash codes: it needs one table
+   * slot per distinct hash code and a few bits per key of index, where {@link
+   * #copyOf} allocates about two slots per entry, and {@link #get} reads a
+   * single slot instead of probing. Keys whose hash code is shared with another
+   * key are held in a small secondary map. Building the index costs more than
+   * {@code copyOf}, so this is worthwhile only for large maps that are looked
+   * up often. If no index can be built, as may happen when the keys' hash
+   * codes are poorly distributed, the map is built as by {@code copyOf}.
+   *
+   * <p>If {@code map} is itself a map returned by this method, no copy will
+   * actually be performed, and the given map itself will be returned.
+   *
+   * @throws NullPointerException if any key or value in {@code map} is null
+   * @throws IllegalArgumentException if {@code map} somehow contains entries
+   *     with duplicate keys
+   */
+  public static <K, V> ImmutableMap<K, V> compactCopyOf(
+      Map<? extends K, ? extends V> map) {
+    if (map instanceof CompactImmutableMap) {
+      @SuppressWarnings("unchecked") // safe since map is not writable
+      ImmutableMap<K, V> kvMap = (ImmutableMap<K, V>) map;
+      return kvMap;
+    }
+
+    @SuppressWarnings("unchecked") // we won't write to this array
+    Entry<K, V>[] entries = map.entrySet().toArray(new Entry[0]);
+    switch (entries.length) {
+      case 0:
+        return of();
+      case 1:
+        return new SingletonImmutableMap<K, V>(entryOf(
+            entries[0].getKey(), entries[0].getValue()));
+      default:
+        return CompactImmutableMap.create(entries);
+    }
+  }
+
   ImmutableMap() {}
 
   /**
@@ -195,6 +195,39 @@ public abstract class ImmutableSet<E> extends ImmutableCollection<E>
     return copyOfInternal(list);
   }
 
+  /**
+   * Returns an immutable set containing the given elements, in order, laid out
+   * for very large sets. Repeated occurrences of an element (according to
+   * {@link Object#equals}) after the first are ignored. The returned set
+   * indexes its elements with a minimal perfect hash of their hash codes: it
+   * needs one table slot per distinct hash code and a few bits per element of
+   * index, where {@link #copyOf} allocates about two slots per element, and
+   * {@link #contains} reads a single slot instead of probing. Elements whose
+   * hash code is shared with another element are held in a small secondary
+   * set. Building the index costs more than {@code copyOf}, so this is
+   * worthwhile only for large sets that are queried often. If no index can be
+   * built, as may happen when the elements' hash codes are poorly distributed,
+   * the set is built as by {@code copyOf}.
+   *
+   * <p>If {@code elements} is itself a set returned by this method, no copy
+   * will actually be performed, and the given set itself will be returned.
+   *
+   * @throws NullPointerException if any of {@code elements} is null
+   */
+  public static <E> ImmutableSet<E> compactCopyOf(
+      Iterable<? extends E> elements) {
+    if (elements instanceof CompactImmutableSet) {
+      @SuppressWarnings("unchecked") // all supported methods are covariant
+      ImmutableSet<E> set = (ImmutableSet<E>) elements;
+      return set;
+    }
+    Collection<? extends E> collection = Collections2.toCollection(elements);
+    if (collection.size() < 2) {
+      return copyOfInternal(collection);
+    }
+    return CompactImmutableSet.create(collection.toArray());
+  }
+
   private static <E> ImmutableSet<E> copyOfInternal(
       Collection<? extends E> collection) {
     // TODO: Support concurrent collections that change while this method is
@@ -251,6 +284,7 @@ public abstract class ImmutableSet<E> extends ImmutableCollection<E>
     // count is always the (nonzero) number of elements in the iterable
     int tableSize = Hashing.chooseTableSize(count);
     Object[] table = new Object[tableSize];
+    int[] hashes = new int[tableSize];
     int mask = tableSize - 1;
 
     List<E> elements = new ArrayList<E>(count);
@@ -259,16 +293,18 @@ public abstract class ImmutableSet<E> extends ImmutableCollection<E>
     for (E element : iterable) {
       checkNotNull(element); // for GWT
       int hash = element.hashCode();
-      for (int i = Hashing.smear(hash); true; i++) {
+      int smearedHash = Hashing.smear(hash);
+      for (int i = smearedHash; true; i++) {
         int index = i & mask;
         Object value = table[index];
         if (value == null) {
           // Came to an empty bucket. Put the element here.
           table[index] = element;
+          hashes[index] = smearedHash;
           elements.add(element);
           hashCode += hash;
           break;
-        } else if (value.equals(element)) {
+        } else if (hashes[index] == smearedHash && value.equals(element)) {
           break; // Found a duplicate. Nothing to do.
         }
       }
@@ -282,7 +318,7 @@ public abstract class ImmutableSet<E> extends ImmutableCollection<E>
       return create(elements, elements.size()); 
     } else {
       return new RegularImmutableSet<E>(
-          elements.toArray(), hashCode, table, mask);
+          elements.toArray(), hashCode, table, hashes, mask);
     }
   }
 
@@ -62,6 +62,7 @@ public class ImmutableSortedMap<K, V>
   @SuppressWarnings("unchecked")
   private static final Comparator NATURAL_ORDER = Ordering.natural();
   private static final Entry<?, ?>[] EMPTY_ARRAY = new Entry<?, ?>[0];
+  private static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
 
   @SuppressWarnings("unchecked")
   private static final ImmutableMap<Object, Object> NATURAL_EMPTY_MAP
@@ -225,18 +226,29 @@ public class ImmutableSortedMap<K, V>
       return kvMap;
     }
 
+    if (sameComparator) {
+      // The keys are already in order, so copy them straight into the
+      // arrays, without making entries to sort.
+      // Using Lists to support concurrent map whose size changes
+      List<Object> keyList = Lists.newArrayListWithCapacity(map.size());
+      List<Object> valueList = Lists.newArrayListWithCapacity(map.size());
+      for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+        keyList.add(checkNotNull(entry.getKey()));
+        valueList.add(checkNotNull(entry.getValue()));
+      }
+      Object[] keys = keyList.toArray();
+      return new ImmutableSortedMap<K, V>(
+          keys, valueList.toArray(), comparator, 0, keys.length);
+    }
+
     // Using List to support concurrent map whose size changes
     List<Entry<?, ?>> list = Lists.newArrayListWithCapacity(map.size());
     for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
       list.add(entryOf(entry.getKey(), entry.getValue()));
     }
     Entry<?, ?>[] entryArray = list.toArray(new Entry<?, ?>[list.size()]);
-
-    if (!sameComparator) {
-      sortEntries(entryArray, comparator);
-      validateEntries(entryArray, comparator);
-    }
-
+    sortEntries(entryArray, comparator);
+    validateEntries(entryArray, comparator);
     return new ImmutableSortedMap<K, V>(entryArray, comparator);
   }
 
@@ -370,17 +382,25 @@ public class ImmutableSortedMap<K, V>
     }
   }
 
-  private final transient Entry<K, V>[] entries;
+  /*
+   * The keys and values are kept in parallel arrays, rather than as an array
+   * of entries, so that each mapping costs two array slots instead of an
+   * entry object besides, and a binary search reads the keys directly.
+   * Entries are only created as the entry set is iterated. A submap shares
+   * the arrays of the map it was made from, and covers the range from
+   * fromIndex, inclusive, to toIndex, exclusive.
+   */
+  private final transient Object[] keyArray;
+  private final transient Object[] valueArray;
   private final transient Comparator<? super K> comparator;
   private final transient int fromIndex;
   private final transient int toIndex;
 
-  private ImmutableSortedMap(Entry<?, ?>[] entries,
+  // each of the callers carefully puts only K's and V's into the arrays!
+  private ImmutableSortedMap(Object[] keyArray, Object[] valueArray,
       Comparator<? super K> comparator, int fromIndex, int toIndex) {
-    // each of the callers carefully put only Entry<K, V>s into the array!
-    @SuppressWarnings("unchecked")
-    Entry<K, V>[] tmp = (Entry<K, V>[]) entries;
-    this.entries = tmp;
+    this.keyArray = keyArray;
+    this.valueArray = valueArray;
     this.comparator = comparator;
     this.fromIndex = fromIndex;
     this.toIndex = toIndex;
@@ -388,7 +408,31 @@ public class ImmutableSortedMap<K, V>
 
   ImmutableSortedMap(Entry<?, ?>[] entries,
       Comparator<? super K> comparator) {
-    this(entries, comparator, 0, entries.length);
+    this.comparator = comparator;
+    this.fromIndex = 0;
+    this.toIndex = entries.length;
+    if (entries.length == 0) {
+      this.keyArray = EMPTY_OBJECT_ARRAY;
+      this.valueArray = EMPTY_OBJECT_ARRAY;
+    } else {
+      this.keyArray = new Object[entries.length];
+      this.valueArray = new Object[entries.length];
+      for (int i = 0; i < entries.length; i++) {
+        keyArray[i] = entries[i].getKey();
+        valueArray[i] = entries[i].getValue();
+      }
+    }
+  }
+
+  // the arrays hold only K's and V's
+  @SuppressWarnings("unchecked")
+  private K keyAt(int index) {
+    return (K) keyArray[index];
+  }
+
+  @SuppressWarnings("unchecked")
+  private V valueAt(int index) {
+    return (V) valueArray[index];
   }
 
   public int size() {
@@ -405,7 +449,7 @@ public class ImmutableSortedMap<K, V>
     } catch (ClassCastException e) {
       return null;
     }
-    return (i >= 0) ? entries[i].getValue() : null;
+    return (i >= 0) ? valueAt(i) : null;
   }
 
   private int binarySearch(Object key) {
@@ -415,7 +459,7 @@ public class ImmutableSortedMap<K, V>
     while (lower <= upper) {
       int middle = lower + (upper - lower) / 2;
       int c = ImmutableSortedSet.unsafeCompare(
-          comparator, key, entries[middle].getKey());
+          comparator, key, keyArray[middle]);
       if (c < 0) {
         upper = middle - 1;
       } else if (c > 0) {
@@ -433,7 +477,7 @@ public class ImmutableSortedMap<K, V>
       return false;
     }
     for (int i = fromIndex; i < toIndex; i++) {
-      if (entries[i].getValue().equals(value)) {
+      if (valueArray[i].equals(value)) {
         return true;
       }
     }
@@ -469,7 +513,18 @@ public class ImmutableSortedMap<K, V>
     }
 
     @Override public UnmodifiableIterator<Entry<K, V>> iterator() {
-      return Iterators.forArray(map.entries, map.fromIndex, size());
+      return new AbstractIterator<Entry<K, V>>() {
+        int index = map.fromIndex;
+        @Override protected Entry<K, V> computeNext() {
+          if (index == map.toIndex) {
+            return endOfData();
+          }
+          Entry<K, V> entry = new ImmutableEntry<K, V>(
+              map.keyAt(index), map.valueAt(index));
+          index++;
+          return entry;
+        }
+      };
     }
 
     @Override public boolean contains(Object target) {
@@ -512,12 +567,9 @@ public class ImmutableSortedMap<K, V>
       return ImmutableSortedSet.emptySet(comparator);
     }
 
-    // TODO: For better performance, don't create a separate array.
-    Object[] array = new Object[size()];
-    for (int i = fromIndex; i < toIndex; i++) {
-      array[i - fromIndex] = entries[i].getKey();
-    }
-    return new RegularImmutableSortedSet<K>(array, comparator);
+    // Doesn't build a search tree; the map itself searches keyArray.
+    return new RegularImmutableSortedSet<K>(
+        keyArray, comparator, fromIndex, toIndex, null);
   }
 
   private transient ImmutableCollection<V> values;
@@ -543,15 +595,11 @@ public class ImmutableSortedMap<K, V>
       return map.size();
     }
 
+    // The map's value array holds only V's.
+    @SuppressWarnings("unchecked")
     @Override public UnmodifiableIterator<V> iterator() {
-      return new AbstractIterator<V>() {
-        int index = map.fromIndex;
-        @Override protected V computeNext() {
-          return (index < map.toIndex)
-              ? map.entries[index++].getValue()
-              : endOfData();
-        }
-      };
+      return (UnmodifiableIterator<V>)
+          Iterators.forArray(map.valueArray, map.fromIndex, size());
     }
 
     @Override public boolean contains(Object target) {
@@ -588,14 +636,14 @@ public class ImmutableSortedMap<K, V>
     if (isEmpty()) {
       throw new NoSuchElementException();
     }
-    return entries[fromIndex].getKey();
+    return keyAt(fromIndex);
   }
 
   public K lastKey() {
     if (isEmpty()) {
       throw new NoSuchElementException();
     }
-    return entries[toIndex - 1].getKey();
+    return keyAt(toIndex - 1);
   }
 
   /**
@@ -658,7 +706,7 @@ public class ImmutableSortedMap<K, V>
   private ImmutableSortedMap<K, V> createSubmap(
       int newFromIndex, int newToIndex) {
     if (newFromIndex < newToIndex) {
-      return new ImmutableSortedMap<K, V>(entries, comparator,
+      return new ImmutableSortedMap<K, V>(keyArray, valueArray, comparator,
           newFromIndex, newToIndex);
     } else {
       return emptyMap(comparator);
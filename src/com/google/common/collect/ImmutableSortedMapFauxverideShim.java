@@ -18,6 +18,8 @@ package com.google.common.collect;
 
 import com.google.common.annotations.GwtCompatible;
 
+import java.util.Map;
+
 /**
  * "Overrides" the {@link ImmutableMap} static methods that lack
  * {@link ImmutableSortedMap} equivalents with deprecated, exception-throwing
@@ -113,5 +115,18 @@ abstract class ImmutableSortedMapFauxverideShim<K, V>
     throw new UnsupportedOperationException();
   }
 
+  /**
+   * Not supported. A sorted map is searched by its comparator, not indexed
+   * by hash codes, so there is no compact layout to copy into.
+   *
+   * @throws UnsupportedOperationException always
+   * @deprecated Use {@link ImmutableSortedMap#copyOf(Map)}, or {@link
+   *     ImmutableMap#compactCopyOf} if sorting isn't needed.
+   */
+  @Deprecated public static <K, V> ImmutableSortedMap<K, V> compactCopyOf(
+      Map<? extends K, ? extends V> map) {
+    throw new UnsupportedOperationException();
+  }
+
   // No copyOf() fauxveride; see ImmutableSortedSetFauxverideShim.
 }
@@ -131,6 +131,19 @@ abstract class ImmutableSortedSetFauxverideShim<E> extends ImmutableSet<E> {
     throw new UnsupportedOperationException();
   }
 
+  /**
+   * Not supported. A sorted set is searched by its comparator, not indexed
+   * by hash codes, so there is no compact layout to copy into.
+   *
+   * @throws UnsupportedOperationException always
+   * @deprecated Use {@link ImmutableSortedSet#copyOf(Iterable)}, or {@link
+   *     ImmutableSet#compactCopyOf} if sorting isn't needed.
+   */
+  @Deprecated public static <E> ImmutableSortedSet<E> compactCopyOf(
+      Iterable<? extends E> elements) {
+    throw new UnsupportedOperationException();
+  }
+
   /*
    * We would like to include an unsupported "<E> copyOf(Iterable<E>)" here,
    * providing only the properly typed
@@ -22,27 +22,54 @@ import com.google.common.base.FinalizableReferenceQueue;
 import com.google.common.base.FinalizableSoftReference;
 import com.google.common.base.FinalizableWeakReference;
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import com.google.common.collect.CustomConcurrentHashMap.BulkTask;
 import com.google.common.collect.CustomConcurrentHashMap.ComputingStrategy;
+import com.google.common.collect.CustomConcurrentHashMap.EvictableStrategy;
+import com.google.common.collect.CustomConcurrentHashMap.ExpirableStrategy;
 import com.google.common.collect.CustomConcurrentHashMap.Internals;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A {@link ConcurrentMap} builder, providing any combination of these
  * features: {@linkplain SoftReference soft} or {@linkplain WeakReference
- * weak} keys, soft or weak values, timed expiration, and on-demand
- * computation of values. Usage example: <pre> {@code
+ * weak} keys, soft or weak values, timed expiration, a maximum size, and
+ * on-demand computation of values. Usage example: <pre> {@code
  *
  *   ConcurrentMap<Key, Graph> graphs = new MapMaker()
  *       .concurrencyLevel(32)
@@ -97,7 +124,7 @@ import java.util.concurrent.TimeUnit;
 public final class MapMaker {
   private Strength keyStrength = Strength.STRONG;
   private Strength valueStrength = Strength.STRONG;
-  private long expirationNanos = 0;
+  private Equivalence<Object> keyEquivalence;
   private boolean useCustomMap;
   private final CustomConcurrentHashMap.Builder builder
       = new CustomConcurrentHashMap.Builder();
@@ -156,7 +183,7 @@ public final class MapMaker {
    * to determine equality of weak keys, which may not behave as you expect.
    * For example, storing a key in the map and then attempting a lookup
    * using a different but {@link Object#equals(Object) equals}-equivalent
-   * key will always fail.
+   * key will always fail. Use {@link #keyEquivalence} to change this.
    *
    * @throws IllegalStateException if the key strength was already set
    * @see WeakReference
@@ -175,7 +202,7 @@ public final class MapMaker {
    * to determine equality of soft keys, which may not behave as you expect.
    * For example, storing a key in the map and then attempting a lookup
    * using a different but {@link Object#equals(Object) equals}-equivalent
-   * key will always fail.
+   * key will always fail. Use {@link #keyEquivalence} to change this.
    *
    * @throws IllegalStateException if the key strength was already set
    * @see SoftReference
@@ -195,6 +222,41 @@ public final class MapMaker {
     return this;
   }
 
+  /**
+   * Specifies how the map compares and hashes keys, in place of the default
+   * for the key strength: {@link Object#equals} and {@link Object#hashCode}
+   * for strong keys, or identity ({@code ==}) for {@linkplain #weakKeys
+   * weak} and {@linkplain #softKeys soft} keys. The equivalence is
+   * independent of the key strength; for example, {@link
+   * Equivalences#identity} makes lookups of interned strong keys avoid a
+   * costly {@code equals} method, and {@link Equivalences#equals} gives
+   * weak keys the semantics of {@link java.util.WeakHashMap}.
+   *
+   * <p>The map serializes the equivalence, so it must be serializable for
+   * the map to be.
+   *
+   * @throws IllegalStateException if a key equivalence was already set
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker keyEquivalence(Equivalence<Object> equivalence) {
+    if (keyEquivalence != null) {
+      throw new IllegalStateException(
+          "Key equivalence was already set to " + keyEquivalence + ".");
+    }
+    if (equivalence == null) {
+      throw new NullPointerException("equivalence");
+    }
+    keyEquivalence = equivalence;
+    useCustomMap = true;
+    return this;
+  }
+
+  /** Returns the key equivalence, which defaults by key strength. */
+  Equivalence<Object> getKeyEquivalence() {
+    return (keyEquivalence == null)
+        ? keyStrength.defaultEquivalence() : keyEquivalence;
+  }
+
   /**
    * Specifies that each value (not key) stored in the map should be
    * wrapped in a {@link WeakReference} (by default, strong references
@@ -253,7 +315,13 @@ public final class MapMaker {
 
   /**
    * Specifies that each entry should be automatically removed from the
-   * map once a fixed duration has passed since the entry's creation.
+   * map once a fixed duration has passed since the entry's creation or the
+   * most recent replacement of its value.
+   *
+   * <p>Expired entries are removed during ordinary reads and writes to the
+   * map, so no background thread is needed. Until then, an expired entry
+   * still counts toward {@link Map#size}, but it is never returned by
+   * retrieval operations or the map's views.
    *
    * @param duration the length of time after an entry is created that it
    *     should be automatically removed
@@ -262,18 +330,395 @@ public final class MapMaker {
    * @throws IllegalStateException if the expiration time was already set
    */
   public MapMaker expiration(long duration, TimeUnit unit) {
-    if (expirationNanos != 0) {
-      throw new IllegalStateException("expiration time of "
-          + expirationNanos + " ns was already set");
+    builder.expiration(duration, unit);
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Specifies that each entry should be automatically removed from the
+   * map once a fixed duration has passed since the entry was last accessed.
+   * An entry is accessed when it is created, when its value is replaced,
+   * and when it is returned by {@link Map#get}.
+   *
+   * <p>Entries that remain in use therefore stay in the map indefinitely,
+   * while idle entries are removed. Reads only update a timestamp and
+   * buffer the entry; the expiration order is updated during later writes
+   * or periodically during reads. As with {@link #expiration}, no
+   * background thread is needed.
+   *
+   * @param duration the length of time after an entry is last accessed that
+   *     it should be automatically removed
+   * @param unit the unit that {@code duration} is expressed in
+   * @throws IllegalArgumentException if {@code duration} is not positive
+   * @throws IllegalStateException if an expiration time was already set,
+   *     by this method or by {@link #expiration}, or {@link
+   *     #refreshAfterWrite} was used
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker expireAfterAccess(long duration, TimeUnit unit) {
+    builder.expireAfterAccess(duration, unit);
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Specifies the maximum number of entries the map may contain. When a
+   * write would make the map exceed this size, the map evicts an entry that
+   * has not been used recently.
+   *
+   * <p>The limit is divided among the map's internal segments, and each
+   * segment evicts the approximately least-recently-used of its own entries
+   * when it exceeds its share. As a result, the map may evict an entry
+   * before it reaches the maximum size, especially when the maximum size is
+   * small relative to the {@linkplain #concurrencyLevel concurrency level}.
+   * Recently read entries are tracked without locking, so reads remain as
+   * fast as in a map without a maximum size.
+   *
+   * <p>Entries whose values are still being computed by a {@linkplain
+   * #makeComputingMap computing map} count toward the limit but are never
+   * evicted.
+   *
+   * @param size the maximum number of entries the map may contain; zero
+   *     causes each entry to be evicted as soon as it is written
+   * @throws IllegalArgumentException if {@code size} is negative
+   * @throws IllegalStateException if the maximum size or {@linkplain
+   *     #maximumWeight maximum weight} was already set
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker maximumSize(int size) {
+    builder.maximumSize(size);
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Specifies the maximum total weight of the entries the map may contain,
+   * where the weight of each entry is determined by the {@linkplain #weigher
+   * weigher}, which must also be specified. When a write would make the
+   * total weight exceed this maximum, the map evicts entries that have not
+   * been used recently. This makes it possible to bound a map by a measure
+   * such as the memory its values occupy, when the values vary greatly in
+   * size.
+   *
+   * <p>As with {@link #maximumSize}, the limit is divided among the map's
+   * internal segments, and each segment evicts the approximately
+   * least-recently-used of its own entries when their total weight exceeds
+   * its share. An entry that alone weighs more than a segment's share is
+   * evicted as soon as it is written. Entries whose values are still being
+   * computed by a {@linkplain #makeComputingMap computing map} don't count
+   * toward the limit.
+   *
+   * @param weight the maximum total weight of the map's entries
+   * @throws IllegalArgumentException if {@code weight} is negative
+   * @throws IllegalStateException if the maximum weight or {@linkplain
+   *     #maximumSize maximum size} was already set
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker maximumWeight(long weight) {
+    builder.maximumWeight(weight);
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Specifies the weigher that determines the weight of each entry, for a
+   * map with a {@linkplain #maximumWeight maximum weight}. An entry is
+   * weighed each time its value is set, and its weight isn't recomputed
+   * afterwards. The weigher must accept the key and value types of the maps
+   * made by this {@code MapMaker}; this is not checked. It must return a
+   * non-negative weight; otherwise writes to the map throw {@link
+   * IllegalStateException}.
+   *
+   * <p>Maps with a weigher are only serializable if the weigher is.
+   *
+   * @throws NullPointerException if {@code weigher} is null
+   * @throws IllegalStateException if a weigher was already set
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker weigher(Weigher<?, ?> weigher) {
+    builder.weigher(weigher);
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Specifies that a {@linkplain #makeComputingMap computing map} should
+   * recompute an entry's value in the background once a fixed duration has
+   * passed since the value was set. The first {@link Map#get} of the entry
+   * after that time submits the recomputation to {@code executor} and, like
+   * all reads until the new value is installed, returns the old value
+   * without waiting. If the recomputation throws an exception or returns
+   * null, the exception is logged and the old value is kept. If the entry is
+   * changed while the recomputation runs, the recomputed value is discarded.
+   *
+   * <p>Combined with {@link #expiration}, refreshing keeps frequently read
+   * entries from ever expiring, so readers of hot keys don't block at each
+   * expiration boundary, while entries that are no longer read still expire.
+   * The refresh duration should then be shorter than the expiration time.
+   *
+   * @param duration the length of time after a value is set that reading it
+   *     triggers a refresh
+   * @param unit the unit that {@code duration} is expressed in
+   * @param executor runs the recomputations
+   * @throws IllegalArgumentException if {@code duration} is not positive
+   * @throws NullPointerException if {@code executor} is null
+   * @throws IllegalStateException if the refresh time was already set, or
+   *     {@link #expireAfterAccess} was used
+   */
+  @GwtIncompatible("java.util.concurrent.Executor")
+  public MapMaker refreshAfterWrite(
+      long duration, TimeUnit unit, Executor executor) {
+    builder.refreshAfterWrite(duration, unit, executor);
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Specifies that when a {@linkplain #makeComputingMap computing map}
+   * fails to compute a value, because the computing function threw an
+   * exception or returned null, the failure should be kept for a fixed
+   * duration. Until then, {@link Map#get} of the same key rethrows the
+   * failure, wrapped in an {@link AsynchronousComputationException} or as a
+   * {@link NullPointerException}, without calling the computing function.
+   * The first {@code get} afterwards computes the value again, while
+   * concurrent requests wait for it, so each key is retried at most once
+   * per duration. A key with a failure is otherwise absent from the map,
+   * and {@link Map#put} replaces the failure.
+   *
+   * <p>By default, failures aren't kept, and each {@code get} after a
+   * failure computes the value again. While a computation's backend is
+   * unavailable, that makes every request for a key wait for its own
+   * doomed attempt; keeping failures for a short time instead makes most
+   * requests fail fast.
+   *
+   * @param duration the length of time after a computation fails that
+   *     requests for its key rethrow the failure
+   * @param unit the unit that {@code duration} is expressed in
+   * @throws IllegalArgumentException if {@code duration} is not positive
+   * @throws IllegalStateException if the failure expiration time was
+   *     already set
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker expireFailuresAfter(long duration, TimeUnit unit) {
+    builder.expireFailuresAfter(duration, unit);
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Specifies the time source for {@linkplain #expiration expiration},
+   * {@linkplain #refreshAfterWrite refresh}, and the compute times reported
+   * by {@link #stats}. By default, the map reads {@link System#nanoTime}.
+   * Tests can supply a fake ticker to make entries expire or become due for
+   * refresh without waiting.
+   *
+   * <p>Each operation on the map reads the ticker at most once, and maps
+   * without time-based features don't read it at all, except to time
+   * computations when recording stats. Timeouts passed to {@link
+   * #get(ConcurrentMap, Object, long, TimeUnit)} are measured in real time
+   * regardless. Maps with a ticker other than the default are only
+   * serializable if the ticker is.
+   *
+   * @throws NullPointerException if {@code ticker} is null
+   * @throws IllegalStateException if a ticker was already set
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker ticker(Ticker ticker) {
+    builder.ticker(ticker);
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Specifies a listener that the map notifies whenever it removes an entry
+   * or replaces an entry's value, for any {@linkplain RemovalCause reason}.
+   * Notifications are delivered on the thread that caused the removal,
+   * after the map has released its internal locks.
+   *
+   * <p>The listener must accept keys and values of the types stored in the
+   * maps made by this {@code MapMaker}; this is not checked at compile time.
+   * Entries whose values are still being computed are never reported. If a
+   * key or value has been garbage collected, the listener receives {@code
+   * null} in its place. Maps with a removal listener are only serializable
+   * if the listener is.
+   *
+   * @throws NullPointerException if {@code listener} is null
+   * @throws IllegalStateException if a removal listener was already set
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker removalListener(RemovalListener<?, ?> listener) {
+    return setRemovalListener(listener, null);
+  }
+
+  /**
+   * Specifies a listener that the map notifies whenever it removes an entry
+   * or replaces an entry's value, delivering the notifications through the
+   * given executor. Threads writing to the map then never run the listener
+   * themselves, so a slow listener can't delay them. The executor may run
+   * notifications in any order.
+   *
+   * <p>Otherwise behaves like {@link #removalListener(RemovalListener)}. Maps
+   * with a removal listener and an executor are only serializable if both
+   * are.
+   *
+   * @throws NullPointerException if {@code listener} or {@code executor} is
+   *     null
+   * @throws IllegalStateException if a removal listener was already set
+   */
+  @GwtIncompatible("java.util.concurrent.Executor")
+  public MapMaker removalListener(
+      RemovalListener<?, ?> listener, Executor executor) {
+    if (executor == null) {
+      throw new NullPointerException("executor");
     }
-    if (duration <= 0) {
-      throw new IllegalArgumentException("invalid duration: " + duration);
+    return setRemovalListener(listener, executor);
+  }
+
+  private MapMaker setRemovalListener(
+      RemovalListener<?, ?> listener, Executor executor) {
+    builder.removalListener(listener, executor);
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Specifies that entries whose keys or values are garbage collected should
+   * be removed by the map itself, in the course of ordinary reads and
+   * writes, rather than by the background thread that's notified of
+   * collected references. Applies only to maps with {@linkplain #weakKeys
+   * weak} or {@linkplain #softKeys soft} keys or values.
+   *
+   * <p>By default, that thread removes each collected entry as soon as it's
+   * notified, locking part of the map for each one, so clearing a large
+   * soft-valued map can keep it busy, and contending with the map's users,
+   * for a long time. With inline cleanup, the thread just hands each entry to
+   * the internal segment of the map that holds it, without locking. Each
+   * segment then removes a small batch of its collected entries whenever it
+   * is written, and every so often when it is read, so the work is spread
+   * across the threads that use the map. In exchange, collected entries may
+   * count towards {@link Map#size} for longer, though they're never
+   * returned by the map.
+   *
+   * @throws IllegalStateException if inline cleanup was already enabled
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker inlineCleanup() {
+    builder.inlineCleanup();
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Specifies that the map should accumulate statistics about its use, such
+   * as its hit rate and the time spent computing values. Retrieve them with
+   * {@link #stats}.
+   *
+   * <p>Recording adds a small amount of work to every {@link Map#get}. The
+   * counts are spread across several memory locations, chosen by the calling
+   * thread, so that threads reading the map concurrently don't contend with
+   * each other to update them.
+   *
+   * @throws IllegalStateException if stats recording was already enabled
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker recordStats() {
+    builder.recordStats();
+    useCustomMap = true;
+    return this;
+  }
+
+  /**
+   * Returns a snapshot of the statistics accumulated by the given map so far.
+   * The map must have been made by a {@code MapMaker} on which {@link
+   * #recordStats} was called. Statistics are not serialized; a deserialized
+   * map starts over with empty statistics.
+   *
+   * @throws IllegalArgumentException if {@code map} doesn't record
+   *     statistics
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public static CacheStats stats(ConcurrentMap<?, ?> map) {
+    if (map instanceof AsyncComputingMap) {
+      map = ((AsyncComputingMap<?, ?>) map).delegate();
+    }
+    if (map instanceof CustomConcurrentHashMap.Impl) {
+      CacheStats stats = ((CustomConcurrentHashMap.Impl<?, ?, ?>) map).stats();
+      if (stats != null) {
+        return stats;
+      }
     }
-    this.expirationNanos = unit.toNanos(duration);
+    throw new IllegalArgumentException(
+        "map was not made with MapMaker.recordStats()");
+  }
+
+  /**
+   * Enables the accumulation of {@link SegmentStats} for each of the map's
+   * internal segments, which can then be accessed using {@link
+   * #segmentStats}. Use them to choose a {@link #concurrencyLevel}, to spot
+   * a few hot keys that serialize writes on one segment, or to spot keys
+   * with poor hash codes.
+   *
+   * <p>Recording times every acquisition of a segment lock, which writes
+   * and cleanup perform, and first checks whether the lock is free so that
+   * contention can be counted. Reads that find their entry without locking
+   * are unaffected.
+   *
+   * @throws IllegalStateException if segment stats recording was already
+   *     enabled
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public MapMaker recordSegmentStats() {
+    builder.recordSegmentStats();
     useCustomMap = true;
     return this;
   }
 
+  /**
+   * Returns a snapshot of the statistics of each of the given map's
+   * segments, in segment order. The map must have been made by a {@code
+   * MapMaker} on which {@link #recordSegmentStats} was called. The lock
+   * counts are not serialized; a deserialized map starts counting anew.
+   *
+   * @throws IllegalArgumentException if {@code map} doesn't record segment
+   *     statistics
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public static ImmutableList<SegmentStats> segmentStats(
+      ConcurrentMap<?, ?> map) {
+    if (map instanceof AsyncComputingMap) {
+      map = ((AsyncComputingMap<?, ?>) map).delegate();
+    }
+    if (map instanceof CustomConcurrentHashMap.Impl) {
+      ImmutableList<SegmentStats> stats
+          = ((CustomConcurrentHashMap.Impl<?, ?, ?>) map).segmentStats();
+      if (stats != null) {
+        return stats;
+      }
+    }
+    throw new IllegalArgumentException(
+        "map was not made with MapMaker.recordSegmentStats()");
+  }
+
+  /**
+   * Returns the approximate number of mappings in the given map. For a map
+   * made by a {@code MapMaker}, this sums the number of entries in each of
+   * the map's segments without locking them or retrying when concurrent
+   * writes interfere, so it is cheap enough to poll frequently, for example
+   * to export as a metric. The result may be slightly off while the map is
+   * being modified. For other maps, returns {@code map.size()}.
+   *
+   * <p>Unlike {@link Map#size}, the result isn't capped at {@code
+   * Integer.MAX_VALUE}.
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public static long approximateSize(ConcurrentMap<?, ?> map) {
+    if (map instanceof CustomConcurrentHashMap.Impl) {
+      return ((CustomConcurrentHashMap.Impl<?, ?, ?>) map).approximateSize();
+    }
+    return map.size();
+  }
+
   /**
    * Builds the final map, without on-demand computation of values. This method
    * does not alter the state of this {@code MapMaker} instance, so it can be
@@ -282,6 +727,9 @@ public final class MapMaker {
    * @param <K> the type of keys to be stored in the returned map
    * @param <V> the type of values to be stored in the returned map
    * @return a concurrent map having the requested features
+   * @throws IllegalStateException if {@link #refreshAfterWrite} or {@link
+   *     #expireFailuresAfter} was used, which require a computing map, or if
+   *     only one of {@link #maximumWeight} and {@link #weigher} was used
    */
   public <K, V> ConcurrentMap<K, V> makeMap() {
     return useCustomMap
@@ -329,21 +777,671 @@ public final class MapMaker {
    *
    * <p>This method does not alter the state of this {@code MapMaker} instance,
    * so it can be invoked again to create multiple independent maps.
+   *
+   * @throws IllegalStateException if only one of {@link #maximumWeight} and
+   *     {@link #weigher} was used
    */
   public <K, V> ConcurrentMap<K, V> makeComputingMap(
       Function<? super K, ? extends V> computingFunction) {
     return new StrategyImpl<K, V>(this, computingFunction).map;
   }
 
+  /**
+   * Builds a map whose values are computed asynchronously. {@link Map#get}
+   * returns a {@link Future} for the given key without waiting for its
+   * value: either the future already in the map, or a new one whose value
+   * is computed by {@code computingFunction} on {@code executor}. Concurrent
+   * requests for the same key share a single future, so the function runs
+   * at most once per key at a time, as in a {@linkplain #makeComputingMap
+   * computing map}.
+   *
+   * <p>If the function throws an exception or returns null, the future
+   * fails with an {@link java.util.concurrent.ExecutionException} and is
+   * removed from the map, so the next request for the key computes the
+   * value again. The same happens if the future is cancelled. If {@code
+   * executor} rejects the computation, {@code get} throws a {@link
+   * ComputationException} and nothing is stored.
+   *
+   * <p>Futures are stored like the values of any other map, so settings
+   * such as {@link #expiration} and {@link #maximumSize} apply to them. With
+   * {@link #weakValues} or {@link #softValues}, a future may be reclaimed
+   * while its value is being computed, leading to a second computation.
+   * {@link #stats} accepts the returned map if {@link #recordStats} was
+   * called.
+   *
+   * <p>This method does not alter the state of this {@code MapMaker}
+   * instance, so it can be invoked again to create multiple independent maps.
+   *
+   * @param computingFunction computes the value of a key
+   * @param executor runs the computations
+   * @throws NullPointerException if {@code computingFunction} or {@code
+   *     executor} is null
+   */
+  @GwtIncompatible("java.util.concurrent.Executor")
+  public <K, V> ConcurrentMap<K, Future<V>> makeAsyncComputingMap(
+      Function<? super K, ? extends V> computingFunction, Executor executor) {
+    if (computingFunction == null) {
+      throw new NullPointerException("computingFunction");
+    }
+    if (executor == null) {
+      throw new NullPointerException("executor");
+    }
+    AsyncComputation<K, V> computation
+        = new AsyncComputation<K, V>(computingFunction, executor);
+    computation.map = makeComputingMap(computation);
+    return new AsyncComputingMap<K, V>(computation.map);
+  }
+
+  /**
+   * Returns the value of a {@linkplain #makeComputingMap computing map} for
+   * the given key, waiting at most the given time for another thread that
+   * is computing it. Use this instead of {@code computingMap.get(key)} when
+   * the caller can't afford to block indefinitely behind a slow
+   * computation. Unlike {@code get}, this method responds to interruption.
+   *
+   * <p>If no other thread is computing the value, the calling thread
+   * computes it as {@code get} would, and the timeout doesn't apply to that
+   * computation.
+   *
+   * @param computingMap a map returned by {@link #makeComputingMap}
+   * @param key the key whose value to return
+   * @param timeout the maximum time to wait for another thread's
+   *     computation
+   * @param unit the time unit of the {@code timeout} argument
+   * @return the value associated with {@code key}
+   * @throws IllegalArgumentException if {@code computingMap} was not made by
+   *     {@link #makeComputingMap}
+   * @throws InterruptedException if the current thread was interrupted
+   *     while waiting
+   * @throws TimeoutException if the value wasn't computed in time; the
+   *     computation continues, and a later request may find its result
+   * @throws ComputationException if the computation threw an exception
+   * @throws NullPointerException if {@code key} is null or the computation
+   *     returned null
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public static <K, V> V get(ConcurrentMap<K, V> computingMap, K key,
+      long timeout, TimeUnit unit)
+      throws InterruptedException, TimeoutException {
+    if (!(computingMap instanceof CustomConcurrentHashMap.ComputingImpl)) {
+      throw new IllegalArgumentException(
+          "map was not made with MapMaker.makeComputingMap()");
+    }
+    CustomConcurrentHashMap.ComputingImpl<K, V, ?> map
+        = (CustomConcurrentHashMap.ComputingImpl<K, V, ?>) computingMap;
+    return map.get(key, timeout, unit);
+  }
+
+  /**
+   * Returns the values of a {@linkplain #makeComputingMap computing map} for
+   * the given keys, computing all the missing values with a single call to
+   * {@code bulkComputingFunction}. This is useful when computing many values
+   * at once is much cheaper than computing them one at a time, as with a
+   * remote store that answers batched requests.
+   *
+   * <p>The keys that have no value are passed to {@code
+   * bulkComputingFunction} as an unmodifiable set, and the function must
+   * return a map containing a value for each of them; other entries of the
+   * returned map are ignored. While the function runs, other threads calling
+   * {@code get} on one of these keys wait for its result, exactly as if a
+   * single computation were in progress. Conversely, keys that other threads
+   * are already computing are not passed to the function; this method waits
+   * for their values instead.
+   *
+   * @param computingMap a map returned by {@link #makeComputingMap}
+   * @param keys the keys whose values to return; duplicates are ignored
+   * @param bulkComputingFunction computes the values of the missing keys
+   * @return an immutable map from each of the given keys to its value, in
+   *     the order of {@code keys}
+   * @throws IllegalArgumentException if {@code computingMap} was not made by
+   *     {@link #makeComputingMap}
+   * @throws NullPointerException if a key is null, or {@code
+   *     bulkComputingFunction} omitted one of the keys it was passed
+   * @throws ComputationException if {@code bulkComputingFunction} threw an
+   *     exception or returned null, or the computation of a key that another
+   *     thread was computing failed
+   */
+  @GwtIncompatible("CustomConcurrentHashMap")
+  public static <K, V> ImmutableMap<K, V> getAll(
+      ConcurrentMap<K, V> computingMap, Iterable<? extends K> keys,
+      Function<? super Set<K>, ? extends Map<? extends K, ? extends V>>
+          bulkComputingFunction) {
+    if (!(computingMap instanceof CustomConcurrentHashMap.ComputingImpl)) {
+      throw new IllegalArgumentException(
+          "map was not made with MapMaker.makeComputingMap()");
+    }
+    if (bulkComputingFunction == null) {
+      throw new NullPointerException("bulkComputingFunction");
+    }
+    CustomConcurrentHashMap.ComputingImpl<K, V, ?> map
+        = (CustomConcurrentHashMap.ComputingImpl<K, V, ?>) computingMap;
+    return ImmutableMap.copyOf(map.getAll(keys, bulkComputingFunction));
+  }
+
+  /**
+   * Applies the given action to each mapping of the given map, in parallel.
+   * For a map made by a {@code MapMaker}, the map is split into pieces, by
+   * internal segment and by range within each segment. The calling thread
+   * and about one task per available processor, submitted to the given
+   * executor, take pieces until none are left, so a scan of a large map can
+   * use that many threads, yet finishes even if the executor is busy or the
+   * calling thread is one of its own. The calling thread waits for all the
+   * pieces to finish. Other maps are traversed on the calling thread.
+   *
+   * <p>Like the map's iterators, the traversal is weakly consistent: it
+   * visits every mapping that is present throughout the traversal exactly
+   * once, and may or may not visit mappings added or removed concurrently.
+   * The action may be applied to several mappings at once, on different
+   * threads, in no particular order. Calling {@code setValue} on a mapping
+   * writes through to the map. To operate on just the keys or values, read
+   * them from the mappings.
+   *
+   * <p>If the action throws an exception, the remaining pieces stop early,
+   * and the first exception is rethrown once all the pieces have finished.
+   * Tasks that the executor rejects are left to the other threads.
+   *
+   * @param map the map to traverse
+   * @param executor runs the pieces of the traversal
+   * @param action applied to each mapping; its result is ignored
+   */
+  @GwtIncompatible("java.util.concurrent.Executor")
+  public static <K, V> void forEach(ConcurrentMap<K, V> map,
+      Executor executor, final Function<? super Entry<K, V>, ?> action) {
+    checkBulkArguments(map, executor, action);
+    bulkVisit(map, executor, new Supplier<BulkTask<K, V>>() {
+      public BulkTask<K, V> get() {
+        return new BulkTask<K, V>() {
+          @Override boolean visit(Entry<K, V> entry) {
+            action.apply(entry);
+            return true;
+          }
+        };
+      }
+    });
+  }
+
+  /**
+   * Returns a non-null result of applying the given function to a mapping
+   * of the given map, or null if the function returns null for every
+   * mapping. The mappings are searched in parallel, as described for {@link
+   * #forEach}; once the function returns a non-null result, the search ends
+   * as soon as the pieces that are running notice. If several mappings
+   * yield results, any one of them may be returned.
+   *
+   * @param map the map to search
+   * @param executor runs the pieces of the search
+   * @param searchFunction returns a result for a matching mapping, such as
+   *     its key, and null otherwise
+   */
+  @GwtIncompatible("java.util.concurrent.Executor")
+  public static <K, V, R> R search(ConcurrentMap<K, V> map,
+      Executor executor,
+      final Function<? super Entry<K, V>, ? extends R> searchFunction) {
+    checkBulkArguments(map, executor, searchFunction);
+    final AtomicReference<R> result = new AtomicReference<R>();
+    bulkVisit(map, executor, new Supplier<BulkTask<K, V>>() {
+      public BulkTask<K, V> get() {
+        return new BulkTask<K, V>() {
+          @Override boolean visit(Entry<K, V> entry) {
+            R value = searchFunction.apply(entry);
+            if (value == null) {
+              return true;
+            }
+            result.compareAndSet(null, value);
+            return false;
+          }
+        };
+      }
+    });
+    return result.get();
+  }
+
+  /**
+   * Returns the combination, by the given reducer, of the results of
+   * applying the given function to each mapping of the given map, or null
+   * if the function returns null for every mapping. Null results are
+   * skipped. The mappings are visited in parallel, as described for {@link
+   * #forEach}: each piece of the map is reduced by a single thread, and the
+   * results of the pieces are then combined on the calling thread. For
+   * example, this sums the lengths of a map's values: <pre>   {@code
+   *
+   *   Integer total = MapMaker.reduce(map, executor,
+   *       new Function<Entry<String, String>, Integer>() {
+   *         public Integer apply(Entry<String, String> entry) {
+   *           return entry.getValue().length();
+   *         }
+   *       },
+   *       new Reducer<Integer>() {
+   *         public Integer reduce(Integer a, Integer b) {
+   *           return a + b;
+   *         }
+   *       });}</pre>
+   *
+   * @param map the map to reduce
+   * @param executor runs the pieces of the reduction
+   * @param transformer returns the value to reduce for a mapping, or null to
+   *     skip it
+   * @param reducer combines two values; must be associative and commutative
+   */
+  @GwtIncompatible("java.util.concurrent.Executor")
+  public static <K, V, R> R reduce(ConcurrentMap<K, V> map,
+      Executor executor,
+      final Function<? super Entry<K, V>, ? extends R> transformer,
+      final Reducer<R> reducer) {
+    checkBulkArguments(map, executor, transformer);
+    if (reducer == null) {
+      throw new NullPointerException("reducer");
+    }
+    final Queue<R> partialResults = new ConcurrentLinkedQueue<R>();
+    bulkVisit(map, executor, new Supplier<BulkTask<K, V>>() {
+      public BulkTask<K, V> get() {
+        return new BulkTask<K, V>() {
+          R partialResult;
+
+          @Override boolean visit(Entry<K, V> entry) {
+            R value = transformer.apply(entry);
+            if (value != null) {
+              partialResult = (partialResult == null)
+                  ? value : reducer.reduce(partialResult, value);
+            }
+            return true;
+          }
+
+          @Override void finish() {
+            if (partialResult != null) {
+              partialResults.add(partialResult);
+            }
+          }
+        };
+      }
+    });
+
+    R result = null;
+    for (R partialResult : partialResults) {
+      result = (result == null)
+          ? partialResult : reducer.reduce(result, partialResult);
+    }
+    return result;
+  }
+
+  private static void checkBulkArguments(
+      ConcurrentMap<?, ?> map, Executor executor, Function<?, ?> function) {
+    if (map == null) {
+      throw new NullPointerException("map");
+    }
+    if (executor == null) {
+      throw new NullPointerException("executor");
+    }
+    if (function == null) {
+      throw new NullPointerException("function");
+    }
+  }
+
+  /**
+   * Runs a bulk operation over the given map, in parallel if it was made by
+   * a {@code MapMaker}, and on the calling thread otherwise.
+   */
+  @SuppressWarnings("unchecked") // unwraps an async map of the same type
+  private static <K, V> void bulkVisit(ConcurrentMap<K, V> map,
+      Executor executor, Supplier<BulkTask<K, V>> tasks) {
+    if (map instanceof AsyncComputingMap) {
+      map = (ConcurrentMap<K, V>) ((AsyncComputingMap<?, ?>) map).delegate();
+    }
+    if (map instanceof CustomConcurrentHashMap.Impl) {
+      ((CustomConcurrentHashMap.Impl<K, V, ?>) map).bulkVisit(executor, tasks);
+    } else {
+      BulkTask<K, V> task = tasks.get();
+      for (Entry<K, V> entry : map.entrySet()) {
+        if (!task.visit(entry)) {
+          return;
+        }
+      }
+      task.finish();
+    }
+  }
+
+  /** Identifies a snapshot file; the ASCII characters "MMSS". */
+  private static final int SNAPSHOT_MAGIC = 0x4d4d5353;
+
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /** The size of the buffers through which snapshot files are copied. */
+  private static final int SNAPSHOT_BUFFER_SIZE = 1 << 20;
+
+  /** The number of entries read from a snapshot before they are stored. */
+  private static final int SNAPSHOT_BATCH_SIZE = 1 << 14;
+
+  /**
+   * Writes the mappings of the given map to a file, replacing any existing
+   * contents, so that a later process can restore them with {@link
+   * #loadSnapshot}. The codecs encode each key and value; the file holds
+   * nothing else but a short header.
+   *
+   * <p>The map isn't locked while it's written, so the snapshot reflects
+   * the state of the map at some point at or since the creation of its
+   * entry set iterator, like the iterator itself. Entries that are still
+   * being computed, that have expired, or that hold a failed computation
+   * aren't written. Any map may be written, not just one made by a {@code
+   * MapMaker}.
+   *
+   * @return the number of mappings written
+   * @throws IOException if the file can't be written, or if a codec throws
+   *     it
+   */
+  @GwtIncompatible("java.io.File")
+  public static <K, V> int writeSnapshot(ConcurrentMap<K, V> map, File file,
+      SnapshotCodec<? super K> keyCodec, SnapshotCodec<? super V> valueCodec)
+      throws IOException {
+    checkSnapshotArguments(map, file, keyCodec, valueCodec);
+    FileOutputStream fileOut = new FileOutputStream(file);
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new ChannelOutputStream(fileOut.getChannel()));
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      int count = 0;
+      for (Entry<K, V> entry : map.entrySet()) {
+        out.writeBoolean(true);
+        keyCodec.write(entry.getKey(), out);
+        valueCodec.write(entry.getValue(), out);
+        count++;
+      }
+      out.writeBoolean(false);
+      out.flush();
+      return count;
+    } finally {
+      fileOut.close();
+    }
+  }
+
+  /**
+   * Adds the mappings in a file written by {@link #writeSnapshot} to the
+   * given map, typically to warm a cache at startup. A key that the map
+   * already contains keeps its current value, so mappings written
+   * concurrently with the load win over stale ones from the snapshot.
+   *
+   * <p>For a map made by a {@code MapMaker}, the entries are stored in
+   * batches, with each segment locked once per batch rather than once per
+   * entry, so that loading is limited by the speed of reading the file.
+   * The loaded entries are treated as just written, for the purposes of
+   * expiration, eviction, and refreshing. Other maps are loaded with
+   * {@link ConcurrentMap#putIfAbsent}.
+   *
+   * <p>If the file is truncated or a codec fails, the mappings loaded
+   * before the failure remain in the map.
+   *
+   * @return the number of mappings added to the map
+   * @throws IOException if the file can't be read or isn't a snapshot, or if
+   *     a codec throws it
+   * @throws NullPointerException if a codec reads a null key or value
+   */
+  @GwtIncompatible("java.io.File")
+  public static <K, V> int loadSnapshot(ConcurrentMap<K, V> map, File file,
+      SnapshotCodec<? extends K> keyCodec,
+      SnapshotCodec<? extends V> valueCodec) throws IOException {
+    checkSnapshotArguments(map, file, keyCodec, valueCodec);
+    FileInputStream fileIn = new FileInputStream(file);
+    try {
+      DataInputStream in = new DataInputStream(
+          new ChannelInputStream(fileIn.getChannel()));
+      if (in.readInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a snapshot: " + file);
+      }
+      int version = in.readInt();
+      if (version != SNAPSHOT_VERSION) {
+        throw new IOException(
+            "Unsupported snapshot version " + version + ": " + file);
+      }
+      List<K> keys = new ArrayList<K>(SNAPSHOT_BATCH_SIZE);
+      List<V> values = new ArrayList<V>(SNAPSHOT_BATCH_SIZE);
+      int added = 0;
+      while (in.readBoolean()) {
+        keys.add(keyCodec.read(in));
+        values.add(valueCodec.read(in));
+        if (keys.size() == SNAPSHOT_BATCH_SIZE) {
+          added += putAllIfAbsent(map, keys, values);
+          keys.clear();
+          values.clear();
+        }
+      }
+      return added + putAllIfAbsent(map, keys, values);
+    } finally {
+      fileIn.close();
+    }
+  }
+
+  private static void checkSnapshotArguments(ConcurrentMap<?, ?> map,
+      File file, SnapshotCodec<?> keyCodec, SnapshotCodec<?> valueCodec) {
+    if (map == null) {
+      throw new NullPointerException("map");
+    }
+    if (file == null) {
+      throw new NullPointerException("file");
+    }
+    if (keyCodec == null) {
+      throw new NullPointerException("keyCodec");
+    }
+    if (valueCodec == null) {
+      throw new NullPointerException("valueCodec");
+    }
+  }
+
+  /**
+   * Puts each key with the value at the same index unless the key is
+   * present, locking each segment once if the map was made by a {@code
+   * MapMaker}.
+   *
+   * @return the number of mappings added
+   */
+  @SuppressWarnings("unchecked") // the map's entry type is irrelevant
+  private static <K, V> int putAllIfAbsent(
+      ConcurrentMap<K, V> map, List<K> keys, List<V> values) {
+    if (map instanceof CustomConcurrentHashMap.Impl) {
+      return ((CustomConcurrentHashMap.Impl<K, V, ?>) map)
+          .putAllIfAbsent(keys, values);
+    }
+    int added = 0;
+    for (int i = 0; i < keys.size(); i++) {
+      if (map.putIfAbsent(keys.get(i), values.get(i)) == null) {
+        added++;
+      }
+    }
+    return added;
+  }
+
   // Remainder of this file is private implementation details
 
+  /**
+   * An output stream that collects writes in a large buffer and passes
+   * them to a channel when it fills, or on {@link #flush}. Closing the
+   * channel is left to the caller.
+   */
+  private static class ChannelOutputStream extends OutputStream {
+    final WritableByteChannel channel;
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER_SIZE);
+
+    ChannelOutputStream(WritableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override public void write(int b) throws IOException {
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+      buffer.put((byte) b);
+    }
+
+    @Override public void write(byte[] b, int off, int len)
+        throws IOException {
+      while (len > 0) {
+        if (!buffer.hasRemaining()) {
+          drain();
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.put(b, off, n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override public void flush() throws IOException {
+      drain();
+    }
+
+    void drain() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+
+  /**
+   * An input stream that reads a channel in large chunks. Closing the
+   * channel is left to the caller.
+   */
+  private static class ChannelInputStream extends InputStream {
+    final ReadableByteChannel channel;
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER_SIZE);
+
+    ChannelInputStream(ReadableByteChannel channel) {
+      this.channel = channel;
+      buffer.limit(0);
+    }
+
+    @Override public int read() throws IOException {
+      if (!buffer.hasRemaining() && !fill()) {
+        return -1;
+      }
+      return buffer.get() & 0xff;
+    }
+
+    @Override public int read(byte[] b, int off, int len)
+        throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining() && !fill()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override public int available() {
+      return buffer.remaining();
+    }
+
+    /** Refills the empty buffer, returning false at the end of the channel. */
+    boolean fill() throws IOException {
+      buffer.clear();
+      int n;
+      do {
+        n = channel.read(buffer);
+      } while (n == 0);
+      buffer.flip();
+      return n > 0;
+    }
+  }
+
+  /**
+   * An {@linkplain #makeAsyncComputingMap asynchronous computing map}. A
+   * future removes itself from the backing map when it fails, but it can
+   * fail before the backing map has stored it; {@link #get} replaces such
+   * futures. The replacement is returned even if it has failed too, as it
+   * will with an executor that runs computations immediately.
+   */
+  private static class AsyncComputingMap<K, V>
+      extends ForwardingConcurrentMap<K, Future<V>> {
+    final ConcurrentMap<K, Future<V>> delegate;
+
+    AsyncComputingMap(ConcurrentMap<K, Future<V>> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override protected ConcurrentMap<K, Future<V>> delegate() {
+      return delegate;
+    }
+
+    @Override public Future<V> get(Object key) {
+      Future<V> future = delegate.get(key);
+      if (future instanceof AsyncComputation.ComputationTask
+          && ((AsyncComputation<?, ?>.ComputationTask) future).failed()) {
+        delegate.remove(key, future);
+        future = delegate.get(key);
+      }
+      return future;
+    }
+  }
+
+  /**
+   * The computing function of an {@linkplain #makeAsyncComputingMap
+   * asynchronous computing map}. Starts each computation on the executor
+   * and returns its future, which removes itself from the map if it fails.
+   */
+  private static class AsyncComputation<K, V>
+      implements Function<K, Future<V>> {
+    final Function<? super K, ? extends V> computingFunction;
+    final Executor executor;
+    ConcurrentMap<K, Future<V>> map;
+
+    AsyncComputation(
+        Function<? super K, ? extends V> computingFunction, Executor executor) {
+      this.computingFunction = computingFunction;
+      this.executor = executor;
+    }
+
+    public Future<V> apply(K key) {
+      ComputationTask task = new ComputationTask(key);
+      executor.execute(task);
+      return task;
+    }
+
+    final class ComputationTask extends FutureTask<V> {
+      final K key;
+      volatile boolean failed;
+
+      ComputationTask(final K key) {
+        super(new Callable<V>() {
+          public V call() {
+            V value = computingFunction.apply(key);
+            if (value == null) {
+              throw new NullOutputException(
+                  computingFunction + " returned null for key " + key + ".");
+            }
+            return value;
+          }
+        });
+        this.key = key;
+      }
+
+      @Override protected void setException(Throwable t) {
+        super.setException(t);
+        failed = true;
+        map.remove(key, this);
+      }
+
+      @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+          map.remove(key, this);
+        }
+        return cancelled;
+      }
+
+      /** Returns true if the computation failed or was cancelled. */
+      boolean failed() {
+        return failed || isCancelled();
+      }
+    }
+  }
+
   private enum Strength {
     WEAK {
-      @Override boolean equal(Object a, Object b) {
-        return a == b;
-      }
-      @Override int hash(Object o) {
-        return System.identityHashCode(o);
+      @Override Equivalence<Object> defaultEquivalence() {
+        return Equivalences.identity();
       }
       @Override <K, V> ValueReference<K, V> referenceValue(
           ReferenceEntry<K, V> entry, V value) {
@@ -356,6 +1454,22 @@ public final class MapMaker {
             ? new WeakEntry<K, V>(internals, key, hash)
             : new LinkedWeakEntry<K, V>(internals, key, hash, next);
       }
+      @Override <K, V> ReferenceEntry<K, V> newExpirableEntry(
+          Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+          int hash, ReferenceEntry<K, V> next) {
+        return new ExpirableWeakEntry<K, V>(internals, key, hash, next);
+      }
+      @Override <K, V> ReferenceEntry<K, V> newEvictableEntry(
+          Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+          int hash, ReferenceEntry<K, V> next) {
+        return new EvictableWeakEntry<K, V>(internals, key, hash, next);
+      }
+      @Override <K, V> ReferenceEntry<K, V> newExpirableEvictableEntry(
+          Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+          int hash, ReferenceEntry<K, V> next) {
+        return new ExpirableEvictableWeakEntry<K, V>(
+            internals, key, hash, next);
+      }
       @Override <K, V> ReferenceEntry<K, V> copyEntry(
           K key, ReferenceEntry<K, V> original,
           ReferenceEntry<K, V> newNext) {
@@ -368,11 +1482,8 @@ public final class MapMaker {
     },
 
     SOFT {
-      @Override boolean equal(Object a, Object b) {
-        return a == b;
-      }
-      @Override int hash(Object o) {
-        return System.identityHashCode(o);
+      @Override Equivalence<Object> defaultEquivalence() {
+        return Equivalences.identity();
       }
       @Override <K, V> ValueReference<K, V> referenceValue(
           ReferenceEntry<K, V> entry, V value) {
@@ -385,6 +1496,22 @@ public final class MapMaker {
             ? new SoftEntry<K, V>(internals, key, hash)
             : new LinkedSoftEntry<K, V>(internals, key, hash, next);
       }
+      @Override <K, V> ReferenceEntry<K, V> newExpirableEntry(
+          Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+          int hash, ReferenceEntry<K, V> next) {
+        return new ExpirableSoftEntry<K, V>(internals, key, hash, next);
+      }
+      @Override <K, V> ReferenceEntry<K, V> newEvictableEntry(
+          Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+          int hash, ReferenceEntry<K, V> next) {
+        return new EvictableSoftEntry<K, V>(internals, key, hash, next);
+      }
+      @Override <K, V> ReferenceEntry<K, V> newExpirableEvictableEntry(
+          Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+          int hash, ReferenceEntry<K, V> next) {
+        return new ExpirableEvictableSoftEntry<K, V>(
+            internals, key, hash, next);
+      }
       @Override <K, V> ReferenceEntry<K, V> copyEntry(
           K key, ReferenceEntry<K, V> original,
           ReferenceEntry<K, V> newNext) {
@@ -397,15 +1524,14 @@ public final class MapMaker {
     },
 
     STRONG {
-      @Override boolean equal(Object a, Object b) {
-        return a.equals(b);
-      }
-      @Override int hash(Object o) {
-        return o.hashCode();
+      @Override Equivalence<Object> defaultEquivalence() {
+        return Equivalences.equals();
       }
       @Override <K, V> ValueReference<K, V> referenceValue(
           ReferenceEntry<K, V> entry, V value) {
-        return new StrongValueReference<K, V>(value);
+        return (entry instanceof StrongValuedEntry)
+            ? ((StrongValuedEntry<K, V>) entry).referenceValue(value)
+            : new StrongValueReference<K, V>(value);
       }
       @Override <K, V> ReferenceEntry<K, V> newEntry(
           Internals<K, V, ReferenceEntry<K, V>> internals, K key,
@@ -415,6 +1541,22 @@ public final class MapMaker {
             : new LinkedStrongEntry<K, V>(
                 internals, key, hash, next);
       }
+      @Override <K, V> ReferenceEntry<K, V> newExpirableEntry(
+          Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+          int hash, ReferenceEntry<K, V> next) {
+        return new ExpirableStrongEntry<K, V>(internals, key, hash, next);
+      }
+      @Override <K, V> ReferenceEntry<K, V> newEvictableEntry(
+          Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+          int hash, ReferenceEntry<K, V> next) {
+        return new EvictableStrongEntry<K, V>(internals, key, hash, next);
+      }
+      @Override <K, V> ReferenceEntry<K, V> newExpirableEvictableEntry(
+          Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+          int hash, ReferenceEntry<K, V> next) {
+        return new ExpirableEvictableStrongEntry<K, V>(
+            internals, key, hash, next);
+      }
       @Override <K, V> ReferenceEntry<K, V> copyEntry(
           K key, ReferenceEntry<K, V> original,
           ReferenceEntry<K, V> newNext) {
@@ -427,15 +1569,10 @@ public final class MapMaker {
     };
 
     /**
-     * Determines if two keys or values are equal according to this
-     * strength strategy.
+     * Returns the equivalence used for keys or values of this strength,
+     * unless another is specified.
      */
-    abstract boolean equal(Object a, Object b);
-
-    /**
-     * Hashes a key according to this strategy.
-     */
-    abstract int hash(Object o);
+    abstract Equivalence<Object> defaultEquivalence();
 
     /**
      * Creates a reference for the given value according to this value
@@ -451,6 +1588,28 @@ public final class MapMaker {
         Internals<K, V, ReferenceEntry<K, V>> internals, K key,
         int hash, ReferenceEntry<K, V> next);
 
+    /**
+     * Creates a new entry that can be linked into an expiration queue.
+     */
+    abstract <K, V> ReferenceEntry<K, V> newExpirableEntry(
+        Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+        int hash, ReferenceEntry<K, V> next);
+
+    /**
+     * Creates a new entry that can be linked into an eviction queue.
+     */
+    abstract <K, V> ReferenceEntry<K, V> newEvictableEntry(
+        Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+        int hash, ReferenceEntry<K, V> next);
+
+    /**
+     * Creates a new entry that can be linked into both an expiration queue
+     * and an eviction queue.
+     */
+    abstract <K, V> ReferenceEntry<K, V> newExpirableEvictableEntry(
+        Internals<K, V, ReferenceEntry<K, V>> internals, K key,
+        int hash, ReferenceEntry<K, V> next);
+
     /**
      * Creates a new entry and copies the value and other state from an
      * existing entry.
@@ -460,17 +1619,54 @@ public final class MapMaker {
   }
 
   private static class StrategyImpl<K, V> implements Serializable,
-      ComputingStrategy<K, V, ReferenceEntry<K, V>> {
+      ComputingStrategy<K, V, ReferenceEntry<K, V>>,
+      ExpirableStrategy<K, V, ReferenceEntry<K, V>>,
+      EvictableStrategy<K, V, ReferenceEntry<K, V>> {
     final Strength keyStrength;
     final Strength valueStrength;
+    final Equivalence<Object> keyEquivalence;
+    final Equivalence<Object> valueEquivalence;
     final ConcurrentMap<K, V> map;
-    final long expirationNanos;
+    final boolean expirable;
+    final boolean evictable;
+    final boolean computing;
+
+    /**
+     * How long failed computations keep their failures, or 0 if they don't.
+     */
+    final long failureExpirationNanos;
+
+    /** Reads the time at which a computation failed. */
+    final Ticker ticker;
     Internals<K, V, ReferenceEntry<K, V>> internals;
 
+    /**
+     * Returns true if entries need an expiration time, which is also used to
+     * record when a refreshed map's entries were written, and to queue the
+     * entries that hold kept failures.
+     */
+    static boolean isExpirable(CustomConcurrentHashMap.Builder builder) {
+      return builder.getExpirationNanos() > 0
+          || builder.getRefreshNanos() > 0
+          || builder.getFailureExpirationNanos() > 0;
+    }
+
+    /** Returns true if entries need links for an eviction queue. */
+    static boolean isEvictable(CustomConcurrentHashMap.Builder builder) {
+      return builder.getMaximumSize() != -1
+          || builder.getMaximumWeight() != -1;
+    }
+
     StrategyImpl(MapMaker maker) {
       this.keyStrength = maker.keyStrength;
       this.valueStrength = maker.valueStrength;
-      this.expirationNanos = maker.expirationNanos;
+      this.keyEquivalence = maker.getKeyEquivalence();
+      this.valueEquivalence = valueStrength.defaultEquivalence();
+      this.expirable = isExpirable(maker.builder);
+      this.evictable = isEvictable(maker.builder);
+      this.computing = false;
+      this.failureExpirationNanos = 0;
+      this.ticker = maker.builder.getTicker();
 
       map = maker.builder.buildMap(this);
     }
@@ -479,7 +1675,14 @@ public final class MapMaker {
         MapMaker maker, Function<? super K, ? extends V> computer) {
       this.keyStrength = maker.keyStrength;
       this.valueStrength = maker.valueStrength;
-      this.expirationNanos = maker.expirationNanos;
+      this.keyEquivalence = maker.getKeyEquivalence();
+      this.valueEquivalence = valueStrength.defaultEquivalence();
+      this.expirable = isExpirable(maker.builder);
+      this.evictable = isEvictable(maker.builder);
+      this.computing = true;
+      this.failureExpirationNanos
+          = maker.builder.getFailureExpirationNanos();
+      this.ticker = maker.builder.getTicker();
 
       map = maker.builder.buildComputingMap(this, computer);
     }
@@ -487,45 +1690,18 @@ public final class MapMaker {
     public void setValue(ReferenceEntry<K, V> entry, V value) {
       setValueReference(
           entry, valueStrength.referenceValue(entry, value));
-      if (expirationNanos > 0) {
-        scheduleRemoval(entry.getKey(), value);
-      }
-    }
-
-    void scheduleRemoval(K key, V value) {
-      /*
-       * TODO: Keep weak reference to map, too. Build a priority
-       * queue out of the entries themselves instead of creating a
-       * task per entry. Then, we could have one recurring task per
-       * map (which would clean the entire map and then reschedule
-       * itself depending upon when the next expiration comes). We
-       * also want to avoid removing an entry prematurely if the
-       * entry was set to the same value again.
-       */
-      final WeakReference<K> keyReference = new WeakReference<K>(key);
-      final WeakReference<V> valueReference = new WeakReference<V>(value);
-      ExpirationTimer.instance.schedule(
-          new TimerTask() {
-            @Override public void run() {
-              K key = keyReference.get();
-              if (key != null) {
-                // Remove if the value is still the same.
-                map.remove(key, valueReference.get());
-              }
-            }
-          }, TimeUnit.NANOSECONDS.toMillis(expirationNanos));
     }
 
     public boolean equalKeys(K a, Object b) {
-      return keyStrength.equal(a, b);
+      return keyEquivalence.equivalent(a, b);
     }
 
     public boolean equalValues(V a, Object b) {
-      return valueStrength.equal(a, b);
+      return valueEquivalence.equivalent(a, b);
     }
 
     public int hashKey(Object key) {
-      return keyStrength.hash(key);
+      return keyEquivalence.hash(key);
     }
 
     public K getKey(ReferenceEntry<K, V> entry) {
@@ -538,13 +1714,51 @@ public final class MapMaker {
 
     public ReferenceEntry<K, V> newEntry(
         K key, int hash, ReferenceEntry<K, V> next) {
-      return keyStrength.newEntry(internals, key, hash, next);
+      ReferenceEntry<K, V> entry;
+      if (keyStrength == Strength.STRONG
+          && valueStrength == Strength.STRONG) {
+        entry = newStrongValuedEntry(key, hash, next);
+      } else if (expirable) {
+        entry = evictable
+            ? keyStrength.newExpirableEvictableEntry(
+                internals, key, hash, next)
+            : keyStrength.newExpirableEntry(internals, key, hash, next);
+      } else {
+        entry = evictable
+            ? keyStrength.newEvictableEntry(internals, key, hash, next)
+            : keyStrength.newEntry(internals, key, hash, next);
+      }
+      if (computing) {
+        // Gives threads that find the entry before its value is computed
+        // something to wait on.
+        entry.setValueReference(new ComputingValueReference<K, V>());
+      }
+      return entry;
+    }
+
+    /**
+     * Creates an entry for a map with strong keys and values, which holds its
+     * value without a separate value reference.
+     */
+    ReferenceEntry<K, V> newStrongValuedEntry(
+        K key, int hash, ReferenceEntry<K, V> next) {
+      if (expirable) {
+        return evictable
+            ? new ExpirableEvictableStrongValuedEntry<K, V>(key, hash, next)
+            : new ExpirableStrongValuedEntry<K, V>(key, hash, next);
+      } else if (evictable) {
+        return new EvictableStrongValuedEntry<K, V>(key, hash, next);
+      } else {
+        return (next == null)
+            ? new StrongValuedEntry<K, V>(key, hash)
+            : new LinkedStrongValuedEntry<K, V>(key, hash, next);
+      }
     }
 
     public ReferenceEntry<K, V> copyEntry(K key,
         ReferenceEntry<K, V> original, ReferenceEntry<K, V> newNext) {
       ValueReference<K, V> valueReference = original.getValueReference();
-      if (valueReference == COMPUTING) {
+      if (valueReference instanceof ComputingValueReference) {
         ReferenceEntry<K, V> newEntry
             = newEntry(key, original.getHash(), newNext);
         newEntry.setValueReference(
@@ -565,13 +1779,30 @@ public final class MapMaker {
     public V waitForValue(ReferenceEntry<K, V> entry)
         throws InterruptedException {
       ValueReference<K, V> valueReference = entry.getValueReference();
-      if (valueReference == COMPUTING) {
-        synchronized (entry) {
-          while ((valueReference = entry.getValueReference())
-              == COMPUTING) {
-            entry.wait();
-          }
+      if (valueReference instanceof ComputingValueReference) {
+        ((ComputingValueReference<K, V>) valueReference).latch.await();
+        valueReference = entry.getValueReference();
+      }
+      return valueReference.waitForValue();
+    }
+
+    /**
+     * Waits at most the given time for a computation to complete. Returns
+     * the result of the computation or null if none was available.
+     */
+    public V waitForValue(ReferenceEntry<K, V> entry, long timeout,
+        TimeUnit unit) throws InterruptedException, TimeoutException {
+      ValueReference<K, V> valueReference = entry.getValueReference();
+      if (valueReference instanceof StrategyImpl.FutureValueReference) {
+        return ((FutureValueReference) valueReference).waitForValue(
+            timeout, unit);
+      }
+      if (valueReference instanceof ComputingValueReference) {
+        if (!((ComputingValueReference<K, V>) valueReference).latch.await(
+            timeout, unit)) {
+          throw new TimeoutException();
         }
+        valueReference = entry.getValueReference();
       }
       return valueReference.waitForValue();
     }
@@ -593,20 +1824,20 @@ public final class MapMaker {
       } catch (ComputationException e) {
         // if computer has thrown a computation exception, propagate rather
         // than wrap
-        setValueReference(entry,
-            new ComputationExceptionReference<K, V>(e.getCause()));
+        setValueReference(entry, new ComputationExceptionReference<K, V>(
+            e.getCause(), failureExpirationTime()));
         throw e;
       } catch (Throwable t) {
-        setValueReference(
-          entry, new ComputationExceptionReference<K, V>(t));
+        setValueReference(entry, new ComputationExceptionReference<K, V>(
+            t, failureExpirationTime()));
         throw new ComputationException(t);
       }
 
       if (value == null) {
         String message
             = computer + " returned null for key " + key + ".";
-        setValueReference(
-            entry, new NullOutputExceptionReference<K, V>(message));
+        setValueReference(entry, new NullOutputExceptionReference<K, V>(
+            message, failureExpirationTime()));
         throw new NullOutputException(message);
       } else {
         setValue(entry, value);
@@ -615,17 +1846,54 @@ public final class MapMaker {
     }
 
     /**
-     * Sets the value reference on an entry and notifies waiting
+     * Returns the time at which a failure of a computation that just
+     * completed expires, or 0 if failures aren't kept. Measured after the
+     * computation, which may have taken a while.
+     */
+    long failureExpirationTime() {
+      return (failureExpirationNanos > 0)
+          ? ticker.read() + failureExpirationNanos : 0;
+    }
+
+    public boolean isFailureExpired(ReferenceEntry<K, V> entry, long now) {
+      ValueReference<K, V> valueReference = getFailureReference(entry);
+      // Subtraction handles wraparound of the ticker correctly.
+      return failureExpirationNanos > 0
+          && valueReference instanceof ExceptionReference
+          && now - ((ExceptionReference<K, V>) valueReference).expirationTime
+              >= 0;
+    }
+
+    public boolean hasFailure(ReferenceEntry<K, V> entry) {
+      return failureExpirationNanos > 0
+          && getFailureReference(entry) instanceof ExceptionReference;
+    }
+
+    /**
+     * Returns the value reference that holds the given entry's failure, if
+     * it has one.
+     */
+    ValueReference<K, V> getFailureReference(ReferenceEntry<K, V> entry) {
+      ValueReference<K, V> valueReference = entry.getValueReference();
+      if (valueReference instanceof StrategyImpl.FutureValueReference) {
+        // A copy made during the computation shares the original's failure.
+        valueReference
+            = ((FutureValueReference) valueReference).original
+                .getValueReference();
+      }
+      return valueReference;
+    }
+
+    /**
+     * Sets the value reference on an entry and releases waiting
      * threads.
      */
     void setValueReference(ReferenceEntry<K, V> entry,
         ValueReference<K, V> valueReference) {
-      boolean notifyOthers = (entry.getValueReference() == COMPUTING);
+      ValueReference<K, V> previous = entry.getValueReference();
       entry.setValueReference(valueReference);
-      if (notifyOthers) {
-        synchronized (entry) {
-          entry.notifyAll();
-        }
+      if (previous instanceof ComputingValueReference) {
+        ((ComputingValueReference<K, V>) previous).latch.countDown();
       }
     }
 
@@ -669,12 +1937,39 @@ public final class MapMaker {
           success = true;
           return value;
         } finally {
-          if (!success) {
+          if (!success && !keepsFailure()) {
+            removeEntry();
+          }
+        }
+      }
+
+      V waitForValue(long timeout, TimeUnit unit)
+          throws InterruptedException, TimeoutException {
+        boolean success = false;
+        try {
+          V value = StrategyImpl.this.waitForValue(original, timeout, unit);
+          success = true;
+          return value;
+        } catch (TimeoutException e) {
+          // The computation is still in progress.
+          success = true;
+          throw e;
+        } finally {
+          if (!success && !keepsFailure()) {
             removeEntry();
           }
         }
       }
 
+      /**
+       * Returns true if the original's computation failed and the map keeps
+       * the failure, which this entry then rethrows until it expires.
+       */
+      boolean keepsFailure() {
+        return failureExpirationNanos > 0
+            && original.getValueReference() instanceof ExceptionReference;
+      }
+
       /**
        * Removes the entry in the event of an exception. Ideally,
        * we'd clean up as soon as the computation completes, but we
@@ -691,6 +1986,62 @@ public final class MapMaker {
       return entry.getNext();
     }
 
+    public long getExpirationTime(ReferenceEntry<K, V> entry) {
+      return ((ExpirableEntry<K, V>) entry).getExpirationTime();
+    }
+
+    public void setExpirationTime(ReferenceEntry<K, V> entry, long time) {
+      ((ExpirableEntry<K, V>) entry).setExpirationTime(time);
+    }
+
+    public ReferenceEntry<K, V> getNextExpirable(
+        ReferenceEntry<K, V> entry) {
+      return ((ExpirableEntry<K, V>) entry).getNextExpirable();
+    }
+
+    public void setNextExpirable(ReferenceEntry<K, V> entry,
+        ReferenceEntry<K, V> next) {
+      ((ExpirableEntry<K, V>) entry).setNextExpirable(next);
+    }
+
+    public ReferenceEntry<K, V> getPreviousExpirable(
+        ReferenceEntry<K, V> entry) {
+      return ((ExpirableEntry<K, V>) entry).getPreviousExpirable();
+    }
+
+    public void setPreviousExpirable(ReferenceEntry<K, V> entry,
+        ReferenceEntry<K, V> previous) {
+      ((ExpirableEntry<K, V>) entry).setPreviousExpirable(previous);
+    }
+
+    public ReferenceEntry<K, V> getNextEvictable(
+        ReferenceEntry<K, V> entry) {
+      return ((EvictableEntry<K, V>) entry).getNextEvictable();
+    }
+
+    public void setNextEvictable(ReferenceEntry<K, V> entry,
+        ReferenceEntry<K, V> next) {
+      ((EvictableEntry<K, V>) entry).setNextEvictable(next);
+    }
+
+    public ReferenceEntry<K, V> getPreviousEvictable(
+        ReferenceEntry<K, V> entry) {
+      return ((EvictableEntry<K, V>) entry).getPreviousEvictable();
+    }
+
+    public void setPreviousEvictable(ReferenceEntry<K, V> entry,
+        ReferenceEntry<K, V> previous) {
+      ((EvictableEntry<K, V>) entry).setPreviousEvictable(previous);
+    }
+
+    public int getWeight(ReferenceEntry<K, V> entry) {
+      return ((EvictableEntry<K, V>) entry).getWeight();
+    }
+
+    public void setWeight(ReferenceEntry<K, V> entry, int weight) {
+      ((EvictableEntry<K, V>) entry).setWeight(weight);
+    }
+
     public void setInternals(
         Internals<K, V, ReferenceEntry<K, V>> internals) {
       this.internals = internals;
@@ -705,7 +2056,14 @@ public final class MapMaker {
       // deserialize the map entries.
       out.writeObject(keyStrength);
       out.writeObject(valueStrength);
-      out.writeLong(expirationNanos);
+      out.writeObject(keyEquivalence);
+      out.writeObject(valueEquivalence);
+      out.writeBoolean(expirable);
+      out.writeBoolean(evictable);
+      out.writeBoolean(computing);
+      out.writeLong(failureExpirationNanos);
+      // The system ticker isn't serializable, and is restored by default.
+      out.writeObject((ticker == Ticker.systemTicker()) ? null : ticker);
 
       // TODO: It is possible for the strategy to try to use the map
       // or internals during deserialization, for example, if an
@@ -723,7 +2081,14 @@ public final class MapMaker {
     private static class Fields {
       static final Field keyStrength = findField("keyStrength");
       static final Field valueStrength = findField("valueStrength");
-      static final Field expirationNanos = findField("expirationNanos");
+      static final Field keyEquivalence = findField("keyEquivalence");
+      static final Field valueEquivalence = findField("valueEquivalence");
+      static final Field expirable = findField("expirable");
+      static final Field evictable = findField("evictable");
+      static final Field computing = findField("computing");
+      static final Field failureExpirationNanos
+          = findField("failureExpirationNanos");
+      static final Field ticker = findField("ticker");
       static final Field internals = findField("internals");
       static final Field map = findField("map");
 
@@ -743,7 +2108,15 @@ public final class MapMaker {
       try {
         Fields.keyStrength.set(this, in.readObject());
         Fields.valueStrength.set(this, in.readObject());
-        Fields.expirationNanos.set(this, in.readLong());
+        Fields.keyEquivalence.set(this, in.readObject());
+        Fields.valueEquivalence.set(this, in.readObject());
+        Fields.expirable.set(this, in.readBoolean());
+        Fields.evictable.set(this, in.readBoolean());
+        Fields.computing.set(this, in.readBoolean());
+        Fields.failureExpirationNanos.set(this, in.readLong());
+        Ticker ticker = (Ticker) in.readObject();
+        Fields.ticker.set(
+            this, (ticker == null) ? Ticker.systemTicker() : ticker);
         Fields.internals.set(this, in.readObject());
         Fields.map.set(this, in.readObject());
       } catch (IllegalAccessException e) {
@@ -770,7 +2143,7 @@ public final class MapMaker {
     V waitForValue() throws InterruptedException;
   }
 
-  private static final ValueReference<Object, Object> COMPUTING
+  private static final ValueReference<Object, Object> UNSET
       = new ValueReference<Object, Object>() {
     public Object get() {
       return null;
@@ -785,39 +2158,45 @@ public final class MapMaker {
   };
 
   /**
-   * Singleton placeholder that indicates a value is being computed.
+   * Singleton placeholder that indicates a value hasn't been set yet.
    */
   @SuppressWarnings("unchecked")
   // Safe because impl never uses a parameter or returns any non-null value
-  private static <K, V> ValueReference<K, V> computing() {
-    return (ValueReference<K, V>) COMPUTING;
+  private static <K, V> ValueReference<K, V> unset() {
+    return (ValueReference<K, V>) UNSET;
   }
 
-  /** Used to provide null output exceptions to other threads. */
-  private static class NullOutputExceptionReference<K, V>
+  /**
+   * Placeholder that indicates a value is being computed. Each computing
+   * entry gets its own, so threads waiting for the value block on the
+   * latch rather than on the entry's monitor, and can give up after a
+   * timeout. The latch is released once the entry's value or failure is
+   * set.
+   */
+  private static class ComputingValueReference<K, V>
       implements ValueReference<K, V> {
-    final String message;
-    NullOutputExceptionReference(String message) {
-      this.message = message;
-    }
+    final CountDownLatch latch = new CountDownLatch(1);
+
     public V get() {
       return null;
     }
-    public ValueReference<K, V> copyFor(
-        ReferenceEntry<K, V> entry) {
-      return this;
+    public ValueReference<K, V> copyFor(ReferenceEntry<K, V> entry) {
+      throw new AssertionError();
     }
     public V waitForValue() {
-      throw new NullOutputException(message);
+      throw new AssertionError();
     }
   }
 
-  /** Used to provide computation exceptions to other threads. */
-  private static class ComputationExceptionReference<K, V>
+  /**
+   * Holds a failed computation's failure, which copies of the entry share.
+   * If the map keeps failures, also holds the time the failure expires.
+   */
+  private abstract static class ExceptionReference<K, V>
       implements ValueReference<K, V> {
-    final Throwable t;
-    ComputationExceptionReference(Throwable t) {
-      this.t = t;
+    final long expirationTime;
+    ExceptionReference(long expirationTime) {
+      this.expirationTime = expirationTime;
     }
     public V get() {
       return null;
@@ -826,6 +2205,29 @@ public final class MapMaker {
         ReferenceEntry<K, V> entry) {
       return this;
     }
+  }
+
+  /** Used to provide null output exceptions to other threads. */
+  private static class NullOutputExceptionReference<K, V>
+      extends ExceptionReference<K, V> {
+    final String message;
+    NullOutputExceptionReference(String message, long expirationTime) {
+      super(expirationTime);
+      this.message = message;
+    }
+    public V waitForValue() {
+      throw new NullOutputException(message);
+    }
+  }
+
+  /** Used to provide computation exceptions to other threads. */
+  private static class ComputationExceptionReference<K, V>
+      extends ExceptionReference<K, V> {
+    final Throwable t;
+    ComputationExceptionReference(Throwable t, long expirationTime) {
+      super(expirationTime);
+      this.t = t;
+    }
     public V waitForValue() {
       throw new AsynchronousComputationException(t);
     }
@@ -892,7 +2294,7 @@ public final class MapMaker {
 
     final Internals<K, V, ReferenceEntry<K, V>> internals;
     final int hash;
-    volatile ValueReference<K, V> valueReference = computing();
+    volatile ValueReference<K, V> valueReference = unset();
 
     public ValueReference<K, V> getValueReference() {
       return valueReference;
@@ -902,7 +2304,7 @@ public final class MapMaker {
       this.valueReference = valueReference;
     }
     public void valueReclaimed() {
-      internals.removeEntry(this, null);
+      internals.reclaimEntry(this);
     }
     public ReferenceEntry<K, V> getNext() {
       return null;
@@ -944,14 +2346,14 @@ public final class MapMaker {
     }
 
     public void finalizeReferent() {
-      internals.removeEntry(this);
+      internals.reclaimEntry(this);
     }
 
     // The code below is exactly the same for each entry type.
 
     final Internals<K, V, ReferenceEntry<K, V>> internals;
     final int hash;
-    volatile ValueReference<K, V> valueReference = computing();
+    volatile ValueReference<K, V> valueReference = unset();
 
     public ValueReference<K, V> getValueReference() {
       return valueReference;
@@ -961,7 +2363,7 @@ public final class MapMaker {
       this.valueReference = valueReference;
     }
     public void valueReclaimed() {
-      internals.removeEntry(this, null);
+      internals.reclaimEntry(this);
     }
     public ReferenceEntry<K, V> getNext() {
       return null;
@@ -1002,14 +2404,14 @@ public final class MapMaker {
     }
 
     public void finalizeReferent() {
-      internals.removeEntry(this);
+      internals.reclaimEntry(this);
     }
 
     // The code below is exactly the same for each entry type.
 
     final Internals<K, V, ReferenceEntry<K, V>> internals;
     final int hash;
-    volatile ValueReference<K, V> valueReference = computing();
+    volatile ValueReference<K, V> valueReference = unset();
 
     public ValueReference<K, V> getValueReference() {
       return valueReference;
@@ -1019,7 +2421,7 @@ public final class MapMaker {
       this.valueReference = valueReference;
     }
     public void valueReclaimed() {
-      internals.removeEntry(this, null);
+      internals.reclaimEntry(this);
     }
     public ReferenceEntry<K, V> getNext() {
       return null;
@@ -1043,6 +2445,574 @@ public final class MapMaker {
     }
   }
 
+  /**
+   * An entry in a map with expiration. Links the entry into its segment's
+   * expiration queue.
+   */
+  private interface ExpirableEntry<K, V> extends ReferenceEntry<K, V> {
+    /** Gets the time at which this entry expires. */
+    long getExpirationTime();
+
+    /** Sets the time at which this entry expires. */
+    void setExpirationTime(long time);
+
+    /** Gets the next entry in the expiration queue. */
+    ReferenceEntry<K, V> getNextExpirable();
+
+    /** Sets the next entry in the expiration queue. */
+    void setNextExpirable(ReferenceEntry<K, V> next);
+
+    /** Gets the previous entry in the expiration queue. */
+    ReferenceEntry<K, V> getPreviousExpirable();
+
+    /** Sets the previous entry in the expiration queue. */
+    void setPreviousExpirable(ReferenceEntry<K, V> previous);
+  }
+
+  /**
+   * Used for strongly-referenced keys in maps with expiration.
+   */
+  private static class ExpirableStrongEntry<K, V>
+      extends LinkedStrongEntry<K, V> implements ExpirableEntry<K, V> {
+    ExpirableStrongEntry(Internals<K, V, ReferenceEntry<K, V>> internals,
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(internals, key, hash, next);
+    }
+
+    // The code below is exactly the same for each expirable entry type.
+
+    volatile long expirationTime;
+    ReferenceEntry<K, V> nextExpirable;
+    ReferenceEntry<K, V> previousExpirable;
+
+    public long getExpirationTime() {
+      return expirationTime;
+    }
+    public void setExpirationTime(long time) {
+      this.expirationTime = time;
+    }
+    public ReferenceEntry<K, V> getNextExpirable() {
+      return nextExpirable;
+    }
+    public void setNextExpirable(ReferenceEntry<K, V> next) {
+      this.nextExpirable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousExpirable() {
+      return previousExpirable;
+    }
+    public void setPreviousExpirable(ReferenceEntry<K, V> previous) {
+      this.previousExpirable = previous;
+    }
+  }
+
+  /**
+   * Used for softly-referenced keys in maps with expiration.
+   */
+  private static class ExpirableSoftEntry<K, V>
+      extends LinkedSoftEntry<K, V> implements ExpirableEntry<K, V> {
+    ExpirableSoftEntry(Internals<K, V, ReferenceEntry<K, V>> internals,
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(internals, key, hash, next);
+    }
+
+    // The code below is exactly the same for each expirable entry type.
+
+    volatile long expirationTime;
+    ReferenceEntry<K, V> nextExpirable;
+    ReferenceEntry<K, V> previousExpirable;
+
+    public long getExpirationTime() {
+      return expirationTime;
+    }
+    public void setExpirationTime(long time) {
+      this.expirationTime = time;
+    }
+    public ReferenceEntry<K, V> getNextExpirable() {
+      return nextExpirable;
+    }
+    public void setNextExpirable(ReferenceEntry<K, V> next) {
+      this.nextExpirable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousExpirable() {
+      return previousExpirable;
+    }
+    public void setPreviousExpirable(ReferenceEntry<K, V> previous) {
+      this.previousExpirable = previous;
+    }
+  }
+
+  /**
+   * Used for weakly-referenced keys in maps with expiration.
+   */
+  private static class ExpirableWeakEntry<K, V>
+      extends LinkedWeakEntry<K, V> implements ExpirableEntry<K, V> {
+    ExpirableWeakEntry(Internals<K, V, ReferenceEntry<K, V>> internals,
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(internals, key, hash, next);
+    }
+
+    // The code below is exactly the same for each expirable entry type.
+
+    volatile long expirationTime;
+    ReferenceEntry<K, V> nextExpirable;
+    ReferenceEntry<K, V> previousExpirable;
+
+    public long getExpirationTime() {
+      return expirationTime;
+    }
+    public void setExpirationTime(long time) {
+      this.expirationTime = time;
+    }
+    public ReferenceEntry<K, V> getNextExpirable() {
+      return nextExpirable;
+    }
+    public void setNextExpirable(ReferenceEntry<K, V> next) {
+      this.nextExpirable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousExpirable() {
+      return previousExpirable;
+    }
+    public void setPreviousExpirable(ReferenceEntry<K, V> previous) {
+      this.previousExpirable = previous;
+    }
+  }
+
+  /**
+   * An entry in a map with a maximum size. Links the entry into its
+   * segment's eviction queue.
+   */
+  private interface EvictableEntry<K, V> extends ReferenceEntry<K, V> {
+    /** Gets the next entry in the eviction queue. */
+    ReferenceEntry<K, V> getNextEvictable();
+
+    /** Sets the next entry in the eviction queue. */
+    void setNextEvictable(ReferenceEntry<K, V> next);
+
+    /** Gets the previous entry in the eviction queue. */
+    ReferenceEntry<K, V> getPreviousEvictable();
+
+    /** Sets the previous entry in the eviction queue. */
+    void setPreviousEvictable(ReferenceEntry<K, V> previous);
+
+    /** Gets the weight recorded for the entry by a weighed map. */
+    int getWeight();
+
+    /** Sets the weight recorded for the entry. */
+    void setWeight(int weight);
+  }
+
+  /**
+   * Used for strongly-referenced keys in maps with a maximum size.
+   */
+  private static class EvictableStrongEntry<K, V>
+      extends LinkedStrongEntry<K, V> implements EvictableEntry<K, V> {
+    EvictableStrongEntry(Internals<K, V, ReferenceEntry<K, V>> internals,
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(internals, key, hash, next);
+    }
+
+    // The code below is exactly the same for each evictable entry type.
+
+    ReferenceEntry<K, V> nextEvictable;
+    ReferenceEntry<K, V> previousEvictable;
+    int weight;
+
+    public ReferenceEntry<K, V> getNextEvictable() {
+      return nextEvictable;
+    }
+    public void setNextEvictable(ReferenceEntry<K, V> next) {
+      this.nextEvictable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousEvictable() {
+      return previousEvictable;
+    }
+    public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
+      this.previousEvictable = previous;
+    }
+    public int getWeight() {
+      return weight;
+    }
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Used for strongly-referenced keys in maps with expiration and a maximum
+   * size.
+   */
+  private static class ExpirableEvictableStrongEntry<K, V>
+      extends ExpirableStrongEntry<K, V> implements EvictableEntry<K, V> {
+    ExpirableEvictableStrongEntry(
+        Internals<K, V, ReferenceEntry<K, V>> internals,
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(internals, key, hash, next);
+    }
+
+    // The code below is exactly the same for each evictable entry type.
+
+    ReferenceEntry<K, V> nextEvictable;
+    ReferenceEntry<K, V> previousEvictable;
+    int weight;
+
+    public ReferenceEntry<K, V> getNextEvictable() {
+      return nextEvictable;
+    }
+    public void setNextEvictable(ReferenceEntry<K, V> next) {
+      this.nextEvictable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousEvictable() {
+      return previousEvictable;
+    }
+    public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
+      this.previousEvictable = previous;
+    }
+    public int getWeight() {
+      return weight;
+    }
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Used for softly-referenced keys in maps with a maximum size.
+   */
+  private static class EvictableSoftEntry<K, V>
+      extends LinkedSoftEntry<K, V> implements EvictableEntry<K, V> {
+    EvictableSoftEntry(Internals<K, V, ReferenceEntry<K, V>> internals,
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(internals, key, hash, next);
+    }
+
+    // The code below is exactly the same for each evictable entry type.
+
+    ReferenceEntry<K, V> nextEvictable;
+    ReferenceEntry<K, V> previousEvictable;
+    int weight;
+
+    public ReferenceEntry<K, V> getNextEvictable() {
+      return nextEvictable;
+    }
+    public void setNextEvictable(ReferenceEntry<K, V> next) {
+      this.nextEvictable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousEvictable() {
+      return previousEvictable;
+    }
+    public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
+      this.previousEvictable = previous;
+    }
+    public int getWeight() {
+      return weight;
+    }
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Used for softly-referenced keys in maps with expiration and a maximum
+   * size.
+   */
+  private static class ExpirableEvictableSoftEntry<K, V>
+      extends ExpirableSoftEntry<K, V> implements EvictableEntry<K, V> {
+    ExpirableEvictableSoftEntry(
+        Internals<K, V, ReferenceEntry<K, V>> internals,
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(internals, key, hash, next);
+    }
+
+    // The code below is exactly the same for each evictable entry type.
+
+    ReferenceEntry<K, V> nextEvictable;
+    ReferenceEntry<K, V> previousEvictable;
+    int weight;
+
+    public ReferenceEntry<K, V> getNextEvictable() {
+      return nextEvictable;
+    }
+    public void setNextEvictable(ReferenceEntry<K, V> next) {
+      this.nextEvictable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousEvictable() {
+      return previousEvictable;
+    }
+    public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
+      this.previousEvictable = previous;
+    }
+    public int getWeight() {
+      return weight;
+    }
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Used for weakly-referenced keys in maps with a maximum size.
+   */
+  private static class EvictableWeakEntry<K, V>
+      extends LinkedWeakEntry<K, V> implements EvictableEntry<K, V> {
+    EvictableWeakEntry(Internals<K, V, ReferenceEntry<K, V>> internals,
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(internals, key, hash, next);
+    }
+
+    // The code below is exactly the same for each evictable entry type.
+
+    ReferenceEntry<K, V> nextEvictable;
+    ReferenceEntry<K, V> previousEvictable;
+    int weight;
+
+    public ReferenceEntry<K, V> getNextEvictable() {
+      return nextEvictable;
+    }
+    public void setNextEvictable(ReferenceEntry<K, V> next) {
+      this.nextEvictable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousEvictable() {
+      return previousEvictable;
+    }
+    public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
+      this.previousEvictable = previous;
+    }
+    public int getWeight() {
+      return weight;
+    }
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Used for weakly-referenced keys in maps with expiration and a maximum
+   * size.
+   */
+  private static class ExpirableEvictableWeakEntry<K, V>
+      extends ExpirableWeakEntry<K, V> implements EvictableEntry<K, V> {
+    ExpirableEvictableWeakEntry(
+        Internals<K, V, ReferenceEntry<K, V>> internals,
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(internals, key, hash, next);
+    }
+
+    // The code below is exactly the same for each evictable entry type.
+
+    ReferenceEntry<K, V> nextEvictable;
+    ReferenceEntry<K, V> previousEvictable;
+    int weight;
+
+    public ReferenceEntry<K, V> getNextEvictable() {
+      return nextEvictable;
+    }
+    public void setNextEvictable(ReferenceEntry<K, V> next) {
+      this.nextEvictable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousEvictable() {
+      return previousEvictable;
+    }
+    public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
+      this.previousEvictable = previous;
+    }
+    public int getWeight() {
+      return weight;
+    }
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Used for strongly-referenced keys with strongly-referenced values. The
+   * entry holds its value itself, and acts as the value's reference, rather
+   * than pointing to a separate {@link StrongValueReference}. Since neither
+   * the key nor the value can be reclaimed, it needs no internals either.
+   * Entries with weak or soft keys can't do the same, as they already
+   * inherit a {@code get()} method for their key.
+   */
+  private static class StrongValuedEntry<K, V>
+      implements ReferenceEntry<K, V>, ValueReference<K, V> {
+    final K key;
+
+    StrongValuedEntry(K key, int hash) {
+      this.key = key;
+      this.hash = hash;
+    }
+
+    public K getKey() {
+      return this.key;
+    }
+
+    public void valueReclaimed() {
+      throw new AssertionError();
+    }
+
+    // The code below is exactly the same for each strong-valued entry type.
+
+    final int hash;
+    volatile ValueReference<K, V> valueReference = unset();
+    volatile V value;
+
+    public ValueReference<K, V> getValueReference() {
+      return valueReference;
+    }
+    public void setValueReference(
+        ValueReference<K, V> valueReference) {
+      this.valueReference = valueReference;
+    }
+    public ReferenceEntry<K, V> getNext() {
+      return null;
+    }
+    public int getHash() {
+      return hash;
+    }
+
+    /**
+     * Stores the given value in this entry, and returns this entry as the
+     * reference to set.
+     */
+    ValueReference<K, V> referenceValue(V value) {
+      this.value = value;
+      return this;
+    }
+
+    public V get() {
+      return value;
+    }
+    public ValueReference<K, V> copyFor(ReferenceEntry<K, V> entry) {
+      return ((StrongValuedEntry<K, V>) entry).referenceValue(value);
+    }
+    public V waitForValue() {
+      return value;
+    }
+  }
+
+  private static class LinkedStrongValuedEntry<K, V>
+      extends StrongValuedEntry<K, V> {
+    LinkedStrongValuedEntry(K key, int hash, ReferenceEntry<K, V> next) {
+      super(key, hash);
+      this.next = next;
+    }
+
+    final ReferenceEntry<K, V> next;
+
+    @Override public ReferenceEntry<K, V> getNext() {
+      return next;
+    }
+  }
+
+  /**
+   * Used for strongly-referenced keys and values in maps with expiration.
+   */
+  private static class ExpirableStrongValuedEntry<K, V>
+      extends LinkedStrongValuedEntry<K, V> implements ExpirableEntry<K, V> {
+    ExpirableStrongValuedEntry(
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(key, hash, next);
+    }
+
+    // The code below is exactly the same for each expirable entry type.
+
+    volatile long expirationTime;
+    ReferenceEntry<K, V> nextExpirable;
+    ReferenceEntry<K, V> previousExpirable;
+
+    public long getExpirationTime() {
+      return expirationTime;
+    }
+    public void setExpirationTime(long time) {
+      this.expirationTime = time;
+    }
+    public ReferenceEntry<K, V> getNextExpirable() {
+      return nextExpirable;
+    }
+    public void setNextExpirable(ReferenceEntry<K, V> next) {
+      this.nextExpirable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousExpirable() {
+      return previousExpirable;
+    }
+    public void setPreviousExpirable(ReferenceEntry<K, V> previous) {
+      this.previousExpirable = previous;
+    }
+  }
+
+  /**
+   * Used for strongly-referenced keys and values in maps with a maximum
+   * size.
+   */
+  private static class EvictableStrongValuedEntry<K, V>
+      extends LinkedStrongValuedEntry<K, V> implements EvictableEntry<K, V> {
+    EvictableStrongValuedEntry(
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(key, hash, next);
+    }
+
+    // The code below is exactly the same for each evictable entry type.
+
+    ReferenceEntry<K, V> nextEvictable;
+    ReferenceEntry<K, V> previousEvictable;
+    int weight;
+
+    public ReferenceEntry<K, V> getNextEvictable() {
+      return nextEvictable;
+    }
+    public void setNextEvictable(ReferenceEntry<K, V> next) {
+      this.nextEvictable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousEvictable() {
+      return previousEvictable;
+    }
+    public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
+      this.previousEvictable = previous;
+    }
+    public int getWeight() {
+      return weight;
+    }
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Used for strongly-referenced keys and values in maps with expiration
+   * and a maximum size.
+   */
+  private static class ExpirableEvictableStrongValuedEntry<K, V>
+      extends ExpirableStrongValuedEntry<K, V>
+      implements EvictableEntry<K, V> {
+    ExpirableEvictableStrongValuedEntry(
+        K key, int hash, ReferenceEntry<K, V> next) {
+      super(key, hash, next);
+    }
+
+    // The code below is exactly the same for each evictable entry type.
+
+    ReferenceEntry<K, V> nextEvictable;
+    ReferenceEntry<K, V> previousEvictable;
+    int weight;
+
+    public ReferenceEntry<K, V> getNextEvictable() {
+      return nextEvictable;
+    }
+    public void setNextEvictable(ReferenceEntry<K, V> next) {
+      this.nextEvictable = next;
+    }
+    public ReferenceEntry<K, V> getPreviousEvictable() {
+      return previousEvictable;
+    }
+    public void setPreviousEvictable(ReferenceEntry<K, V> previous) {
+      this.previousEvictable = previous;
+    }
+    public int getWeight() {
+      return weight;
+    }
+    public void setWeight(int weight) {
+      this.weight = weight;
+    }
+  }
+
   /** References a weak value. */
   private static class WeakValueReference<K, V>
       extends FinalizableWeakReference<V>
@@ -1093,7 +3063,7 @@ public final class MapMaker {
     }
   }
 
-  /** References a strong value. */
+  /** References a strong value of an entry with a weak or soft key. */
   private static class StrongValueReference<K, V>
       implements ValueReference<K, V> {
     final V referent;
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+
+/**
+ * A minimal perfect hash function over a set of distinct hash codes: it maps
+ * each of the {@code n} hash codes to its own slot in {@code [0, n)}, with no
+ * empty slots, so a table indexed by it needs no probing and no spare room.
+ * Hash codes outside the set map to arbitrary slots, so a lookup still has
+ * to compare the key it finds.
+ *
+ * <p>It is built with the "hash, displace" step of the CHD algorithm of
+ * Belazzougui, Botelho and Dietzfelbinger. The hash codes are divided among
+ * buckets of about {@value #AVERAGE_BUCKET_SIZE}, and the buckets are
+ * placed, largest first, by searching for a displacement that moves all of
+ * a bucket's hash codes to free slots. The function stores one {@code int}
+ * displacement per bucket, or about {@code 32 / }{@value
+ * #AVERAGE_BUCKET_SIZE} bits per hash code.
+ */
+@GwtCompatible
+final class PerfectHash {
+
+  /**
+   * The average number of hash codes per bucket. Larger buckets use less
+   * memory but take longer to place.
+   */
+  static final int AVERAGE_BUCKET_SIZE = 5;
+
+  /**
+   * Up to this many hash codes, each gets its own bucket. Small functions
+   * have too few displacements to place larger buckets reliably, and their
+   * memory doesn't matter.
+   */
+  static final int SMALL_SIZE = 1024;
+
+  /** The number of seeds to try before giving up. */
+  private static final int MAX_ATTEMPTS = 4;
+
+  /**
+   * Bounds the displacements tried per bucket to this many times the number
+   * of slots.
+   */
+  private static final int MAX_DISPLACEMENT_ROUNDS = 64;
+
+  private final int size;
+  private final int seed;
+  private final int[] displacements;
+
+  private PerfectHash(int size, int seed, int[] displacements) {
+    this.size = size;
+    this.seed = seed;
+    this.displacements = displacements;
+  }
+
+  /** Returns the number of slots, which is the number of hash codes. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the slot of the given hash code, which is unique among the hash
+   * codes the function was built for.
+   */
+  int slot(int hashCode) {
+    int bucketHash = mix(hashCode ^ seed);
+    int slotHash = mix(bucketHash + 0x9e3779b9);
+    int displacement
+        = displacements[reduce(bucketHash, displacements.length)];
+    int first = reduce(slotHash, size);
+    if (displacement < size) {
+      // The common case, which needs no division.
+      int slot = first + displacement;
+      return (slot < size) ? slot : slot - size;
+    }
+    return slot(first, reduce(mix(slotHash), size), displacement, size);
+  }
+
+  /**
+   * Returns a perfect hash function for the given distinct hash codes, or
+   * null in the extremely unlikely case that none is found.
+   */
+  static PerfectHash build(int[] hashCodes) {
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      PerfectHash hash = tryBuild(hashCodes, attempt * 0x61c88647);
+      if (hash != null) {
+        return hash;
+      }
+    }
+    return null;
+  }
+
+  private static PerfectHash tryBuild(int[] hashCodes, int seed) {
+    int size = hashCodes.length;
+    int bucketCount = (size <= SMALL_SIZE)
+        ? size
+        : (size + AVERAGE_BUCKET_SIZE - 1) / AVERAGE_BUCKET_SIZE;
+
+    // Group the hash codes by bucket with a counting sort.
+    int[] bucketStarts = new int[bucketCount + 1];
+    int[] bucketOf = new int[size];
+    for (int i = 0; i < size; i++) {
+      int bucket = reduce(mix(hashCodes[i] ^ seed), bucketCount);
+      bucketOf[i] = bucket;
+      bucketStarts[bucket + 1]++;
+    }
+    int maxBucketSize = 0;
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      maxBucketSize = Math.max(maxBucketSize, bucketStarts[bucket + 1]);
+      bucketStarts[bucket + 1] += bucketStarts[bucket];
+    }
+    int[] members = new int[size];
+    int[] next = new int[bucketCount];
+    System.arraycopy(bucketStarts, 0, next, 0, bucketCount);
+    for (int i = 0; i < size; i++) {
+      members[next[bucketOf[i]]++] = i;
+    }
+    bucketOf = null; // no longer needed
+
+    // Order the buckets by decreasing size with another counting sort.
+    int[] sizeStarts = new int[maxBucketSize + 2];
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      int bucketSize = bucketStarts[bucket + 1] - bucketStarts[bucket];
+      sizeStarts[maxBucketSize - bucketSize + 1]++;
+    }
+    for (int i = 0; i <= maxBucketSize; i++) {
+      sizeStarts[i + 1] += sizeStarts[i];
+    }
+    int[] bucketOrder = new int[bucketCount];
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      int bucketSize = bucketStarts[bucket + 1] - bucketStarts[bucket];
+      bucketOrder[sizeStarts[maxBucketSize - bucketSize]++] = bucket;
+    }
+
+    int[] displacements = new int[bucketCount];
+    int[] occupied = new int[(size + 31) >>> 5];
+    int[] firsts = new int[maxBucketSize];
+    int[] steps = new int[maxBucketSize];
+    int[] slots = new int[maxBucketSize];
+    int freeSlot = 0;
+    int maxDisplacement = (int) Math.min(
+        Integer.MAX_VALUE, (long) size * MAX_DISPLACEMENT_ROUNDS);
+    for (int bucket : bucketOrder) {
+      int start = bucketStarts[bucket];
+      int bucketSize = bucketStarts[bucket + 1] - start;
+      if (bucketSize == 0) {
+        break; // the remaining buckets are empty too
+      }
+      for (int i = 0; i < bucketSize; i++) {
+        int slotHash
+            = mix(mix(hashCodes[members[start + i]] ^ seed) + 0x9e3779b9);
+        firsts[i] = reduce(slotHash, size);
+        steps[i] = reduce(mix(slotHash), size);
+      }
+
+      if (bucketSize == 1) {
+        // Move the hash code straight to the first free slot; the buckets
+        // are placed in order of size, so the rest of them are singletons
+        // too, and the free slots are taken in ascending order.
+        while ((occupied[freeSlot >>> 5] & (1 << freeSlot)) != 0) {
+          freeSlot++;
+        }
+        int displacement = freeSlot - firsts[0];
+        displacements[bucket] = (displacement < 0)
+            ? displacement + size : displacement;
+        occupied[freeSlot >>> 5] |= 1 << freeSlot;
+        continue;
+      }
+
+      int displacement = 0;
+      search:
+      for (; displacement < maxDisplacement; displacement++) {
+        for (int i = 0; i < bucketSize; i++) {
+          int slot = slot(firsts[i], steps[i], displacement, size);
+          if ((occupied[slot >>> 5] & (1 << slot)) != 0) {
+            continue search;
+          }
+          for (int j = 0; j < i; j++) {
+            if (slots[j] == slot) {
+              continue search;
+            }
+          }
+          slots[i] = slot;
+        }
+        break;
+      }
+      if (displacement == maxDisplacement) {
+        return null;
+      }
+
+      displacements[bucket] = displacement;
+      for (int i = 0; i < bucketSize; i++) {
+        occupied[slots[i] >>> 5] |= 1 << slots[i];
+      }
+    }
+    return new PerfectHash(size, seed, displacements);
+  }
+
+  /**
+   * Returns the slot for a hash code with the given first slot and step,
+   * moved by the given displacement. Displacements below {@code size} only
+   * move the first slot; larger ones also add a multiple of the step, which
+   * differs between hash codes that share a first slot.
+   */
+  private static int slot(int first, int step, int displacement, int size) {
+    if (displacement < size) {
+      int slot = first + displacement;
+      return (slot < size) ? slot : slot - size;
+    }
+    int rounds = displacement / size;
+    int offset = displacement - rounds * size;
+    return (int) ((first + (long) rounds * step + offset) % size);
+  }
+
+  /** Scrambles the bits of a hash code, as in MurmurHash3's finalizer. */
+  private static int mix(int hash) {
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    return hash ^ (hash >>> 16);
+  }
+
+  /** Maps a hash uniformly onto {@code [0, n)} without division. */
+  private static int reduce(int hash, int n) {
+    return (int) (((hash & 0xffffffffL) * n) >>> 32);
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+
+/**
+ * Combines two values into one, as in {@link MapMaker#reduce}.
+ *
+ * <p>A parallel reduction combines partial results in no particular order,
+ * and may call the reducer from several threads at once, so the operation
+ * should be associative and commutative, like addition or taking a maximum,
+ * and must be thread-safe.
+ *
+ * @param <T> the type of values to combine
+ */
+@GwtCompatible
+public interface Reducer<T> {
+
+  /**
+   * Returns the combination of the two given values.
+   *
+   * @param a a non-null value
+   * @param b a non-null value
+   * @return a non-null combined value
+   */
+  T reduce(T a, T b);
+}
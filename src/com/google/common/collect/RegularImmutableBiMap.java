@@ -40,6 +40,12 @@ class RegularImmutableBiMap<K, V> extends ImmutableBiMap<K, V> {
     this.inverse = new RegularImmutableBiMap<V, K>(backwardMap, this);
   }
 
+  RegularImmutableBiMap(
+      ImmutableMap<K, V> delegate, ImmutableMap<V, K> backwardMap) {
+    this.delegate = delegate;
+    this.inverse = new RegularImmutableBiMap<V, K>(backwardMap, this);
+  }
+
   RegularImmutableBiMap(ImmutableMap<K, V> delegate,
       ImmutableBiMap<V, K> inverse) {
     this.delegate = delegate;
@@ -31,6 +31,9 @@ final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
 
   private final transient Entry<K, V>[] entries; // entries in insertion order
   private final transient Object[] table; // alternating keys and values
+  // the smeared hash code of the key in each slot of the table, which is
+  // compared before calling equals() on the key
+  private final transient int[] hashes;
   // 'and' with an int then shift to get a table index
   private final transient int mask;
   private final transient int keySetHashCode;
@@ -43,22 +46,26 @@ final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
 
     int tableSize = Hashing.chooseTableSize(immutableEntries.length);
     table = new Object[tableSize * 2];
+    hashes = new int[tableSize];
     mask = tableSize - 1;
 
     int keySetHashCodeMutable = 0;
     for (Entry<K, V> entry : this.entries) {
       K key = entry.getKey();
       int keyHashCode = key.hashCode();
-      for (int i = Hashing.smear(keyHashCode); true; i++) {
-        int index = (i & mask) * 2;
+      int hash = Hashing.smear(keyHashCode);
+      for (int i = hash; true; i++) {
+        int slot = i & mask;
+        int index = slot * 2;
         Object existing = table[index];
         if (existing == null) {
           V value = entry.getValue();
           table[index] = key;
           table[index + 1] = value;
+          hashes[slot] = hash;
           keySetHashCodeMutable += keyHashCode;
           break;
-        } else if (existing.equals(key)) {
+        } else if (hashes[slot] == hash && existing.equals(key)) {
           throw new IllegalArgumentException("duplicate key: " + key);
         }
       }
@@ -70,13 +77,15 @@ final class RegularImmutableMap<K, V> extends ImmutableMap<K, V> {
     if (key == null) {
       return null;
     }
-    for (int i = Hashing.smear(key.hashCode()); true; i++) {
-      int index = (i & mask) * 2;
+    int hash = Hashing.smear(key.hashCode());
+    for (int i = hash; true; i++) {
+      int slot = i & mask;
+      int index = slot * 2;
       Object candidate = table[index];
       if (candidate == null) {
         return null;
       }
-      if (candidate.equals(key)) {
+      if (hashes[slot] == hash && candidate.equals(key)) {
         // we're careful to store only V's at odd indices
         @SuppressWarnings("unchecked")
         V value = (V) table[index + 1];
@@ -30,14 +30,18 @@ import com.google.common.collect.ImmutableSet.ArrayImmutableSet;
 final class RegularImmutableSet<E> extends ArrayImmutableSet<E> {
   // the same elements in hashed positions (plus nulls)
   @VisibleForTesting final transient Object[] table;
+  // the smeared hash code of the element in each slot of the table, which is
+  // compared before calling equals() on the element
+  private final transient int[] hashes;
   // 'and' with an int to get a valid table index.
   private final transient int mask;
   private final transient int hashCode;
 
-  RegularImmutableSet(
-      Object[] elements, int hashCode, Object[] table, int mask) {
+  RegularImmutableSet(Object[] elements, int hashCode, Object[] table,
+      int[] hashes, int mask) {
     super(elements);
     this.table = table;
+    this.hashes = hashes;
     this.mask = mask;
     this.hashCode = hashCode;
   }
@@ -46,12 +50,14 @@ final class RegularImmutableSet<E> extends ArrayImmutableSet<E> {
     if (target == null) {
       return false;
     }
-    for (int i = Hashing.smear(target.hashCode()); true; i++) {
-      Object candidate = table[i & mask];
+    int hash = Hashing.smear(target.hashCode());
+    for (int i = hash; true; i++) {
+      int index = i & mask;
+      Object candidate = table[index];
       if (candidate == null) {
         return false;
       }
-      if (candidate.equals(target)) {
+      if (hashes[index] == hash && candidate.equals(target)) {
         return true;
       }
     }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+
+/**
+ * The reason an entry was removed from a map, as reported to a {@link
+ * RemovalListener}.
+ */
+@GwtCompatible
+public enum RemovalCause {
+  /**
+   * The entry was removed by the user, through {@code remove}, {@code clear},
+   * or one of the map's views.
+   */
+  EXPLICIT,
+
+  /**
+   * The entry's value was replaced by the user, through {@code put} or
+   * {@code replace}. The entry itself remains in the map; the notification
+   * reports the old value.
+   */
+  REPLACED,
+
+  /** The entry's key or value was garbage collected. */
+  COLLECTED,
+
+  /** The entry expired. */
+  EXPIRED,
+
+  /** The entry was evicted to keep the map within its maximum size. */
+  SIZE
+}
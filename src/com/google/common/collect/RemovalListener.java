@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+
+import javax.annotation.Nullable;
+
+/**
+ * An object that is notified when an entry is removed from a map built with
+ * {@link MapMaker#removalListener}.
+ *
+ * <p>Notifications are delivered after the map has released its internal
+ * locks, so a listener may safely read and write the map. A listener that
+ * throws an exception doesn't affect the map or other notifications; the
+ * exception is logged and discarded.
+ *
+ * @param <K> the type of keys in the map
+ * @param <V> the type of values in the map
+ */
+@GwtCompatible
+public interface RemovalListener<K, V> {
+
+  /**
+   * Notifies the listener that an entry was removed from the map.
+   *
+   * @param key the removed entry's key, or {@code null} if the key was
+   *     garbage collected
+   * @param value the removed entry's value, or {@code null} if the value was
+   *     garbage collected
+   * @param cause the reason the entry was removed
+   */
+  void onRemoval(@Nullable K key, @Nullable V value, RemovalCause cause);
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+import com.google.common.base.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * An immutable snapshot of the state of one segment of a map built with
+ * {@link MapMaker#recordSegmentStats}. Obtain a list of them, one for each
+ * segment, with {@link MapMaker#segmentStats}.
+ *
+ * <p>Such a map is divided into segments, each guarded by its own lock, and
+ * each key belongs to the segment chosen by its hash code. Writes lock the
+ * key's segment, so segments that are locked far more often than the rest,
+ * or whose locks are often contended, point to a few hot keys or to a
+ * {@code concurrencyLevel} that is too low. Within a segment, entries whose
+ * hash codes share a table slot are chained together; long chains point to
+ * a poor {@link Object#hashCode} implementation.
+ *
+ * <p>The lock counts are gathered while the map is in use and never
+ * decrease; to measure an interval, take the difference of two snapshots.
+ * The entry count and chain lengths describe the segment at the time of the
+ * snapshot, which is taken without locking, so they may not reflect a
+ * single instant of a map that is being written.
+ */
+@GwtCompatible
+public final class SegmentStats {
+  private final long lockCount;
+  private final long contendedLockCount;
+  private final long totalLockHoldTime;
+  private final int entryCount;
+  private final ImmutableList<Integer> chainLengthCounts;
+
+  SegmentStats(long lockCount, long contendedLockCount,
+      long totalLockHoldTime, int entryCount,
+      ImmutableList<Integer> chainLengthCounts) {
+    this.lockCount = lockCount;
+    this.contendedLockCount = contendedLockCount;
+    this.totalLockHoldTime = totalLockHoldTime;
+    this.entryCount = entryCount;
+    this.chainLengthCounts = chainLengthCounts;
+  }
+
+  /**
+   * Returns the number of times the segment lock was acquired. Reentrant
+   * acquisitions by a thread that already held the lock aren't counted.
+   */
+  public long lockCount() {
+    return lockCount;
+  }
+
+  /**
+   * Returns the number of times a thread found the segment lock held by
+   * another thread, and had to wait for it.
+   */
+  public long contendedLockCount() {
+    return contendedLockCount;
+  }
+
+  /**
+   * Returns the ratio of contended lock acquisitions to all acquisitions, or
+   * {@code 0.0} if the lock was never acquired.
+   */
+  public double contentionRate() {
+    return (lockCount == 0) ? 0.0 : (double) contendedLockCount / lockCount;
+  }
+
+  /**
+   * Returns the total number of nanoseconds the segment lock was held, as
+   * measured by {@link System#nanoTime}, regardless of the map's {@linkplain
+   * MapMaker#ticker ticker}.
+   */
+  public long totalLockHoldTime() {
+    return totalLockHoldTime;
+  }
+
+  /**
+   * Returns the average number of nanoseconds the segment lock was held per
+   * acquisition, or {@code 0.0} if the lock was never acquired.
+   */
+  public double averageLockHoldTime() {
+    return (lockCount == 0) ? 0.0 : (double) totalLockHoldTime / lockCount;
+  }
+
+  /**
+   * Returns the number of entries in the segment, including any that have
+   * expired or been partially collected but not yet removed.
+   */
+  public int entryCount() {
+    return entryCount;
+  }
+
+  /**
+   * Returns a histogram of the lengths of the segment's chains: element
+   * {@code i} is the number of table slots holding exactly {@code i}
+   * entries. The list ends with the count for the longest chain, so its
+   * size is one more than {@link #maxChainLength}, and its elements sum to
+   * the number of slots in the segment's table.
+   */
+  public ImmutableList<Integer> chainLengthCounts() {
+    return chainLengthCounts;
+  }
+
+  /** Returns the number of entries in the segment's longest chain. */
+  public int maxChainLength() {
+    return chainLengthCounts.size() - 1;
+  }
+
+  @Override public boolean equals(@Nullable Object object) {
+    if (object instanceof SegmentStats) {
+      SegmentStats that = (SegmentStats) object;
+      return lockCount == that.lockCount
+          && contendedLockCount == that.contendedLockCount
+          && totalLockHoldTime == that.totalLockHoldTime
+          && entryCount == that.entryCount
+          && chainLengthCounts.equals(that.chainLengthCounts);
+    }
+    return false;
+  }
+
+  @Override public int hashCode() {
+    return Objects.hashCode(lockCount, contendedLockCount, totalLockHoldTime,
+        entryCount, chainLengthCounts);
+  }
+
+  @Override public String toString() {
+    return "SegmentStats{lockCount=" + lockCount
+        + ", contendedLockCount=" + contendedLockCount
+        + ", totalLockHoldTime=" + totalLockHoldTime
+        + ", entryCount=" + entryCount
+        + ", chainLengthCounts=" + chainLengthCounts + "}";
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encodes the keys or values of a map in a snapshot file, as written by
+ * {@link MapMaker#writeSnapshot} and read by {@link MapMaker#loadSnapshot}.
+ *
+ * <p>A snapshot holds no framing around each value, so {@link #read} must
+ * consume exactly the bytes that {@link #write} produced. A codec that
+ * changes its encoding should be given a new name, since old snapshots
+ * can't be told apart from new ones.
+ *
+ * @param <T> the type of keys or values to encode
+ */
+public interface SnapshotCodec<T> {
+
+  /**
+   * Writes the given non-null value to {@code out}.
+   *
+   * @throws IOException if {@code out} can't be written
+   */
+  void write(T value, DataOutput out) throws IOException;
+
+  /**
+   * Reads a value written by {@link #write} from {@code in}.
+   *
+   * @return a non-null value
+   * @throws IOException if {@code in} can't be read or holds a malformed
+   *     value
+   */
+  T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads concurrent updates across several cells, chosen by
+ * the updating thread, so that threads on different processors rarely write
+ * to the same cache line. Updates are cheap; {@link #sum} is comparatively
+ * slow and isn't atomic with respect to concurrent updates.
+ */
+final class StripedCounter {
+
+  /** The number of longs in a cell. Keeps cells on separate cache lines. */
+  private static final int CELL_LENGTH = 8;
+
+  /** The maximum number of cells. */
+  private static final int MAX_CELLS = 64;
+
+  /**
+   * The number of cells, a power of two. Twice the number of processors
+   * keeps collisions between running threads uncommon.
+   */
+  private static final int CELLS = cellCount(
+      Runtime.getRuntime().availableProcessors());
+
+  private final AtomicLongArray cells
+      = new AtomicLongArray(CELLS * CELL_LENGTH);
+
+  static int cellCount(int processors) {
+    int cells = 1;
+    while (cells < processors * 2 && cells < MAX_CELLS) {
+      cells <<= 1;
+    }
+    return cells;
+  }
+
+  /** Adds one to the counter. */
+  void increment() {
+    add(1);
+  }
+
+  /** Adds the given amount to the counter. */
+  void add(long delta) {
+    cells.addAndGet(cellIndex(), delta);
+  }
+
+  /** Returns the sum of all updates made to the counter. */
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < CELLS; i++) {
+      sum += cells.get(i * CELL_LENGTH);
+    }
+    return sum;
+  }
+
+  /** Returns the index of the calling thread's cell. */
+  private static int cellIndex() {
+    // Thread IDs are assigned sequentially, so spread them first.
+    int hash = Hashing.smear((int) Thread.currentThread().getId());
+    return (hash & (CELLS - 1)) * CELL_LENGTH;
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.annotations.GwtCompatible;
+
+/**
+ * Determines the weight of an entry in a map built with {@link
+ * MapMaker#weigher}, such as the approximate number of bytes its value
+ * occupies. The map evicts entries to keep the total weight of its entries
+ * within the {@linkplain MapMaker#maximumWeight maximum weight}.
+ *
+ * <p>An entry is weighed each time its value is set, while the map holds an
+ * internal lock, so weighing should be fast and must not access the map.
+ *
+ * @param <K> the type of keys in the map
+ * @param <V> the type of values in the map
+ */
+@GwtCompatible
+public interface Weigher<K, V> {
+
+  /**
+   * Returns the weight of the given entry. The weight is recorded when the
+   * value is set and is not recomputed later, so it shouldn't depend on
+   * mutable state.
+   *
+   * @return a non-negative weight
+   */
+  int weigh(K key, V value);
+}
@@ -63,6 +63,8 @@ public class CollectTestSuite {
       "com.google.common.collect.Collections2Test",
       "com.google.common.collect.Collections2Test$ArrayListFilterChangeTest",
       "com.google.common.collect.Collections2Test$LinkedListFilterChangeTest",
+      "com.google.common.collect.CompactImmutableMapTest",
+      "com.google.common.collect.CompactImmutableSetTest",
       "com.google.common.collect.ConcurrentHashMultisetTest",
       "com.google.common.collect.ConcurrentHashMultisetWithChmTest",
       "com.google.common.collect.EnumBiMapTest",
@@ -91,9 +93,12 @@ public class CollectTestSuite {
       "com.google.common.collect.ImmutableBiMapTest$InverseMapTests",
       "com.google.common.collect.ImmutableBiMapTest$MapTests",
       "com.google.common.collect.ImmutableClassToInstanceMapTest",
+      "com.google.common.collect.ImmutableDoubleListTest",
+      "com.google.common.collect.ImmutableIntListTest",
       "com.google.common.collect.ImmutableListMultimapTest",
       "com.google.common.collect.ImmutableListTest",
       "com.google.common.collect.ImmutableListTest$CreationTests",
+      "com.google.common.collect.ImmutableLongListTest",
       "com.google.common.collect.ImmutableMapTest",
       "com.google.common.collect.ImmutableMapTest$CreationTests",
       "com.google.common.collect.ImmutableMapTest$MapTests",
@@ -126,13 +131,30 @@ public class CollectTestSuite {
       "com.google.common.collect.LinkedHashMultisetTest",
       "com.google.common.collect.LinkedListMultimapTest",
       "com.google.common.collect.ListsTest",
+      "com.google.common.collect.MapMakerTestSuite$AsyncComputingTest",
+      "com.google.common.collect.MapMakerTestSuite$BulkTest",
       "com.google.common.collect.MapMakerTestSuite$ComputingTest",
+      "com.google.common.collect.MapMakerTestSuite$EvictionTest",
       "com.google.common.collect.MapMakerTestSuite$ExpiringComputingReferenceMapTest",
       "com.google.common.collect.MapMakerTestSuite$ExpiringReferenceMapTest",
+      "com.google.common.collect.MapMakerTestSuite$FailureExpirationTest",
+      "com.google.common.collect.MapMakerTestSuite$GetAllTest",
+      "com.google.common.collect.MapMakerTestSuite$InlineCleanupTest",
+      "com.google.common.collect.MapMakerTestSuite$KeyEquivalenceTest",
       "com.google.common.collect.MapMakerTestSuite$MakerTest",
       "com.google.common.collect.MapMakerTestSuite$RecursiveComputationTest",
       "com.google.common.collect.MapMakerTestSuite$ReferenceCombinationTestSuite",
       "com.google.common.collect.MapMakerTestSuite$ReferenceMapTest",
+      "com.google.common.collect.MapMakerTestSuite$RefreshTest",
+      "com.google.common.collect.MapMakerTestSuite$RemovalListenerTest",
+      "com.google.common.collect.MapMakerTestSuite$ResizeTest",
+      "com.google.common.collect.MapMakerTestSuite$SegmentStatsTest",
+      "com.google.common.collect.MapMakerTestSuite$SizeTest",
+      "com.google.common.collect.MapMakerTestSuite$SnapshotTest",
+      "com.google.common.collect.MapMakerTestSuite$StatsTest",
+      "com.google.common.collect.MapMakerTestSuite$TickerTest",
+      "com.google.common.collect.MapMakerTestSuite$TimedGetTest",
+      "com.google.common.collect.MapMakerTestSuite$WeightTest",
       "com.google.common.collect.MapsTest",
       "com.google.common.collect.MapsTest$FilteredMapTests",
       "com.google.common.collect.MapsTransformValuesTest",
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares maps and sets made by {@link ImmutableMap#compactCopyOf} and
+ * {@link ImmutableSet#compactCopyOf} to those made by {@code copyOf}. For
+ * each, it reports the time to build, the memory retained beyond the keys
+ * and values themselves, and the time per lookup of present keys (hits) and
+ * of absent keys (misses), over {@code Integer} keys in random order.
+ *
+ * <p>Run with {@code java
+ * com.google.common.collect.CompactImmutableHashBenchmark [keys]}, with a
+ * heap large enough for several copies of the keys; the default is one
+ * million keys. This is not part of the test suite.
+ */
+public class CompactImmutableHashBenchmark {
+
+  enum Configuration {
+    MAP_COPY_OF {
+      @Override Object create(Map<Integer, Integer> map) {
+        return ImmutableMap.copyOf(map);
+      }
+    },
+    MAP_COMPACT_COPY_OF {
+      @Override Object create(Map<Integer, Integer> map) {
+        return ImmutableMap.compactCopyOf(map);
+      }
+    },
+    SET_COPY_OF {
+      @Override Object create(Map<Integer, Integer> map) {
+        return ImmutableSet.copyOf(map.keySet());
+      }
+    },
+    SET_COMPACT_COPY_OF {
+      @Override Object create(Map<Integer, Integer> map) {
+        return ImmutableSet.compactCopyOf(map.keySet());
+      }
+    };
+
+    abstract Object create(Map<Integer, Integer> map);
+
+    /** Returns the number of the given keys in the map or set. */
+    int count(Object mapOrSet, Integer[] keys) {
+      int found = 0;
+      if (mapOrSet instanceof Map) {
+        Map<?, ?> map = (Map<?, ?>) mapOrSet;
+        for (Integer key : keys) {
+          if (map.get(key) != null) {
+            found++;
+          }
+        }
+      } else {
+        Set<?> set = (Set<?>) mapOrSet;
+        for (Integer key : keys) {
+          if (set.contains(key)) {
+            found++;
+          }
+        }
+      }
+      return found;
+    }
+  }
+
+  public static void main(String[] args) {
+    int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+    List<Integer> keys = Lists.newArrayList();
+    for (int i = 0; i < size * 2; i++) {
+      keys.add(i * 7919);
+    }
+    Collections.shuffle(keys, new Random(0));
+    Map<Integer, Integer> map = new LinkedHashMap<Integer, Integer>();
+    for (Integer key : keys.subList(0, size)) {
+      map.put(key, key);
+    }
+    Integer[] hits = keys.subList(0, size).toArray(new Integer[size]);
+    Integer[] misses = keys.subList(size, size * 2).toArray(new Integer[size]);
+
+    // One unreported round to load and compile the collection classes.
+    for (Configuration configuration : Configuration.values()) {
+      measure(configuration, map, hits, misses);
+    }
+    System.out.printf("%-20s %10s %12s %10s %10s%n", "",
+        "build (ms)", "bytes/entry", "hit (ns)", "miss (ns)");
+    for (Configuration configuration : Configuration.values()) {
+      double[] results = measure(configuration, map, hits, misses);
+      System.out.printf("%-20s %10.1f %12.1f %10.1f %10.1f%n", configuration,
+          results[0], results[1], results[2], results[3]);
+    }
+  }
+
+  /**
+   * Returns the milliseconds to build, the bytes retained per entry, and the
+   * nanoseconds per hit and per miss.
+   */
+  static double[] measure(Configuration configuration,
+      Map<Integer, Integer> map, Integer[] hits, Integer[] misses) {
+    long before = usedMemory();
+    long start = System.nanoTime();
+    Object mapOrSet = configuration.create(map);
+    double buildTime = (System.nanoTime() - start) / 1e6;
+    long after = usedMemory();
+    return new double[] {
+        buildTime,
+        (double) (after - before) / hits.length,
+        time(configuration, mapOrSet, hits, hits.length),
+        time(configuration, mapOrSet, misses, 0)};
+  }
+
+  /** Returns the fastest of several rounds of lookups, per lookup. */
+  static double time(Configuration configuration, Object mapOrSet,
+      Integer[] keys, int expectedFound) {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < 10; round++) {
+      long start = System.nanoTime();
+      int found = configuration.count(mapOrSet, keys);
+      best = Math.min(best, System.nanoTime() - start);
+      if (found != expectedFound) {
+        throw new AssertionError(configuration + ": " + found + " found");
+      }
+    }
+    return (double) best / keys.length;
+  }
+
+  static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.collect.testing.CollectionTestSuiteBuilder;
+import com.google.common.collect.testing.ReserializingTestSetGenerator;
+import com.google.common.collect.testing.SampleElements;
+import com.google.common.collect.testing.SampleElements.Colliders;
+import com.google.common.collect.testing.SetTestSuiteBuilder;
+import com.google.common.collect.testing.TestCollectionGenerator;
+import com.google.common.collect.testing.TestMapEntrySetGenerator;
+import com.google.common.collect.testing.TestStringSetGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.testutils.SerializableTester;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Tests for {@link ImmutableMap#compactCopyOf}.
+ */
+public class CompactImmutableMapTest extends TestCase {
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTestSuite(CompactImmutableMapTest.class);
+    suite.addTestSuite(MapTests.class);
+    suite.addTestSuite(ReserializedMapTests.class);
+    suite.addTestSuite(MapTestsWithBadHashes.class);
+
+    suite.addTest(SetTestSuiteBuilder.using(keySetGenerator())
+        .withFeatures(CollectionSize.ANY, CollectionFeature.KNOWN_ORDER)
+        .named("ImmutableMap.compactCopyOf.keySet")
+        .createTestSuite());
+
+    suite.addTest(SetTestSuiteBuilder.using(entrySetGenerator())
+        .withFeatures(CollectionSize.ANY, CollectionFeature.KNOWN_ORDER)
+        .named("ImmutableMap.compactCopyOf.entrySet")
+        .createTestSuite());
+
+    suite.addTest(CollectionTestSuiteBuilder.using(valuesGenerator())
+        .withFeatures(CollectionSize.ANY, CollectionFeature.KNOWN_ORDER)
+        .named("ImmutableMap.compactCopyOf.values")
+        .createTestSuite());
+
+    suite.addTest(SetTestSuiteBuilder.using(
+        ReserializingTestSetGenerator.newInstance(keySetGenerator()))
+        .withFeatures(CollectionSize.ANY, CollectionFeature.KNOWN_ORDER)
+        .named("ImmutableMap.compactCopyOf.keySet, reserialized")
+        .createTestSuite());
+
+    return suite;
+  }
+
+  static TestMapEntrySetGenerator<String, String> entrySetGenerator() {
+    SampleElements.Strings sampleStrings = new SampleElements.Strings();
+    return new TestMapEntrySetGenerator<String, String>(
+        sampleStrings, sampleStrings) {
+      @Override public Set<Entry<String, String>> createFromEntries(
+          Entry<String, String>[] entries) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (Entry<String, String> entry : entries) {
+          map.put(entry.getKey(), entry.getValue());
+        }
+        return ImmutableMap.compactCopyOf(map).entrySet();
+      }
+    };
+  }
+
+  static TestStringSetGenerator keySetGenerator() {
+    return new TestStringSetGenerator() {
+      @Override protected Set<String> create(String[] elements) {
+        Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+        for (String key : elements) {
+          map.put(key, key.length());
+        }
+        return ImmutableMap.compactCopyOf(map).keySet();
+      }
+    };
+  }
+
+  static TestCollectionGenerator<String> valuesGenerator() {
+    return new TestCollectionGenerator<String>() {
+      public SampleElements<String> samples() {
+        return new SampleElements.Strings();
+      }
+
+      public Collection<String> create(Object... elements) {
+        Map<Object, String> map = new LinkedHashMap<Object, String>();
+        for (Object key : elements) {
+          map.put(key, key.toString());
+        }
+        return ImmutableMap.compactCopyOf(map).values();
+      }
+
+      public String[] createArray(int length) {
+        return new String[length];
+      }
+
+      public List<String> order(List<String> insertionOrder) {
+        return insertionOrder;
+      }
+    };
+  }
+
+  private static <K, V> ImmutableMap<K, V> compactMapOf(
+      Object... alternatingKeysAndValues) {
+    Map<K, V> map = new LinkedHashMap<K, V>();
+    for (int i = 0; i < alternatingKeysAndValues.length; i += 2) {
+      @SuppressWarnings("unchecked")
+      K key = (K) alternatingKeysAndValues[i];
+      @SuppressWarnings("unchecked")
+      V value = (V) alternatingKeysAndValues[i + 1];
+      map.put(key, value);
+    }
+    return ImmutableMap.compactCopyOf(map);
+  }
+
+  public static class MapTests
+      extends ImmutableMapTest.AbstractMapTests<String, Integer> {
+    @Override protected Map<String, Integer> makePopulatedMap() {
+      return compactMapOf("one", 1, "two", 2, "three", 3);
+    }
+
+    @Override protected String getKeyNotInPopulatedMap() {
+      return "minus one";
+    }
+
+    @Override protected Integer getValueNotInPopulatedMap() {
+      return -1;
+    }
+  }
+
+  public static class ReserializedMapTests
+      extends ImmutableMapTest.AbstractMapTests<String, Integer> {
+    @Override protected Map<String, Integer> makePopulatedMap() {
+      return SerializableTester.reserialize(
+          CompactImmutableMapTest.<String, Integer>compactMapOf(
+              "one", 1, "two", 2, "three", 3));
+    }
+
+    @Override protected String getKeyNotInPopulatedMap() {
+      return "minus one";
+    }
+
+    @Override protected Integer getValueNotInPopulatedMap() {
+      return -1;
+    }
+  }
+
+  public static class MapTestsWithBadHashes
+      extends ImmutableMapTest.AbstractMapTests<Object, Integer> {
+    @Override protected Map<Object, Integer> makePopulatedMap() {
+      Colliders colliders = new Colliders();
+      return compactMapOf(
+          colliders.e0, 0,
+          colliders.e1, 1,
+          colliders.e2, 2,
+          colliders.e3, 3);
+    }
+
+    @Override protected Object getKeyNotInPopulatedMap() {
+      return new Colliders().e4;
+    }
+
+    @Override protected Integer getValueNotInPopulatedMap() {
+      return 4;
+    }
+  }
+
+  public void testCompactCopyOf_isCompact() {
+    ImmutableMap<String, Integer> map = compactMapOf("a", 1, "b", 2);
+    assertTrue(map instanceof CompactImmutableMap);
+    assertSame(map, ImmutableMap.compactCopyOf(map));
+  }
+
+  public void testCompactCopyOf_small() {
+    assertEquals(ImmutableMap.of(),
+        ImmutableMap.compactCopyOf(new LinkedHashMap<String, Integer>()));
+    assertEquals(ImmutableMap.of("a", 1), compactMapOf("a", 1));
+  }
+
+  public void testCompactCopyOf_sharedHashCodes() {
+    // "Aa" and "BB" have the same hash code, as do "AaAa" and "BBBB"
+    ImmutableMap<String, Integer> map = compactMapOf(
+        "x", 0, "Aa", 1, "AaAa", 2, "BB", 3, "y", 4, "BBBB", 5);
+    assertEquals(ImmutableList.of("x", "Aa", "AaAa", "BB", "y", "BBBB"),
+        ImmutableList.copyOf(map.keySet()));
+    assertEquals(ImmutableList.of(0, 1, 2, 3, 4, 5),
+        ImmutableList.copyOf(map.values()));
+    assertEquals(1, (int) map.get("Aa"));
+    assertEquals(3, (int) map.get("BB"));
+    assertEquals(5, (int) map.get("BBBB"));
+    assertNull(map.get("AaBB"));
+    assertNull(map.get("z"));
+    assertTrue(map.containsValue(5));
+    assertFalse(map.containsValue(6));
+    assertEquals(Sets.newHashSet(map.keySet()).hashCode(),
+        map.keySet().hashCode());
+  }
+
+  public void testCompactCopyOf_duplicateKeys() {
+    // a map that somehow contains two entries with the same key
+    Map<String, Integer> inconsistent
+        = new ForwardingMap<String, Integer>() {
+          final ImmutableMap<String, Integer> delegate
+              = ImmutableMap.of("a", 1, "b", 2);
+          @Override protected Map<String, Integer> delegate() {
+            return delegate;
+          }
+          @Override public Set<Entry<String, Integer>> entrySet() {
+            return ImmutableSet.of(
+                Maps.immutableEntry("a", 1), Maps.immutableEntry("a", 2));
+          }
+        };
+    try {
+      ImmutableMap.compactCopyOf(inconsistent);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testCompactCopyOf_large() {
+    Map<Integer, String> original = new LinkedHashMap<Integer, String>();
+    for (int i = 0; i < 100000; i++) {
+      original.put(i * 31, Integer.toString(i));
+    }
+    ImmutableMap<Integer, String> map = ImmutableMap.compactCopyOf(original);
+    assertTrue(map instanceof CompactImmutableMap);
+    assertEquals(ImmutableList.copyOf(original.entrySet()),
+        ImmutableList.copyOf(map.entrySet()));
+    for (int i = -31; i < 100000 * 31; i++) {
+      assertEquals(original.get(i), map.get(i));
+    }
+    assertEquals(original, map);
+    assertEquals(map, SerializableTester.reserialize(map));
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.collect.testing.SetTestSuiteBuilder;
+import com.google.common.collect.testing.TestCollidingSetGenerator;
+import com.google.common.collect.testing.TestStringSetGenerator;
+import com.google.common.collect.testing.features.CollectionFeature;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.testutils.SerializableTester;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link ImmutableSet#compactCopyOf}.
+ */
+public class CompactImmutableSetTest extends TestCase {
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite();
+    suite.addTestSuite(CompactImmutableSetTest.class);
+
+    suite.addTest(SetTestSuiteBuilder.using(new TestStringSetGenerator() {
+          @Override protected Set<String> create(String[] elements) {
+            return ImmutableSet.compactCopyOf(Arrays.asList(elements));
+          }
+        })
+        .named("ImmutableSet.compactCopyOf")
+        .withFeatures(CollectionSize.ANY, CollectionFeature.KNOWN_ORDER)
+        .createTestSuite());
+
+    suite.addTest(SetTestSuiteBuilder.using(new TestStringSetGenerator() {
+          @Override protected Set<String> create(String[] elements) {
+            return SerializableTester.reserialize(
+                ImmutableSet.compactCopyOf(Arrays.asList(elements)));
+          }
+        })
+        .named("ImmutableSet.compactCopyOf, reserialized")
+        .withFeatures(CollectionSize.ANY, CollectionFeature.KNOWN_ORDER)
+        .createTestSuite());
+
+    suite.addTest(SetTestSuiteBuilder.using(new TestCollidingSetGenerator() {
+          public Set<Object> create(Object... elements) {
+            return ImmutableSet.compactCopyOf(Arrays.asList(elements));
+          }
+        })
+        .named("ImmutableSet.compactCopyOf, with bad hashes")
+        .withFeatures(CollectionSize.ANY, CollectionFeature.KNOWN_ORDER)
+        .createTestSuite());
+
+    return suite;
+  }
+
+  public void testCompactCopyOf_isCompact() {
+    ImmutableSet<String> set
+        = ImmutableSet.compactCopyOf(Arrays.asList("a", "b", "c"));
+    assertTrue(set instanceof CompactImmutableSet);
+    assertSame(set, ImmutableSet.compactCopyOf(set));
+  }
+
+  public void testCompactCopyOf_small() {
+    assertEquals(ImmutableSet.of(),
+        ImmutableSet.compactCopyOf(Arrays.<String>asList()));
+    assertEquals(ImmutableSet.of("a"),
+        ImmutableSet.compactCopyOf(Arrays.asList("a")));
+    assertEquals(ImmutableSet.of("a"),
+        ImmutableSet.compactCopyOf(Arrays.asList("a", "a", "a")));
+  }
+
+  public void testCompactCopyOf_duplicates() {
+    ImmutableSet<String> set = ImmutableSet.compactCopyOf(
+        Arrays.asList("b", "a", "b", "c", "a", "b"));
+    assertEquals(Arrays.asList("b", "a", "c"), Lists.newArrayList(set));
+    assertEquals(ImmutableSet.of("a", "b", "c").hashCode(), set.hashCode());
+  }
+
+  public void testCompactCopyOf_sharedHashCodes() {
+    // "Aa" and "BB" have the same hash code, as do "AaAa" and "BBBB"
+    ImmutableSet<String> set = ImmutableSet.compactCopyOf(Arrays.asList(
+        "x", "Aa", "AaAa", "BB", "y", "Aa", "BBBB", "z"));
+    assertEquals(Arrays.asList("x", "Aa", "AaAa", "BB", "y", "BBBB", "z"),
+        Lists.newArrayList(set));
+    assertTrue(set.contains("Aa"));
+    assertTrue(set.contains("BB"));
+    assertTrue(set.contains("BBBB"));
+    assertFalse(set.contains("AaBB"));
+    assertFalse(set.contains("w"));
+    assertEquals(Sets.newHashSet(set).hashCode(), set.hashCode());
+  }
+
+  public void testCompactCopyOf_large() {
+    List<Integer> elements = Lists.newArrayList();
+    for (int i = 0; i < 100000; i++) {
+      elements.add(i * 31);
+    }
+    ImmutableSet<Integer> set = ImmutableSet.compactCopyOf(elements);
+    assertTrue(set instanceof CompactImmutableSet);
+    assertEquals(elements, Lists.newArrayList(set));
+    for (int i = -31; i < 100000 * 31; i++) {
+      assertEquals(i >= 0 && i % 31 == 0, set.contains(i));
+    }
+    assertEquals(ImmutableSet.copyOf(elements), set);
+    assertEquals(set, SerializableTester.reserialize(set));
+  }
+
+  public void testCompactCopyOf_null() {
+    try {
+      ImmutableSet.compactCopyOf(Arrays.asList("a", null, "b"));
+      fail();
+    } catch (NullPointerException expected) {
+    }
+  }
+}
@@ -541,6 +541,32 @@ public class ImmutableBiMapTest extends TestCase {
         assertEquals("duplicate key: 1", expected.getMessage());
       }
     }
+
+    public void testCompactCopyOf() {
+      Map<String, Integer> original = new LinkedHashMap<String, Integer>();
+      original.put("one", 1);
+      original.put("two", 2);
+      original.put("three", 3);
+
+      ImmutableBiMap<String, Integer> copy
+          = ImmutableBiMap.compactCopyOf(original);
+      assertMapEquals(copy, "one", 1, "two", 2, "three", 3);
+      assertMapEquals(copy.inverse(), 1, "one", 2, "two", 3, "three");
+      assertSame(copy, copy.inverse().inverse());
+      assertTrue(copy.delegate() instanceof CompactImmutableMap);
+      assertTrue(copy.inverse().delegate() instanceof CompactImmutableMap);
+    }
+
+    public void testCompactCopyOfDuplicateValues() {
+      ImmutableMap<String, Integer> map = ImmutableMap.of(
+          "one", 1, "two", 2, "uno", 1);
+      try {
+        ImmutableBiMap.compactCopyOf(map);
+        fail();
+      } catch (IllegalArgumentException expected) {
+        assertEquals("duplicate key: 1", expected.getMessage());
+      }
+    }
   }
 
   public static class BiMapSpecificTests extends TestCase {
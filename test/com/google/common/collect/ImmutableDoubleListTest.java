@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.collect.testing.ListTestSuiteBuilder;
+import com.google.common.collect.testing.SampleElements;
+import com.google.common.collect.testing.TestListGenerator;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.testutils.SerializableTester;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ImmutableDoubleList}. The behavior it shares with {@link
+ * ImmutableIntList} is tested more fully by {@link ImmutableIntListTest}.
+ */
+public class ImmutableDoubleListTest extends TestCase {
+
+  public static Test suite() {
+    TestSuite suite
+        = new TestSuite(ImmutableDoubleListTest.class.getSimpleName());
+    suite.addTest(ListTestSuiteBuilder.using(new TestDoubleListGenerator() {
+          @Override protected List<Double> create(double[] elements) {
+            return ImmutableDoubleList.copyOf(elements).asList();
+          }
+        })
+        .named("ImmutableDoubleList.asList")
+        .withFeatures(CollectionSize.ANY)
+        .createTestSuite());
+    suite.addTest(ListTestSuiteBuilder.using(new TestDoubleListGenerator() {
+          @Override protected List<Double> create(double[] elements) {
+            double[] all = new double[elements.length + 4];
+            System.arraycopy(elements, 0, all, 2, elements.length);
+            return SerializableTester.reserialize(
+                ImmutableDoubleList.copyOf(all)
+                    .subList(2, elements.length + 2).asList());
+          }
+        })
+        .named("ImmutableDoubleList.asList, reserialized middle subList")
+        .withFeatures(CollectionSize.ANY)
+        .createTestSuite());
+    suite.addTestSuite(ImmutableDoubleListTest.class);
+    return suite;
+  }
+
+  private abstract static class TestDoubleListGenerator
+      implements TestListGenerator<Double> {
+    public SampleElements<Double> samples() {
+      return new SampleElements<Double>(
+          0.0, -0.0, 1.5, Double.NaN, Double.NEGATIVE_INFINITY);
+    }
+
+    public List<Double> create(Object... elements) {
+      double[] array = new double[elements.length];
+      for (int i = 0; i < elements.length; i++) {
+        array[i] = (Double) elements[i];
+      }
+      return create(array);
+    }
+
+    protected abstract List<Double> create(double[] elements);
+
+    public Double[] createArray(int length) {
+      return new Double[length];
+    }
+
+    public List<Double> order(List<Double> insertionOrder) {
+      return insertionOrder;
+    }
+  }
+
+  public void testBasics() {
+    ImmutableDoubleList list = ImmutableDoubleList.of(1.5, -2, 1.5);
+    assertEquals(3, list.size());
+    assertEquals(1.5, list.get(0));
+    assertEquals(2, list.lastIndexOf(1.5));
+    assertFalse(list.contains(0));
+    assertEquals(ImmutableDoubleList.of(-2), list.subList(1, 2));
+    assertEquals(list, ImmutableDoubleList.copyOf(list.asList()));
+    assertEquals("[1.5, -2.0, 1.5]", list.toString());
+  }
+
+  public void testEquality_matchesDoubleEquals() {
+    ImmutableDoubleList list = ImmutableDoubleList.of(Double.NaN, 0.0);
+    assertEquals(0, list.indexOf(Double.NaN));
+    assertEquals(-1, list.indexOf(-0.0));
+    assertEquals(list, ImmutableDoubleList.of(Double.NaN, 0.0));
+    assertFalse(list.equals(ImmutableDoubleList.of(Double.NaN, -0.0)));
+    assertEquals(Arrays.asList(Double.NaN, 0.0), list.asList());
+  }
+
+  public void testHashCode() {
+    ImmutableDoubleList list = ImmutableDoubleList.of(1.5, -0.0, Double.NaN);
+    assertEquals(Arrays.asList(1.5, -0.0, Double.NaN).hashCode(),
+        list.hashCode());
+  }
+
+  public void testBuilder() {
+    ImmutableDoubleList.Builder builder = ImmutableDoubleList.builder();
+    for (int i = 0; i < 100; i++) {
+      builder.add(i / 2.0);
+    }
+    ImmutableDoubleList list = builder.add(100, 101)
+        .addAll(Arrays.asList(102.0))
+        .build();
+    assertEquals(103, list.size());
+    assertEquals(49.5, list.get(99));
+    assertEquals(102.0, list.get(102));
+  }
+}
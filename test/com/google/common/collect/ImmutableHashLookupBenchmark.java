@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Reports the time taken by {@link ImmutableMap#get} and {@link
+ * ImmutableSet#contains} on string keys that share a long prefix, like the
+ * keys of a configuration or a metrics registry, so that comparing two keys
+ * of the same length is costly. Each distribution of keys is measured for
+ * lookups of present keys (hits) and of absent keys (misses):
+ *
+ * <ul>
+ * <li>{@code UNIFORM}: ordinary keys, which rarely share a table slot.
+ * <li>{@code LOW_BITS_COLLIDE}: keys whose hash codes differ but agree in
+ *     their two lowest bits after smearing, so that they start probing from
+ *     a quarter of the slots and lookups pass over several other keys.
+ * </ul>
+ *
+ * <p>Run with {@code java
+ * com.google.common.collect.ImmutableHashLookupBenchmark [keys]}; the
+ * default is 10,000 keys. This is not part of the test suite.
+ */
+public class ImmutableHashLookupBenchmark {
+
+  static final String PREFIX = "com.example.service.request.attribute.";
+
+  enum Distribution {
+    UNIFORM {
+      @Override boolean accept(String key, int mask) {
+        return true;
+      }
+    },
+    LOW_BITS_COLLIDE {
+      @Override boolean accept(String key, int mask) {
+        return (Hashing.smear(key.hashCode()) & 3) == 0;
+      }
+    };
+
+    /** Returns true if the key belongs to this distribution. */
+    abstract boolean accept(String key, int mask);
+
+    /**
+     * Returns twice the given number of distinct keys of this distribution,
+     * in random order, all of the same length.
+     */
+    List<String> keys(int size) {
+      int mask = Hashing.chooseTableSize(size) - 1;
+      List<String> keys = new ArrayList<String>(size * 2);
+      for (int i = 0; keys.size() < size * 2; i++) {
+        String key = PREFIX + (100000000 + i);
+        if (accept(key, mask)) {
+          keys.add(key);
+        }
+      }
+      Collections.shuffle(keys, new Random(0));
+      return keys;
+    }
+  }
+
+  public static void main(String[] args) {
+    int size = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+
+    // One unreported round to load and compile the collection classes.
+    for (Distribution distribution : Distribution.values()) {
+      measure(distribution, size);
+    }
+    System.out.printf("%-16s %10s %10s %10s %10s (ns/lookup)%n", "",
+        "map hit", "map miss", "set hit", "set miss");
+    for (Distribution distribution : Distribution.values()) {
+      double[] times = measure(distribution, size);
+      System.out.printf("%-16s %10.1f %10.1f %10.1f %10.1f%n", distribution,
+          times[0], times[1], times[2], times[3]);
+    }
+  }
+
+  /**
+   * Returns the nanoseconds per lookup for map hits, map misses, set hits,
+   * and set misses.
+   */
+  static double[] measure(Distribution distribution, int size) {
+    List<String> keys = distribution.keys(size);
+    List<String> present = keys.subList(0, size);
+    String[] hits = present.toArray(new String[size]);
+    String[] misses = keys.subList(size, size * 2).toArray(new String[size]);
+
+    // Copy the keys, so that lookups can't succeed by identity alone.
+    for (int i = 0; i < size; i++) {
+      hits[i] = new String(hits[i]);
+    }
+
+    ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+    for (String key : present) {
+      builder.put(key, key.length());
+    }
+    Map<String, Integer> map = builder.build();
+    Set<String> set = ImmutableSet.copyOf(present);
+
+    return new double[] {
+        timeMap(map, hits, size),
+        timeMap(map, misses, 0),
+        timeSet(set, hits, size),
+        timeSet(set, misses, 0)};
+  }
+
+  /** Returns the fastest of several rounds of lookups, per lookup. */
+  static double timeMap(Map<String, Integer> map, String[] keys,
+      int expectedFound) {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < 20; round++) {
+      long start = System.nanoTime();
+      int found = 0;
+      for (String key : keys) {
+        if (map.get(key) != null) {
+          found++;
+        }
+      }
+      best = Math.min(best, System.nanoTime() - start);
+      if (found != expectedFound) {
+        throw new AssertionError(found + " found");
+      }
+    }
+    return (double) best / keys.length;
+  }
+
+  /** Returns the fastest of several rounds of lookups, per lookup. */
+  static double timeSet(Set<String> set, String[] keys, int expectedFound) {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < 20; round++) {
+      long start = System.nanoTime();
+      int found = 0;
+      for (String key : keys) {
+        if (set.contains(key)) {
+          found++;
+        }
+      }
+      best = Math.min(best, System.nanoTime() - start);
+      if (found != expectedFound) {
+        throw new AssertionError(found + " found");
+      }
+    }
+    return (double) best / keys.length;
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.collect.testing.ListTestSuiteBuilder;
+import com.google.common.collect.testing.SampleElements;
+import com.google.common.collect.testing.TestListGenerator;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.testutils.SerializableTester;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link ImmutableIntList}.
+ */
+public class ImmutableIntListTest extends TestCase {
+
+  public static Test suite() {
+    TestSuite suite = new TestSuite(ImmutableIntListTest.class.getSimpleName());
+    suite.addTest(ListTestSuiteBuilder.using(new TestIntegerListGenerator() {
+          @Override protected List<Integer> create(int[] elements) {
+            return ImmutableIntList.copyOf(elements).asList();
+          }
+        })
+        .named("ImmutableIntList.asList")
+        .withFeatures(CollectionSize.ANY)
+        .createTestSuite());
+    suite.addTest(ListTestSuiteBuilder.using(new TestIntegerListGenerator() {
+          @Override protected List<Integer> create(int[] elements) {
+            return ImmutableIntList.builder().add(elements).build().asList();
+          }
+        })
+        .named("ImmutableIntList.asList, built with Builder.add")
+        .withFeatures(CollectionSize.ANY)
+        .createTestSuite());
+    suite.addTest(ListTestSuiteBuilder.using(new TestIntegerListGenerator() {
+          @Override protected List<Integer> create(int[] elements) {
+            int[] all = new int[elements.length + 4];
+            System.arraycopy(elements, 0, all, 2, elements.length);
+            return ImmutableIntList.copyOf(all)
+                .subList(2, elements.length + 2).asList();
+          }
+        })
+        .named("ImmutableIntList.asList, middle subList")
+        .withFeatures(CollectionSize.ANY)
+        .createTestSuite());
+    suite.addTest(ListTestSuiteBuilder.using(new TestIntegerListGenerator() {
+          @Override protected List<Integer> create(int[] elements) {
+            return SerializableTester.reserialize(
+                ImmutableIntList.copyOf(elements).asList());
+          }
+        })
+        .named("ImmutableIntList.asList, reserialized")
+        .withFeatures(CollectionSize.ANY)
+        .createTestSuite());
+    suite.addTestSuite(ImmutableIntListTest.class);
+    return suite;
+  }
+
+  private abstract static class TestIntegerListGenerator
+      implements TestListGenerator<Integer> {
+    public SampleElements<Integer> samples() {
+      return new SampleElements<Integer>(0, 1, 2, 3, 4);
+    }
+
+    public List<Integer> create(Object... elements) {
+      int[] array = new int[elements.length];
+      for (int i = 0; i < elements.length; i++) {
+        array[i] = (Integer) elements[i];
+      }
+      return create(array);
+    }
+
+    protected abstract List<Integer> create(int[] elements);
+
+    public Integer[] createArray(int length) {
+      return new Integer[length];
+    }
+
+    public List<Integer> order(List<Integer> insertionOrder) {
+      return insertionOrder;
+    }
+  }
+
+  public void testOf() {
+    assertSame(ImmutableIntList.of(), ImmutableIntList.of(new int[0]));
+    ImmutableIntList list = ImmutableIntList.of(3, 1, 2);
+    assertEquals(3, list.size());
+    assertFalse(list.isEmpty());
+    assertEquals(3, list.get(0));
+    assertEquals(2, list.get(2));
+    assertTrue(ImmutableIntList.of().isEmpty());
+  }
+
+  public void testCopyOf_arrayIsCopied() {
+    int[] array = {1, 2, 3};
+    ImmutableIntList list = ImmutableIntList.copyOf(array);
+    array[0] = 9;
+    assertEquals(1, list.get(0));
+    int[] copy = list.toArray();
+    copy[1] = 9;
+    assertEquals(2, list.get(1));
+  }
+
+  public void testCopyOf_collection() {
+    ImmutableIntList list = ImmutableIntList.copyOf(Arrays.asList(1, 2, 3));
+    assertEquals(ImmutableIntList.of(1, 2, 3), list);
+    assertSame(ImmutableIntList.of(),
+        ImmutableIntList.copyOf(Collections.<Integer>emptyList()));
+  }
+
+  public void testCopyOf_asListIsNotCopied() {
+    ImmutableIntList list = ImmutableIntList.of(1, 2, 3);
+    assertSame(list, ImmutableIntList.copyOf(list.asList()));
+  }
+
+  public void testCopyOf_nullElement() {
+    try {
+      ImmutableIntList.copyOf(Arrays.asList(1, null, 3));
+      fail();
+    } catch (NullPointerException expected) {
+    }
+  }
+
+  public void testGet_outOfBounds() {
+    ImmutableIntList list = ImmutableIntList.of(1, 2, 3).subList(1, 2);
+    try {
+      list.get(1);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+    try {
+      list.get(-1);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  public void testIndexOf() {
+    ImmutableIntList list = ImmutableIntList.of(5, 1, 2, 1, 5).subList(1, 4);
+    assertEquals(0, list.indexOf(1));
+    assertEquals(2, list.lastIndexOf(1));
+    assertEquals(-1, list.indexOf(5));
+    assertEquals(-1, list.lastIndexOf(5));
+    assertTrue(list.contains(2));
+    assertFalse(list.contains(5));
+  }
+
+  public void testSubList() {
+    ImmutableIntList list = ImmutableIntList.of(0, 1, 2, 3, 4);
+    assertEquals(ImmutableIntList.of(1, 2, 3), list.subList(1, 4));
+    assertEquals(ImmutableIntList.of(2), list.subList(1, 4).subList(1, 2));
+    assertSame(ImmutableIntList.of(), list.subList(2, 2));
+    assertTrue(
+        Arrays.equals(new int[] {1, 2, 3}, list.subList(1, 4).toArray()));
+    try {
+      list.subList(3, 2);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  public void testBuilder() {
+    ImmutableIntList.Builder builder = ImmutableIntList.builder();
+    for (int i = 0; i < 100; i++) {
+      builder.add(i);
+    }
+    builder.add(100, 101)
+        .addAll(ImmutableIntList.of(102, 103).subList(1, 2))
+        .addAll(Arrays.asList(104))
+        .addAll(ImmutableIntList.of(105).asList());
+    ImmutableIntList list = builder.build();
+    assertEquals(105, list.size());
+    assertEquals(99, list.get(99));
+    assertEquals(Arrays.asList(100, 101, 103, 104, 105),
+        list.subList(100, 105).asList());
+
+    // The builder can be reused, and doesn't change lists it built.
+    assertEquals(106, builder.add(106).build().size());
+    assertEquals(105, list.size());
+    assertSame(ImmutableIntList.of(), ImmutableIntList.builder().build());
+  }
+
+  public void testEqualsAndHashCode() {
+    ImmutableIntList list = ImmutableIntList.of(1, -2, 3);
+    assertEquals(list, ImmutableIntList.of(0, 1, -2, 3).subList(1, 4));
+    assertFalse(list.equals(ImmutableIntList.of(1, -2)));
+    assertFalse(list.equals(list.asList()));
+    assertEquals(Arrays.asList(1, -2, 3).hashCode(), list.hashCode());
+    assertEquals(list.hashCode(),
+        ImmutableIntList.of(0, 1, -2, 3).subList(1, 4).hashCode());
+  }
+
+  public void testAsList_equalsOtherLists() {
+    List<Integer> asList = ImmutableIntList.of(1, 2, 3).asList();
+    assertEquals(Arrays.asList(1, 2, 3), asList);
+    assertEquals(asList, Arrays.asList(1, 2, 3));
+    assertEquals(ImmutableList.of(1, 2, 3), asList);
+    assertFalse(asList.equals(Arrays.asList(1L, 2L, 3L)));
+    assertEquals(-1, asList.indexOf(1L));
+  }
+
+  public void testToString() {
+    assertEquals("[]", ImmutableIntList.of().toString());
+    assertEquals("[1, 2, 3]", ImmutableIntList.of(1, 2, 3).toString());
+    assertEquals("[2]", ImmutableIntList.of(1, 2, 3).subList(1, 2).toString());
+  }
+
+  public void testSerialization() {
+    ImmutableIntList list = ImmutableIntList.of(1, 2, 3);
+    assertEquals(list, SerializableTester.reserialize(list));
+    assertSame(ImmutableIntList.of(),
+        SerializableTester.reserialize(ImmutableIntList.of()));
+  }
+
+  public void testSerialization_subListWritesOnlyItsRange()
+      throws IOException {
+    ImmutableIntList big = ImmutableIntList.copyOf(new int[10000]);
+    ImmutableIntList small = big.subList(0, 1);
+    assertTrue(serializedLength(small) < serializedLength(big) / 10);
+    assertEquals(small, SerializableTester.reserialize(small));
+  }
+
+  static int serializedLength(Object object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(object);
+    out.close();
+    return bytes.size();
+  }
+}
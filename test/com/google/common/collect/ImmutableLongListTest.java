@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.collect.testing.ListTestSuiteBuilder;
+import com.google.common.collect.testing.SampleElements;
+import com.google.common.collect.testing.TestListGenerator;
+import com.google.common.collect.testing.features.CollectionSize;
+import com.google.common.testutils.SerializableTester;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ImmutableLongList}. The behavior it shares with {@link
+ * ImmutableIntList} is tested more fully by {@link ImmutableIntListTest}.
+ */
+public class ImmutableLongListTest extends TestCase {
+
+  public static Test suite() {
+    TestSuite suite
+        = new TestSuite(ImmutableLongListTest.class.getSimpleName());
+    suite.addTest(ListTestSuiteBuilder.using(new TestLongListGenerator() {
+          @Override protected List<Long> create(long[] elements) {
+            return ImmutableLongList.copyOf(elements).asList();
+          }
+        })
+        .named("ImmutableLongList.asList")
+        .withFeatures(CollectionSize.ANY)
+        .createTestSuite());
+    suite.addTest(ListTestSuiteBuilder.using(new TestLongListGenerator() {
+          @Override protected List<Long> create(long[] elements) {
+            long[] all = new long[elements.length + 4];
+            System.arraycopy(elements, 0, all, 2, elements.length);
+            return SerializableTester.reserialize(ImmutableLongList.copyOf(all)
+                .subList(2, elements.length + 2).asList());
+          }
+        })
+        .named("ImmutableLongList.asList, reserialized middle subList")
+        .withFeatures(CollectionSize.ANY)
+        .createTestSuite());
+    suite.addTestSuite(ImmutableLongListTest.class);
+    return suite;
+  }
+
+  private abstract static class TestLongListGenerator
+      implements TestListGenerator<Long> {
+    public SampleElements<Long> samples() {
+      return new SampleElements<Long>(
+          0L, 1L, Long.MAX_VALUE, Long.MIN_VALUE, 1L << 32);
+    }
+
+    public List<Long> create(Object... elements) {
+      long[] array = new long[elements.length];
+      for (int i = 0; i < elements.length; i++) {
+        array[i] = (Long) elements[i];
+      }
+      return create(array);
+    }
+
+    protected abstract List<Long> create(long[] elements);
+
+    public Long[] createArray(int length) {
+      return new Long[length];
+    }
+
+    public List<Long> order(List<Long> insertionOrder) {
+      return insertionOrder;
+    }
+  }
+
+  public void testBasics() {
+    ImmutableLongList list = ImmutableLongList.of(1L << 40, -1, 1L << 40);
+    assertEquals(3, list.size());
+    assertEquals(1L << 40, list.get(0));
+    assertEquals(2, list.lastIndexOf(1L << 40));
+    assertFalse(list.contains(0));
+    assertEquals(ImmutableLongList.of(-1), list.subList(1, 2));
+    assertEquals(list, ImmutableLongList.copyOf(list.asList()));
+    assertEquals("[1099511627776, -1, 1099511627776]", list.toString());
+  }
+
+  public void testHashCode() {
+    ImmutableLongList list = ImmutableLongList.of(1L << 40, -1, 7);
+    assertEquals(Arrays.asList(1L << 40, -1L, 7L).hashCode(), list.hashCode());
+  }
+
+  public void testBuilder() {
+    ImmutableLongList.Builder builder = ImmutableLongList.builder();
+    for (long i = 0; i < 100; i++) {
+      builder.add(i);
+    }
+    ImmutableLongList list = builder.add(100, 101)
+        .addAll(Arrays.asList(102L))
+        .build();
+    assertEquals(103, list.size());
+    assertEquals(102, list.get(102));
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+/**
+ * Compares {@link ImmutableIntList} and {@link ImmutableLongList} to an
+ * {@link ImmutableList} of boxed values, which is a {@code
+ * RegularImmutableList} backed by an {@code Object[]}. Reports the heap used
+ * per element, counting the boxes, and the time taken to sum the elements.
+ * The values are distinct and too large for the {@code valueOf} caches, like
+ * IDs and timestamps.
+ *
+ * <p>Run with {@code java
+ * com.google.common.collect.ImmutablePrimitiveListBenchmark [elements]},
+ * preferably with a fixed heap size. The footprint comes from {@link
+ * Runtime} after requesting garbage collection, so it's an estimate; the
+ * default is a million elements. This is not part of the test suite.
+ */
+public class ImmutablePrimitiveListBenchmark {
+
+  enum Configuration {
+    IMMUTABLE_LIST_OF_INTEGER {
+      @Override Object create(int size) {
+        ImmutableList.Builder<Integer> builder = ImmutableList.builder();
+        for (int i = 0; i < size; i++) {
+          builder.add(1000 + i);
+        }
+        return builder.build();
+      }
+
+      @SuppressWarnings("unchecked") // made by create
+      @Override long sum(Object list) {
+        long sum = 0;
+        for (Integer value : (ImmutableList<Integer>) list) {
+          sum += value;
+        }
+        return sum;
+      }
+    },
+    IMMUTABLE_INT_LIST {
+      @Override Object create(int size) {
+        ImmutableIntList.Builder builder = ImmutableIntList.builder();
+        for (int i = 0; i < size; i++) {
+          builder.add(1000 + i);
+        }
+        return builder.build();
+      }
+
+      @Override long sum(Object object) {
+        ImmutableIntList list = (ImmutableIntList) object;
+        long sum = 0;
+        for (int i = 0; i < list.size(); i++) {
+          sum += list.get(i);
+        }
+        return sum;
+      }
+    },
+    IMMUTABLE_INT_LIST_AS_LIST {
+      @Override Object create(int size) {
+        return IMMUTABLE_INT_LIST.create(size);
+      }
+
+      @Override long sum(Object list) {
+        long sum = 0;
+        for (Integer value : ((ImmutableIntList) list).asList()) {
+          sum += value;
+        }
+        return sum;
+      }
+    },
+    IMMUTABLE_LIST_OF_LONG {
+      @Override Object create(int size) {
+        ImmutableList.Builder<Long> builder = ImmutableList.builder();
+        for (int i = 0; i < size; i++) {
+          builder.add(1000L + i);
+        }
+        return builder.build();
+      }
+
+      @SuppressWarnings("unchecked") // made by create
+      @Override long sum(Object list) {
+        long sum = 0;
+        for (Long value : (ImmutableList<Long>) list) {
+          sum += value;
+        }
+        return sum;
+      }
+    },
+    IMMUTABLE_LONG_LIST {
+      @Override Object create(int size) {
+        ImmutableLongList.Builder builder = ImmutableLongList.builder();
+        for (int i = 0; i < size; i++) {
+          builder.add(1000L + i);
+        }
+        return builder.build();
+      }
+
+      @Override long sum(Object object) {
+        ImmutableLongList list = (ImmutableLongList) object;
+        long sum = 0;
+        for (int i = 0; i < list.size(); i++) {
+          sum += list.get(i);
+        }
+        return sum;
+      }
+    };
+
+    /** Returns a list of the given number of distinct values. */
+    abstract Object create(int size);
+
+    abstract long sum(Object list);
+  }
+
+  public static void main(String[] args) {
+    int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+    // One unreported round to load and compile the list classes.
+    for (Configuration configuration : Configuration.values()) {
+      measureFootprint(configuration, size);
+      measureSum(configuration, size);
+    }
+    System.out.printf("%-28s %14s %14s%n",
+        "", "bytes/element", "ns/element");
+    for (Configuration configuration : Configuration.values()) {
+      System.out.printf("%-28s %14.1f %14.2f%n", configuration,
+          (double) measureFootprint(configuration, size) / size,
+          measureSum(configuration, size) / size);
+    }
+  }
+
+  /** Returns the bytes used by a list of the given size. */
+  static long measureFootprint(Configuration configuration, int size) {
+    long before = usedMemory();
+    Object list = configuration.create(size);
+    long after = usedMemory();
+    if (configuration.sum(list) == 0) {
+      throw new AssertionError(configuration + " lost elements");
+    }
+    return after - before;
+  }
+
+  /** Returns the fastest of several sums of a list, in nanoseconds. */
+  static double measureSum(Configuration configuration, int size) {
+    Object list = configuration.create(size);
+    long best = Long.MAX_VALUE;
+    long check = 0;
+    for (int round = 0; round < 20; round++) {
+      long start = System.nanoTime();
+      check += configuration.sum(list);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    if (check == 0) {
+      throw new AssertionError(configuration + " lost elements");
+    }
+    return best;
+  }
+
+  static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+
+/**
+ * Reports the memory retained by an {@link ImmutableSortedMap}, beyond its
+ * keys and values, and the time taken by {@link ImmutableSortedMap#get} for
+ * present keys (hits) and absent keys (misses), on the whole map and on a
+ * submap covering half of it.
+ *
+ * <p>Run with {@code java
+ * com.google.common.collect.ImmutableSortedMapBenchmark [entries]}; the
+ * default is one million entries. This is not part of the test suite.
+ */
+public class ImmutableSortedMapBenchmark {
+
+  public static void main(String[] args) {
+    int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+    List<Integer> keys = Lists.newArrayList();
+    for (int i = 0; i < size * 2; i++) {
+      keys.add(i);
+    }
+    Collections.shuffle(keys, new Random(0));
+    List<Integer> present = keys.subList(0, size);
+    Integer[] hits = present.toArray(new Integer[size]);
+    Integer[] misses = keys.subList(size, size * 2).toArray(new Integer[size]);
+
+    // One unreported round to load and compile the map classes.
+    measure(present, hits, misses);
+    double[] results = measure(present, hits, misses);
+    System.out.printf("%12s %10s %10s %12s %12s%n", "bytes/entry",
+        "hit (ns)", "miss (ns)", "sub hit (ns)", "sub miss (ns)");
+    System.out.printf("%12.1f %10.1f %10.1f %12.1f %12.1f%n", results[0],
+        results[1], results[2], results[3], results[4]);
+  }
+
+  /**
+   * Returns the bytes retained per entry, and the nanoseconds per hit and
+   * per miss on the map and then on a submap.
+   */
+  static double[] measure(
+      List<Integer> present, Integer[] hits, Integer[] misses) {
+    long before = usedMemory();
+    ImmutableSortedMap<Integer, Integer> map = build(present);
+    long after = usedMemory();
+    if (map.size() != hits.length) {
+      throw new AssertionError("lost entries");
+    }
+
+    SortedMap<Integer, Integer> submap = map.headMap(hits.length);
+    int submapHits = 0;
+    for (Integer key : hits) {
+      if (key < hits.length) {
+        submapHits++;
+      }
+    }
+    return new double[] {
+        (double) (after - before) / hits.length,
+        time(map, hits, hits.length),
+        time(map, misses, 0),
+        time(submap, hits, submapHits),
+        time(submap, misses, 0)};
+  }
+
+  /** Returns a map from each of the given keys to itself. */
+  static ImmutableSortedMap<Integer, Integer> build(List<Integer> keys) {
+    ImmutableSortedMap.Builder<Integer, Integer> builder
+        = ImmutableSortedMap.naturalOrder();
+    for (Integer key : keys) {
+      builder.put(key, key);
+    }
+    return builder.build();
+  }
+
+  /** Returns the fastest of several rounds of lookups, per lookup. */
+  static double time(
+      SortedMap<Integer, Integer> map, Integer[] keys, int expectedFound) {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < 10; round++) {
+      long start = System.nanoTime();
+      int found = 0;
+      for (Integer key : keys) {
+        if (map.get(key) != null) {
+          found++;
+        }
+      }
+      best = Math.min(best, System.nanoTime() - start);
+      if (found != expectedFound) {
+        throw new AssertionError(found + " found");
+      }
+    }
+    return (double) best / keys.length;
+  }
+
+  static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -791,4 +791,24 @@ public class ImmutableSortedMapTest extends TestCase {
     assertEquals(Lists.newArrayList(map.values()),
         Lists.newArrayList(SerializableTester.reserialize(map.values())));
   }
+
+  public void testKeySetHasNoSearchTree() {
+    int size = RegularImmutableSortedSet.TREE_THRESHOLD;
+    Builder<Integer, Integer> builder = ImmutableSortedMap.naturalOrder();
+    for (int i = 0; i < size; i++) {
+      builder.put(i, i);
+    }
+    ImmutableSortedMap<Integer, Integer> map = builder.build();
+    RegularImmutableSortedSet<Integer> keySet
+        = (RegularImmutableSortedSet<Integer>) map.keySet();
+    assertFalse(keySet.hasSearchTree());
+    assertTrue(keySet.contains(size - 1));
+    assertFalse(keySet.contains(size));
+
+    // a set of the same keys would have one
+    RegularImmutableSortedSet<Integer> set
+        = (RegularImmutableSortedSet<Integer>) ImmutableSortedSet.copyOf(
+            Lists.newArrayList(keySet));
+    assertTrue(set.hasSearchTree());
+  }
 }
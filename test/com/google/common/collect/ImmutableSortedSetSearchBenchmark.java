@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reports the time taken to search a large {@link ImmutableSortedSet} of
+ * {@code Integer}s, whose search tree layout is compared to a binary search
+ * of the same elements in a sorted array, the way smaller sets are searched.
+ * Half of the random keys searched for are in the set.
+ *
+ * <ul>
+ * <li>{@code ARRAY_BINARY_SEARCH}: {@link Collections#binarySearch} over the
+ *     sorted array.
+ * <li>{@code CONTAINS}: {@link ImmutableSortedSet#contains}.
+ * <li>{@code TAIL_SET}: {@link ImmutableSortedSet#tailSet}, which finds a
+ *     boundary with the same search.
+ * </ul>
+ *
+ * <p>Run with {@code java
+ * com.google.common.collect.ImmutableSortedSetSearchBenchmark [sizes...]},
+ * with a heap large enough for the largest set; the default sizes are from
+ * one thousand to fifty million elements. Sets of fewer than {@link
+ * RegularImmutableSortedSet#TREE_THRESHOLD} elements have no search tree,
+ * so {@code CONTAINS} then measures the same binary search as {@code
+ * ARRAY_BINARY_SEARCH}. This is not part of the test suite.
+ */
+public class ImmutableSortedSetSearchBenchmark {
+
+  static final int SEARCHES = 1 << 20;
+
+  enum Configuration {
+    ARRAY_BINARY_SEARCH {
+      @Override int search(ImmutableSortedSet<Integer> set,
+          List<Integer> sortedList, Integer[] keys) {
+        int found = 0;
+        for (Integer key : keys) {
+          if (Collections.binarySearch(sortedList, key) >= 0) {
+            found++;
+          }
+        }
+        return found;
+      }
+    },
+    CONTAINS {
+      @Override int search(ImmutableSortedSet<Integer> set,
+          List<Integer> sortedList, Integer[] keys) {
+        int found = 0;
+        for (Integer key : keys) {
+          if (set.contains(key)) {
+            found++;
+          }
+        }
+        return found;
+      }
+    },
+    TAIL_SET {
+      @Override int search(ImmutableSortedSet<Integer> set,
+          List<Integer> sortedList, Integer[] keys) {
+        int sizes = 0;
+        for (Integer key : keys) {
+          sizes += set.tailSet(key).size();
+        }
+        return sizes;
+      }
+    };
+
+    /** Searches for each key, and returns a checksum of the results. */
+    abstract int search(ImmutableSortedSet<Integer> set,
+        List<Integer> sortedList, Integer[] keys);
+  }
+
+  public static void main(String[] args) {
+    int[] sizes = {1000, 10000, 100000, 250000, 500000, 1000000, 2000000,
+        4000000, 8000000, 50000000};
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+
+    // One unreported round to load and compile the collection classes.
+    measure(sizes[0]);
+    System.out.printf("%10s", "size");
+    for (Configuration configuration : Configuration.values()) {
+      System.out.printf(" %20s", configuration);
+    }
+    System.out.printf(" (ns/search)%n");
+    for (int size : sizes) {
+      double[] times = measure(size);
+      System.out.printf("%10d", size);
+      for (double time : times) {
+        System.out.printf(" %20.1f", time);
+      }
+      System.out.printf("%n");
+    }
+  }
+
+  /** Returns the nanoseconds per search for each configuration. */
+  static double[] measure(int size) {
+    // The even numbers, so that the odd numbers are absent.
+    Integer[] elements = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      elements[i] = 2 * i;
+    }
+    ImmutableSortedSet<Integer> set
+        = ImmutableSortedSet.copyOf(Arrays.asList(elements));
+    List<Integer> sortedList = Arrays.asList(elements);
+
+    Random random = new Random(0);
+    Integer[] keys = new Integer[SEARCHES];
+    for (int i = 0; i < SEARCHES; i++) {
+      keys[i] = random.nextInt(2 * size);
+    }
+
+    Configuration[] configurations = Configuration.values();
+    double[] times = new double[configurations.length];
+    for (int i = 0; i < configurations.length; i++) {
+      times[i] = time(configurations[i], set, sortedList, keys);
+    }
+    return times;
+  }
+
+  /** Returns the fastest of several rounds of searches, per search. */
+  static double time(Configuration configuration,
+      ImmutableSortedSet<Integer> set, List<Integer> sortedList,
+      Integer[] keys) {
+    long best = Long.MAX_VALUE;
+    int checksum = 0;
+    for (int round = 0; round < 5; round++) {
+      long start = System.nanoTime();
+      checksum += configuration.search(set, sortedList, keys);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    if (checksum == 0) {
+      throw new AssertionError(configuration + " found nothing");
+    }
+    return (double) best / keys.length;
+  }
+}
@@ -683,6 +683,63 @@ public class ImmutableSortedSetTest extends AbstractImmutableSetTest {
     }
   }
 
+  public void testSearchTree_inOrder() {
+    for (int size = 1; size <= 300; size++) {
+      Integer[] elements = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        elements[i] = i;
+      }
+      Object[] tree = RegularImmutableSortedSet.buildTree(elements);
+      for (int k = 1; k <= size; k++) {
+        int value = (Integer) tree[k];
+        assertEquals(value,
+            RegularImmutableSortedSet.treeIndexToIndex(k, size));
+        if (2 * k <= size) {
+          assertTrue((Integer) tree[2 * k] < value);
+        }
+        if (2 * k + 1 <= size) {
+          assertTrue((Integer) tree[2 * k + 1] > value);
+        }
+      }
+    }
+  }
+
+  public void testSearchTree() {
+    // only the even numbers, so that every odd number falls between two
+    int size = 1000;
+    SortedSet<Integer> expected = Sets.newTreeSet();
+    for (int i = 0; i < size; i++) {
+      expected.add(2 * i);
+    }
+    // a set this small would not normally have a tree
+    Object[] elements = expected.toArray();
+    ImmutableSortedSet<Integer> set = new RegularImmutableSortedSet<Integer>(
+        elements, Ordering.natural(), 0, size,
+        RegularImmutableSortedSet.buildTree(elements));
+    for (int i = -3; i < 2 * size + 3; i++) {
+      assertEquals(expected.contains(i), set.contains(i));
+    }
+    for (int i = -3; i < 2 * size + 3; i += 7) {
+      assertEquals(expected.headSet(i), set.headSet(i));
+      assertEquals(expected.tailSet(i), set.tailSet(i));
+    }
+
+    int low = 101;
+    int high = 2 * size - 101;
+    ImmutableSortedSet<Integer> subset = set.subSet(low, high);
+    for (int i = -3; i < 2 * size + 3; i++) {
+      assertEquals(i >= low && i < high && expected.contains(i),
+          subset.contains(i));
+    }
+    for (int i = -3; i < 2 * size + 3; i += 7) {
+      // unlike ImmutableSortedSet, TreeSet rejects bounds outside a subset
+      assertEquals(expected.subSet(low, Math.max(low, Math.min(i, high))),
+          subset.headSet(i));
+      assertEquals(expected.subSet(Math.min(high, Math.max(i, low)), high),
+          subset.tailSet(i));
+    }
+  }
+
   private static final <E> Iterator<E> asIterator(E... elements) {
     return asList(elements).iterator();
   }
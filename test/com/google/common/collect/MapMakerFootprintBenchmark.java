@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the heap used per entry by maps made with various {@link MapMaker}
+ * configurations, compared to {@link ConcurrentHashMap}. The keys and the
+ * value are allocated up front and shared by every map, so only the map's
+ * own structure is measured: its table, entries, and any references to keys
+ * and values.
+ *
+ * <p>Run with {@code java com.google.common.collect.MapMakerFootprintBenchmark
+ * [entries]}, preferably with a fixed heap size. The figures come from
+ * {@link Runtime} after requesting garbage collection, so they're estimates;
+ * use several hundred thousand entries to average out the noise. This is not
+ * part of the test suite.
+ */
+public class MapMakerFootprintBenchmark {
+
+  static final Object VALUE = new Object();
+
+  enum Configuration {
+    CONCURRENT_HASH_MAP {
+      @Override ConcurrentMap<Object, Object> create() {
+        return new ConcurrentHashMap<Object, Object>();
+      }
+    },
+    STRONG {
+      @Override ConcurrentMap<Object, Object> create() {
+        // Statistics are kept per map, so they add nothing per entry.
+        return new MapMaker().recordStats().makeMap();
+      }
+    },
+    WEAK_KEYS {
+      @Override ConcurrentMap<Object, Object> create() {
+        return new MapMaker().weakKeys().makeMap();
+      }
+    },
+    SOFT_KEYS {
+      @Override ConcurrentMap<Object, Object> create() {
+        return new MapMaker().softKeys().makeMap();
+      }
+    },
+    WEAK_VALUES {
+      @Override ConcurrentMap<Object, Object> create() {
+        return new MapMaker().weakValues().makeMap();
+      }
+    },
+    SOFT_VALUES {
+      @Override ConcurrentMap<Object, Object> create() {
+        return new MapMaker().softValues().makeMap();
+      }
+    },
+    WEAK_KEYS_WEAK_VALUES {
+      @Override ConcurrentMap<Object, Object> create() {
+        return new MapMaker().weakKeys().weakValues().makeMap();
+      }
+    },
+    EXPIRATION {
+      @Override ConcurrentMap<Object, Object> create() {
+        return new MapMaker().expiration(1, TimeUnit.HOURS).makeMap();
+      }
+    },
+    MAXIMUM_SIZE {
+      @Override ConcurrentMap<Object, Object> create() {
+        return new MapMaker().maximumSize(Integer.MAX_VALUE).makeMap();
+      }
+    },
+    EXPIRATION_MAXIMUM_SIZE {
+      @Override ConcurrentMap<Object, Object> create() {
+        return new MapMaker()
+            .expiration(1, TimeUnit.HOURS)
+            .maximumSize(Integer.MAX_VALUE)
+            .makeMap();
+      }
+    },
+    WEAK_KEYS_EXPIRATION_MAXIMUM_SIZE {
+      @Override ConcurrentMap<Object, Object> create() {
+        return new MapMaker()
+            .weakKeys()
+            .expiration(1, TimeUnit.HOURS)
+            .maximumSize(Integer.MAX_VALUE)
+            .makeMap();
+      }
+    };
+
+    abstract ConcurrentMap<Object, Object> create();
+  }
+
+  public static void main(String[] args) {
+    int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+    Object[] keys = new Object[entries];
+    for (int i = 0; i < entries; i++) {
+      keys[i] = new Object();
+    }
+
+    // One unreported round to load and compile the map classes.
+    for (Configuration configuration : Configuration.values()) {
+      measure(configuration, keys);
+    }
+    for (Configuration configuration : Configuration.values()) {
+      System.out.printf("%-34s %6.1f bytes/entry%n", configuration,
+          (double) measure(configuration, keys) / entries);
+    }
+  }
+
+  /** Returns the bytes used by a map holding the given keys. */
+  static long measure(Configuration configuration, Object[] keys) {
+    long before = usedMemory();
+    ConcurrentMap<Object, Object> map = configuration.create();
+    for (Object key : keys) {
+      map.put(key, VALUE);
+    }
+    long after = usedMemory();
+    if (map.size() != keys.length) {
+      throw new AssertionError(configuration + " lost entries");
+    }
+    return after - before;
+  }
+
+  static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import com.google.common.base.Ticker;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reports the latency of individual puts while a map grows from empty,
+ * which is dominated at the high percentiles by the puts that resize a
+ * table. A custom map made by {@link MapMaker} is compared to {@link
+ * ConcurrentHashMap}, each with a single segment, so that every resize
+ * covers the whole map.
+ *
+ * <p>Run with {@code java com.google.common.collect.MapMakerResizeBenchmark
+ * [entries]}, with a heap large enough for the maps and an int per entry
+ * of timings; the default is ten million entries. This is not part of the
+ * test suite.
+ */
+public class MapMakerResizeBenchmark {
+
+  enum Configuration {
+    CONCURRENT_HASH_MAP {
+      @Override ConcurrentMap<Integer, Integer> create() {
+        return new ConcurrentHashMap<Integer, Integer>(16, 0.75f, 1);
+      }
+    },
+    MAP_MAKER {
+      @Override ConcurrentMap<Integer, Integer> create() {
+        // Setting the ticker makes a custom map with no other features.
+        return new MapMaker()
+            .concurrencyLevel(1)
+            .ticker(Ticker.systemTicker())
+            .makeMap();
+      }
+    };
+
+    abstract ConcurrentMap<Integer, Integer> create();
+  }
+
+  public static void main(String[] args) {
+    int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+    Integer[] keys = new Integer[entries];
+    for (int i = 0; i < entries; i++) {
+      keys[i] = i;
+    }
+    int[] latencies = new int[entries];
+
+    // One unreported round to load and compile the map classes.
+    for (Configuration configuration : Configuration.values()) {
+      measure(configuration, keys, latencies);
+    }
+    System.out.printf("%-20s %8s %8s %8s %10s (microseconds)%n",
+        "", "p50", "p99", "p99.99", "max");
+    for (Configuration configuration : Configuration.values()) {
+      measure(configuration, keys, latencies);
+      Arrays.sort(latencies);
+      System.out.printf("%-20s %8.2f %8.2f %8.2f %10.2f%n", configuration,
+          percentile(latencies, 0.5), percentile(latencies, 0.99),
+          percentile(latencies, 0.9999), latencies[entries - 1] / 1000.0);
+    }
+  }
+
+  /** Records the nanoseconds taken by each put of the given keys. */
+  static void measure(
+      Configuration configuration, Integer[] keys, int[] latencies) {
+    ConcurrentMap<Integer, Integer> map = configuration.create();
+    for (int i = 0; i < keys.length; i++) {
+      long start = System.nanoTime();
+      map.put(keys[i], keys[i]);
+      latencies[i] = (int) Math.min(System.nanoTime() - start,
+          Integer.MAX_VALUE);
+    }
+    if (map.size() != keys.length) {
+      throw new AssertionError(configuration + " lost entries");
+    }
+  }
+
+  /** Returns a percentile of the sorted latencies, in microseconds. */
+  static double percentile(int[] sortedLatencies, double fraction) {
+    int index = (int) (fraction * (sortedLatencies.length - 1));
+    return sortedLatencies[index] / 1000.0;
+  }
+}
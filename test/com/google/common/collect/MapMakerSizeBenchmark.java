@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.collect;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the write throughput of a map made by {@link MapMaker} while
+ * another thread polls its size, as a metrics exporter would. Compares no
+ * polling, polling {@link java.util.Map#size}, and polling {@link
+ * MapMaker#approximateSize}.
+ *
+ * <p>Run with {@code java com.google.common.collect.MapMakerSizeBenchmark
+ * [writerThreads] [seconds]}. This is not part of the test suite.
+ */
+public class MapMakerSizeBenchmark {
+
+  static final int KEY_RANGE = 1 << 16;
+
+  enum Poller {
+    NONE {
+      @Override long poll(ConcurrentMap<Integer, Integer> map) {
+        return 0;
+      }
+    },
+    SIZE {
+      @Override long poll(ConcurrentMap<Integer, Integer> map) {
+        return map.size();
+      }
+    },
+    APPROXIMATE_SIZE {
+      @Override long poll(ConcurrentMap<Integer, Integer> map) {
+        return MapMaker.approximateSize(map);
+      }
+    };
+
+    abstract long poll(ConcurrentMap<Integer, Integer> map);
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int writers = (args.length > 0) ? Integer.parseInt(args[0])
+        : Runtime.getRuntime().availableProcessors();
+    long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 5;
+
+    // One untimed round to warm up the JIT.
+    for (Poller poller : Poller.values()) {
+      run(poller, writers, 1);
+    }
+    for (Poller poller : Poller.values()) {
+      long writes = run(poller, writers, seconds);
+      System.out.printf("%-16s %,14d writes/s%n", poller, writes / seconds);
+    }
+  }
+
+  /** Returns the number of writes completed in the given time. */
+  static long run(final Poller poller, int writers, long seconds)
+      throws InterruptedException {
+    final ConcurrentMap<Integer, Integer> map = new MapMaker()
+        .expiration(1, TimeUnit.HOURS)
+        .makeMap();
+    for (int i = 0; i < KEY_RANGE / 2; i++) {
+      map.put(i, i);
+    }
+
+    final AtomicLong writes = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    Thread[] threads = new Thread[writers + 1];
+    for (int t = 0; t < writers; t++) {
+      final Random random = new Random(t);
+      threads[t] = new Thread() {
+        @Override public void run() {
+          await(start);
+          long count = 0;
+          while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 1000; i++) {
+              Integer key = random.nextInt(KEY_RANGE);
+              if ((i & 1) == 0) {
+                map.put(key, key);
+              } else {
+                map.remove(key);
+              }
+            }
+            count += 1000;
+          }
+          writes.addAndGet(count);
+        }
+      };
+    }
+    threads[writers] = new Thread() {
+      @Override public void run() {
+        await(start);
+        long sink = 0;
+        while (System.nanoTime() < deadline) {
+          sink += poller.poll(map);
+        }
+        if (sink == 42) {
+          System.out.println();
+        }
+      }
+    };
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return writes.get();
+  }
+
+  static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -18,6 +18,10 @@ package com.google.common.collect;
 
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
+import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import com.google.common.collect.CustomConcurrentHashMap.BulkTask;
 import com.google.common.collect.CustomConcurrentHashMap.Impl;
 import com.google.common.collect.testing.Helpers;
 import com.google.common.testutils.SerializableTester;
@@ -26,22 +30,37 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -189,6 +208,51 @@ public class MapMakerTestSuite extends TestCase {
       }
     }
 
+    public void testExpireAfterAccess_negative() {
+      MapMaker maker = new MapMaker();
+      try {
+        maker.expireAfterAccess(-1, SECONDS);
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+
+    public void testExpireAfterAccess_afterExpiration() {
+      MapMaker maker = new MapMaker().expiration(3600, SECONDS);
+      try {
+        maker.expireAfterAccess(3600, SECONDS);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testMaximumSize_negative() {
+      MapMaker maker = new MapMaker();
+      try {
+        maker.maximumSize(-1);
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+
+    public void testMaximumSize_setTwice() {
+      MapMaker maker = new MapMaker().maximumSize(16);
+      try {
+        // even to the same value is not allowed
+        maker.maximumSize(16);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testMaximumSize_limitsSegments() {
+      MapMaker maker = new MapMaker().concurrencyLevel(16).maximumSize(8);
+      Impl<?, ?, ?> map = makeCustomMap(maker);
+
+      // each segment must be able to hold at least one entry
+      assertEquals(8, map.segments.length);
+    }
+
     public void testReturnsPlainConcurrentHashMapWhenPossible() {
       Map<?, ?> map = new MapMaker()
           .concurrencyLevel(5)
@@ -867,33 +931,10 @@ public class MapMakerTestSuite extends TestCase {
 
   public static class ExpiringReferenceMapTest extends TestCase {
 
-    private static final long EXPIRING_TIME = 10;
+    private static final long EXPIRING_TIME = 100;
     private static final int VALUE_PREFIX = 12345;
     private static final String KEY_PREFIX = "key prefix:";
 
-    Timer oldTimer;
-    final List<TimerTask> tasks = new ArrayList<TimerTask>();
-
-    @Override protected void setUp() throws Exception {
-      oldTimer = ExpirationTimer.instance;
-      ExpirationTimer.instance = new Timer() {
-        @Override public void schedule(TimerTask task, long delay) {
-          tasks.add(task);
-        }
-      };
-    }
-
-    @Override protected void tearDown() throws Exception {
-      ExpirationTimer.instance = oldTimer;
-    }
-
-    private void runTasks() {
-      for (TimerTask task : tasks) {
-        task.run();
-      }
-      tasks.clear();
-    }
-
     public void testExpiringPut() {
       ConcurrentMap<String, Integer> map = new MapMaker()
           .expiration(EXPIRING_TIME, TimeUnit.MILLISECONDS).makeMap();
@@ -904,8 +945,11 @@ public class MapMakerTestSuite extends TestCase {
             map.get(KEY_PREFIX + i));
       }
 
-      runTasks();
+      waitForExpiration(EXPIRING_TIME);
 
+      for (int i = 0; i < 10; i++) {
+        assertNull(map.get(KEY_PREFIX + i));
+      }
       assertEquals("Map must be empty by now", 0, map.size());
     }
 
@@ -919,8 +963,11 @@ public class MapMakerTestSuite extends TestCase {
             map.get(KEY_PREFIX + i));
       }
 
-      runTasks();
+      waitForExpiration(EXPIRING_TIME);
 
+      for (int i = 0; i < 10; i++) {
+        assertNull(map.get(KEY_PREFIX + i));
+      }
       assertEquals("Map must be empty by now", 0, map.size());
     }
 
@@ -966,11 +1013,102 @@ public class MapMakerTestSuite extends TestCase {
             map.get(KEY_PREFIX + i));
       }
 
-      runTasks();
+      waitForExpiration(EXPIRING_TIME);
 
       for (int i = 0; i < 10; i++) {
         assertEquals(null, map.get(KEY_PREFIX + i));
       }
+      assertTrue(map.isEmpty());
+    }
+
+    public void testOverwriteDelaysExpiration() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .expiration(EXPIRING_TIME, TimeUnit.MILLISECONDS).makeMap();
+
+      map.put("key", 1);
+      sleep(EXPIRING_TIME * 2 / 3);
+      map.put("key", 2);
+      sleep(EXPIRING_TIME * 2 / 3);
+      assertEquals(Integer.valueOf(2), map.get("key"));
+      waitForExpiration(EXPIRING_TIME);
+      assertNull(map.get("key"));
+      assertFalse(map.containsKey("key"));
+    }
+
+    public void testReadDelaysExpireAfterAccess() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .expireAfterAccess(EXPIRING_TIME, TimeUnit.MILLISECONDS).makeMap();
+
+      map.put("read", 1);
+      map.put("idle", 2);
+      for (int i = 0; i < 8; i++) {
+        sleep(EXPIRING_TIME / 4);
+        assertEquals(Integer.valueOf(1), map.get("read"));
+      }
+      assertNull(map.get("idle"));
+      assertEquals(1, map.size());
+      waitForExpiration(EXPIRING_TIME);
+      assertNull(map.get("read"));
+      assertTrue(map.isEmpty());
+    }
+
+    public void testReadDoesNotDelayExpiration() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .expiration(EXPIRING_TIME, TimeUnit.MILLISECONDS).makeMap();
+
+      map.put("key", 1);
+      sleep(EXPIRING_TIME * 2 / 3);
+      assertEquals(Integer.valueOf(1), map.get("key"));
+      sleep(EXPIRING_TIME * 2 / 3);
+      assertNull(map.get("key"));
+    }
+
+    public void testExpireAfterAccessComputing() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .expireAfterAccess(EXPIRING_TIME, TimeUnit.MILLISECONDS)
+          .makeComputingMap(new Function<String, Integer>() {
+            int computations;
+            public Integer apply(String key) {
+              return ++computations;
+            }
+          });
+
+      assertEquals(Integer.valueOf(1), map.get("key"));
+      for (int i = 0; i < 8; i++) {
+        sleep(EXPIRING_TIME / 4);
+        assertEquals(Integer.valueOf(1), map.get("key"));
+      }
+      waitForExpiration(EXPIRING_TIME);
+      assertEquals(Integer.valueOf(2), map.get("key"));
+    }
+
+    public void testExpiredEntriesHiddenFromViews() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .expiration(EXPIRING_TIME, TimeUnit.MILLISECONDS).makeMap();
+
+      for (int i = 0; i < 10; i++) {
+        map.put(KEY_PREFIX + i, VALUE_PREFIX + i);
+      }
+      waitForExpiration(EXPIRING_TIME);
+
+      assertFalse(map.entrySet().iterator().hasNext());
+      assertFalse(map.keySet().iterator().hasNext());
+      assertFalse(map.containsValue(VALUE_PREFIX));
+    }
+
+    public void testWriteRemovesExpiredEntries() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .expiration(EXPIRING_TIME, TimeUnit.MILLISECONDS).makeMap();
+
+      for (int i = 0; i < 10; i++) {
+        map.put(KEY_PREFIX + i, VALUE_PREFIX + i);
+      }
+      waitForExpiration(EXPIRING_TIME);
+
+      map.put("fresh", 1);
+      assertEquals(1, map.size());
+      assertEquals(Integer.valueOf(1), map.get("fresh"));
     }
 
     private void runRemovalScheduler(ConcurrentMap<String, Integer> map,
@@ -1018,29 +1156,6 @@ public class MapMakerTestSuite extends TestCase {
     static final String KEY_PREFIX = "THIS IS AN ARBITRARY KEY PREFIX";
     static final int VALUE_SUFFIX = 77777;
 
-    Timer oldTimer;
-    final List<TimerTask> tasks = new ArrayList<TimerTask>();
-
-    @Override protected void setUp() throws Exception {
-      oldTimer = ExpirationTimer.instance;
-      ExpirationTimer.instance = new Timer() {
-        @Override public void schedule(TimerTask task, long delay) {
-          tasks.add(task);
-        }
-      };
-    }
-
-    @Override protected void tearDown() throws Exception {
-      ExpirationTimer.instance = oldTimer;
-    }
-
-    private void runTasks() {
-      for (TimerTask task : tasks) {
-        task.run();
-      }
-      tasks.clear();
-    }
-
     public void testExpiringPut() {
       ConcurrentMap<String, Integer> cache = new MapMaker()
           .expiration(50, TimeUnit.MILLISECONDS)
@@ -1060,8 +1175,11 @@ public class MapMakerTestSuite extends TestCase {
             WATCHED_CREATOR.wasCalled());
       }
 
-      runTasks();
+      waitForExpiration(50);
 
+      for (int i = 0; i < 10; i++) {
+        assertFalse(cache.containsKey(KEY_PREFIX + i));
+      }
       assertEquals("Cache must be empty by now", 0, cache.size());
     }
 
@@ -1076,14 +1194,17 @@ public class MapMakerTestSuite extends TestCase {
             cache.get(KEY_PREFIX + i));
       }
 
-      runTasks();
+      waitForExpiration(50);
 
+      for (int i = 0; i < 10; i++) {
+        assertFalse(cache.containsKey(KEY_PREFIX + i));
+      }
       assertEquals("Cache must be empty by now", 0, cache.size());
     }
 
     public void testExpiringGetForSoft() {
       ConcurrentMap<String, Integer> cache = new MapMaker()
-          .expiration(5, TimeUnit.MILLISECONDS)
+          .expiration(50, TimeUnit.MILLISECONDS)
           .softValues().makeComputingMap(WATCHED_CREATOR);
 
       runExpirationTest(cache);
@@ -1091,7 +1212,7 @@ public class MapMakerTestSuite extends TestCase {
 
     public void testExpiringGetForStrong() {
       ConcurrentMap<String, Integer> cache = new MapMaker()
-          .expiration(10, TimeUnit.MILLISECONDS)
+          .expiration(50, TimeUnit.MILLISECONDS)
           .makeComputingMap(WATCHED_CREATOR);
 
       runExpirationTest(cache);
@@ -1111,7 +1232,7 @@ public class MapMakerTestSuite extends TestCase {
             WATCHED_CREATOR.wasCalled());
       }
 
-      runTasks();
+      waitForExpiration(50);
 
       for (int i = 0; i < 10; i++) {
         WATCHED_CREATOR.reset();
@@ -1213,6 +1334,2914 @@ public class MapMakerTestSuite extends TestCase {
         new WatchedCreatorFunction();
   }
 
+  public static class EvictionTest extends TestCase {
+
+    static final int MAX_SIZE = 10;
+
+    public void testSizeBounded() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .maximumSize(MAX_SIZE)
+          .makeMap();
+      for (int i = 0; i < 2 * MAX_SIZE; i++) {
+        map.put(i, i);
+        assertEquals(Math.min(i + 1, MAX_SIZE), map.size());
+      }
+      // the oldest entries were evicted
+      for (int i = 0; i < MAX_SIZE; i++) {
+        assertFalse(map.containsKey(i));
+      }
+      for (int i = MAX_SIZE; i < 2 * MAX_SIZE; i++) {
+        assertEquals(Integer.valueOf(i), map.get(i));
+      }
+    }
+
+    public void testZeroSize() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .maximumSize(0)
+          .makeMap();
+      map.put(1, 1);
+      assertTrue(map.isEmpty());
+      assertNull(map.get(1));
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .maximumSize(MAX_SIZE)
+          .makeMap();
+      for (int i = 0; i < MAX_SIZE; i++) {
+        map.put(i, i);
+      }
+
+      // reading 0 makes 1 the least recently used entry
+      assertEquals(Integer.valueOf(0), map.get(0));
+      map.put(MAX_SIZE, MAX_SIZE);
+      assertTrue(map.containsKey(0));
+      assertFalse(map.containsKey(1));
+
+      // overwriting 2 makes 3 the least recently used entry
+      map.put(2, -2);
+      map.put(MAX_SIZE + 1, MAX_SIZE + 1);
+      assertEquals(Integer.valueOf(-2), map.get(2));
+      assertFalse(map.containsKey(3));
+      assertEquals(MAX_SIZE, map.size());
+    }
+
+    public void testRemoveThenPut() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .maximumSize(MAX_SIZE)
+          .makeMap();
+      for (int i = 0; i < MAX_SIZE; i++) {
+        map.put(i, i);
+      }
+      map.remove(5);
+      map.put(MAX_SIZE, MAX_SIZE);
+
+      // the removed entry made room, so nothing was evicted
+      assertEquals(MAX_SIZE, map.size());
+      assertTrue(map.containsKey(0));
+    }
+
+    public void testComputingMap() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .maximumSize(MAX_SIZE)
+          .makeComputingMap(new Function<Integer, Integer>() {
+            public Integer apply(Integer key) {
+              return key * 2;
+            }
+          });
+      for (int i = 0; i < 2 * MAX_SIZE; i++) {
+        assertEquals(Integer.valueOf(i * 2), map.get(i));
+      }
+      assertEquals(MAX_SIZE, map.size());
+      assertFalse(map.containsKey(0));
+      assertTrue(map.containsKey(2 * MAX_SIZE - 1));
+    }
+
+    public void testWithExpirationAndWeakKeys() {
+      ConcurrentMap<Object, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .weakKeys()
+          .expiration(1, TimeUnit.HOURS)
+          .maximumSize(MAX_SIZE)
+          .makeMap();
+      Object[] keys = new Object[2 * MAX_SIZE];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = new Object();
+        map.put(keys[i], i);
+      }
+      assertEquals(MAX_SIZE, map.size());
+      assertFalse(map.containsKey(keys[0]));
+      assertEquals(Integer.valueOf(keys.length - 1),
+          map.get(keys[keys.length - 1]));
+    }
+
+    public void testSerialization() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .maximumSize(MAX_SIZE)
+          .makeMap();
+      for (int i = 0; i < MAX_SIZE; i++) {
+        map.put(i, i);
+      }
+      ConcurrentMap<Integer, Integer> copy = SerializableTester.reserialize(map);
+      assertEquals(map, copy);
+      copy.put(MAX_SIZE, MAX_SIZE);
+      assertEquals(MAX_SIZE, copy.size());
+    }
+  }
+
+  public static class WeightTest extends TestCase {
+
+    static final long MAX_WEIGHT = 100;
+
+    /** Weighs each entry by its value. */
+    static class ValueWeigher
+        implements Weigher<Object, Integer>, Serializable {
+      public int weigh(Object key, Integer value) {
+        return value;
+      }
+      private static final long serialVersionUID = 0;
+    }
+
+    static ConcurrentMap<Integer, Integer> newWeighedMap() {
+      return new MapMaker()
+          .concurrencyLevel(1)
+          .maximumWeight(MAX_WEIGHT)
+          .weigher(new ValueWeigher())
+          .makeMap();
+    }
+
+    public void testWeightBounded() {
+      ConcurrentMap<Integer, Integer> map = newWeighedMap();
+      for (int i = 0; i < 10; i++) {
+        map.put(i, 10);
+      }
+      assertEquals(10, map.size());
+
+      // a heavy entry evicts as many light ones as necessary
+      map.put(10, 35);
+      assertEquals(7, map.size());
+      for (int i = 0; i < 4; i++) {
+        assertFalse(map.containsKey(i));
+      }
+      assertEquals(Integer.valueOf(35), map.get(10));
+    }
+
+    public void testReplaceReweighs() {
+      ConcurrentMap<Integer, Integer> map = newWeighedMap();
+      for (int i = 0; i < 10; i++) {
+        map.put(i, 10);
+      }
+      map.replace(9, 30);
+      assertEquals(8, map.size());
+      assertFalse(map.containsKey(0));
+      assertFalse(map.containsKey(1));
+
+      // lighter values make room
+      map.replace(9, 0);
+      map.put(20, 30);
+      assertEquals(9, map.size());
+      assertTrue(map.containsKey(2));
+    }
+
+    public void testZeroWeight() {
+      ConcurrentMap<Integer, Integer> map = newWeighedMap();
+      for (int i = 0; i < 1000; i++) {
+        map.put(i, 0);
+      }
+      assertEquals(1000, map.size());
+    }
+
+    public void testTooHeavy() {
+      ConcurrentMap<Integer, Integer> map = newWeighedMap();
+      map.put(1, 1);
+      map.put(2, (int) MAX_WEIGHT + 1);
+      assertFalse(map.containsKey(2));
+      assertTrue(map.isEmpty());
+    }
+
+    public void testNegativeWeight() {
+      ConcurrentMap<Integer, Integer> map = newWeighedMap();
+      try {
+        map.put(1, -1);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+      assertTrue(map.isEmpty());
+      map.put(1, 1);
+      assertEquals(1, map.size());
+    }
+
+    public void testComputingMap() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .maximumWeight(MAX_WEIGHT)
+          .weigher(new ValueWeigher())
+          .makeComputingMap(Functions.<Integer>identity());
+      for (int i = 0; i < 20; i++) {
+        assertEquals(Integer.valueOf(i), map.get(i));
+      }
+      // 19 + 18 + ... + 14 = 99
+      assertEquals(6, map.size());
+      assertTrue(map.containsKey(14));
+      assertFalse(map.containsKey(13));
+    }
+
+    public void testRemoveReleasesWeight() {
+      ConcurrentMap<Integer, Integer> map = newWeighedMap();
+      map.put(1, 60);
+      map.remove(1);
+      map.put(2, 60);
+      map.put(3, 40);
+      assertEquals(2, map.size());
+      map.clear();
+      map.put(4, 100);
+      assertEquals(1, map.size());
+    }
+
+    public void testSerialization() {
+      ConcurrentMap<Integer, Integer> map = newWeighedMap();
+      for (int i = 0; i < 10; i++) {
+        map.put(i, 10);
+      }
+      ConcurrentMap<Integer, Integer> copy
+          = SerializableTester.reserialize(map);
+      assertEquals(map, copy);
+      copy.put(10, 10);
+      assertEquals(10, copy.size());
+    }
+
+    public void testRequiresBoth() {
+      try {
+        new MapMaker().maximumWeight(MAX_WEIGHT).makeMap();
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+      try {
+        new MapMaker().weigher(new ValueWeigher()).makeMap();
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testExclusiveWithMaximumSize() {
+      try {
+        new MapMaker().maximumSize(10).maximumWeight(MAX_WEIGHT);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+      try {
+        new MapMaker().maximumWeight(MAX_WEIGHT).maximumSize(10);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testInvalidArguments() {
+      try {
+        new MapMaker().maximumWeight(-1);
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        new MapMaker().weigher(null);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+    }
+  }
+
+  public static class StatsTest extends TestCase {
+
+    public void testRecordStats_setTwice() {
+      MapMaker maker = new MapMaker().recordStats();
+      try {
+        maker.recordStats();
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testStats_notRecorded() {
+      try {
+        MapMaker.stats(new MapMaker().makeMap());
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        MapMaker.stats(new MapMaker().weakKeys().makeMap());
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+
+    public void testEmpty() {
+      CacheStats stats = MapMaker.stats(new MapMaker().recordStats().makeMap());
+      assertEquals(0, stats.requestCount());
+      assertEquals(1.0, stats.hitRate());
+      assertEquals(0.0, stats.missRate());
+      assertEquals(0.0, stats.averageComputePenalty());
+      assertEquals(
+          new CacheStats(0, 0, 0, 0, 0, 0, 0, 0, 0), stats);
+    }
+
+    public void testHitsAndMisses() {
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().recordStats().makeMap();
+      map.put("a", 1);
+      map.get("a");
+      map.get("a");
+      map.get("b");
+      map.containsKey("b"); // not counted
+
+      CacheStats stats = MapMaker.stats(map);
+      assertEquals(3, stats.requestCount());
+      assertEquals(2, stats.hitCount());
+      assertEquals(1, stats.missCount());
+      assertEquals(2.0 / 3, stats.hitRate());
+      assertEquals(1.0 / 3, stats.missRate());
+      assertEquals(0, stats.computeCount());
+    }
+
+    public void testComputations() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .recordStats()
+          .makeComputingMap(new Function<String, Integer>() {
+            public Integer apply(String key) {
+              if (key.equals("bad")) {
+                throw new IllegalStateException();
+              }
+              return key.length();
+            }
+          });
+      assertEquals(Integer.valueOf(3), map.get("one"));
+      assertEquals(Integer.valueOf(3), map.get("one"));
+      assertEquals(Integer.valueOf(3), map.get("two"));
+      try {
+        map.get("bad");
+        fail();
+      } catch (ComputationException expected) {
+      }
+
+      CacheStats stats = MapMaker.stats(map);
+      assertEquals(1, stats.hitCount());
+      assertEquals(3, stats.missCount());
+      assertEquals(3, stats.computeCount());
+      assertEquals(2, stats.computeSuccessCount());
+      assertEquals(1, stats.computeExceptionCount());
+      assertTrue(stats.totalComputeTime() >= 0);
+      assertEquals(0, stats.waitCount());
+    }
+
+    public void testWaitCount() throws InterruptedException {
+      final CountDownLatch computing = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final ConcurrentMap<String, Integer> map = new MapMaker()
+          .recordStats()
+          .makeComputingMap(new Function<String, Integer>() {
+            public Integer apply(String key) {
+              computing.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+              return 1;
+            }
+          });
+      Thread computer = new Thread() {
+        @Override public void run() {
+          map.get("key");
+        }
+      };
+      computer.start();
+      computing.await();
+      Thread waiter = new Thread() {
+        @Override public void run() {
+          map.get("key");
+        }
+      };
+      waiter.start();
+      // give the waiter a chance to block
+      while (waiter.getState() != Thread.State.WAITING
+          && waiter.isAlive()) {
+        Thread.yield();
+      }
+      release.countDown();
+      computer.join();
+      waiter.join();
+
+      CacheStats stats = MapMaker.stats(map);
+      assertEquals(2, stats.missCount());
+      assertEquals(1, stats.computeSuccessCount());
+      assertEquals(1, stats.waitCount());
+    }
+
+    public void testExpiredAndEvicted() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .maximumSize(1)
+          .expiration(10, TimeUnit.MILLISECONDS)
+          .recordStats()
+          .makeMap();
+      map.put(1, 1);
+      map.put(2, 2);
+      assertEquals(1, MapMaker.stats(map).evictedCount());
+      waitForExpiration(10);
+      map.put(3, 3);
+
+      CacheStats stats = MapMaker.stats(map);
+      assertEquals(1, stats.expiredCount());
+      assertEquals(1, stats.evictedCount());
+      assertEquals(0, stats.collectedCount());
+    }
+
+    public void testConcurrentHits() throws InterruptedException {
+      final ConcurrentMap<Integer, Integer> map
+          = new MapMaker().recordStats().makeMap();
+      map.put(1, 1);
+      final int threadCount = 4;
+      final int readsPerThread = 10000;
+      Thread[] threads = new Thread[threadCount];
+      for (int i = 0; i < threadCount; i++) {
+        threads[i] = new Thread() {
+          @Override public void run() {
+            for (int j = 0; j < readsPerThread; j++) {
+              map.get(1);
+            }
+          }
+        };
+        threads[i].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertEquals(threadCount * readsPerThread,
+          MapMaker.stats(map).hitCount());
+    }
+
+    public void testSerializationResetsStats() {
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().recordStats().makeMap();
+      map.put("a", 1);
+      map.get("a");
+      ConcurrentMap<String, Integer> copy = SerializableTester.reserialize(map);
+      assertEquals(0, MapMaker.stats(copy).requestCount());
+      assertEquals(map, copy);
+    }
+
+    public void testSnapshotEquality() {
+      CacheStats a = new CacheStats(1, 2, 3, 4, 5, 6, 7, 8, 9);
+      CacheStats b = new CacheStats(1, 2, 3, 4, 5, 6, 7, 8, 9);
+      CacheStats c = new CacheStats(1, 2, 3, 4, 5, 6, 7, 8, 10);
+      assertEquals(a, b);
+      assertEquals(a.hashCode(), b.hashCode());
+      assertFalse(a.equals(c));
+      assertEquals(3, a.requestCount());
+      assertEquals(7, a.computeCount());
+      assertEquals(5.0 / 7, a.averageComputePenalty());
+      assertTrue(a.toString().contains("evictedCount=9"));
+    }
+  }
+
+  public static class RemovalListenerTest extends TestCase {
+
+    static class Removal {
+      final Object key;
+      final Object value;
+      final RemovalCause cause;
+
+      Removal(Object key, Object value, RemovalCause cause) {
+        this.key = key;
+        this.value = value;
+        this.cause = cause;
+      }
+
+      @Override public boolean equals(Object object) {
+        if (object instanceof Removal) {
+          Removal that = (Removal) object;
+          return Objects.equal(key, that.key)
+              && Objects.equal(value, that.value)
+              && cause == that.cause;
+        }
+        return false;
+      }
+
+      @Override public int hashCode() {
+        return Objects.hashCode(key, value, cause);
+      }
+
+      @Override public String toString() {
+        return key + "=" + value + " (" + cause + ")";
+      }
+    }
+
+    static class RecordingListener
+        implements RemovalListener<Object, Object> {
+      final List<Removal> removals
+          = Collections.synchronizedList(new ArrayList<Removal>());
+
+      public void onRemoval(Object key, Object value, RemovalCause cause) {
+        removals.add(new Removal(key, value, cause));
+      }
+    }
+
+    RecordingListener listener;
+
+    @Override protected void setUp() {
+      listener = new RecordingListener();
+    }
+
+    public void testRemovalListener_setTwice() {
+      MapMaker maker = new MapMaker().removalListener(listener);
+      try {
+        maker.removalListener(listener);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testRemovalListener_null() {
+      try {
+        new MapMaker().removalListener(null);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+      try {
+        new MapMaker().removalListener(listener, null);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+    }
+
+    public void testExplicit() {
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().removalListener(listener).makeMap();
+      map.put("a", 1);
+      map.put("b", 2);
+      map.put("c", 3);
+      map.put("d", 4);
+      map.remove("a");
+      map.remove("b", 3); // no match
+      map.remove("b", 2);
+      map.keySet().remove("c");
+      map.remove("missing");
+      map.clear();
+      assertEquals(Arrays.asList(
+          new Removal("a", 1, RemovalCause.EXPLICIT),
+          new Removal("b", 2, RemovalCause.EXPLICIT),
+          new Removal("c", 3, RemovalCause.EXPLICIT),
+          new Removal("d", 4, RemovalCause.EXPLICIT)), listener.removals);
+    }
+
+    public void testReplaced() {
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().removalListener(listener).makeMap();
+      map.put("a", 1);
+      map.put("a", 2);
+      map.putIfAbsent("a", 3); // no change
+      map.replace("a", 4);
+      map.replace("a", 5, 6); // no match
+      map.replace("a", 4, 7);
+      assertEquals(Arrays.asList(
+          new Removal("a", 1, RemovalCause.REPLACED),
+          new Removal("a", 2, RemovalCause.REPLACED),
+          new Removal("a", 4, RemovalCause.REPLACED)), listener.removals);
+      assertEquals(Integer.valueOf(7), map.get("a"));
+    }
+
+    public void testExpired() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .expiration(10, TimeUnit.MILLISECONDS)
+          .removalListener(listener)
+          .makeMap();
+      map.put("a", 1);
+      waitForExpiration(10);
+      map.put("b", 2);
+      assertEquals(Collections.singletonList(
+          new Removal("a", 1, RemovalCause.EXPIRED)), listener.removals);
+    }
+
+    public void testSize() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .maximumSize(1)
+          .removalListener(listener)
+          .makeComputingMap(new Function<String, Integer>() {
+            public Integer apply(String key) {
+              return key.length();
+            }
+          });
+      map.get("a");
+      map.get("bb");
+      assertEquals(Collections.singletonList(
+          new Removal("a", 1, RemovalCause.SIZE)), listener.removals);
+    }
+
+    public void testFailedComputationNotReported() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .removalListener(listener)
+          .makeComputingMap(new Function<String, Integer>() {
+            public Integer apply(String key) {
+              throw new IllegalStateException();
+            }
+          });
+      try {
+        map.get("a");
+        fail();
+      } catch (ComputationException expected) {
+      }
+      assertTrue(listener.removals.isEmpty());
+    }
+
+    static class WritingListener implements RemovalListener<String, Integer> {
+      ConcurrentMap<String, Integer> map;
+
+      public void onRemoval(String key, Integer value, RemovalCause cause) {
+        // Would deadlock if the segment lock were still held.
+        Thread writer = new Thread() {
+          @Override public void run() {
+            map.put("written by listener", 0);
+          }
+        };
+        writer.start();
+        try {
+          writer.join();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    public void testDeliveredOutsideLock() {
+      WritingListener writingListener = new WritingListener();
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .removalListener(writingListener)
+          .makeMap();
+      writingListener.map = map;
+      map.put("a", 1);
+      map.remove("a");
+      assertEquals(Integer.valueOf(0), map.get("written by listener"));
+    }
+
+    public void testListenerException() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .removalListener(new RemovalListener<String, Integer>() {
+            public void onRemoval(
+                String key, Integer value, RemovalCause cause) {
+              throw new IllegalStateException("expected");
+            }
+          })
+          .makeMap();
+      map.put("a", 1);
+      assertEquals(Integer.valueOf(1), map.remove("a"));
+      assertTrue(map.isEmpty());
+    }
+
+    public void testExecutor() {
+      final List<Runnable> tasks = new ArrayList<Runnable>();
+      Executor executor = new Executor() {
+        public void execute(Runnable task) {
+          tasks.add(task);
+        }
+      };
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .removalListener(listener, executor)
+          .makeMap();
+      map.put("a", 1);
+      map.remove("a");
+      assertTrue(listener.removals.isEmpty());
+      assertEquals(1, tasks.size());
+      tasks.get(0).run();
+      assertEquals(Collections.singletonList(
+          new Removal("a", 1, RemovalCause.EXPLICIT)), listener.removals);
+    }
+
+    public void testSerialization() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .removalListener(new SerializableListener())
+          .makeMap();
+      map.put("a", 1);
+      ConcurrentMap<String, Integer> copy = SerializableTester.reserialize(map);
+      assertEquals(map, copy);
+      copy.remove("a");
+    }
+
+    static class SerializableListener
+        implements RemovalListener<Object, Object>, Serializable {
+      public void onRemoval(Object key, Object value, RemovalCause cause) {}
+      private static final long serialVersionUID = 0;
+    }
+  }
+
+  public static class GetAllTest extends TestCase {
+
+    /** Computes each key's length, recording each batch it's given. */
+    static class BulkLength
+        implements Function<Set<String>, Map<String, Integer>> {
+      final List<Set<String>> batches
+          = Collections.synchronizedList(new ArrayList<Set<String>>());
+
+      public Map<String, Integer> apply(Set<String> keys) {
+        batches.add(new HashSet<String>(keys));
+        Map<String, Integer> values = new HashMap<String, Integer>();
+        for (String key : keys) {
+          values.put(key, key.length());
+        }
+        return values;
+      }
+    }
+
+    static final Function<String, Integer> SINGLE_FAILS
+        = new Function<String, Integer>() {
+          public Integer apply(String key) {
+            throw new AssertionError("computed individually: " + key);
+          }
+        };
+
+    public void testGetAll() {
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(SINGLE_FAILS);
+      map.put("b", 10);
+      BulkLength bulk = new BulkLength();
+
+      Map<String, Integer> result = MapMaker.getAll(
+          map, Arrays.asList("ccc", "b", "a", "ccc"), bulk);
+      assertEquals(Arrays.asList("ccc", "b", "a"),
+          new ArrayList<String>(result.keySet()));
+      assertEquals(Arrays.asList(3, 10, 1),
+          new ArrayList<Integer>(result.values()));
+      assertEquals(Collections.singletonList(set("a", "ccc")), bulk.batches);
+      assertEquals(Integer.valueOf(3), map.get("ccc"));
+      assertEquals(3, map.size());
+    }
+
+    public void testGetAll_allPresent() {
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(SINGLE_FAILS);
+      map.put("a", 1);
+      BulkLength bulk = new BulkLength();
+      assertEquals(ImmutableMap.of("a", 1),
+          MapMaker.getAll(map, Collections.singleton("a"), bulk));
+      assertTrue(bulk.batches.isEmpty());
+    }
+
+    public void testGetAll_nullKey() {
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(SINGLE_FAILS);
+      try {
+        MapMaker.getAll(map, Arrays.asList("a", null), new BulkLength());
+        fail();
+      } catch (NullPointerException expected) {
+      }
+      assertTrue(map.isEmpty());
+    }
+
+    public void testGetAll_notComputingMap() {
+      try {
+        MapMaker.getAll(new MapMaker().<String, Integer>makeMap(),
+            Collections.singleton("a"), new BulkLength());
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+
+    public void testGetAll_bulkFunctionThrows() {
+      final RuntimeException e = new RuntimeException();
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(new Function<String, Integer>() {
+            public Integer apply(String key) {
+              return -1;
+            }
+          });
+      try {
+        MapMaker.getAll(map, Arrays.asList("a", "b"),
+            new Function<Set<String>, Map<String, Integer>>() {
+              public Map<String, Integer> apply(Set<String> keys) {
+                throw e;
+              }
+            });
+        fail();
+      } catch (ComputationException expected) {
+        assertSame(e, expected.getCause());
+      }
+      assertTrue(map.isEmpty());
+      assertEquals(Integer.valueOf(-1), map.get("a"));
+    }
+
+    /** A key whose {@code hashCode()} throws after its first call. */
+    static class FlakyKey {
+      int calls;
+
+      @Override public int hashCode() {
+        if (calls++ > 0) {
+          throw new IllegalStateException("expected");
+        }
+        return 0;
+      }
+    }
+
+    public void testGetAll_keyHashCodeThrows() {
+      ConcurrentMap<Object, Integer> map = new MapMaker()
+          .makeComputingMap(new Function<Object, Integer>() {
+            public Integer apply(Object key) {
+              return -1;
+            }
+          });
+      try {
+        MapMaker.getAll(map, Arrays.asList("a", new FlakyKey()),
+            new Function<Set<Object>, Map<Object, Integer>>() {
+              public Map<Object, Integer> apply(Set<Object> keys) {
+                throw new AssertionError();
+              }
+            });
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+
+      // The entry created for "a" was resolved, so a get doesn't wait.
+      assertTrue(map.isEmpty());
+      assertEquals(Integer.valueOf(-1), map.get("a"));
+    }
+
+    public void testGetAll_keyOmitted() {
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(SINGLE_FAILS);
+      try {
+        MapMaker.getAll(map, Arrays.asList("a", "b"),
+            new Function<Set<String>, Map<String, Integer>>() {
+              public Map<String, Integer> apply(Set<String> keys) {
+                return ImmutableMap.of("a", 1);
+              }
+            });
+        fail();
+      } catch (NullPointerException expected) {
+      }
+      assertEquals(ImmutableMap.of("a", 1), map);
+    }
+
+    public void testGetAll_concurrentGetWaits() throws Exception {
+      final CountDownLatch computing = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(SINGLE_FAILS);
+      final Function<Set<String>, Map<String, Integer>> bulk
+          = new Function<Set<String>, Map<String, Integer>>() {
+            public Map<String, Integer> apply(Set<String> keys) {
+              computing.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+              return ImmutableMap.of("a", 1, "b", 2);
+            }
+          };
+      Thread bulkThread = new Thread() {
+        @Override public void run() {
+          MapMaker.getAll(map, Arrays.asList("a", "b"), bulk);
+        }
+      };
+      bulkThread.start();
+      computing.await();
+
+      final Integer[] seen = new Integer[1];
+      Thread getter = new Thread() {
+        @Override public void run() {
+          seen[0] = map.get("b");
+        }
+      };
+      getter.start();
+      release.countDown();
+      bulkThread.join();
+      getter.join();
+      assertEquals(Integer.valueOf(2), seen[0]);
+    }
+
+    public void testGetAll_stats() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .recordStats()
+          .makeComputingMap(SINGLE_FAILS);
+      map.put("a", 1);
+      MapMaker.getAll(map, Arrays.asList("a", "bb", "ccc"), new BulkLength());
+      CacheStats stats = MapMaker.stats(map);
+      assertEquals(1, stats.hitCount());
+      assertEquals(2, stats.missCount());
+      assertEquals(1, stats.computeSuccessCount());
+    }
+  }
+
+  public static class RefreshTest extends TestCase {
+
+    static final long REFRESH_MILLIS = 10;
+
+    /** Queues tasks until they're run explicitly. */
+    static class QueueingExecutor implements Executor {
+      final List<Runnable> tasks = new ArrayList<Runnable>();
+
+      public void execute(Runnable task) {
+        tasks.add(task);
+      }
+
+      void runAll() {
+        List<Runnable> pending = new ArrayList<Runnable>(tasks);
+        tasks.clear();
+        for (Runnable task : pending) {
+          task.run();
+        }
+      }
+    }
+
+    /** Returns how many times it has been called, or throws if told to. */
+    static class CountingFunction implements Function<String, Integer> {
+      int count;
+      boolean fail;
+
+      public Integer apply(String key) {
+        if (fail) {
+          throw new IllegalStateException("expected");
+        }
+        return ++count;
+      }
+    }
+
+    QueueingExecutor executor;
+    CountingFunction function;
+    ConcurrentMap<String, Integer> map;
+
+    @Override protected void setUp() {
+      executor = new QueueingExecutor();
+      function = new CountingFunction();
+      map = new MapMaker()
+          .refreshAfterWrite(REFRESH_MILLIS, TimeUnit.MILLISECONDS, executor)
+          .makeComputingMap(function);
+    }
+
+    public void testMakeMap() {
+      MapMaker maker = new MapMaker()
+          .refreshAfterWrite(1, SECONDS, executor);
+      try {
+        maker.makeMap();
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testExpireAfterAccess() {
+      try {
+        new MapMaker()
+            .refreshAfterWrite(1, SECONDS, executor)
+            .expireAfterAccess(1, SECONDS);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+      try {
+        new MapMaker()
+            .expireAfterAccess(1, SECONDS)
+            .refreshAfterWrite(1, SECONDS, executor);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testServesOldValueWhileRefreshing() {
+      assertEquals(Integer.valueOf(1), map.get("key"));
+      assertEquals(Integer.valueOf(1), map.get("key"));
+      assertTrue(executor.tasks.isEmpty());
+
+      sleep(REFRESH_MILLIS * 2);
+      assertEquals(Integer.valueOf(1), map.get("key"));
+      assertEquals(1, executor.tasks.size());
+      // only one refresh at a time
+      assertEquals(Integer.valueOf(1), map.get("key"));
+      assertEquals(1, executor.tasks.size());
+
+      executor.runAll();
+      assertEquals(Integer.valueOf(2), map.get("key"));
+      assertTrue(executor.tasks.isEmpty());
+    }
+
+    public void testFailedRefreshKeepsOldValue() {
+      assertEquals(Integer.valueOf(1), map.get("key"));
+      sleep(REFRESH_MILLIS * 2);
+      function.fail = true;
+      map.get("key");
+      executor.runAll();
+      assertEquals(Integer.valueOf(1), map.get("key"));
+
+      // the entry is still stale, so the next read tries again
+      function.fail = false;
+      executor.runAll();
+      assertEquals(Integer.valueOf(2), map.get("key"));
+    }
+
+    public void testConcurrentWriteWins() {
+      assertEquals(Integer.valueOf(1), map.get("key"));
+      sleep(REFRESH_MILLIS * 2);
+      map.get("key");
+      map.put("key", 10);
+      executor.runAll();
+      assertEquals(Integer.valueOf(10), map.get("key"));
+    }
+
+    public void testWithExpiration() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .expiration(1, TimeUnit.HOURS)
+          .refreshAfterWrite(REFRESH_MILLIS, TimeUnit.MILLISECONDS, executor)
+          .makeComputingMap(function);
+      assertEquals(Integer.valueOf(1), map.get("key"));
+      sleep(REFRESH_MILLIS * 2);
+      assertEquals(Integer.valueOf(1), map.get("key"));
+      executor.runAll();
+      assertEquals(Integer.valueOf(2), map.get("key"));
+    }
+  }
+
+  public static class TimedGetTest extends TestCase {
+
+    /** Computes each key's length once released. */
+    static class GatedLength implements Function<String, Integer> {
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+
+      public Integer apply(String key) {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return key.length();
+      }
+    }
+
+    /** Starts computing the given key in another thread. */
+    static Thread startComputing(
+        final ConcurrentMap<String, Integer> map, final String key,
+        GatedLength function) throws InterruptedException {
+      Thread thread = new Thread() {
+        @Override public void run() {
+          map.get(key);
+        }
+      };
+      thread.start();
+      function.started.await();
+      return thread;
+    }
+
+    public void testPresent() throws Exception {
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(new GatedLength());
+      map.put("a", 10);
+      assertEquals(Integer.valueOf(10), MapMaker.get(map, "a", 0, SECONDS));
+    }
+
+    public void testComputesAbsentValue() throws Exception {
+      ConcurrentMap<String, Integer> map = new MapMaker().makeComputingMap(
+          Functions.forMap(ImmutableMap.of("a", 1)));
+      assertEquals(Integer.valueOf(1), MapMaker.get(map, "a", 0, SECONDS));
+      assertEquals(Integer.valueOf(1), map.get("a"));
+    }
+
+    public void testTimesOut() throws Exception {
+      GatedLength function = new GatedLength();
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(function);
+      Thread computing = startComputing(map, "abc", function);
+      try {
+        MapMaker.get(map, "abc", 10, TimeUnit.MILLISECONDS);
+        fail();
+      } catch (TimeoutException expected) {
+      }
+
+      function.release.countDown();
+      assertEquals(Integer.valueOf(3), MapMaker.get(map, "abc", 10, SECONDS));
+      computing.join();
+      assertEquals(1, map.size());
+    }
+
+    public void testWaitsForComputation() throws Exception {
+      final GatedLength function = new GatedLength();
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(function);
+      startComputing(map, "abc", function);
+      new Thread() {
+        @Override public void run() {
+          MapMakerTestSuite.sleep(10);
+          function.release.countDown();
+        }
+      }.start();
+      assertEquals(Integer.valueOf(3), MapMaker.get(map, "abc", 10, SECONDS));
+    }
+
+    public void testInterrupted() throws Exception {
+      GatedLength function = new GatedLength();
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(function);
+      startComputing(map, "abc", function);
+      Thread.currentThread().interrupt();
+      try {
+        MapMaker.get(map, "abc", 10, SECONDS);
+        fail();
+      } catch (InterruptedException expected) {
+      } finally {
+        function.release.countDown();
+      }
+      assertEquals(Integer.valueOf(3), map.get("abc"));
+    }
+
+    public void testCopiedEntry() throws Exception {
+      GatedLength function = new GatedLength();
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .initialCapacity(1)
+          .makeComputingMap(function);
+      startComputing(map, "abc", function);
+      // Expanding the table copies the computing entry.
+      for (int i = 0; i < 100; i++) {
+        map.put("key" + i, i);
+      }
+      try {
+        MapMaker.get(map, "abc", 10, TimeUnit.MILLISECONDS);
+        fail();
+      } catch (TimeoutException expected) {
+      }
+
+      function.release.countDown();
+      assertEquals(Integer.valueOf(3), MapMaker.get(map, "abc", 10, SECONDS));
+      assertEquals(101, map.size());
+    }
+
+    public void testComputationFails() throws Exception {
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(new Function<String, Integer>() {
+            public Integer apply(String key) {
+              started.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+              throw new IllegalStateException("expected");
+            }
+          });
+      new Thread() {
+        @Override public void run() {
+          try {
+            map.get("a");
+          } catch (ComputationException expected) {
+          }
+        }
+      }.start();
+      started.await();
+      release.countDown();
+      try {
+        MapMaker.get(map, "a", 10, SECONDS);
+        fail();
+      } catch (ComputationException expected) {
+      }
+    }
+
+    public void testNotComputingMap() throws Exception {
+      try {
+        MapMaker.get(
+            new MapMaker().<String, Integer>makeMap(), "a", 1, SECONDS);
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  public static class AsyncComputingTest extends TestCase {
+
+    static final Executor DIRECT = new Executor() {
+      public void execute(Runnable task) {
+        task.run();
+      }
+    };
+
+    static final Function<String, Integer> LENGTH
+        = new Function<String, Integer>() {
+          public Integer apply(String key) {
+            return key.length();
+          }
+        };
+
+    /** Fails for keys starting with "x", and for "null" returns null. */
+    static final Function<String, Integer> PICKY
+        = new Function<String, Integer>() {
+          public Integer apply(String key) {
+            if (key.startsWith("x")) {
+              throw new IllegalArgumentException(key);
+            }
+            return key.equals("null") ? null : key.length();
+          }
+        };
+
+    RefreshTest.QueueingExecutor executor;
+
+    @Override protected void setUp() {
+      executor = new RefreshTest.QueueingExecutor();
+    }
+
+    public void testComputesOnExecutor() throws Exception {
+      ConcurrentMap<String, Future<Integer>> map
+          = new MapMaker().makeAsyncComputingMap(LENGTH, executor);
+      Future<Integer> future = map.get("abc");
+      assertFalse(future.isDone());
+      assertEquals(1, executor.tasks.size());
+
+      // requests share the pending future
+      assertSame(future, map.get("abc"));
+      assertEquals(1, executor.tasks.size());
+
+      executor.runAll();
+      assertEquals(Integer.valueOf(3), future.get());
+      assertSame(future, map.get("abc"));
+      assertTrue(executor.tasks.isEmpty());
+    }
+
+    public void testFailureIsRetried() throws Exception {
+      ConcurrentMap<String, Future<Integer>> map
+          = new MapMaker().makeAsyncComputingMap(PICKY, executor);
+      Future<Integer> future = map.get("x");
+      executor.runAll();
+      try {
+        future.get();
+        fail();
+      } catch (ExecutionException expected) {
+        assertTrue(expected.getCause() instanceof IllegalArgumentException);
+      }
+      assertTrue(map.isEmpty());
+      assertNotSame(future, map.get("x"));
+    }
+
+    public void testNullIsFailure() throws Exception {
+      ConcurrentMap<String, Future<Integer>> map
+          = new MapMaker().makeAsyncComputingMap(PICKY, executor);
+      Future<Integer> future = map.get("null");
+      executor.runAll();
+      try {
+        future.get();
+        fail();
+      } catch (ExecutionException expected) {
+        assertTrue(expected.getCause() instanceof NullPointerException);
+      }
+      assertTrue(map.isEmpty());
+    }
+
+    public void testFailureBeforeStored() throws Exception {
+      ConcurrentMap<String, Future<Integer>> map
+          = new MapMaker().makeAsyncComputingMap(PICKY, DIRECT);
+      Future<Integer> first = map.get("x");
+      assertTrue(first.isDone());
+      Future<Integer> second = map.get("x");
+      assertNotSame(first, second);
+      assertTrue(second.isDone());
+
+      assertEquals(Integer.valueOf(1), map.get("a").get());
+    }
+
+    public void testCancelIsRetried() {
+      ConcurrentMap<String, Future<Integer>> map
+          = new MapMaker().makeAsyncComputingMap(LENGTH, executor);
+      Future<Integer> future = map.get("abc");
+      assertTrue(future.cancel(false));
+      assertTrue(map.isEmpty());
+      assertNotSame(future, map.get("abc"));
+    }
+
+    public void testRejected() {
+      ConcurrentMap<String, Future<Integer>> map = new MapMaker()
+          .makeAsyncComputingMap(LENGTH, new Executor() {
+            public void execute(Runnable task) {
+              throw new RejectedExecutionException();
+            }
+          });
+      try {
+        map.get("abc");
+        fail();
+      } catch (ComputationException expected) {
+      }
+      assertTrue(map.isEmpty());
+    }
+
+    public void testStats() throws Exception {
+      ConcurrentMap<String, Future<Integer>> map = new MapMaker()
+          .recordStats()
+          .makeAsyncComputingMap(LENGTH, DIRECT);
+      map.get("a");
+      map.get("a");
+      CacheStats stats = MapMaker.stats(map);
+      assertEquals(1, stats.hitCount());
+      assertEquals(1, stats.missCount());
+    }
+
+    public void testNullArguments() {
+      try {
+        new MapMaker().makeAsyncComputingMap(null, DIRECT);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+      try {
+        new MapMaker().makeAsyncComputingMap(LENGTH, null);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+    }
+  }
+
+  public static class SizeTest extends TestCase {
+
+    public void testApproximateSize() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .expiration(1, TimeUnit.HOURS)
+          .makeMap();
+      assertEquals(0, MapMaker.approximateSize(map));
+      for (int i = 0; i < 100; i++) {
+        map.put(i, i);
+      }
+      assertEquals(100, MapMaker.approximateSize(map));
+      assertEquals(100, map.size());
+      map.remove(0);
+      assertEquals(99, MapMaker.approximateSize(map));
+      map.clear();
+      assertEquals(0, MapMaker.approximateSize(map));
+    }
+
+    public void testApproximateSize_otherMap() {
+      ConcurrentMap<Integer, Integer> map
+          = new ConcurrentHashMap<Integer, Integer>();
+      map.put(1, 1);
+      assertEquals(1, MapMaker.approximateSize(map));
+    }
+
+    public void testSizeDoesNotLock() throws Exception {
+      final Impl<Integer, Integer, ?> map = (Impl<Integer, Integer, ?>)
+          new MapMaker().concurrencyLevel(4).expiration(1, TimeUnit.HOURS)
+              .<Integer, Integer>makeMap();
+      for (int i = 0; i < 10; i++) {
+        map.put(i, i);
+      }
+
+      // Holds every segment lock in another thread.
+      final CountDownLatch locked = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(1);
+      Thread locker = new Thread() {
+        @Override public void run() {
+          for (Impl<?, ?, ?>.Segment segment : map.segments) {
+            segment.lock();
+          }
+          locked.countDown();
+          try {
+            done.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          } finally {
+            for (Impl<?, ?, ?>.Segment segment : map.segments) {
+              segment.unlock();
+            }
+          }
+        }
+      };
+      locker.start();
+      locked.await();
+      try {
+        assertEquals(10, map.size());
+        assertEquals(10, MapMaker.approximateSize(map));
+        assertFalse(map.isEmpty());
+      } finally {
+        done.countDown();
+      }
+      locker.join();
+    }
+  }
+
+  public static class InlineCleanupTest extends TestCase {
+
+    public void testInlineCleanup_twice() {
+      MapMaker maker = new MapMaker().inlineCleanup();
+      try {
+        maker.inlineCleanup();
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testCollectedKeyRemovedOnWrite() {
+      final List<RemovalCause> causes = new ArrayList<RemovalCause>();
+      Impl<Object, Object, ?> map = (Impl<Object, Object, ?>) new MapMaker()
+          .concurrencyLevel(1)
+          .weakKeys()
+          .inlineCleanup()
+          .recordStats()
+          .removalListener(new RemovalListener<Object, Object>() {
+            public void onRemoval(
+                Object key, Object value, RemovalCause cause) {
+              causes.add(cause);
+            }
+          })
+          .makeMap();
+      map.put(new Object(), "collected");
+      awaitReclaimed(map, 1);
+
+      // Nothing is removed until the segment is used.
+      assertEquals(1, map.size());
+      assertTrue(causes.isEmpty());
+
+      Object key = new Object();
+      map.put(key, "kept");
+      assertEquals(0, reclaimedCount(map));
+      assertEquals(1, map.size());
+      assertEquals("kept", map.get(key));
+      assertEquals(Collections.singletonList(RemovalCause.COLLECTED), causes);
+      assertEquals(1, MapMaker.stats(map).collectedCount());
+    }
+
+    public void testCollectedValueRemovedOnRead() {
+      Impl<Integer, Object, ?> map = (Impl<Integer, Object, ?>) new MapMaker()
+          .concurrencyLevel(1)
+          .weakValues()
+          .inlineCleanup()
+          .<Integer, Object>makeMap();
+      map.put(1, new Object());
+      awaitReclaimed(map, 1);
+      assertEquals(1, map.size());
+
+      for (int i = 0; i <= CustomConcurrentHashMap.Impl.DRAIN_THRESHOLD; i++) {
+        assertNull(map.get(1));
+      }
+      assertEquals(0, reclaimedCount(map));
+      assertTrue(map.isEmpty());
+    }
+
+    public void testCollectedEntriesRemovedInBatches() {
+      Impl<Integer, Object, ?> map = (Impl<Integer, Object, ?>) new MapMaker()
+          .concurrencyLevel(1)
+          .weakValues()
+          .inlineCleanup()
+          .<Integer, Object>makeMap();
+      int count = CustomConcurrentHashMap.Impl.DRAIN_MAX * 3;
+      for (int i = 0; i < count; i++) {
+        map.put(i, new Object());
+      }
+      awaitReclaimed(map, count);
+
+      Object value = new Object();
+      map.put(-1, value);
+      assertEquals(count - CustomConcurrentHashMap.Impl.DRAIN_MAX,
+          reclaimedCount(map));
+      map.put(-2, value);
+      map.put(-3, value);
+      assertEquals(0, reclaimedCount(map));
+      for (int i = 0; i < count; i++) {
+        assertFalse(map.containsKey(i));
+      }
+      assertEquals(value, map.get(-3));
+    }
+
+    public void testClearDiscardsReclaimed() {
+      Impl<Integer, Object, ?> map = (Impl<Integer, Object, ?>) new MapMaker()
+          .concurrencyLevel(1)
+          .weakValues()
+          .inlineCleanup()
+          .<Integer, Object>makeMap();
+      map.put(1, new Object());
+      awaitReclaimed(map, 1);
+      map.clear();
+      assertEquals(0, reclaimedCount(map));
+      assertTrue(map.isEmpty());
+    }
+
+    public void testSerialization() {
+      Impl<Integer, Integer, ?> map = (Impl<Integer, Integer, ?>)
+          new MapMaker().weakKeys().inlineCleanup().<Integer, Integer>makeMap();
+      map.put(1, 1);
+      Impl<Integer, Integer, ?> copy = SerializableTester.reserialize(map);
+      assertTrue(copy.inlineCleanup);
+      assertEquals(1, copy.size());
+    }
+
+    static int reclaimedCount(Impl<?, ?, ?> map) {
+      int count = 0;
+      for (Impl<?, ?, ?>.Segment segment : map.segments) {
+        count += segment.reclaimedQueue.size();
+      }
+      return count;
+    }
+
+    /** Waits up to 5s for the given number of entries to be reclaimed. */
+    static void awaitReclaimed(Impl<?, ?, ?> map, int count) {
+      for (int i = 0; i < 500; i++) {
+        System.gc();
+        if (reclaimedCount(map) == count) {
+          return;
+        }
+        sleep(10);
+      }
+      fail("reclaimed " + reclaimedCount(map) + " of " + count);
+    }
+  }
+
+  public static class TickerTest extends TestCase {
+
+    /** A ticker that only advances when told to, and counts its reads. */
+    static class FakeTicker extends Ticker {
+      long nanos;
+      int reads;
+
+      @Override public long read() {
+        reads++;
+        return nanos;
+      }
+
+      void advance(long time, TimeUnit unit) {
+        nanos += unit.toNanos(time);
+      }
+    }
+
+    public void testTicker_twice() {
+      MapMaker maker = new MapMaker().ticker(new FakeTicker());
+      try {
+        maker.ticker(new FakeTicker());
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testTicker_null() {
+      try {
+        new MapMaker().ticker(null);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+    }
+
+    public void testSystemTicker() {
+      Ticker ticker = Ticker.systemTicker();
+      long first = ticker.read();
+      assertTrue(ticker.read() - first >= 0);
+      assertSame(ticker, Ticker.systemTicker());
+    }
+
+    public void testExpiration() {
+      FakeTicker ticker = new FakeTicker();
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .ticker(ticker)
+          .expiration(1, TimeUnit.HOURS)
+          .makeMap();
+      map.put("a", 1);
+      ticker.advance(59, TimeUnit.MINUTES);
+      map.put("b", 2);
+      assertEquals(Integer.valueOf(1), map.get("a"));
+
+      ticker.advance(2, TimeUnit.MINUTES);
+      assertNull(map.get("a"));
+      assertEquals(Integer.valueOf(2), map.get("b"));
+      assertEquals(1, map.size());
+
+      ticker.advance(1, TimeUnit.HOURS);
+      assertFalse(map.containsKey("b"));
+    }
+
+    public void testExpireAfterAccess() {
+      FakeTicker ticker = new FakeTicker();
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .ticker(ticker)
+          .expireAfterAccess(1, TimeUnit.HOURS)
+          .makeMap();
+      map.put("a", 1);
+      for (int i = 0; i < 10; i++) {
+        ticker.advance(59, TimeUnit.MINUTES);
+        assertEquals(Integer.valueOf(1), map.get("a"));
+      }
+      ticker.advance(61, TimeUnit.MINUTES);
+      assertNull(map.get("a"));
+    }
+
+    public void testRefresh() {
+      FakeTicker ticker = new FakeTicker();
+      RefreshTest.QueueingExecutor executor
+          = new RefreshTest.QueueingExecutor();
+      RefreshTest.CountingFunction function
+          = new RefreshTest.CountingFunction();
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .ticker(ticker)
+          .refreshAfterWrite(1, TimeUnit.MINUTES, executor)
+          .makeComputingMap(function);
+      assertEquals(Integer.valueOf(1), map.get("a"));
+      assertEquals(Integer.valueOf(1), map.get("a"));
+      assertTrue(executor.tasks.isEmpty());
+
+      ticker.advance(2, TimeUnit.MINUTES);
+      assertEquals(Integer.valueOf(1), map.get("a"));
+      assertEquals(1, executor.tasks.size());
+      executor.runAll();
+      assertEquals(Integer.valueOf(2), map.get("a"));
+    }
+
+    public void testComputeTime() {
+      final FakeTicker ticker = new FakeTicker();
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .ticker(ticker)
+          .recordStats()
+          .makeComputingMap(new Function<String, Integer>() {
+            public Integer apply(String key) {
+              ticker.advance(5, NANOSECONDS);
+              return key.length();
+            }
+          });
+      map.get("a");
+      map.get("bb");
+      assertEquals(10, MapMaker.stats(map).totalComputeTime());
+    }
+
+    public void testReadOncePerOperation() {
+      FakeTicker ticker = new FakeTicker();
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .ticker(ticker)
+          .expireAfterAccess(1, TimeUnit.HOURS)
+          .maximumSize(100)
+          .makeMap();
+      map.put("a", 1);
+      assertEquals(1, ticker.reads);
+      map.get("a");
+      assertEquals(2, ticker.reads);
+      map.remove("a");
+      assertEquals(3, ticker.reads);
+    }
+
+    public void testReadOncePerIteration() {
+      FakeTicker ticker = new FakeTicker();
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .ticker(ticker)
+          .expiration(1, TimeUnit.HOURS)
+          .makeMap();
+      for (int i = 0; i < 10; i++) {
+        map.put(i, i);
+      }
+      ticker.reads = 0;
+      int count = 0;
+      for (Integer key : map.keySet()) {
+        count++;
+      }
+      assertEquals(10, count);
+      assertEquals(1, ticker.reads);
+    }
+
+    public void testNotReadWithoutTimedFeatures() {
+      FakeTicker ticker = new FakeTicker();
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .ticker(ticker)
+          .maximumSize(100)
+          .makeMap();
+      map.put("a", 1);
+      map.get("a");
+      map.containsKey("a");
+      map.remove("a");
+      assertEquals(0, ticker.reads);
+    }
+  }
+
+  public static class BulkTest extends TestCase {
+
+    static final Executor DIRECT = new Executor() {
+      public void execute(Runnable task) {
+        task.run();
+      }
+    };
+
+    ExecutorService pool;
+
+    @Override protected void setUp() {
+      pool = Executors.newFixedThreadPool(4);
+    }
+
+    @Override protected void tearDown() {
+      pool.shutdown();
+    }
+
+    static ConcurrentMap<Integer, Integer> newMap(int size) {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(4)
+          .expiration(1, TimeUnit.HOURS)
+          .makeMap();
+      for (int i = 0; i < size; i++) {
+        map.put(i, i);
+      }
+      return map;
+    }
+
+    public void testForEach() {
+      ConcurrentMap<Integer, Integer> map = newMap(10000);
+      final ConcurrentMap<Integer, AtomicInteger> visits
+          = new ConcurrentHashMap<Integer, AtomicInteger>();
+      MapMaker.forEach(map, pool,
+          new Function<Entry<Integer, Integer>, Void>() {
+            public Void apply(Entry<Integer, Integer> entry) {
+              assertEquals(entry.getKey(), entry.getValue());
+              visits.putIfAbsent(entry.getKey(), new AtomicInteger());
+              visits.get(entry.getKey()).incrementAndGet();
+              return null;
+            }
+          });
+      assertEquals(map.keySet(), visits.keySet());
+      for (AtomicInteger count : visits.values()) {
+        assertEquals(1, count.get());
+      }
+    }
+
+    public void testForEach_splitsLargeSegments() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .expiration(1, TimeUnit.HOURS)
+          .makeMap();
+      for (int i = 0; i < 5000; i++) {
+        map.put(i, i);
+      }
+      final AtomicInteger pieces = new AtomicInteger();
+      final AtomicInteger visits = new AtomicInteger();
+      ((Impl<Integer, Integer, ?>) map).bulkVisit(DIRECT,
+          new Supplier<BulkTask<Integer, Integer>>() {
+            public BulkTask<Integer, Integer> get() {
+              pieces.incrementAndGet();
+              return new BulkTask<Integer, Integer>() {
+                @Override boolean visit(Entry<Integer, Integer> entry) {
+                  visits.incrementAndGet();
+                  return true;
+                }
+              };
+            }
+          });
+      assertTrue(pieces.get() > 1);
+      assertEquals(5000, visits.get());
+    }
+
+    public void testForEach_executorNeverRuns() {
+      ConcurrentMap<Integer, Integer> map = newMap(5000);
+      final List<Runnable> submitted = new ArrayList<Runnable>();
+      final AtomicInteger visits = new AtomicInteger();
+      MapMaker.forEach(map, new Executor() {
+            public void execute(Runnable task) {
+              submitted.add(task);
+            }
+          },
+          new Function<Entry<Integer, Integer>, Void>() {
+            public Void apply(Entry<Integer, Integer> entry) {
+              visits.incrementAndGet();
+              return null;
+            }
+          });
+      assertEquals(5000, visits.get());
+
+      // Late workers find nothing left to do.
+      for (Runnable task : submitted) {
+        task.run();
+      }
+      assertEquals(5000, visits.get());
+    }
+
+    public void testForEach_fromExecutorThread() throws Exception {
+      final ConcurrentMap<Integer, Integer> map = newMap(5000);
+      final ExecutorService single = Executors.newSingleThreadExecutor();
+      final AtomicInteger visits = new AtomicInteger();
+      try {
+        single.submit(new Runnable() {
+          public void run() {
+            MapMaker.forEach(map, single,
+                new Function<Entry<Integer, Integer>, Void>() {
+                  public Void apply(Entry<Integer, Integer> entry) {
+                    visits.incrementAndGet();
+                    return null;
+                  }
+                });
+          }
+        }).get(10, TimeUnit.SECONDS);
+      } finally {
+        single.shutdown();
+      }
+      assertEquals(5000, visits.get());
+    }
+
+    public void testForEach_otherMap() {
+      ConcurrentMap<Integer, Integer> map
+          = new ConcurrentHashMap<Integer, Integer>();
+      map.put(1, 2);
+      final List<Entry<Integer, Integer>> visited
+          = new ArrayList<Entry<Integer, Integer>>();
+      MapMaker.forEach(map, DIRECT,
+          new Function<Entry<Integer, Integer>, Void>() {
+            public Void apply(Entry<Integer, Integer> entry) {
+              visited.add(Helpers.mapEntry(entry.getKey(), entry.getValue()));
+              return null;
+            }
+          });
+      assertEquals(Collections.singletonList(Helpers.mapEntry(1, 2)), visited);
+    }
+
+    public void testForEach_setValueWritesThrough() {
+      ConcurrentMap<Integer, Integer> map = newMap(100);
+      MapMaker.forEach(map, pool,
+          new Function<Entry<Integer, Integer>, Void>() {
+            public Void apply(Entry<Integer, Integer> entry) {
+              entry.setValue(-entry.getKey());
+              return null;
+            }
+          });
+      for (int i = 0; i < 100; i++) {
+        assertEquals(Integer.valueOf(-i), map.get(i));
+      }
+    }
+
+    public void testForEach_exception() {
+      ConcurrentMap<Integer, Integer> map = newMap(1000);
+      final RuntimeException e = new RuntimeException();
+      try {
+        MapMaker.forEach(map, pool,
+            new Function<Entry<Integer, Integer>, Void>() {
+              public Void apply(Entry<Integer, Integer> entry) {
+                throw e;
+              }
+            });
+        fail();
+      } catch (RuntimeException expected) {
+        assertSame(e, expected);
+      }
+    }
+
+    public void testForEach_rejected() {
+      ConcurrentMap<Integer, Integer> map = newMap(100);
+      final AtomicInteger visits = new AtomicInteger();
+      MapMaker.forEach(map, new Executor() {
+            public void execute(Runnable task) {
+              throw new RejectedExecutionException();
+            }
+          },
+          new Function<Entry<Integer, Integer>, Void>() {
+            public Void apply(Entry<Integer, Integer> entry) {
+              visits.incrementAndGet();
+              return null;
+            }
+          });
+      assertEquals(100, visits.get());
+    }
+
+    public void testForEach_skipsExpired() {
+      TickerTest.FakeTicker ticker = new TickerTest.FakeTicker();
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .ticker(ticker)
+          .expiration(1, TimeUnit.MINUTES)
+          .makeMap();
+      map.put(1, 1);
+      ticker.advance(2, TimeUnit.MINUTES);
+      map.put(2, 2);
+      final List<Integer> visited = new ArrayList<Integer>();
+      MapMaker.forEach(map, DIRECT,
+          new Function<Entry<Integer, Integer>, Void>() {
+            public Void apply(Entry<Integer, Integer> entry) {
+              visited.add(entry.getKey());
+              return null;
+            }
+          });
+      assertEquals(Collections.singletonList(2), visited);
+    }
+
+    public void testSearch() {
+      ConcurrentMap<Integer, Integer> map = newMap(10000);
+      final AtomicInteger visits = new AtomicInteger();
+      Integer found = MapMaker.search(map, pool,
+          new Function<Entry<Integer, Integer>, Integer>() {
+            public Integer apply(Entry<Integer, Integer> entry) {
+              visits.incrementAndGet();
+              return (entry.getValue() % 1000 == 999) ? entry.getKey() : null;
+            }
+          });
+      assertEquals(999, found % 1000);
+      assertTrue(visits.get() <= 10000);
+    }
+
+    public void testSearch_stopsEarly() {
+      ConcurrentMap<Integer, Integer> map = newMap(10000);
+      final AtomicInteger visits = new AtomicInteger();
+      assertNotNull(MapMaker.search(map, DIRECT,
+          new Function<Entry<Integer, Integer>, Integer>() {
+            public Integer apply(Entry<Integer, Integer> entry) {
+              visits.incrementAndGet();
+              return entry.getKey();
+            }
+          }));
+      assertEquals(1, visits.get());
+    }
+
+    public void testSearch_notFound() {
+      ConcurrentMap<Integer, Integer> map = newMap(1000);
+      assertNull(MapMaker.search(map, pool,
+          new Function<Entry<Integer, Integer>, Integer>() {
+            public Integer apply(Entry<Integer, Integer> entry) {
+              return null;
+            }
+          }));
+    }
+
+    static final Function<Entry<Integer, Integer>, Long> VALUE
+        = new Function<Entry<Integer, Integer>, Long>() {
+          public Long apply(Entry<Integer, Integer> entry) {
+            return (long) entry.getValue();
+          }
+        };
+
+    static final Reducer<Long> SUM = new Reducer<Long>() {
+      public Long reduce(Long a, Long b) {
+        return a + b;
+      }
+    };
+
+    public void testReduce() {
+      ConcurrentMap<Integer, Integer> map = newMap(10000);
+      assertEquals(Long.valueOf(9999L * 10000 / 2),
+          MapMaker.reduce(map, pool, VALUE, SUM));
+    }
+
+    public void testReduce_skipsNull() {
+      ConcurrentMap<Integer, Integer> map = newMap(100);
+      Long sum = MapMaker.reduce(map, pool,
+          new Function<Entry<Integer, Integer>, Long>() {
+            public Long apply(Entry<Integer, Integer> entry) {
+              return (entry.getKey() % 2 == 0) ? null : 1L;
+            }
+          }, SUM);
+      assertEquals(Long.valueOf(50), sum);
+    }
+
+    public void testReduce_empty() {
+      assertNull(MapMaker.reduce(newMap(0), pool, VALUE, SUM));
+    }
+
+    public void testReduce_asyncComputingMap() {
+      ConcurrentMap<Integer, Future<Integer>> map = new MapMaker()
+          .makeAsyncComputingMap(Functions.<Integer>identity(), DIRECT);
+      for (int i = 0; i < 10; i++) {
+        map.get(i);
+      }
+      Integer max = MapMaker.reduce(map, pool,
+          new Function<Entry<Integer, Future<Integer>>, Integer>() {
+            public Integer apply(Entry<Integer, Future<Integer>> entry) {
+              return entry.getKey();
+            }
+          },
+          new Reducer<Integer>() {
+            public Integer reduce(Integer a, Integer b) {
+              return Math.max(a, b);
+            }
+          });
+      assertEquals(Integer.valueOf(9), max);
+    }
+  }
+
+  public static class ResizeTest extends TestCase {
+
+    @SuppressWarnings("unchecked") // the maker has no key or value types
+    static Impl<Integer, Integer, ?> newMap() {
+      return (Impl<Integer, Integer, ?>) new MapMaker()
+          .concurrencyLevel(1)
+          .initialCapacity(64)
+          .expiration(1, TimeUnit.HOURS)
+          .<Integer, Integer>makeMap();
+    }
+
+    /** Puts entries until the segment starts a resize; returns the count. */
+    static int fillUntilResize(Impl<Integer, Integer, ?> map) {
+      int size = 0;
+      while (map.segments[0].migration == null) {
+        map.put(size, size);
+        size++;
+      }
+      return size;
+    }
+
+    public void testResizeIsIncremental() {
+      Impl<Integer, Integer, ?> map = newMap();
+      int size = fillUntilResize(map);
+      assertEquals(128, map.segments[0].table.length());
+      assertEquals(0, map.segments[0].migration.transferIndex);
+
+      map.put(0, 0);
+      assertEquals(Impl.TRANSFER_STEP,
+          map.segments[0].migration.transferIndex);
+
+      int writes = 1;
+      while (map.segments[0].migration != null) {
+        map.put(0, 0);
+        writes++;
+      }
+      assertEquals(64 / Impl.TRANSFER_STEP, writes);
+      assertEquals(size, map.size());
+      for (int i = 0; i < size; i++) {
+        assertEquals(Integer.valueOf(i), map.get(i));
+      }
+    }
+
+    public void testOperationsDuringResize() {
+      Impl<Integer, Integer, ?> map = newMap();
+      int size = fillUntilResize(map);
+      map.put(-1, -1);
+      size++;
+      assertNotNull(map.segments[0].migration);
+
+      Set<Integer> expected = new HashSet<Integer>();
+      for (int i = -1; i < size - 1; i++) {
+        expected.add(i);
+        assertEquals(Integer.valueOf(i), map.get(i));
+        assertTrue(map.containsKey(i));
+        assertTrue(map.containsValue(i));
+      }
+      assertEquals(expected, map.keySet());
+      assertEquals(expected, new HashSet<Integer>(map.values()));
+      assertEquals(size, map.size());
+
+      // Removes entries from both moved and unmoved slots.
+      for (int i = 0; i < size - 1; i += 2) {
+        assertEquals(Integer.valueOf(i), map.remove(i));
+        expected.remove(i);
+      }
+      assertEquals(expected, map.keySet());
+      for (int i = 0; i < size - 1; i++) {
+        assertEquals(expected.contains(i), map.containsKey(i));
+      }
+
+      map.clear();
+      assertNull(map.segments[0].migration);
+      assertTrue(map.isEmpty());
+      assertNull(map.get(1));
+      map.put(1, 1);
+      assertEquals(Collections.singleton(1), map.keySet());
+    }
+
+    public void testConsecutiveResizes() {
+      Impl<Integer, Integer, ?> map = newMap();
+      for (int i = 0; i < 100000; i++) {
+        map.put(i, i);
+      }
+      assertEquals(100000, map.size());
+      for (int i = 0; i < 100000; i++) {
+        assertEquals(Integer.valueOf(i), map.get(i));
+      }
+    }
+
+    public void testReadsDuringResize() throws Exception {
+      final Impl<Integer, Integer, ?> map = newMap();
+      final int size = 200000;
+      final AtomicInteger written = new AtomicInteger();
+      final AtomicInteger misses = new AtomicInteger();
+      Thread[] readers = new Thread[2];
+      for (int t = 0; t < readers.length; t++) {
+        readers[t] = new Thread() {
+          @Override public void run() {
+            int n;
+            while ((n = written.get()) < size) {
+              for (int i = Math.max(0, n - 1000); i < n; i++) {
+                if (map.get(i) == null) {
+                  misses.incrementAndGet();
+                }
+              }
+            }
+          }
+        };
+        readers[t].start();
+      }
+      for (int i = 0; i < size; i++) {
+        map.put(i, i);
+        written.set(i + 1);
+      }
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      assertEquals(0, misses.get());
+    }
+  }
+
+  public static class SegmentStatsTest extends TestCase {
+
+    /** A ticker that advances by one hour each time it's read. */
+    static class SteppingTicker extends Ticker {
+      long nanos;
+
+      @Override public long read() {
+        return nanos += TimeUnit.HOURS.toNanos(1);
+      }
+    }
+
+    /** A key whose instances all have the same hash code. */
+    static class CollidingKey implements Serializable {
+      final int id;
+
+      CollidingKey(int id) {
+        this.id = id;
+      }
+
+      @Override public boolean equals(Object o) {
+        return o instanceof CollidingKey && ((CollidingKey) o).id == id;
+      }
+
+      @Override public int hashCode() {
+        return 42;
+      }
+
+      private static final long serialVersionUID = 0;
+    }
+
+    public void testRecordSegmentStats_twice() {
+      MapMaker maker = new MapMaker().recordSegmentStats();
+      try {
+        maker.recordSegmentStats();
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testSegmentStats_notRecorded() {
+      try {
+        MapMaker.segmentStats(new MapMaker().recordStats().makeMap());
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        MapMaker.segmentStats(new ConcurrentHashMap<Object, Object>());
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+
+    public void testSegmentStats_oneForEachSegment() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(4)
+          .recordSegmentStats()
+          .makeMap();
+      for (int i = 0; i < 100; i++) {
+        map.put(i, i);
+      }
+      List<SegmentStats> stats = MapMaker.segmentStats(map);
+      assertEquals(4, stats.size());
+      int entryCount = 0;
+      long lockCount = 0;
+      for (SegmentStats segmentStats : stats) {
+        entryCount += segmentStats.entryCount();
+        lockCount += segmentStats.lockCount();
+      }
+      assertEquals(100, entryCount);
+      assertEquals(100, lockCount);
+    }
+
+    public void testLockCounts() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .ticker(new SteppingTicker())
+          .recordSegmentStats()
+          .makeMap();
+      SegmentStats stats = MapMaker.segmentStats(map).get(0);
+      assertEquals(0, stats.lockCount());
+      assertEquals(0, stats.contendedLockCount());
+      assertEquals(0, stats.totalLockHoldTime());
+      assertEquals(0.0, stats.contentionRate());
+      assertEquals(0.0, stats.averageLockHoldTime());
+
+      map.put(1, 1);
+      map.put(2, 2);
+      map.remove(1);
+      map.get(2); // doesn't lock
+      stats = MapMaker.segmentStats(map).get(0);
+      assertEquals(3, stats.lockCount());
+      assertEquals(0, stats.contendedLockCount());
+      // Measured in real time, not by the ticker.
+      long total = stats.totalLockHoldTime();
+      assertTrue(total >= 0 && total < TimeUnit.HOURS.toNanos(1));
+      assertEquals(total / 3.0, stats.averageLockHoldTime());
+      assertEquals(1, stats.entryCount());
+    }
+
+    public void testContendedLock() throws Exception {
+      @SuppressWarnings("unchecked") // the maker has no key or value types
+      final Impl<Integer, Integer, ?> map = (Impl<Integer, Integer, ?>)
+          new MapMaker()
+              .concurrencyLevel(1)
+              .recordSegmentStats()
+              .<Integer, Integer>makeMap();
+      map.segments[0].lock();
+      Thread writer = new Thread() {
+        @Override public void run() {
+          map.put(1, 1);
+        }
+      };
+      try {
+        writer.start();
+        while (!map.segments[0].hasQueuedThreads()) {
+          Thread.sleep(1);
+        }
+      } finally {
+        map.segments[0].unlock();
+      }
+      writer.join();
+
+      SegmentStats stats = MapMaker.segmentStats(map).get(0);
+      assertEquals(2, stats.lockCount());
+      assertEquals(1, stats.contendedLockCount());
+      assertEquals(0.5, stats.contentionRate());
+    }
+
+    public void testChainLengthCounts() {
+      ConcurrentMap<Object, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .initialCapacity(16)
+          .recordSegmentStats()
+          .makeMap();
+      for (int i = 0; i < 5; i++) {
+        map.put(new CollidingKey(i), i);
+      }
+      SegmentStats stats = MapMaker.segmentStats(map).get(0);
+      assertEquals(5, stats.entryCount());
+      assertEquals(5, stats.maxChainLength());
+      assertEquals(ImmutableList.of(15, 0, 0, 0, 0, 1),
+          stats.chainLengthCounts());
+    }
+
+    public void testChainLengthCounts_empty() {
+      ConcurrentMap<Object, Object> map = new MapMaker()
+          .concurrencyLevel(1)
+          .initialCapacity(4)
+          .recordSegmentStats()
+          .makeMap();
+      SegmentStats stats = MapMaker.segmentStats(map).get(0);
+      assertEquals(0, stats.entryCount());
+      assertEquals(0, stats.maxChainLength());
+      assertEquals(ImmutableList.of(4), stats.chainLengthCounts());
+    }
+
+    public void testSerialization() {
+      ConcurrentMap<Integer, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .recordSegmentStats()
+          .makeMap();
+      map.put(1, 1);
+      ConcurrentMap<Integer, Integer> copy = SerializableTester.reserialize(map);
+      assertEquals(map, copy);
+      assertEquals(1, MapMaker.segmentStats(copy).get(0).entryCount());
+    }
+
+    public void testEqualsAndToString() {
+      SegmentStats stats = new SegmentStats(
+          2, 1, 30, 1, ImmutableList.of(0, 1));
+      assertEquals(stats, new SegmentStats(
+          2, 1, 30, 1, ImmutableList.of(0, 1)));
+      assertEquals(stats.hashCode(), new SegmentStats(
+          2, 1, 30, 1, ImmutableList.of(0, 1)).hashCode());
+      assertFalse(stats.equals(new SegmentStats(
+          2, 1, 30, 1, ImmutableList.of(1, 1))));
+      assertEquals("SegmentStats{lockCount=2, contendedLockCount=1, "
+          + "totalLockHoldTime=30, entryCount=1, chainLengthCounts=[0, 1]}",
+          stats.toString());
+    }
+  }
+
+  public static class FailureExpirationTest extends TestCase {
+
+    /** Counts its calls, and fails or returns null if told to. */
+    static class CountingFunction implements Function<String, Integer> {
+      int count;
+      boolean fail;
+      boolean returnNull;
+
+      public Integer apply(String key) {
+        count++;
+        if (fail) {
+          throw new IllegalStateException("expected");
+        }
+        return returnNull ? null : count;
+      }
+    }
+
+    TickerTest.FakeTicker ticker;
+    CountingFunction function;
+    ConcurrentMap<String, Integer> map;
+
+    @Override protected void setUp() {
+      ticker = new TickerTest.FakeTicker();
+      function = new CountingFunction();
+      map = new MapMaker()
+          .concurrencyLevel(1)
+          .ticker(ticker)
+          .expireFailuresAfter(1, TimeUnit.MINUTES)
+          .makeComputingMap(function);
+    }
+
+    public void testExpireFailuresAfter_twice() {
+      MapMaker maker = new MapMaker().expireFailuresAfter(1, SECONDS);
+      try {
+        maker.expireFailuresAfter(1, SECONDS);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testExpireFailuresAfter_notPositive() {
+      try {
+        new MapMaker().expireFailuresAfter(0, SECONDS);
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+
+    public void testExpireFailuresAfter_notComputing() {
+      try {
+        new MapMaker().expireFailuresAfter(1, SECONDS).makeMap();
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testFailureIsKept() {
+      function.fail = true;
+      try {
+        map.get("a");
+        fail();
+      } catch (ComputationException expected) {
+        assertTrue(expected.getCause() instanceof IllegalStateException);
+      }
+      function.fail = false;
+      for (int i = 0; i < 3; i++) {
+        try {
+          map.get("a");
+          fail();
+        } catch (AsynchronousComputationException expected) {
+          assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+      }
+      assertEquals(1, function.count);
+
+      // Other keys are unaffected.
+      assertEquals(Integer.valueOf(2), map.get("b"));
+
+      ticker.advance(59, TimeUnit.SECONDS);
+      try {
+        map.get("a");
+        fail();
+      } catch (AsynchronousComputationException expected) {
+      }
+      ticker.advance(1, TimeUnit.SECONDS);
+      assertEquals(Integer.valueOf(3), map.get("a"));
+      assertEquals(3, function.count);
+    }
+
+    public void testFailureIsRetriedOncePerDuration() {
+      function.fail = true;
+      for (int minute = 0; minute < 3; minute++) {
+        for (int i = 0; i < 5; i++) {
+          try {
+            map.get("a");
+            fail();
+          } catch (ComputationException expected) {
+          }
+        }
+        assertEquals(minute + 1, function.count);
+        ticker.advance(1, TimeUnit.MINUTES);
+      }
+    }
+
+    public void testNullIsKept() {
+      function.returnNull = true;
+      for (int i = 0; i < 3; i++) {
+        try {
+          map.get("a");
+          fail();
+        } catch (NullPointerException expected) {
+        }
+      }
+      assertEquals(1, function.count);
+    }
+
+    public void testFailureIsNotVisible() {
+      function.fail = true;
+      try {
+        map.get("a");
+        fail();
+      } catch (ComputationException expected) {
+      }
+      assertFalse(map.containsKey("a"));
+      assertFalse(map.keySet().iterator().hasNext());
+      assertNull(map.remove("a"));
+    }
+
+    public void testPutReplacesFailure() {
+      function.fail = true;
+      try {
+        map.get("a");
+        fail();
+      } catch (ComputationException expected) {
+      }
+      map.put("a", 42);
+      assertEquals(Integer.valueOf(42), map.get("a"));
+
+      // A write after the failure would have expired keeps the value.
+      ticker.advance(2, TimeUnit.MINUTES);
+      map.put("b", 1);
+      assertEquals(Integer.valueOf(42), map.get("a"));
+      assertEquals(1, function.count);
+    }
+
+    /** Requests each of the given keys once, expecting a failure. */
+    void failKeys(ConcurrentMap<String, Integer> map, int count) {
+      function.fail = true;
+      for (int i = 0; i < count; i++) {
+        try {
+          map.get("failing" + i);
+          fail();
+        } catch (ComputationException expected) {
+        }
+      }
+      function.fail = false;
+    }
+
+    /** Returns the number of entries in the map's only segment. */
+    static int entryCount(ConcurrentMap<?, ?> map) {
+      return ((Impl<?, ?, ?>) map).segments[0].count;
+    }
+
+    public void testFailuresDontCountTowardSize() {
+      failKeys(map, 100);
+      assertEquals(100, entryCount(map));
+      assertEquals(0, map.size());
+      assertTrue(map.isEmpty());
+      map.put("a", 1);
+      assertEquals(1, map.size());
+      assertFalse(map.isEmpty());
+    }
+
+    public void testFailuresDontEvictValues() {
+      map = new MapMaker()
+          .concurrencyLevel(1)
+          .ticker(ticker)
+          .maximumSize(10)
+          .expireFailuresAfter(1, TimeUnit.MINUTES)
+          .makeComputingMap(function);
+      // Leaves room for the entry of each computation while it runs.
+      for (int i = 0; i < 9; i++) {
+        map.put("value" + i, i);
+      }
+      failKeys(map, 100);
+      assertEquals(9, map.size());
+      for (int i = 0; i < 9; i++) {
+        assertEquals(Integer.valueOf(i), map.get("value" + i));
+      }
+      assertEquals(100, function.count);
+    }
+
+    public void testExpiredFailuresAreRemovedDuringWrites() {
+      failKeys(map, 100);
+      ticker.advance(59, TimeUnit.SECONDS);
+      map.put("a", 1);
+      assertEquals(101, entryCount(map));
+      ticker.advance(2, TimeUnit.SECONDS);
+      map.put("b", 2);
+      assertEquals(2, entryCount(map));
+      assertEquals(2, map.size());
+    }
+
+    public void testExpiredFailuresAreRemovedDuringWrites_expiringMap() {
+      map = new MapMaker()
+          .concurrencyLevel(1)
+          .ticker(ticker)
+          .expiration(1, TimeUnit.MINUTES)
+          .expireFailuresAfter(5, TimeUnit.MINUTES)
+          .makeComputingMap(function);
+      failKeys(map, 1);
+      map.put("a", 1);
+
+      // The value expires, but the failure is kept.
+      ticker.advance(2, TimeUnit.MINUTES);
+      map.put("b", 2);
+      assertEquals(2, entryCount(map));
+      try {
+        map.get("failing0");
+        fail();
+      } catch (AsynchronousComputationException expected) {
+      }
+
+      ticker.advance(4, TimeUnit.MINUTES);
+      map.put("c", 3);
+      assertEquals(1, entryCount(map));
+      assertEquals(1, function.count);
+    }
+
+    public void testExpiredFailuresAreReplacedOnRead() {
+      function.fail = true;
+      for (String key : Arrays.asList("a", "b", "c")) {
+        try {
+          map.get(key);
+          fail();
+        } catch (ComputationException expected) {
+        }
+      }
+      ticker.advance(2, TimeUnit.MINUTES);
+      function.fail = false;
+      for (String key : Arrays.asList("a", "b", "c")) {
+        map.get(key);
+      }
+      assertEquals(3, map.size());
+      assertEquals(6, function.count);
+    }
+
+    public void testFailureIsKeptByCopyMadeDuringComputation() {
+      final SegmentStatsTest.CollidingKey older
+          = new SegmentStatsTest.CollidingKey(1);
+      final SegmentStatsTest.CollidingKey failing
+          = new SegmentStatsTest.CollidingKey(2);
+      final AtomicInteger count = new AtomicInteger();
+      final ConcurrentMap<Object, Integer>[] holder = new ConcurrentMap[1];
+      ConcurrentMap<Object, Integer> map = new MapMaker()
+          .concurrencyLevel(1)
+          .ticker(ticker)
+          .expireFailuresAfter(1, TimeUnit.MINUTES)
+          .makeComputingMap(new Function<Object, Integer>() {
+            public Integer apply(Object key) {
+              count.incrementAndGet();
+              // The failing entry precedes the older one in their chain, so
+              // removing the older one copies the failing entry.
+              holder[0].remove(older);
+              throw new IllegalStateException("expected");
+            }
+          });
+      holder[0] = map;
+      map.put(older, 1);
+      for (int i = 0; i < 3; i++) {
+        try {
+          map.get(failing);
+          fail();
+        } catch (ComputationException expected) {
+        }
+      }
+      assertEquals(1, count.get());
+
+      ticker.advance(1, TimeUnit.MINUTES);
+      try {
+        map.get(failing);
+        fail();
+      } catch (ComputationException expected) {
+      }
+      assertEquals(2, count.get());
+    }
+
+    public void testRemoveForgetsFailure() {
+      function.fail = true;
+      try {
+        map.get("a");
+        fail();
+      } catch (ComputationException expected) {
+      }
+      map.clear();
+      function.fail = false;
+      assertEquals(Integer.valueOf(2), map.get("a"));
+    }
+
+    public void testDefault_failureIsRetried() {
+      ConcurrentMap<String, Integer> map
+          = new MapMaker().makeComputingMap(function);
+      function.fail = true;
+      for (int i = 0; i < 3; i++) {
+        try {
+          map.get("a");
+          fail();
+        } catch (ComputationException expected) {
+        }
+      }
+      assertEquals(3, function.count);
+    }
+  }
+
+  public static class SnapshotTest extends TestCase {
+
+    static final SnapshotCodec<String> STRING_CODEC
+        = new SnapshotCodec<String>() {
+          public void write(String value, DataOutput out) throws IOException {
+            out.writeUTF(value);
+          }
+
+          public String read(DataInput in) throws IOException {
+            return in.readUTF();
+          }
+        };
+
+    static final SnapshotCodec<Integer> INTEGER_CODEC
+        = new SnapshotCodec<Integer>() {
+          public void write(Integer value, DataOutput out)
+              throws IOException {
+            out.writeInt(value);
+          }
+
+          public Integer read(DataInput in) throws IOException {
+            return in.readInt();
+          }
+        };
+
+    File file;
+
+    @Override protected void setUp() throws IOException {
+      file = File.createTempFile("snapshot", null);
+    }
+
+    @Override protected void tearDown() {
+      file.delete();
+    }
+
+    static ConcurrentMap<String, Integer> makeMap() {
+      return new MapMaker()
+          .concurrencyLevel(16)
+          .ticker(Ticker.systemTicker())
+          .makeMap();
+    }
+
+    public void testRoundTrip() throws IOException {
+      // More entries than are stored in one batch.
+      ConcurrentMap<String, Integer> map = makeMap();
+      for (int i = 0; i < 50000; i++) {
+        map.put("key" + i, i);
+      }
+      assertEquals(50000, MapMaker.writeSnapshot(
+          map, file, STRING_CODEC, INTEGER_CODEC));
+
+      ConcurrentMap<String, Integer> copy = makeMap();
+      assertEquals(50000, MapMaker.loadSnapshot(
+          copy, file, STRING_CODEC, INTEGER_CODEC));
+      assertEquals(map, copy);
+    }
+
+    public void testRoundTrip_empty() throws IOException {
+      ConcurrentMap<String, Integer> map = makeMap();
+      assertEquals(0, MapMaker.writeSnapshot(
+          map, file, STRING_CODEC, INTEGER_CODEC));
+      assertEquals(0, MapMaker.loadSnapshot(
+          map, file, STRING_CODEC, INTEGER_CODEC));
+      assertTrue(map.isEmpty());
+    }
+
+    public void testRoundTrip_concurrentHashMap() throws IOException {
+      ConcurrentMap<String, Integer> map
+          = new ConcurrentHashMap<String, Integer>();
+      map.put("a", 1);
+      map.put("b", 2);
+      assertEquals(2, MapMaker.writeSnapshot(
+          map, file, STRING_CODEC, INTEGER_CODEC));
+
+      ConcurrentMap<String, Integer> copy
+          = new ConcurrentHashMap<String, Integer>();
+      assertEquals(2, MapMaker.loadSnapshot(
+          copy, file, STRING_CODEC, INTEGER_CODEC));
+      assertEquals(map, copy);
+    }
+
+    public void testLoad_keepsExistingValues() throws IOException {
+      ConcurrentMap<String, Integer> map = makeMap();
+      map.put("a", 1);
+      map.put("b", 2);
+      MapMaker.writeSnapshot(map, file, STRING_CODEC, INTEGER_CODEC);
+
+      ConcurrentMap<String, Integer> target = makeMap();
+      target.put("b", 20);
+      target.put("c", 30);
+      assertEquals(1, MapMaker.loadSnapshot(
+          target, file, STRING_CODEC, INTEGER_CODEC));
+      assertEquals(ImmutableMap.of("a", 1, "b", 20, "c", 30), target);
+    }
+
+    public void testLoad_entriesAreFreshlyWritten() throws IOException {
+      ConcurrentMap<String, Integer> map = makeMap();
+      map.put("a", 1);
+      MapMaker.writeSnapshot(map, file, STRING_CODEC, INTEGER_CODEC);
+
+      TickerTest.FakeTicker ticker = new TickerTest.FakeTicker();
+      ticker.advance(1, TimeUnit.DAYS);
+      ConcurrentMap<String, Integer> target = new MapMaker()
+          .ticker(ticker)
+          .expiration(10, SECONDS)
+          .makeMap();
+      MapMaker.loadSnapshot(target, file, STRING_CODEC, INTEGER_CODEC);
+      ticker.advance(9, SECONDS);
+      assertEquals(Integer.valueOf(1), target.get("a"));
+      ticker.advance(2, SECONDS);
+      assertNull(target.get("a"));
+    }
+
+    public void testWrite_skipsComputationsInProgress() throws IOException {
+      final List<ConcurrentMap<String, Integer>> holder
+          = new ArrayList<ConcurrentMap<String, Integer>>();
+      final AtomicInteger written = new AtomicInteger();
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .makeComputingMap(new Function<String, Integer>() {
+            public Integer apply(String key) {
+              try {
+                written.set(MapMaker.writeSnapshot(
+                    holder.get(0), file, STRING_CODEC, INTEGER_CODEC));
+              } catch (IOException e) {
+                throw new AssertionError(e);
+              }
+              return 1;
+            }
+          });
+      holder.add(map);
+      map.put("b", 2);
+      assertEquals(Integer.valueOf(1), map.get("a"));
+      assertEquals(1, written.get());
+
+      ConcurrentMap<String, Integer> copy = makeMap();
+      MapMaker.loadSnapshot(copy, file, STRING_CODEC, INTEGER_CODEC);
+      assertEquals(ImmutableMap.of("b", 2), copy);
+    }
+
+    public void testLoad_notASnapshot() throws IOException {
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+      } finally {
+        out.close();
+      }
+      try {
+        MapMaker.loadSnapshot(makeMap(), file, STRING_CODEC, INTEGER_CODEC);
+        fail();
+      } catch (IOException expected) {
+      }
+    }
+
+    public void testLoad_truncated() throws IOException {
+      ConcurrentMap<String, Integer> map = makeMap();
+      map.put("a", 1);
+      MapMaker.writeSnapshot(map, file, STRING_CODEC, INTEGER_CODEC);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(raf.length() - 1);
+      } finally {
+        raf.close();
+      }
+      try {
+        MapMaker.loadSnapshot(makeMap(), file, STRING_CODEC, INTEGER_CODEC);
+        fail();
+      } catch (EOFException expected) {
+      }
+    }
+
+    public void testLoad_nullDecoded() throws IOException {
+      ConcurrentMap<String, Integer> map = makeMap();
+      map.put("a", 1);
+      MapMaker.writeSnapshot(map, file, STRING_CODEC, INTEGER_CODEC);
+      SnapshotCodec<Integer> nullCodec = new SnapshotCodec<Integer>() {
+        public void write(Integer value, DataOutput out) {
+          throw new AssertionError();
+        }
+
+        public Integer read(DataInput in) throws IOException {
+          in.readInt();
+          return null;
+        }
+      };
+      try {
+        MapMaker.loadSnapshot(makeMap(), file, STRING_CODEC, nullCodec);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+    }
+
+    public void testNullArguments() throws IOException {
+      ConcurrentMap<String, Integer> map = makeMap();
+      try {
+        MapMaker.writeSnapshot(map, null, STRING_CODEC, INTEGER_CODEC);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+      try {
+        MapMaker.loadSnapshot(map, file, null, INTEGER_CODEC);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+    }
+  }
+
+  public static class KeyEquivalenceTest extends TestCase {
+
+    /** Compares strings ignoring case. */
+    enum CaseInsensitive implements Equivalence<Object> {
+      INSTANCE;
+
+      public boolean equivalent(Object a, Object b) {
+        return ((String) a).equalsIgnoreCase((String) b);
+      }
+
+      public int hash(Object o) {
+        return ((String) o).toLowerCase().hashCode();
+      }
+    }
+
+    public void testKeyEquivalence_twice() {
+      MapMaker maker = new MapMaker().keyEquivalence(Equivalences.identity());
+      try {
+        maker.keyEquivalence(Equivalences.identity());
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+
+    public void testKeyEquivalence_null() {
+      try {
+        new MapMaker().keyEquivalence(null);
+        fail();
+      } catch (NullPointerException expected) {
+      }
+    }
+
+    public void testIdentity_strongKeys() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .keyEquivalence(Equivalences.identity())
+          .makeMap();
+      String key = new String("a");
+      map.put(key, 1);
+      assertEquals(Integer.valueOf(1), map.get(key));
+      assertNull(map.get(new String("a")));
+      assertNull(map.putIfAbsent(new String("a"), 2));
+      assertEquals(2, map.size());
+    }
+
+    public void testEquals_weakKeys() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .weakKeys()
+          .keyEquivalence(Equivalences.equals())
+          .makeMap();
+      String key = new String("a");
+      map.put(key, 1);
+      assertEquals(Integer.valueOf(1), map.get(new String("a")));
+      assertEquals(Integer.valueOf(1), map.remove(new String("a")));
+      assertTrue(map.isEmpty());
+    }
+
+    public void testCustom() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .keyEquivalence(CaseInsensitive.INSTANCE)
+          .makeMap();
+      map.put("a", 1);
+      assertEquals(Integer.valueOf(1), map.put("A", 2));
+      assertEquals(Integer.valueOf(2), map.get("a"));
+      assertEquals(1, map.size());
+      assertEquals(Collections.singleton("a"), map.keySet());
+    }
+
+    public void testCustom_computing() {
+      final AtomicInteger count = new AtomicInteger();
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .keyEquivalence(CaseInsensitive.INSTANCE)
+          .makeComputingMap(new Function<String, Integer>() {
+            public Integer apply(String key) {
+              return count.incrementAndGet();
+            }
+          });
+      assertEquals(Integer.valueOf(1), map.get("a"));
+      assertEquals(Integer.valueOf(1), map.get("A"));
+      assertEquals(1, count.get());
+    }
+
+    public void testSerialization() {
+      ConcurrentMap<String, Integer> map = new MapMaker()
+          .keyEquivalence(CaseInsensitive.INSTANCE)
+          .makeMap();
+      map.put("a", 1);
+      ConcurrentMap<String, Integer> copy
+          = SerializableTester.reserialize(map);
+      assertEquals(Integer.valueOf(1), copy.get("A"));
+    }
+
+    public void testEquivalencesSerialization() {
+      assertSame(Equivalences.identity(),
+          SerializableTester.reserialize(Equivalences.identity()));
+      assertSame(Equivalences.equals(),
+          SerializableTester.reserialize(Equivalences.equals()));
+    }
+  }
+
+  /** Sleeps until entries written before the call have expired. */
+  static void waitForExpiration(long expirationMillis) {
+    sleep(expirationMillis * 3 / 2);
+  }
+
+  static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   static <E> Set<E> set(E... elements) {
     return new HashSet<E>(Arrays.asList(elements));
   }